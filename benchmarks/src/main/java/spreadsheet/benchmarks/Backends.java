@@ -0,0 +1,108 @@
+package spreadsheet.benchmarks;
+
+import java.util.SplittableRandom;
+
+import spreadsheet.ColumnarSpreadSheet;
+import spreadsheet.ConcurrentSparseSpreadSheet;
+import spreadsheet.FormulaSpreadSheet;
+import spreadsheet.MacroCommand;
+import spreadsheet.MacroSpreadSheet;
+import spreadsheet.NewSparseSpreadSheet;
+import spreadsheet.RunLengthSpreadSheet;
+import spreadsheet.SparseSpreadSheet;
+import spreadsheet.SpreadSheet;
+import spreadsheet.TiledSpreadSheet;
+import spreadsheet.VirtualRegionSpreadSheet;
+
+/**
+ * The spreadsheet backends that every benchmark is run against, by the names used for the
+ * {@code backend} parameter of the benchmarks. A new backend is added here and to the
+ * {@code @Param} lists of the benchmarks.
+ */
+final class Backends {
+  /**
+   * This class only offers static helpers.
+   */
+  private Backends() {
+  }
+
+  /**
+   * Create an empty spreadsheet of the named backend.
+   *
+   * @param name the name of the backend
+   * @return a new, empty spreadsheet
+   * @throws IllegalArgumentException if there is no backend with that name
+   */
+  static SpreadSheet create(String name) throws IllegalArgumentException {
+    switch (name) {
+      case "sparse":
+        return new SparseSpreadSheet();
+      case "new-sparse":
+        return new NewSparseSpreadSheet();
+      case "concurrent":
+        return new ConcurrentSparseSpreadSheet();
+      case "tiled":
+        return new TiledSpreadSheet();
+      case "run-length":
+        return new RunLengthSpreadSheet();
+      case "columnar":
+        return new ColumnarSpreadSheet();
+      case "virtual-region":
+        return new VirtualRegionSpreadSheet(new SparseSpreadSheet());
+      case "formula":
+        return new FormulaSpreadSheet(new NewSparseSpreadSheet());
+      default:
+        throw new IllegalArgumentException("Unknown backend " + name);
+    }
+  }
+
+  /**
+   * Create an empty spreadsheet of the named backend, which must support macros.
+   *
+   * @param name the name of the backend
+   * @return a new, empty spreadsheet
+   * @throws IllegalArgumentException if there is no backend with that name that supports
+   *                                  macros
+   */
+  static MacroSpreadSheet createMacro(String name) throws IllegalArgumentException {
+    SpreadSheet sheet = create(name);
+    if (!(sheet instanceof MacroSpreadSheet)) {
+      throw new IllegalArgumentException("Backend " + name + " does not support macros");
+    }
+    return (MacroSpreadSheet) sheet;
+  }
+
+  /**
+   * Execute a macro the way the application does: through the spreadsheet when it supports
+   * macros, so that its own path for the macro is measured, and directly against it otherwise.
+   *
+   * @param sheet   the spreadsheet to execute the macro on
+   * @param command the macro to execute
+   */
+  static void execute(SpreadSheet sheet, MacroCommand command) {
+    if (sheet instanceof MacroSpreadSheet) {
+      ((MacroSpreadSheet) sheet).execute(command);
+    } else {
+      command.execute(sheet);
+    }
+  }
+
+  /**
+   * Fill a square of a spreadsheet at the given density, with a fixed seed so that every
+   * backend holds the same cells.
+   *
+   * @param sheet   the spreadsheet to fill
+   * @param side    the number of rows and columns of the square
+   * @param density the fraction of the cells to fill, between 0 and 1
+   */
+  static void fill(SpreadSheet sheet, int side, double density) {
+    SplittableRandom random = new SplittableRandom(42);
+    for (int row = 0; row < side; row++) {
+      for (int col = 0; col < side; col++) {
+        if (random.nextDouble() < density) {
+          sheet.set(row, col, random.nextInt(1000));
+        }
+      }
+    }
+  }
+}
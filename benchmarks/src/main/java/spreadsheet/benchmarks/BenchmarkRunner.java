@@ -0,0 +1,37 @@
+package spreadsheet.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * The entry point of the benchmark jar. It accepts the usual JMH command line, and always
+ * adds the GC profiler so that every result comes with its allocation rate.
+ */
+public final class BenchmarkRunner {
+
+  /**
+   * This class only offers the entry point.
+   */
+  private BenchmarkRunner() {
+  }
+
+  /**
+   * Run the benchmarks selected on the command line, or all of them.
+   *
+   * @param args the JMH command line
+   * @throws CommandLineOptionException if the command line is invalid
+   * @throws RunnerException            if a benchmark fails
+   */
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+    Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,112 @@
+package spreadsheet.benchmarks;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spreadsheet.SpreadSheet;
+
+/**
+ * Single-cell reads and writes over a square of cells, visited either at random or row by
+ * row, for every backend and several densities.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellBenchmark {
+  private static final int SIDE = 1000;
+  private static final int POSITIONS = 1 << 16;
+
+  @Param({"sparse", "new-sparse", "concurrent", "tiled", "run-length", "columnar",
+      "virtual-region", "formula"})
+  public String backend;
+
+  @Param({"random", "sequential"})
+  public String pattern;
+
+  @Param({"0.01", "0.5", "1.0"})
+  public double density;
+
+  private SpreadSheet sheet;
+  private int[] rows;
+  private int[] cols;
+  private int next;
+
+  /**
+   * Fill the sheet and choose the cells to visit.
+   */
+  @Setup
+  public void setUp() {
+    this.sheet = Backends.create(this.backend);
+    Backends.fill(this.sheet, SIDE, this.density);
+    this.rows = new int[POSITIONS];
+    this.cols = new int[POSITIONS];
+    SplittableRandom random = new SplittableRandom(7);
+    for (int i = 0; i < POSITIONS; i++) {
+      if (this.pattern.equals("random")) {
+        this.rows[i] = random.nextInt(SIDE);
+        this.cols[i] = random.nextInt(SIDE);
+      } else {
+        this.rows[i] = i / SIDE;
+        this.cols[i] = i % SIDE;
+      }
+    }
+    this.next = 0;
+  }
+
+  /**
+   * Return the index of the next cell to visit.
+   *
+   * @return the index into the arrays of rows and columns
+   */
+  private int advance() {
+    int i = this.next;
+    this.next = (i + 1) & (POSITIONS - 1);
+    return i;
+  }
+
+  /**
+   * Read one cell.
+   *
+   * @return the value of the cell
+   */
+  @Benchmark
+  public double get() {
+    int i = advance();
+    return this.sheet.get(this.rows[i], this.cols[i]);
+  }
+
+  /**
+   * Write one cell.
+   */
+  @Benchmark
+  public void set() {
+    int i = advance();
+    this.sheet.set(this.rows[i], this.cols[i], i);
+  }
+
+  /**
+   * Check whether one cell is empty.
+   *
+   * @return whether the cell is empty
+   */
+  @Benchmark
+  public boolean isEmpty() {
+    int i = advance();
+    return this.sheet.isEmpty(this.rows[i], this.cols[i]);
+  }
+}
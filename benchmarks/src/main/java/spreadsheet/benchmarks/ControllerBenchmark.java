@@ -0,0 +1,108 @@
+package spreadsheet.benchmarks;
+
+import java.io.StringReader;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spreadsheet.MacroSpreadSheet;
+import spreadsheet.NewSpreadSheetController;
+
+/**
+ * Replays a fixed session of instructions through {@link NewSpreadSheetController} against a
+ * fresh sheet of every backend that supports macros, as the controller requires, measuring
+ * parsing, execution and output together.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ControllerBenchmark {
+  @Param({"new-sparse", "concurrent", "virtual-region", "formula"})
+  public String backend;
+
+  @Param({"10000"})
+  public int instructions;
+
+  private String session;
+
+  /**
+   * Generate the session: mostly single assignments, with a print, a bulk assignment, a range
+   * assignment or an average every now and then.
+   */
+  @Setup
+  public void setUp() {
+    SplittableRandom random = new SplittableRandom(11);
+    StringBuilder script = new StringBuilder();
+    for (int i = 0; i < this.instructions; i++) {
+      String row = row(random.nextInt(500));
+      int col = 1 + random.nextInt(500);
+      switch (i % 100) {
+        case 0:
+          script.append("bulk-assign-value ").append(row).append(' ').append(col)
+                  .append(' ').append(row(random.nextInt(500) + 500)).append(' ')
+                  .append(col + 100).append(" 2.5\n");
+          break;
+        case 1:
+          script.append("range-assign ").append(row).append(' ').append(col).append(' ')
+                  .append(row).append(' ').append(col + 200).append(" 1 0.5\n");
+          break;
+        case 2:
+          script.append("average A 1 ").append(row).append(' ').append(col)
+                  .append(" A 1\n");
+          break;
+        case 3:
+          script.append("print-value ").append(row).append(' ').append(col).append('\n');
+          break;
+        default:
+          script.append("assign-value ").append(row).append(' ').append(col).append(' ')
+                  .append(random.nextInt(1000)).append('\n');
+      }
+    }
+    script.append("quit\n");
+    this.session = script.toString();
+  }
+
+  /**
+   * Return the letters of a row number, as the controller reads them.
+   *
+   * @param row the row number, starting with 0
+   * @return the letters of the row, starting with A
+   */
+  private static String row(int row) {
+    StringBuilder letters = new StringBuilder();
+    int n = row + 1;
+    while (n > 0) {
+      n--;
+      letters.append((char) ('A' + n % 26));
+      n /= 26;
+    }
+    return letters.reverse().toString();
+  }
+
+  /**
+   * Run the whole session against a new sheet.
+   *
+   * @return the output of the session
+   */
+  @Benchmark
+  public StringBuilder replay() {
+    MacroSpreadSheet sheet = Backends.createMacro(this.backend);
+    StringBuilder output = new StringBuilder();
+    new NewSpreadSheetController(sheet, new StringReader(this.session), output).control();
+    return output;
+  }
+}
@@ -0,0 +1,99 @@
+package spreadsheet.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spreadsheet.BulkMacroAssign;
+import spreadsheet.MacroAverage;
+import spreadsheet.MacroCommand;
+import spreadsheet.MacroRangeAssign;
+import spreadsheet.SpreadSheet;
+
+/**
+ * The built-in macros over square ranges of several sizes, on sheets filled at several
+ * densities, for every backend. Macros are executed through the backend, as the controllers
+ * execute them, so that its own path for each macro is measured. The assignments overwrite
+ * the same range on every invocation, which is the steady state of a sheet that is recomputed
+ * over and over.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacroBenchmark {
+  private static final int SIDE = 1000;
+
+  @Param({"sparse", "new-sparse", "concurrent", "tiled", "run-length", "columnar",
+      "virtual-region", "formula"})
+  public String backend;
+
+  @Param({"10", "100", "1000"})
+  public int size;
+
+  @Param({"0.01", "1.0"})
+  public double density;
+
+  private SpreadSheet sheet;
+  private MacroCommand bulkAssign;
+  private MacroCommand rangeAssign;
+  private MacroCommand average;
+
+  /**
+   * Fill the sheet and create the macros.
+   */
+  @Setup
+  public void setUp() {
+    this.sheet = Backends.create(this.backend);
+    Backends.fill(this.sheet, SIDE, this.density);
+    int last = this.size - 1;
+    this.bulkAssign = new BulkMacroAssign(0, 0, last, last, 1.5);
+    this.rangeAssign = new MacroRangeAssign(0, 0, last, last, 1, 0.5);
+    this.average = new MacroAverage(0, 0, last, last, SIDE, 0);
+  }
+
+  /**
+   * Assign one value to the whole range.
+   *
+   * @return the sheet, so that the work is not eliminated
+   */
+  @Benchmark
+  public SpreadSheet bulkAssign() {
+    Backends.execute(this.sheet, this.bulkAssign);
+    return this.sheet;
+  }
+
+  /**
+   * Assign an arithmetic sequence to the whole range.
+   *
+   * @return the sheet, so that the work is not eliminated
+   */
+  @Benchmark
+  public SpreadSheet rangeAssign() {
+    Backends.execute(this.sheet, this.rangeAssign);
+    return this.sheet;
+  }
+
+  /**
+   * Average the whole range.
+   *
+   * @return the average
+   */
+  @Benchmark
+  public double average() {
+    Backends.execute(this.sheet, this.average);
+    return this.sheet.get(SIDE, 0);
+  }
+}
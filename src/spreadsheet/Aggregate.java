@@ -0,0 +1,97 @@
+package spreadsheet;
+
+/**
+ * A function that reduces a range of cells to a single number. Empty cells count as 0, as
+ * they do for {@link MacroAverage}, except that {@link #COUNT} counts only the non-empty ones.
+ * The functions other than the sum, the mean and the count read the range once through
+ * {@link RangeStatistics}; a {@link MacroAggregate} that also asks for the count takes it
+ * from the same pass.
+ */
+public enum Aggregate {
+  /**
+   * The sum of the cells.
+   */
+  SUM {
+    @Override
+    public double apply(SpreadSheet sheet, int fromRow, int fromCol, int toRow, int toCol) {
+      return sheet.sumRange(fromRow, fromCol, toRow, toCol);
+    }
+  },
+
+  /**
+   * The mean of the cells.
+   */
+  AVERAGE {
+    @Override
+    public double apply(SpreadSheet sheet, int fromRow, int fromCol, int toRow, int toCol) {
+      return sheet.sumRange(fromRow, fromCol, toRow, toCol)
+              / RangeChecks.area(fromRow, fromCol, toRow, toCol);
+    }
+  },
+
+  /**
+   * The smallest cell.
+   */
+  MIN {
+    @Override
+    public double apply(SpreadSheet sheet, int fromRow, int fromCol, int toRow, int toCol) {
+      return RangeStatistics.of(sheet, fromRow, fromCol, toRow, toCol).getMin();
+    }
+  },
+
+  /**
+   * The largest cell.
+   */
+  MAX {
+    @Override
+    public double apply(SpreadSheet sheet, int fromRow, int fromCol, int toRow, int toCol) {
+      return RangeStatistics.of(sheet, fromRow, fromCol, toRow, toCol).getMax();
+    }
+  },
+
+  /**
+   * The number of non-empty cells.
+   */
+  COUNT {
+    @Override
+    public double apply(SpreadSheet sheet, int fromRow, int fromCol, int toRow, int toCol) {
+      long[] count = new long[1];
+      sheet.forEachNonEmpty(fromRow, fromCol, toRow, toCol, (row, col, value) -> count[0]++);
+      return count[0];
+    }
+  },
+
+  /**
+   * The population variance of the cells.
+   */
+  VARIANCE {
+    @Override
+    public double apply(SpreadSheet sheet, int fromRow, int fromCol, int toRow, int toCol) {
+      return RangeStatistics.of(sheet, fromRow, fromCol, toRow, toCol).getVariance();
+    }
+  },
+
+  /**
+   * The population standard deviation of the cells.
+   */
+  STDDEV {
+    @Override
+    public double apply(SpreadSheet sheet, int fromRow, int fromCol, int toRow, int toCol) {
+      return RangeStatistics.of(sheet, fromRow, fromCol, toRow, toCol).getStandardDeviation();
+    }
+  };
+
+  /**
+   * Compute this function over the given range of a spreadsheet.
+   *
+   * @param sheet   the spreadsheet to read
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the value of the function
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  public abstract double apply(SpreadSheet sheet, int fromRow, int fromCol, int toRow,
+                               int toCol) throws IllegalArgumentException;
+}
@@ -3,7 +3,7 @@ package spreadsheet;
 /**
  * A macro command that assigns a specified value to a range of cells within a spreadsheet.
  */
-public class BulkMacroAssign implements MacroCommand {
+public class BulkMacroAssign implements PartitionedMacro {
   private final int fromRow;
   private final int fromCol;
   private final int toRow;
@@ -39,10 +39,80 @@ public class BulkMacroAssign implements MacroCommand {
    */
   @Override
   public void execute(SpreadSheet spreadSheet) {
-    for (int row = fromRow; row <= toRow; row++) {
-      for (int col = fromCol; col <= toCol; col++) {
-        spreadSheet.set(row, col, value);
-      }
-    }
+    executeRows(spreadSheet, fromRow, toRow);
+  }
+
+  /**
+   * Assigns the value to the cells of the given rows of the range.
+   *
+   * @param spreadSheet the spreadsheet on which to execute the macro
+   * @param fromRow     the first row of the stripe
+   * @param toRow       the last row of the stripe, inclusive
+   * @return always 0, as assigning produces no partial result
+   */
+  @Override
+  public double executeRows(SpreadSheet spreadSheet, int fromRow, int toRow) {
+    spreadSheet.fillRange(fromRow, this.fromCol, toRow, this.toCol, value);
+    return 0;
+  }
+
+  /**
+   * Does nothing, as every cell has already been assigned by its stripe.
+   *
+   * @param spreadSheet the spreadsheet on which the macro was executed
+   * @param total       the sum of the partial results of all stripes
+   */
+  @Override
+  public void complete(SpreadSheet spreadSheet, double total) {
+    // nothing left to do once every stripe has been assigned
+  }
+
+  /**
+   * Returns the starting row index of the cell range this command assigns.
+   *
+   * @return the starting row index of the cell range
+   */
+  @Override
+  public int getFromRow() {
+    return fromRow;
+  }
+
+  /**
+   * Returns the starting column index of the cell range this command assigns.
+   *
+   * @return the starting column index of the cell range
+   */
+  @Override
+  public int getFromCol() {
+    return fromCol;
+  }
+
+  /**
+   * Returns the ending row index of the cell range this command assigns.
+   *
+   * @return the ending row index of the cell range
+   */
+  @Override
+  public int getToRow() {
+    return toRow;
+  }
+
+  /**
+   * Returns the ending column index of the cell range this command assigns.
+   *
+   * @return the ending column index of the cell range
+   */
+  @Override
+  public int getToCol() {
+    return toCol;
+  }
+
+  /**
+   * Return the value this macro assigns to every cell of its range.
+   *
+   * @return the assigned value
+   */
+  double getValue() {
+    return value;
   }
 }
@@ -0,0 +1,438 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A macro spreadsheet that remembers the sums of ranges read from another macro spreadsheet,
+ * so that a range that is summed again before any of its cells changes, as by a repeated
+ * {@link MacroAverage}, is answered without reading a single cell.
+ *
+ * <p>Every cached range is kept in a {@link RectangleIndex}, and each write looks up the
+ * ranges it touches and drops exactly those, so a cached sum is never stale and writes
+ * elsewhere keep it. The cache holds a bounded number of ranges and evicts the least
+ * recently used one when it is full. Ranges of fewer than {@value #MIN_CACHED_AREA} cells are
+ * cheap to sum and are not cached. Only sums are cached: the minimum, maximum and variance of
+ * a {@link MacroAggregate} read every cell of its range each time.
+ *
+ * <p>Every write must go through this object for the cache to stay correct. Macros are
+ * executed by the underlying spreadsheet, so that it can journal or log them. A built-in
+ * macro that only writes cells, such as a bulk assign, is handed to it as it is, so that it
+ * keeps its compact log record and its parallel path, and the sums of the ranges it may write
+ * are dropped afterwards. Any other macro runs against this object, which reads and writes the
+ * cells through the spreadsheet handed to the macro, so its reads use the cache and its writes
+ * invalidate it. If such a macro fails, the whole cache is dropped, since sums read while it
+ * ran may include writes that the underlying spreadsheet then discards.
+ *
+ * <p>This class is not thread-safe. The cache is kept in access order, so even a sum answered
+ * from the cache changes it, and every call, reads included, must be made by one thread at a
+ * time.
+ */
+public class CachingSpreadSheet implements MacroSpreadSheet {
+  /**
+   * The number of ranges cached unless another capacity is given.
+   */
+  public static final int DEFAULT_CAPACITY = 1024;
+  private static final int MIN_CACHED_AREA = 64;
+
+  private final MacroSpreadSheet delegate;
+  private final int capacity;
+  private final LinkedHashMap<Range, Range> cache;
+  private final RectangleIndex<Range> ranges;
+  private final ArrayList<Range> stale;
+  private long hits;
+  private long misses;
+  private long invalidations;
+  private long evictions;
+  private SpreadSheet cells;
+
+  /**
+   * Cache the sums of up to {@link #DEFAULT_CAPACITY} ranges of a spreadsheet.
+   *
+   * @param delegate the spreadsheet to cache
+   * @throws IllegalArgumentException if the spreadsheet is null
+   */
+  public CachingSpreadSheet(MacroSpreadSheet delegate) throws IllegalArgumentException {
+    this(delegate, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Cache the sums of up to the given number of ranges of a spreadsheet.
+   *
+   * @param delegate the spreadsheet to cache
+   * @param capacity the largest number of ranges to cache
+   * @throws IllegalArgumentException if the spreadsheet is null or the capacity is not
+   *                                  positive
+   */
+  public CachingSpreadSheet(MacroSpreadSheet delegate, int capacity)
+          throws IllegalArgumentException {
+    if (delegate == null) {
+      throw new IllegalArgumentException("Spreadsheet cannot be null");
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive");
+    }
+    this.delegate = delegate;
+    this.capacity = capacity;
+    this.cache = new LinkedHashMap<Range, Range>(16, 0.75f, true);
+    this.ranges = new RectangleIndex<Range>();
+    this.stale = new ArrayList<Range>();
+    this.cells = delegate;
+  }
+
+  /**
+   * Return the number of sums answered from the cache.
+   *
+   * @return the number of hits
+   */
+  public long getHits() {
+    return this.hits;
+  }
+
+  /**
+   * Return the number of cacheable sums that had to be computed.
+   *
+   * @return the number of misses
+   */
+  public long getMisses() {
+    return this.misses;
+  }
+
+  /**
+   * Return the number of cached sums dropped because a cell of their range was written.
+   *
+   * @return the number of invalidations
+   */
+  public long getInvalidations() {
+    return this.invalidations;
+  }
+
+  /**
+   * Return the number of cached sums dropped to make room for newer ones.
+   *
+   * @return the number of evictions
+   */
+  public long getEvictions() {
+    return this.evictions;
+  }
+
+  /**
+   * Return the number of sums currently cached.
+   *
+   * @return the number of cached ranges
+   */
+  public int getCachedCount() {
+    return this.cache.size();
+  }
+
+  /**
+   * Get the number at the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    return this.cells.get(row, col);
+  }
+
+  /**
+   * Set the value of the specified cell to the specified value, and drop the cached sums of
+   * the ranges holding the cell.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    this.cells.set(row, col, value);
+    if (!this.cache.isEmpty()) {
+      this.ranges.forEachContaining(row, col, this.stale::add);
+      invalidateStale();
+    }
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    return this.cells.isEmpty(row, col);
+  }
+
+  /**
+   * Return the width of this spreadsheet.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return this.cells.getWidth();
+  }
+
+  /**
+   * Return the height of this spreadsheet.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return this.cells.getHeight();
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    this.cells.getRange(fromRow, fromCol, toRow, toCol, dest);
+  }
+
+  /**
+   * Set every cell in the specified range to the same value, and drop the cached sums of the
+   * ranges it overlaps.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    this.cells.fillRange(fromRow, fromCol, toRow, toCol, value);
+    invalidate(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Set the cells in the specified range to the values in an array, and drop the cached sums
+   * of the ranges it overlaps.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    this.cells.setRange(fromRow, fromCol, toRow, toCol, values);
+    invalidate(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range, from the cache if the range was
+   * summed before and none of its cells has been written since.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (RangeChecks.area(fromRow, fromCol, toRow, toCol) < MIN_CACHED_AREA) {
+      return this.cells.sumRange(fromRow, fromCol, toRow, toCol);
+    }
+    Range key = new Range(fromRow, fromCol, toRow, toCol);
+    Range cached = this.cache.get(key);
+    if (cached != null) {
+      this.hits++;
+      return cached.sum;
+    }
+    this.misses++;
+    key.sum = this.cells.sumRange(fromRow, fromCol, toRow, toCol);
+    if (this.cache.size() >= this.capacity) {
+      evictEldest();
+    }
+    this.cache.put(key, key);
+    this.ranges.add(fromRow, fromCol, toRow, toCol, key);
+    return key.sum;
+  }
+
+  /**
+   * Call the visitor for every non-empty cell in the specified range.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to call for each non-empty cell
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    this.cells.forEachNonEmpty(fromRow, fromCol, toRow, toCol, visitor);
+  }
+
+  /**
+   * Executes the given macro command through the underlying spreadsheet. A built-in macro
+   * that reads no cell is handed over as it is, and the cached sums of the ranges it may write
+   * are dropped afterwards, even if it fails. Any other macro runs against this spreadsheet,
+   * with its cells read and written through the spreadsheet that the underlying one hands to
+   * the macro, so that its reads use the cache and its writes invalidate it. If such a macro
+   * fails, the cache is dropped.
+   *
+   * @param command the macro command to execute
+   */
+  @Override
+  public void execute(MacroCommand command) {
+    int[] read = MacroBounds.read(command);
+    if (read != null && read.length == 0) {
+      int[] written = MacroBounds.written(command);
+      try {
+        this.delegate.execute(command);
+      } finally {
+        if (written.length > 0) {
+          invalidate(written[0], written[1], written[2], written[3]);
+        }
+      }
+      return;
+    }
+    try {
+      this.delegate.execute(sheet -> {
+        SpreadSheet outer = this.cells;
+        this.cells = sheet;
+        try {
+          command.execute(this);
+        } finally {
+          this.cells = outer;
+        }
+      });
+    } catch (RuntimeException e) {
+      clear();
+      throw e;
+    }
+  }
+
+  /**
+   * Drop the cached sums of the ranges overlapping the given range.
+   *
+   * @param fromRow the first row of the written range
+   * @param fromCol the first column of the written range
+   * @param toRow   the last row of the written range
+   * @param toCol   the last column of the written range
+   */
+  private void invalidate(int fromRow, int fromCol, int toRow, int toCol) {
+    if (!this.cache.isEmpty()) {
+      this.ranges.forEachIntersecting(fromRow, fromCol, toRow, toCol, this.stale::add);
+      invalidateStale();
+    }
+  }
+
+  /**
+   * Drop the cached sums collected in {@link #stale}. They are collected first because the
+   * index cannot change while it is being searched.
+   */
+  private void invalidateStale() {
+    for (Range range : this.stale) {
+      this.cache.remove(range);
+      this.ranges.remove(range.fromRow, range.fromCol, range.toRow, range.toCol, range);
+      this.invalidations++;
+    }
+    this.stale.clear();
+  }
+
+  /**
+   * Drop every cached sum.
+   */
+  private void clear() {
+    this.invalidations += this.cache.size();
+    for (Range range : this.cache.keySet()) {
+      this.ranges.remove(range.fromRow, range.fromCol, range.toRow, range.toCol, range);
+    }
+    this.cache.clear();
+  }
+
+  /**
+   * Drop the cached sum that was used least recently.
+   */
+  private void evictEldest() {
+    Iterator<Map.Entry<Range, Range>> eldest = this.cache.entrySet().iterator();
+    Range range = eldest.next().getKey();
+    eldest.remove();
+    this.ranges.remove(range.fromRow, range.fromCol, range.toRow, range.toCol, range);
+    this.evictions++;
+  }
+
+  /**
+   * A cached range and its sum. Ranges are equal when they cover the same cells, whatever
+   * their sums.
+   */
+  private static final class Range {
+    private final int fromRow;
+    private final int fromCol;
+    private final int toRow;
+    private final int toCol;
+    private double sum;
+
+    /**
+     * Create a range whose sum is not known yet.
+     *
+     * @param fromRow the first row of the range
+     * @param fromCol the first column of the range
+     * @param toRow   the last row of the range
+     * @param toCol   the last column of the range
+     */
+    Range(int fromRow, int fromCol, int toRow, int toCol) {
+      this.fromRow = fromRow;
+      this.fromCol = fromCol;
+      this.toRow = toRow;
+      this.toCol = toCol;
+    }
+
+    /**
+     * Returns whether another object is a range covering the same cells.
+     *
+     * @param o the object to compare with
+     * @return true if it covers the same cells
+     */
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Range)) {
+        return false;
+      }
+      Range other = (Range) o;
+      return this.fromRow == other.fromRow && this.fromCol == other.fromCol
+              && this.toRow == other.toRow && this.toCol == other.toCol;
+    }
+
+    /**
+     * Return a hash code of the cells covered.
+     *
+     * @return the hash code
+     */
+    @Override
+    public int hashCode() {
+      return ((this.fromRow * 31 + this.fromCol) * 31 + this.toRow) * 31 + this.toCol;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package spreadsheet;
+
+/**
+ * Packs a cell position into a single primitive long and unpacks it again. The row occupies
+ * the high 32 bits and the column the low 32 bits, so keys of valid (non-negative) cells are
+ * themselves non-negative and sort in row-major order.
+ */
+final class CellKey {
+
+  /**
+   * This class only offers static helpers.
+   */
+  private CellKey() {
+  }
+
+  /**
+   * Packs the given row and column into a single key.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the packed key
+   */
+  static long pack(int row, int col) {
+    return ((long) row << 32) | (col & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Extracts the row number from a packed key.
+   *
+   * @param key the packed key
+   * @return the row number of the cell
+   */
+  static int row(long key) {
+    return (int) (key >>> 32);
+  }
+
+  /**
+   * Extracts the column number from a packed key.
+   *
+   * @param key the packed key
+   * @return the column number of the cell
+   */
+  static int col(long key) {
+    return (int) key;
+  }
+}
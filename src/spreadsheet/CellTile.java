@@ -0,0 +1,114 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size square block of cells stored as a dense array of values together with an
+ * occupancy bitmap. Each row of the tile has one 64-bit word in the bitmap, so a tile spans
+ * 64 by 64 cells and costs about eight bytes per cell regardless of how many are filled.
+ */
+final class CellTile {
+  static final int SHIFT = 6;
+  static final int SIZE = 1 << SHIFT;
+  static final int MASK = SIZE - 1;
+
+  private final double[] values;
+  private final long[] occupied;
+  private int count;
+
+  /**
+   * Create a tile with every cell empty.
+   */
+  CellTile() {
+    this.values = new double[SIZE * SIZE];
+    this.occupied = new long[SIZE];
+    this.count = 0;
+  }
+
+  /**
+   * Get the number at the given cell of this tile.
+   *
+   * @param row the row of the cell within this tile
+   * @param col the column of the cell within this tile
+   * @return the number at the cell, or 0 if the cell is empty
+   */
+  double get(int row, int col) {
+    return values[(row << SHIFT) | col];
+  }
+
+  /**
+   * Returns whether the given cell of this tile is empty.
+   *
+   * @param row the row of the cell within this tile
+   * @param col the column of the cell within this tile
+   * @return true if the cell is empty, false otherwise
+   */
+  boolean isEmpty(int row, int col) {
+    return (occupied[row] & (1L << col)) == 0;
+  }
+
+  /**
+   * Set the given cell of this tile to the given value.
+   *
+   * @param row   the row of the cell within this tile
+   * @param col   the column of the cell within this tile
+   * @param value the value that this cell must be set to
+   */
+  void set(int row, int col, double value) {
+    long bit = 1L << col;
+    if ((occupied[row] & bit) == 0) {
+      occupied[row] |= bit;
+      count++;
+    }
+    values[(row << SHIFT) | col] = value;
+  }
+
+  /**
+   * Set every cell of this tile to the given value.
+   *
+   * @param value the value that every cell must be set to
+   */
+  void fill(double value) {
+    Arrays.fill(values, value);
+    Arrays.fill(occupied, -1L);
+    count = SIZE * SIZE;
+  }
+
+  /**
+   * Empty the given cell of this tile.
+   *
+   * @param row the row of the cell within this tile
+   * @param col the column of the cell within this tile
+   * @return true if the cell held a value, false if it was already empty
+   */
+  boolean clear(int row, int col) {
+    long bit = 1L << col;
+    if ((occupied[row] & bit) == 0) {
+      return false;
+    }
+    occupied[row] &= ~bit;
+    values[(row << SHIFT) | col] = 0.0;
+    count--;
+    return true;
+  }
+
+  /**
+   * Return the occupancy bitmap of one row of this tile. Bit i is set when the cell in
+   * column i of that row is not empty.
+   *
+   * @param row the row within this tile
+   * @return the occupancy bitmap of the row
+   */
+  long occupiedColumns(int row) {
+    return occupied[row];
+  }
+
+  /**
+   * Return the number of non-empty cells in this tile.
+   *
+   * @return the number of non-empty cells in this tile
+   */
+  int count() {
+    return count;
+  }
+}
@@ -0,0 +1,17 @@
+package spreadsheet;
+
+/**
+ * This interface represents an operation that receives the non-empty cells of a
+ * spreadsheet one at a time.
+ */
+public interface CellVisitor {
+
+  /**
+   * Visit one non-empty cell.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting with 0
+   * @param value the number at the cell
+   */
+  void visit(int row, int col, double value);
+}
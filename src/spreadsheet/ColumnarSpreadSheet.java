@@ -0,0 +1,490 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+/**
+ * A spreadsheet that stores its cells column by column. Each column keeps the rows of its
+ * non-empty cells in a sorted array of ints, with their values in a parallel array of doubles,
+ * so reading a range of rows of a column is a sequential walk through two arrays and sums
+ * over column ranges, such as those of {@link MacroAverage}, run at memory speed.
+ *
+ * <p>Writes below the last row of a column are appended in place, and writes to rows a column
+ * already holds replace the value in place. Other writes go to a small per-column buffer, kept
+ * sorted by row with one entry per row, that is merged into the column when it grows past an
+ * eighth of the column, or when a range of the column is next read, so scattered writes cost
+ * a shift of the small buffer and a fraction of a merge each rather than a shift of the whole
+ * column. Reading a single cell never merges: it binary searches the buffer and then the
+ * sorted rows. Columns themselves are kept in a sorted array of column numbers.
+ */
+public class ColumnarSpreadSheet implements SpreadSheet {
+  private static final int MIN_PENDING = 64;
+
+  private int[] columnNumbers;
+  private Column[] columns;
+  private int columnCount;
+  private int width;
+  private int height;
+
+  /**
+   * Create an empty spreadsheet.
+   */
+  public ColumnarSpreadSheet() {
+    this.columnNumbers = new int[16];
+    this.columns = new Column[16];
+    this.columnCount = 0;
+    this.width = 0;
+    this.height = 0;
+  }
+
+  /**
+   * Get the number at the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    checkCell(row, col);
+    Column column = column(col, false);
+    if (column == null) {
+      return 0.0;
+    }
+    int pending = column.findPending(row);
+    if (pending >= 0) {
+      return column.pendingValues[pending];
+    }
+    int i = column.find(row);
+    return i < 0 ? 0.0 : column.values[i];
+  }
+
+  /**
+   * Set the value of the specified cell to the specified value.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    checkCell(row, col);
+    column(col, true).put(row, value);
+    includeInBounds(row, col);
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    checkCell(row, col);
+    Column column = column(col, false);
+    if (column == null) {
+      return true;
+    }
+    return column.findPending(row) < 0 && column.find(row) < 0;
+  }
+
+  /**
+   * Return the width of this spreadsheet.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return this.width;
+  }
+
+  /**
+   * Return the height of this spreadsheet.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return this.height;
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order, walking each
+   * column of the range once.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, dest);
+    int cols = toCol - fromCol + 1;
+    Arrays.fill(dest, 0, (int) RangeChecks.area(fromRow, fromCol, toRow, toCol), 0.0);
+    for (int c = firstColumn(fromCol); c < this.columnCount
+            && this.columnNumbers[c] <= toCol; c++) {
+      Column column = this.columns[c];
+      column.flush();
+      int offset = this.columnNumbers[c] - fromCol;
+      int[] rows = column.rows;
+      double[] values = column.values;
+      for (int i = column.lowerBound(fromRow); i < column.size && rows[i] <= toRow; i++) {
+        dest[(rows[i] - fromRow) * cols + offset] = values[i];
+      }
+    }
+  }
+
+  /**
+   * Set every cell in the specified range to the same value, one column at a time.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    for (int col = fromCol; col <= toCol; col++) {
+      column(col, true).putRun(fromRow, toRow, null, 0, 0, value);
+      if (col == Integer.MAX_VALUE) {
+        break;
+      }
+    }
+    includeInBounds(toRow, toCol);
+  }
+
+  /**
+   * Set the cells in the specified range to the values in an array, one column at a time.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, values);
+    int cols = toCol - fromCol + 1;
+    for (int col = fromCol; col <= toCol; col++) {
+      column(col, true).putRun(fromRow, toRow, values, col - fromCol, cols, 0.0);
+      if (col == Integer.MAX_VALUE) {
+        break;
+      }
+    }
+    includeInBounds(toRow, toCol);
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range, reading each column of the range as
+   * one sequential run.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    double sum = 0;
+    for (int c = firstColumn(fromCol); c < this.columnCount
+            && this.columnNumbers[c] <= toCol; c++) {
+      Column column = this.columns[c];
+      column.flush();
+      int[] rows = column.rows;
+      double[] values = column.values;
+      int end = toRow == Integer.MAX_VALUE ? column.size : column.lowerBound(toRow + 1);
+      for (int i = column.lowerBound(fromRow); i < end; i++) {
+        sum += values[i];
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Pass every non-empty cell in the specified range to the visitor, column by column.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to receive the non-empty cells
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (visitor == null) {
+      throw new IllegalArgumentException("Visitor cannot be null");
+    }
+    for (int c = firstColumn(fromCol); c < this.columnCount
+            && this.columnNumbers[c] <= toCol; c++) {
+      Column column = this.columns[c];
+      column.flush();
+      int col = this.columnNumbers[c];
+      for (int i = column.lowerBound(fromRow); i < column.size && column.rows[i] <= toRow;
+           i++) {
+        visitor.visit(column.rows[i], col, column.values[i]);
+      }
+    }
+  }
+
+  /**
+   * Check that a cell position is valid.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  private static void checkCell(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+  }
+
+  /**
+   * Grow the width and height so that they include a cell.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   */
+  private void includeInBounds(int row, int col) {
+    if ((row + 1) > this.height) {
+      this.height = row + 1;
+    }
+    if ((col + 1) > this.width) {
+      this.width = col + 1;
+    }
+  }
+
+  /**
+   * Return the position of the first stored column whose number is at least the given one.
+   *
+   * @param col the column number
+   * @return the position in the column arrays, or the number of columns if there is none
+   */
+  private int firstColumn(int col) {
+    int i = Arrays.binarySearch(this.columnNumbers, 0, this.columnCount, col);
+    return i >= 0 ? i : -i - 1;
+  }
+
+  /**
+   * Return the storage of a column, creating it if asked to.
+   *
+   * @param col    the column number
+   * @param create true to create the column if it is not stored yet
+   * @return the column, or null if it is not stored and was not to be created
+   */
+  private Column column(int col, boolean create) {
+    int i = Arrays.binarySearch(this.columnNumbers, 0, this.columnCount, col);
+    if (i >= 0) {
+      return this.columns[i];
+    }
+    if (!create) {
+      return null;
+    }
+    i = -i - 1;
+    if (this.columnCount == this.columns.length) {
+      this.columnNumbers = Arrays.copyOf(this.columnNumbers, this.columnCount << 1);
+      this.columns = Arrays.copyOf(this.columns, this.columnCount << 1);
+    }
+    System.arraycopy(this.columnNumbers, i, this.columnNumbers, i + 1, this.columnCount - i);
+    System.arraycopy(this.columns, i, this.columns, i + 1, this.columnCount - i);
+    Column column = new Column();
+    this.columnNumbers[i] = col;
+    this.columns[i] = column;
+    this.columnCount++;
+    return column;
+  }
+
+  /**
+   * The cells of one column: the sorted rows and their values, and the buffer of writes not
+   * merged yet.
+   */
+  private static final class Column {
+    private int[] rows;
+    private double[] values;
+    private int size;
+    private int[] pendingRows;
+    private double[] pendingValues;
+    private int pendingSize;
+
+    /**
+     * Create an empty column.
+     */
+    Column() {
+      this.rows = new int[8];
+      this.values = new double[8];
+    }
+
+    /**
+     * Store one value. Rows past the end are appended and known rows are replaced in place;
+     * any other row is buffered.
+     *
+     * @param row   the row of the cell
+     * @param value the value of the cell
+     */
+    void put(int row, double value) {
+      if (this.pendingSize == 0 && (this.size == 0 || row > this.rows[this.size - 1])) {
+        ensureCapacity(this.size + 1);
+        this.rows[this.size] = row;
+        this.values[this.size++] = value;
+        return;
+      }
+      int i = find(row);
+      if (i >= 0) {
+        this.values[i] = value;
+        return;
+      }
+      i = findPending(row);
+      if (i >= 0) {
+        this.pendingValues[i] = value;
+        return;
+      }
+      i = -i - 1;
+      if (this.pendingRows == null) {
+        this.pendingRows = new int[MIN_PENDING];
+        this.pendingValues = new double[MIN_PENDING];
+      } else if (this.pendingSize == this.pendingRows.length) {
+        this.pendingRows = Arrays.copyOf(this.pendingRows, this.pendingSize << 1);
+        this.pendingValues = Arrays.copyOf(this.pendingValues, this.pendingSize << 1);
+      }
+      System.arraycopy(this.pendingRows, i, this.pendingRows, i + 1, this.pendingSize - i);
+      System.arraycopy(this.pendingValues, i, this.pendingValues, i + 1, this.pendingSize - i);
+      this.pendingRows[i] = row;
+      this.pendingValues[i] = value;
+      this.pendingSize++;
+      if (this.pendingSize >= Math.max(MIN_PENDING, this.size >> 3)) {
+        flush();
+      }
+    }
+
+    /**
+     * Store the values of a run of consecutive rows, replacing the cells the column holds in
+     * those rows with a single shift of the rows after them.
+     *
+     * @param fromRow  the first row of the run
+     * @param toRow    the last row of the run
+     * @param source   the array holding the values, or null to store the constant
+     * @param offset   the index of the value of the first row in the array
+     * @param stride   the distance between the values of consecutive rows in the array
+     * @param constant the value of every row if there is no array
+     * @throws IllegalArgumentException if the column cannot hold that many rows
+     */
+    void putRun(int fromRow, int toRow, double[] source, int offset, int stride,
+                double constant) throws IllegalArgumentException {
+      if ((long) toRow - fromRow + 1 > Integer.MAX_VALUE - 8 - this.size) {
+        throw new IllegalArgumentException("Cell range is too large");
+      }
+      flush();
+      int count = toRow - fromRow + 1;
+      int lo = lowerBound(fromRow);
+      int hi = toRow == Integer.MAX_VALUE ? this.size : lowerBound(toRow + 1);
+      int newSize = this.size - (hi - lo) + count;
+      ensureCapacity(newSize);
+      System.arraycopy(this.rows, hi, this.rows, lo + count, this.size - hi);
+      System.arraycopy(this.values, hi, this.values, lo + count, this.size - hi);
+      for (int k = 0; k < count; k++) {
+        this.rows[lo + k] = fromRow + k;
+        this.values[lo + k] = source == null ? constant : source[offset + k * stride];
+      }
+      this.size = newSize;
+    }
+
+    /**
+     * Merge the buffered writes into the column. The buffer is sorted and holds none of the
+     * merged rows, so this is a single merge of two sorted runs.
+     */
+    void flush() {
+      if (this.pendingSize == 0) {
+        return;
+      }
+      int[] mergedRows = new int[Math.max(8, this.size + this.pendingSize + (this.size >> 2))];
+      double[] mergedValues = new double[mergedRows.length];
+      int i = 0;
+      int j = 0;
+      int k = 0;
+      while (i < this.size || j < this.pendingSize) {
+        if (j == this.pendingSize || (i < this.size && this.rows[i] < this.pendingRows[j])) {
+          mergedRows[k] = this.rows[i];
+          mergedValues[k++] = this.values[i++];
+        } else {
+          mergedRows[k] = this.pendingRows[j];
+          mergedValues[k++] = this.pendingValues[j++];
+        }
+      }
+      this.rows = mergedRows;
+      this.values = mergedValues;
+      this.size = k;
+      this.pendingSize = 0;
+    }
+
+    /**
+     * Find the buffered write to a row.
+     *
+     * @param row the row to find
+     * @return its position in the buffer, or a negative number if no buffered write is to that
+     *         row
+     */
+    int findPending(int row) {
+      if (this.pendingSize == 0) {
+        return -1;
+      }
+      return Arrays.binarySearch(this.pendingRows, 0, this.pendingSize, row);
+    }
+
+    /**
+     * Find a row among the merged rows.
+     *
+     * @param row the row to find
+     * @return its position, or a negative number if the column holds no such merged row
+     */
+    int find(int row) {
+      return Arrays.binarySearch(this.rows, 0, this.size, row);
+    }
+
+    /**
+     * Return the position of the first merged row that is at least the given row.
+     *
+     * @param row the row
+     * @return the position, or the number of merged rows if there is none
+     */
+    int lowerBound(int row) {
+      int i = find(row);
+      return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * Make room for the given number of merged rows.
+     *
+     * @param capacity the number of rows needed
+     */
+    private void ensureCapacity(int capacity) {
+      if (capacity > this.rows.length) {
+        int grown = (int) Math.min(Integer.MAX_VALUE - 8,
+                Math.max(capacity, (long) this.rows.length << 1));
+        this.rows = Arrays.copyOf(this.rows, grown);
+        this.values = Arrays.copyOf(this.values, grown);
+      }
+    }
+  }
+}
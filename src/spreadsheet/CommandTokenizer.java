@@ -0,0 +1,252 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits controller commands into tokens without regular expressions. Each line of the input
+ * holds one command, and tokens are separated by blanks. The input is read through a fixed
+ * buffer, and numbers are parsed straight from the characters of their token, so reading a
+ * command creates no objects beyond the string of its name.
+ */
+final class CommandTokenizer {
+  private final Readable in;
+  private final CharBuffer buffer;
+  private byte[] token;
+  private int tokenLength;
+  private long line;
+  private boolean eof;
+
+  /**
+   * Create a tokenizer over the given input.
+   *
+   * @param in the input to read commands from
+   */
+  CommandTokenizer(Readable in) {
+    this.in = in;
+    this.buffer = CharBuffer.allocate(1 << 16);
+    this.buffer.flip();
+    this.token = new byte[64];
+    this.line = 0;
+  }
+
+  /**
+   * Skip whatever is left of the current line and move to the next line holding a token.
+   *
+   * @return true if there is such a line, false if the input is exhausted
+   * @throws IOException if the input cannot be read
+   */
+  boolean nextLine() throws IOException {
+    if (this.line > 0) {
+      int c;
+      while ((c = read()) >= 0 && c != '\n') {
+        // skip the rest of the current line
+      }
+    }
+    while (true) {
+      skipBlanks();
+      int c = peek();
+      if (c < 0) {
+        return false;
+      }
+      this.line++;
+      if (c != '\n') {
+        return true;
+      }
+      read();
+    }
+  }
+
+  /**
+   * Return the number of the current line, starting with 1.
+   *
+   * @return the number of the current line
+   */
+  long getLine() {
+    return this.line;
+  }
+
+  /**
+   * Returns whether the current line holds another token.
+   *
+   * @return true if there is another token on the current line, false otherwise
+   * @throws IOException if the input cannot be read
+   */
+  boolean hasToken() throws IOException {
+    skipBlanks();
+    int c = peek();
+    return c >= 0 && c != '\n';
+  }
+
+  /**
+   * Read the next token of the current line as a string.
+   *
+   * @return the token
+   * @throws IllegalArgumentException if the current line holds no more tokens
+   * @throws IOException              if the input cannot be read
+   */
+  String nextWord() throws IllegalArgumentException, IOException {
+    readToken();
+    char[] chars = new char[this.tokenLength];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = (char) this.token[i];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Read the next token of the current line as a row name made of letters, where A is row 0,
+   * Z is row 25 and AA is row 26.
+   *
+   * @return the zero-based row number
+   * @throws IllegalArgumentException if there is no token or it is not a valid row name
+   * @throws IOException              if the input cannot be read
+   */
+  int nextRow() throws IllegalArgumentException, IOException {
+    readToken();
+    long row = 0;
+    for (int i = 0; i < this.tokenLength; i++) {
+      int c = this.token[i] | 0x20;
+      if (c < 'a' || c > 'z') {
+        throw new IllegalArgumentException("Invalid row");
+      }
+      row = 26 * row + (c - 'a' + 1);
+      if (row > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Invalid row");
+      }
+    }
+    return (int) row - 1;
+  }
+
+  /**
+   * Read the next token of the current line as a whole number.
+   *
+   * @return the number
+   * @throws IllegalArgumentException if there is no token or it is not a whole number
+   * @throws IOException              if the input cannot be read
+   */
+  int nextInt() throws IllegalArgumentException, IOException {
+    readToken();
+    int i = 0;
+    boolean negative = this.token[0] == '-';
+    if (negative || this.token[0] == '+') {
+      i++;
+    }
+    if (i == this.tokenLength) {
+      throw new IllegalArgumentException("Invalid number");
+    }
+    long value = 0;
+    for (; i < this.tokenLength; i++) {
+      int digit = this.token[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new IllegalArgumentException("Invalid number");
+      }
+      value = value * 10 + digit;
+      if (value > (long) Integer.MAX_VALUE + 1) {
+        throw new IllegalArgumentException("Number out of range");
+      }
+    }
+    value = negative ? -value : value;
+    if (value > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Number out of range");
+    }
+    return (int) value;
+  }
+
+  /**
+   * Read the next token of the current line as a decimal number.
+   *
+   * @return the number
+   * @throws IllegalArgumentException if there is no token or it is not a number
+   * @throws IOException              if the input cannot be read
+   */
+  double nextDouble() throws IllegalArgumentException, IOException {
+    readToken();
+    try {
+      return DecimalParser.parse(this.token, 0, this.tokenLength);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid number");
+    }
+  }
+
+  /**
+   * Copy the next token of the current line into the token buffer, as ASCII bytes. Any other
+   * character is replaced by a question mark, which no number or row name contains.
+   *
+   * @throws IllegalArgumentException if the current line holds no more tokens
+   * @throws IOException              if the input cannot be read
+   */
+  private void readToken() throws IllegalArgumentException, IOException {
+    if (!hasToken()) {
+      throw new IllegalArgumentException("Missing argument");
+    }
+    this.tokenLength = 0;
+    int c;
+    while ((c = peek()) >= 0 && c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+      if (this.tokenLength == this.token.length) {
+        this.token = Arrays.copyOf(this.token, this.tokenLength << 1);
+      }
+      this.token[this.tokenLength++] = (byte) (c < 0x80 ? c : '?');
+      this.buffer.get();
+    }
+  }
+
+  /**
+   * Skip blanks, stopping at the end of the line.
+   *
+   * @throws IOException if the input cannot be read
+   */
+  private void skipBlanks() throws IOException {
+    int c;
+    while ((c = peek()) == ' ' || c == '\t' || c == '\r') {
+      this.buffer.get();
+    }
+  }
+
+  /**
+   * Return the next character without consuming it.
+   *
+   * @return the next character, or -1 at the end of the input
+   * @throws IOException if the input cannot be read
+   */
+  private int peek() throws IOException {
+    if (!this.buffer.hasRemaining() && !fill()) {
+      return -1;
+    }
+    return this.buffer.get(this.buffer.position());
+  }
+
+  /**
+   * Consume the next character.
+   *
+   * @return the next character, or -1 at the end of the input
+   * @throws IOException if the input cannot be read
+   */
+  private int read() throws IOException {
+    if (!this.buffer.hasRemaining() && !fill()) {
+      return -1;
+    }
+    return this.buffer.get();
+  }
+
+  /**
+   * Refill the empty buffer from the input.
+   *
+   * @return true if any characters were read, false at the end of the input
+   * @throws IOException if the input cannot be read
+   */
+  private boolean fill() throws IOException {
+    while (!this.eof) {
+      this.buffer.clear();
+      int n = this.in.read(this.buffer);
+      this.buffer.flip();
+      if (n < 0) {
+        this.eof = true;
+      } else if (n > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,450 @@
+package spreadsheet;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This class represents a sparse spreadsheet that may be read and written by several threads
+ * at once. Cells are spread over a fixed number of stripes, each holding its own primitive
+ * hash map guarded by its own read-write lock. All cells of one 64 by 64 block belong to the
+ * same stripe, so range operations take one lock per block, and threads working on unrelated
+ * regions rarely wait for each other. The width and height only ever grow and are maintained
+ * with atomic maximum updates.
+ *
+ * <p>Range macros that cover many cells are split into stripes of rows and executed in
+ * parallel on a fork/join pool; smaller ones run on the calling thread.
+ */
+public class ConcurrentSparseSpreadSheet implements MacroSpreadSheet {
+  private static final int BLOCK_SHIFT = 6;
+  private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+  private static final long DEFAULT_PARALLEL_THRESHOLD = 1 << 18;
+
+  private final Stripe[] stripes;
+  private final int stripeMask;
+  private final AtomicInteger width;
+  private final AtomicInteger height;
+  private final ParallelMacroExecutor executor;
+
+  /**
+   * Create an empty spreadsheet with a number of stripes suited to this machine.
+   */
+  public ConcurrentSparseSpreadSheet() {
+    this(4 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create an empty spreadsheet with at least the given number of stripes. More stripes mean
+   * less contention between threads at the cost of a little memory.
+   *
+   * @param stripes the minimum number of stripes, rounded up to a power of two
+   * @throws IllegalArgumentException if the number of stripes is not positive
+   */
+  public ConcurrentSparseSpreadSheet(int stripes) throws IllegalArgumentException {
+    this(stripes, ForkJoinPool.commonPool(), DEFAULT_PARALLEL_THRESHOLD);
+  }
+
+  /**
+   * Create an empty spreadsheet with at least the given number of stripes, which executes
+   * range macros of at least the given number of cells in parallel on the given pool.
+   *
+   * @param stripes           the minimum number of stripes, rounded up to a power of two
+   * @param pool              the pool on which to run large macros
+   * @param parallelThreshold the number of cells from which a macro runs in parallel
+   * @throws IllegalArgumentException if the number of stripes or the threshold is not
+   *                                  positive, or the pool is null
+   */
+  public ConcurrentSparseSpreadSheet(int stripes, ForkJoinPool pool, long parallelThreshold)
+          throws IllegalArgumentException {
+    if (stripes <= 0 || stripes > (1 << 16)) {
+      throw new IllegalArgumentException("Number of stripes must be between 1 and 65536");
+    }
+    int count = Integer.highestOneBit(stripes);
+    if (count < stripes) {
+      count <<= 1;
+    }
+    this.stripes = new Stripe[count];
+    for (int i = 0; i < count; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.stripeMask = count - 1;
+    this.width = new AtomicInteger(0);
+    this.height = new AtomicInteger(0);
+    this.executor = new ParallelMacroExecutor(pool, parallelThreshold);
+  }
+
+  /**
+   * Get the number at the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    Stripe stripe = stripeOf(row, col);
+    stripe.readLock.lock();
+    try {
+      return stripe.cells.get(CellKey.pack(row, col), 0.0);
+    } finally {
+      stripe.readLock.unlock();
+    }
+  }
+
+  /**
+   * Set the value of the specified cell to the specified value.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    Stripe stripe = stripeOf(row, col);
+    stripe.writeLock.lock();
+    try {
+      stripe.cells.put(CellKey.pack(row, col), value);
+    } finally {
+      stripe.writeLock.unlock();
+    }
+    includeInBounds(row, col);
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    Stripe stripe = stripeOf(row, col);
+    stripe.readLock.lock();
+    try {
+      return !stripe.cells.containsKey(CellKey.pack(row, col));
+    } finally {
+      stripe.readLock.unlock();
+    }
+  }
+
+  /**
+   * Return the width of this spreadsheet. The width is defined by the cell with
+   * the highest column number that is not empty.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return this.width.get();
+  }
+
+  /**
+   * Return the height of this spreadsheet. The height is defined by the cell with
+   * the highest row number that is not empty.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return this.height.get();
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order. Each block
+   * of the range is read under a single lock acquisition.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, dest);
+    int cols = toCol - fromCol + 1;
+    forEachBlock(fromRow, fromCol, toRow, toCol, (r1, c1, r2, c2) -> {
+      Stripe stripe = stripeOf(r1, c1);
+      stripe.readLock.lock();
+      try {
+        for (int row = r1; row <= r2; row++) {
+          int i = (row - fromRow) * cols + (c1 - fromCol);
+          for (int col = c1; col <= c2; col++) {
+            dest[i++] = stripe.cells.get(CellKey.pack(row, col), 0.0);
+          }
+        }
+      } finally {
+        stripe.readLock.unlock();
+      }
+    });
+  }
+
+  /**
+   * Set every cell in the specified range to the same value. Each block of the range is
+   * written under a single lock acquisition, and the width and height are updated once.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    forEachBlock(fromRow, fromCol, toRow, toCol, (r1, c1, r2, c2) -> {
+      Stripe stripe = stripeOf(r1, c1);
+      stripe.writeLock.lock();
+      try {
+        for (int row = r1; row <= r2; row++) {
+          for (int col = c1; col <= c2; col++) {
+            stripe.cells.put(CellKey.pack(row, col), value);
+          }
+        }
+      } finally {
+        stripe.writeLock.unlock();
+      }
+    });
+    includeInBounds(toRow, toCol);
+  }
+
+  /**
+   * Set the cells in the specified range to the values in an array, taken in row-major order.
+   * Each block of the range is written under a single lock acquisition, and the width and
+   * height are updated once.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, values);
+    int cols = toCol - fromCol + 1;
+    forEachBlock(fromRow, fromCol, toRow, toCol, (r1, c1, r2, c2) -> {
+      Stripe stripe = stripeOf(r1, c1);
+      stripe.writeLock.lock();
+      try {
+        for (int row = r1; row <= r2; row++) {
+          int i = (row - fromRow) * cols + (c1 - fromCol);
+          for (int col = c1; col <= c2; col++) {
+            stripe.cells.put(CellKey.pack(row, col), values[i++]);
+          }
+        }
+      } finally {
+        stripe.writeLock.unlock();
+      }
+    });
+    includeInBounds(toRow, toCol);
+  }
+
+  /**
+   * Pass every non-empty cell in the specified range to the given visitor, in no particular
+   * order. When the range is larger than the number of cells held, the stripes are scanned
+   * instead of probing every position. The visitor is never called while a lock is held, so
+   * it may write to this spreadsheet.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to receive the cells
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (visitor == null) {
+      throw new IllegalArgumentException("Visitor cannot be null");
+    }
+    if (RangeChecks.area(fromRow, fromCol, toRow, toCol) <= size()) {
+      MacroSpreadSheet.super.forEachNonEmpty(fromRow, fromCol, toRow, toCol, visitor);
+      return;
+    }
+    for (Stripe stripe : this.stripes) {
+      long[] keys;
+      double[] values;
+      int[] found = {0};
+      stripe.readLock.lock();
+      try {
+        keys = new long[stripe.cells.size()];
+        values = new double[keys.length];
+        stripe.cells.forEach((key, value) -> {
+          int row = CellKey.row(key);
+          int col = CellKey.col(key);
+          if (row >= fromRow && row <= toRow && col >= fromCol && col <= toCol) {
+            keys[found[0]] = key;
+            values[found[0]++] = value;
+          }
+        });
+      } finally {
+        stripe.readLock.unlock();
+      }
+      for (int i = 0; i < found[0]; i++) {
+        visitor.visit(CellKey.row(keys[i]), CellKey.col(keys[i]), values[i]);
+      }
+    }
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range. Large ranges are summed by
+   * visiting only the non-empty cells.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (RangeChecks.area(fromRow, fromCol, toRow, toCol) <= size()) {
+      return MacroSpreadSheet.super.sumRange(fromRow, fromCol, toRow, toCol);
+    }
+    double[] sum = {0};
+    forEachNonEmpty(fromRow, fromCol, toRow, toCol, (row, col, value) -> sum[0] += value);
+    return sum[0];
+  }
+
+  /**
+   * Executes the given macro command on this spreadsheet, in parallel if it covers enough
+   * cells. Several threads may execute macros at the same time; each cell write is atomic
+   * but a macro as a whole is not.
+   *
+   * @param command the macro command to execute
+   */
+  @Override
+  public void execute(MacroCommand command) {
+    this.executor.execute(this, command);
+  }
+
+  /**
+   * Return the number of non-empty cells, which may be out of date by the time it returns
+   * if other threads are writing.
+   *
+   * @return the number of non-empty cells
+   */
+  public long size() {
+    long size = 0;
+    for (Stripe stripe : this.stripes) {
+      stripe.readLock.lock();
+      try {
+        size += stripe.cells.size();
+      } finally {
+        stripe.readLock.unlock();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Return the stripe that holds the given cell. All cells of a block share a stripe.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the stripe of the cell
+   */
+  private Stripe stripeOf(int row, int col) {
+    int hash = (row >>> BLOCK_SHIFT) * 0x9E3779B1 + (col >>> BLOCK_SHIFT);
+    hash ^= hash >>> 16;
+    return this.stripes[hash & this.stripeMask];
+  }
+
+  /**
+   * Grow the width and height so that they include the given cell, without ever shrinking
+   * them when several threads race.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   */
+  private void includeInBounds(int row, int col) {
+    if (this.height.get() < row + 1) {
+      this.height.accumulateAndGet(row + 1, Math::max);
+    }
+    if (this.width.get() < col + 1) {
+      this.width.accumulateAndGet(col + 1, Math::max);
+    }
+  }
+
+  /**
+   * Split a validated range into the parts that fall in each block and pass them on.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   * @param action  the action to run for each part
+   */
+  private static void forEachBlock(int fromRow, int fromCol, int toRow, int toCol,
+                                   BlockAction action) {
+    int rowStart = fromRow;
+    while (true) {
+      int rowEnd = Math.min(toRow, rowStart | BLOCK_MASK);
+      int colStart = fromCol;
+      while (true) {
+        int colEnd = Math.min(toCol, colStart | BLOCK_MASK);
+        action.run(rowStart, colStart, rowEnd, colEnd);
+        if (colEnd == toCol) {
+          break;
+        }
+        colStart = colEnd + 1;
+      }
+      if (rowEnd == toRow) {
+        break;
+      }
+      rowStart = rowEnd + 1;
+    }
+  }
+
+  /**
+   * An action on the part of a range that falls in one block.
+   */
+  private interface BlockAction {
+
+    /**
+     * Run the action on one part of a range.
+     *
+     * @param fromRow the first row of the part
+     * @param fromCol the first column of the part
+     * @param toRow   the last row of the part
+     * @param toCol   the last column of the part
+     */
+    void run(int fromRow, int fromCol, int toRow, int toCol);
+  }
+
+  /**
+   * One stripe of cells and the lock that guards it.
+   */
+  private static final class Stripe {
+    private final LongDoubleHashMap cells = new LongDoubleHashMap();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Lock readLock = lock.readLock();
+    private final Lock writeLock = lock.writeLock();
+  }
+}
@@ -0,0 +1,178 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a spreadsheet as comma separated values, in the layout read by {@link CsvImporter}:
+ * row {@code r} becomes line {@code r + 1} and empty cells become empty fields. A line ends
+ * after its last non-empty cell.
+ *
+ * <p>The spreadsheet is walked row by row (see {@link RowScanner}) and written through a fixed
+ * buffer, so neither the spreadsheet nor the output is ever held in memory as a whole. Whole
+ * numbers are formatted straight into the buffer without creating strings.
+ */
+public final class CsvExporter {
+  private static final int BUFFER_BYTES = 1 << 20;
+  private static final double MAX_WHOLE = 1e15;
+
+  private final WritableByteChannel out;
+  private final ByteBuffer buffer;
+  private final byte[] digits;
+  private int nextRow;
+  private long cells;
+
+  /**
+   * Create an exporter that writes into the given channel.
+   *
+   * @param out the channel to write
+   */
+  private CsvExporter(WritableByteChannel out) {
+    this.out = out;
+    this.buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    this.digits = new byte[20];
+  }
+
+  /**
+   * Write the given spreadsheet to a CSV file, replacing anything the file held.
+   *
+   * @param sheet the spreadsheet to write
+   * @param file  the file to write
+   * @return the number of cells written
+   * @throws IllegalArgumentException if an argument is null
+   * @throws IllegalStateException    if the file cannot be written
+   */
+  public static long write(SpreadSheet sheet, Path file)
+          throws IllegalArgumentException, IllegalStateException {
+    if (file == null) {
+      throw new IllegalArgumentException("File is null");
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      return write(sheet, channel);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot write " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Write the given spreadsheet to a channel as CSV data.
+   *
+   * @param sheet the spreadsheet to write
+   * @param out   the channel to write
+   * @return the number of cells written
+   * @throws IllegalArgumentException if an argument is null
+   * @throws IllegalStateException    if the channel cannot be written
+   */
+  public static long write(SpreadSheet sheet, WritableByteChannel out)
+          throws IllegalArgumentException, IllegalStateException {
+    if (sheet == null || out == null) {
+      throw new IllegalArgumentException("Spreadsheet or channel is null");
+    }
+    CsvExporter exporter = new CsvExporter(out);
+    try {
+      RowScanner.forEachRow(sheet, exporter::writeRow);
+      exporter.drain();
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot write CSV: " + e.getMessage());
+    }
+    return exporter.cells;
+  }
+
+  /**
+   * Write the lines of the empty rows before a non-empty row, then the row itself.
+   *
+   * @param row    the row number
+   * @param cols   the columns of the non-empty cells, in increasing order
+   * @param values the values of the non-empty cells
+   * @param count  the number of non-empty cells
+   * @throws IOException if the channel cannot be written
+   */
+  private void writeRow(int row, int[] cols, double[] values, int count) throws IOException {
+    for (; this.nextRow < row; this.nextRow++) {
+      put((byte) '\n');
+    }
+    int col = 0;
+    for (int i = 0; i < count; i++) {
+      for (; col < cols[i]; col++) {
+        put((byte) ',');
+      }
+      writeNumber(values[i]);
+    }
+    put((byte) '\n');
+    this.nextRow = row + 1;
+    this.cells += count;
+  }
+
+  /**
+   * Write one number. Whole numbers are written as plain digits and everything else as
+   * {@link Double#toString} does, which {@link CsvImporter} reads back exactly.
+   *
+   * @param value the number to write
+   * @throws IOException if the channel cannot be written
+   */
+  private void writeNumber(double value) throws IOException {
+    if (value == Math.rint(value) && Math.abs(value) < MAX_WHOLE
+            && (value != 0 || 1 / value > 0)) {
+      long whole = (long) value;
+      if (whole < 0) {
+        put((byte) '-');
+        whole = -whole;
+      }
+      int n = 0;
+      do {
+        this.digits[n++] = (byte) ('0' + whole % 10);
+        whole /= 10;
+      } while (whole != 0);
+      ensure(n);
+      while (n > 0) {
+        this.buffer.put(this.digits[--n]);
+      }
+    } else {
+      byte[] text = Double.toString(value).getBytes(StandardCharsets.US_ASCII);
+      ensure(text.length);
+      this.buffer.put(text);
+    }
+  }
+
+  /**
+   * Write one byte.
+   *
+   * @param b the byte to write
+   * @throws IOException if the channel cannot be written
+   */
+  private void put(byte b) throws IOException {
+    ensure(1);
+    this.buffer.put(b);
+  }
+
+  /**
+   * Make sure the buffer has room for the given number of bytes, writing it out if not.
+   *
+   * @param bytes the number of bytes about to be put
+   * @throws IOException if the channel cannot be written
+   */
+  private void ensure(int bytes) throws IOException {
+    if (this.buffer.remaining() < bytes) {
+      drain();
+    }
+  }
+
+  /**
+   * Write the buffer to the channel.
+   *
+   * @throws IOException if the channel cannot be written
+   */
+  private void drain() throws IOException {
+    this.buffer.flip();
+    while (this.buffer.hasRemaining()) {
+      this.out.write(this.buffer);
+    }
+    this.buffer.clear();
+  }
+}
@@ -0,0 +1,216 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads comma separated values into a spreadsheet. Line {@code n} of the input becomes row
+ * {@code n - 1} and field {@code m} of a line becomes column {@code m - 1}.
+ *
+ * <p>The input is read through a fixed buffer, however large it is, and numbers are parsed
+ * straight from its bytes by {@link DecimalParser}, without creating strings. Empty fields
+ * create no cells. Consecutive non-empty fields of a line are stored with a single
+ * {@link SpreadSheet#setRange} call, so spreadsheets with a fast range write load dense data
+ * at that speed.
+ */
+public final class CsvImporter {
+  private static final int BUFFER_BYTES = 1 << 20;
+  private static final int MAX_RUN = 1 << 12;
+
+  private final SpreadSheet sheet;
+  private final double[] run;
+  private int runLength;
+  private int runStart;
+  private int row;
+  private int col;
+  private long cells;
+
+  /**
+   * Create an importer that stores cells in the given spreadsheet.
+   *
+   * @param sheet the spreadsheet to store cells in
+   */
+  private CsvImporter(SpreadSheet sheet) {
+    this.sheet = sheet;
+    this.run = new double[MAX_RUN];
+  }
+
+  /**
+   * Read a CSV file into the given spreadsheet.
+   *
+   * @param file  the file to read
+   * @param sheet the spreadsheet to store the cells in
+   * @return the number of cells stored
+   * @throws IllegalArgumentException if an argument is null or a field is not a number
+   * @throws IllegalStateException    if the file cannot be read
+   */
+  public static long read(Path file, SpreadSheet sheet)
+          throws IllegalArgumentException, IllegalStateException {
+    if (file == null) {
+      throw new IllegalArgumentException("File is null");
+    }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return read(channel, sheet);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Read CSV data from a channel into the given spreadsheet, until the channel is exhausted.
+   *
+   * @param in    the channel to read
+   * @param sheet the spreadsheet to store the cells in
+   * @return the number of cells stored
+   * @throws IllegalArgumentException if an argument is null or a field is not a number
+   * @throws IllegalStateException    if the channel cannot be read
+   */
+  public static long read(ReadableByteChannel in, SpreadSheet sheet)
+          throws IllegalArgumentException, IllegalStateException {
+    if (in == null || sheet == null) {
+      throw new IllegalArgumentException("Channel or spreadsheet is null");
+    }
+    CsvImporter importer = new CsvImporter(sheet);
+    try {
+      importer.readAll(in);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read CSV: " + e.getMessage());
+    }
+    return importer.cells;
+  }
+
+  /**
+   * Read every complete line in the buffer, keeping a partial last line for the next read.
+   * A line longer than the buffer makes the buffer grow.
+   *
+   * @param in the channel to read
+   * @throws IOException if the channel cannot be read
+   */
+  private void readAll(ReadableByteChannel in) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    boolean eof = false;
+    while (!eof) {
+      eof = in.read(buffer) < 0;
+      byte[] bytes = buffer.array();
+      int limit = buffer.position();
+      int lineStart = 0;
+      for (int i = 0; i < limit; i++) {
+        if (bytes[i] == '\n') {
+          parseLine(bytes, lineStart, i);
+          lineStart = i + 1;
+        }
+      }
+      if (eof) {
+        if (lineStart < limit) {
+          parseLine(bytes, lineStart, limit);
+        }
+      } else if (lineStart == 0 && limit == buffer.capacity()) {
+        ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() << 1);
+        buffer.flip();
+        buffer = grown.put(buffer);
+      } else {
+        buffer.position(lineStart);
+        buffer.limit(limit);
+        buffer.compact();
+      }
+    }
+  }
+
+  /**
+   * Store the non-empty fields of one line in the next row.
+   *
+   * @param bytes the buffer holding the line
+   * @param start the offset of the first byte of the line
+   * @param end   the offset just after the last byte of the line, not counting the newline
+   */
+  private void parseLine(byte[] bytes, int start, int end) {
+    if (end > start && bytes[end - 1] == '\r') {
+      end--;
+    }
+    this.col = 0;
+    int fieldStart = start;
+    for (int i = start; i < end; i++) {
+      if (bytes[i] == ',') {
+        parseField(bytes, fieldStart, i);
+        this.col++;
+        fieldStart = i + 1;
+      }
+    }
+    parseField(bytes, fieldStart, end);
+    flushRun();
+    if (this.row == Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many lines");
+    }
+    this.row++;
+  }
+
+  /**
+   * Add one field to the current run of non-empty fields, or end the run if the field is
+   * empty. Surrounding blanks and quotes are ignored.
+   *
+   * @param bytes the buffer holding the field
+   * @param start the offset of the first byte of the field
+   * @param end   the offset just after the last byte of the field
+   */
+  private void parseField(byte[] bytes, int start, int end) {
+    while (start < end && (bytes[start] == ' ' || bytes[start] == '\t')) {
+      start++;
+    }
+    while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '\t')) {
+      end--;
+    }
+    if (end - start >= 2 && bytes[start] == '"' && bytes[end - 1] == '"') {
+      start++;
+      end--;
+    }
+    if (start == end) {
+      flushRun();
+      return;
+    }
+    if (this.runLength == 0) {
+      this.runStart = this.col;
+    }
+    this.run[this.runLength++] = parseNumber(bytes, start, end);
+    if (this.runLength == MAX_RUN) {
+      flushRun();
+    }
+  }
+
+  /**
+   * Store the current run of non-empty fields with a single write.
+   */
+  private void flushRun() {
+    if (this.runLength == 1) {
+      this.sheet.set(this.row, this.runStart, this.run[0]);
+    } else if (this.runLength > 1) {
+      this.sheet.setRange(this.row, this.runStart, this.row,
+              this.runStart + this.runLength - 1, this.run);
+    }
+    this.cells += this.runLength;
+    this.runLength = 0;
+  }
+
+  /**
+   * Parse a number from its bytes, reporting where it was found if it is not a number.
+   *
+   * @param bytes the buffer holding the number
+   * @param start the offset of the first byte of the number
+   * @param end   the offset just after the last byte of the number
+   * @return the number
+   * @throws IllegalArgumentException if the bytes are not a number
+   */
+  private double parseNumber(byte[] bytes, int start, int end) throws IllegalArgumentException {
+    try {
+      return DecimalParser.parse(bytes, start, end);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid number \"" + new String(bytes, start,
+              end - start, StandardCharsets.US_ASCII) + "\" at line " + ((long) this.row + 1)
+              + ", field " + ((long) this.col + 1));
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package spreadsheet;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses decimal numbers straight from ASCII bytes. A number with at most 15 significant
+ * digits and a decimal exponent of at most 22 either way is computed exactly from its digits
+ * and one power of ten, both of which a double holds exactly, so the result is correctly
+ * rounded without creating a string. Anything else is left to {@link Double#parseDouble}.
+ */
+final class DecimalParser {
+  private static final int MAX_EXACT_DIGITS = 15;
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+      1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+  /**
+   * This class only offers static helpers.
+   */
+  private DecimalParser() {
+  }
+
+  /**
+   * Parse a number from its bytes.
+   *
+   * @param bytes the buffer holding the number
+   * @param start the offset of the first byte of the number
+   * @param end   the offset just after the last byte of the number
+   * @return the number
+   * @throws NumberFormatException if the bytes are not a number
+   */
+  static double parse(byte[] bytes, int start, int end) throws NumberFormatException {
+    if (start >= end) {
+      throw new NumberFormatException("Empty number");
+    }
+    int i = start;
+    boolean negative = bytes[i] == '-';
+    if (negative || bytes[i] == '+') {
+      i++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int exponent = 0;
+    boolean anyDigit = false;
+    while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+      if (digits <= MAX_EXACT_DIGITS) {
+        mantissa = mantissa * 10 + (bytes[i] - '0');
+        digits += mantissa == 0 ? 0 : 1;
+      } else {
+        exponent++;
+      }
+      anyDigit = true;
+      i++;
+    }
+    if (i < end && bytes[i] == '.') {
+      i++;
+      while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+        if (digits <= MAX_EXACT_DIGITS) {
+          mantissa = mantissa * 10 + (bytes[i] - '0');
+          digits += mantissa == 0 ? 0 : 1;
+          exponent--;
+        }
+        anyDigit = true;
+        i++;
+      }
+    }
+    if (anyDigit && i < end && (bytes[i] == 'e' || bytes[i] == 'E')) {
+      i++;
+      boolean negativeExponent = i < end && bytes[i] == '-';
+      if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+        i++;
+      }
+      int explicit = 0;
+      boolean anyExponentDigit = false;
+      while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+        explicit = Math.min(explicit * 10 + (bytes[i] - '0'), 100000);
+        anyExponentDigit = true;
+        i++;
+      }
+      anyDigit = anyExponentDigit;
+      exponent += negativeExponent ? -explicit : explicit;
+    }
+    if (anyDigit && i == end && digits <= MAX_EXACT_DIGITS
+            && exponent >= -22 && exponent <= 22) {
+      double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent]
+              : mantissa * POWERS_OF_TEN[exponent];
+      return negative ? -value : value;
+    }
+    return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.US_ASCII));
+  }
+}
@@ -0,0 +1,728 @@
+package spreadsheet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A macro spreadsheet whose contents survive a restart. Every write to another macro
+ * spreadsheet is first appended to a write-ahead log in a directory, and the spreadsheet is
+ * rebuilt from that directory when it is opened again.
+ *
+ * <p>The built-in macros are logged as the macro itself rather than as the cells it writes, so
+ * a bulk assign over a million cells takes a few dozen bytes on disk and is executed again
+ * when the log is replayed. Other macros are run against a buffer and logged as the cells they
+ * wrote. When the log grows past a given size, a checkpoint of every non-empty cell is written
+ * as a binary snapshot (see {@link SnapshotWriter}) and the log is emptied, so that opening
+ * the spreadsheet only replays the tail of the log.
+ *
+ * <p>Writes from several threads are logged and applied in the same order, and each one
+ * returns once the log is as durable as its {@link FsyncPolicy} promises. Threads that commit
+ * at the same time share one write and one force of the log.
+ */
+public class DurableSpreadSheet implements MacroSpreadSheet, Closeable {
+  /**
+   * The size the log may reach before a checkpoint is taken, unless another one is given.
+   */
+  public static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+
+  private static final String LOG_FILE = "spreadsheet.log";
+  private static final String CHECKPOINT_FILE = "spreadsheet.checkpoint";
+  private static final int CELL_BYTES = 2 * Integer.BYTES + Double.BYTES;
+  private static final byte SET = 1;
+  private static final byte FILL_RANGE = 2;
+  private static final byte SET_RANGE = 3;
+  private static final byte MACRO = 4;
+  private static final byte BATCH = 5;
+  private static final byte CELLS = 6;
+
+  private final MacroSpreadSheet sheet;
+  private final Path directory;
+  private final long checkpointBytes;
+  private final WriteAheadLog log;
+  private final ReentrantLock writeLock;
+  private ByteBuffer record;
+
+  /**
+   * Open a durable spreadsheet in the given directory, forcing the log on every write and
+   * taking a checkpoint every {@link #DEFAULT_CHECKPOINT_BYTES} bytes of log.
+   *
+   * @param sheet     an empty spreadsheet to hold the cells
+   * @param directory the directory holding the log and the checkpoint, created if needed
+   * @throws IllegalArgumentException if the spreadsheet or directory is null
+   * @throws IllegalStateException    if the directory cannot be read or written
+   */
+  public DurableSpreadSheet(MacroSpreadSheet sheet, Path directory)
+          throws IllegalArgumentException, IllegalStateException {
+    this(sheet, directory, FsyncPolicy.ALWAYS, DEFAULT_CHECKPOINT_BYTES);
+  }
+
+  /**
+   * Open a durable spreadsheet in the given directory. The cells of the last checkpoint and
+   * every intact record of the log after it are loaded into the given spreadsheet. The log
+   * ends at a record torn by a crash, but a record that is intact and still cannot be read
+   * means the log is damaged, and the spreadsheet is not opened.
+   *
+   * @param sheet           an empty spreadsheet to hold the cells
+   * @param directory       the directory holding the log and the checkpoint, created if needed
+   * @param policy          when to force the log to the storage device
+   * @param checkpointBytes the size the log may reach before a checkpoint is taken
+   * @throws IllegalArgumentException if an argument is null or the size is not positive
+   * @throws IllegalStateException    if the directory cannot be read or written, or the log
+   *                                  is damaged
+   */
+  public DurableSpreadSheet(MacroSpreadSheet sheet, Path directory, FsyncPolicy policy,
+                            long checkpointBytes)
+          throws IllegalArgumentException, IllegalStateException {
+    if (sheet == null || directory == null || policy == null) {
+      throw new IllegalArgumentException("Spreadsheet, directory or policy is null");
+    }
+    if (checkpointBytes <= 0) {
+      throw new IllegalArgumentException("Checkpoint size must be positive");
+    }
+    this.sheet = sheet;
+    this.directory = directory;
+    this.checkpointBytes = checkpointBytes;
+    this.writeLock = new ReentrantLock();
+    this.record = ByteBuffer.allocate(1 << 10);
+    try {
+      Files.createDirectories(directory);
+      long generation = loadCheckpoint();
+      this.log = new WriteAheadLog(directory.resolve(LOG_FILE), policy);
+      try {
+        if (this.log.generation() < generation) {
+          this.log.reset(generation);
+        } else {
+          this.log.replay(this::replay);
+        }
+      } catch (IOException e) {
+        this.log.close();
+        throw e;
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot open spreadsheet in " + directory + ": "
+              + e.getMessage());
+    }
+  }
+
+  /**
+   * Get the number at the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    return this.sheet.get(row, col);
+  }
+
+  /**
+   * Log the new value of the specified cell, then set it.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   * @throws IllegalStateException    if the log cannot be written
+   */
+  @Override
+  public void set(int row, int col, double value)
+          throws IllegalArgumentException, IllegalStateException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    long end;
+    this.writeLock.lock();
+    try {
+      startRecord(SET, CELL_BYTES).putInt(row).putInt(col).putDouble(value);
+      end = appendRecord();
+      this.sheet.set(row, col, value);
+    } finally {
+      this.writeLock.unlock();
+    }
+    commit(end);
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    return this.sheet.isEmpty(row, col);
+  }
+
+  /**
+   * Return the width of this spreadsheet.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return this.sheet.getWidth();
+  }
+
+  /**
+   * Return the height of this spreadsheet.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return this.sheet.getHeight();
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    this.sheet.getRange(fromRow, fromCol, toRow, toCol, dest);
+  }
+
+  /**
+   * Log a fill of the specified range, then fill it. The record has the same size whatever
+   * the size of the range.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   * @throws IllegalStateException    if the log cannot be written
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException, IllegalStateException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    long end;
+    this.writeLock.lock();
+    try {
+      startRecord(FILL_RANGE, 4 * Integer.BYTES + Double.BYTES).putInt(fromRow)
+              .putInt(fromCol).putInt(toRow).putInt(toCol).putDouble(value);
+      end = appendRecord();
+      this.sheet.fillRange(fromRow, fromCol, toRow, toCol, value);
+    } finally {
+      this.writeLock.unlock();
+    }
+    commit(end);
+  }
+
+  /**
+   * Log the values of the specified range, then set it. Large ranges are logged in several
+   * records of a bounded size.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   * @throws IllegalStateException    if the log cannot be written
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException, IllegalStateException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, values);
+    long end;
+    this.writeLock.lock();
+    try {
+      end = appendSetRange(fromRow, fromCol, toRow, toCol, values);
+      this.sheet.setRange(fromRow, fromCol, toRow, toCol, values);
+    } finally {
+      this.writeLock.unlock();
+    }
+    commit(end);
+  }
+
+  /**
+   * Pass every non-empty cell in the specified range to the given visitor.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to receive the cells
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    this.sheet.forEachNonEmpty(fromRow, fromCol, toRow, toCol, visitor);
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    return this.sheet.sumRange(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Log the given macro, then execute it on the underlying spreadsheet. A built-in macro is
+   * logged as itself; any other macro is first run against a buffer and its writes are logged
+   * and applied instead.
+   *
+   * @param command the macro command to execute
+   * @throws IllegalArgumentException if the command is null
+   * @throws IllegalStateException    if the log cannot be written
+   */
+  @Override
+  public void execute(MacroCommand command)
+          throws IllegalArgumentException, IllegalStateException {
+    int size = MacroCodec.sizeOf(command);
+    if (size < 0) {
+      applyBuffered(Collections.singletonList(command));
+      return;
+    }
+    long end;
+    this.writeLock.lock();
+    try {
+      MacroCodec.encode(command, startRecord(MACRO, size));
+      end = appendRecord();
+      this.sheet.execute(command);
+    } finally {
+      this.writeLock.unlock();
+    }
+    commit(end);
+  }
+
+  /**
+   * Log a list of macro commands as one record, then execute them as one unit on the
+   * underlying spreadsheet. If one of them is not a built-in macro, the batch is run against
+   * a buffer and its writes are logged and applied instead.
+   *
+   * @param commands the macro commands to execute, in order
+   * @throws IllegalArgumentException if the list or one of its commands is null
+   * @throws IllegalStateException    if the log cannot be written
+   */
+  @Override
+  public void executeBatch(List<MacroCommand> commands)
+          throws IllegalArgumentException, IllegalStateException {
+    if (commands == null || commands.contains(null)) {
+      throw new IllegalArgumentException("Commands cannot be null");
+    }
+    int size = Integer.BYTES;
+    for (MacroCommand command : commands) {
+      int encoded = MacroCodec.sizeOf(command);
+      if (encoded < 0) {
+        applyBuffered(commands);
+        return;
+      }
+      size += encoded;
+    }
+    long end;
+    this.writeLock.lock();
+    try {
+      ByteBuffer out = startRecord(BATCH, size).putInt(commands.size());
+      for (MacroCommand command : commands) {
+        MacroCodec.encode(command, out);
+      }
+      end = appendRecord();
+      this.sheet.executeBatch(commands);
+    } finally {
+      this.writeLock.unlock();
+    }
+    commit(end);
+  }
+
+  /**
+   * Write every non-empty cell to a new checkpoint and empty the log. Writes wait while the
+   * checkpoint is taken.
+   *
+   * @throws IllegalStateException if the checkpoint or the log cannot be written
+   */
+  public void checkpoint() throws IllegalStateException {
+    this.writeLock.lock();
+    try {
+      this.log.sync();
+      long next = this.log.generation() + 1;
+      writeCheckpoint(next);
+      this.log.reset(next);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot write checkpoint: " + e.getMessage());
+    } finally {
+      this.writeLock.unlock();
+    }
+  }
+
+  /**
+   * Return the current size of the log in bytes.
+   *
+   * @return the size of the log in bytes
+   */
+  public long getLogSize() {
+    return this.log.size();
+  }
+
+  /**
+   * Force every logged write to the storage device and close the log. The spreadsheet must
+   * not be written to afterwards.
+   *
+   * @throws IllegalStateException if the log cannot be written or closed
+   */
+  @Override
+  public void close() throws IllegalStateException {
+    this.writeLock.lock();
+    try {
+      this.log.close();
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot close log: " + e.getMessage());
+    } finally {
+      this.writeLock.unlock();
+    }
+  }
+
+  /**
+   * Run macros against a buffer, then log and apply what they wrote: each range they wrote as
+   * one range record, and their single cells in cell records. Nothing is logged or applied if
+   * one of them fails.
+   *
+   * @param commands the macro commands to execute, in order
+   * @throws IllegalArgumentException if one of the commands is null or fails
+   */
+  private void applyBuffered(List<MacroCommand> commands) throws IllegalArgumentException {
+    long end;
+    this.writeLock.lock();
+    try {
+      WriteBuffer buffer = MacroBatches.run(this.sheet, commands);
+      long[] last = {0};
+      buffer.forEachRange((fromRow, fromCol, toRow, toCol, value, values) -> {
+        if (values == null) {
+          startRecord(FILL_RANGE, 4 * Integer.BYTES + Double.BYTES).putInt(fromRow)
+                  .putInt(fromCol).putInt(toRow).putInt(toCol).putDouble(value);
+          last[0] = appendRecord();
+        } else {
+          last[0] = appendSetRange(fromRow, fromCol, toRow, toCol, values);
+        }
+      });
+      int[] count = {0};
+      buffer.forEachCell((row, col, value) -> {
+        if (count[0] == 0) {
+          startRecord(CELLS, Integer.BYTES).putInt(0);
+        }
+        growRecord(CELL_BYTES).putInt(row).putInt(col).putDouble(value);
+        if (++count[0] == RangeChecks.CHUNK_CELLS) {
+          last[0] = appendCells(count[0]);
+          count[0] = 0;
+        }
+      });
+      if (count[0] > 0) {
+        last[0] = appendCells(count[0]);
+      }
+      end = last[0];
+      buffer.applyTo(this.sheet);
+    } finally {
+      this.writeLock.unlock();
+    }
+    commit(end);
+  }
+
+  /**
+   * Append the values of a range to the log, in records of a bounded size. The write lock
+   * must be held.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   * @param values  the values of the cells, in row-major order
+   * @return the size of the log once the last record is written
+   */
+  private long appendSetRange(int fromRow, int fromCol, int toRow, int toCol, double[] values) {
+    int cols = toCol - fromCol + 1;
+    int rowsPerChunk = RangeChecks.rowsPerChunk(fromRow, toRow, cols);
+    long end = 0;
+    for (int row = fromRow; row <= toRow; row += rowsPerChunk) {
+      int lastRow = Math.min(toRow, row + rowsPerChunk - 1);
+      int count = (lastRow - row + 1) * cols;
+      ByteBuffer out = startRecord(SET_RANGE, 4 * Integer.BYTES + count * Double.BYTES)
+              .putInt(row).putInt(fromCol).putInt(lastRow).putInt(toCol);
+      int first = (row - fromRow) * cols;
+      for (int i = 0; i < count; i++) {
+        out.putDouble(values[first + i]);
+      }
+      end = appendRecord();
+    }
+    return end;
+  }
+
+  /**
+   * Append the cell record being built, once its number of cells is known.
+   *
+   * @param count the number of cells in the record
+   * @return the size of the log once the record is written
+   */
+  private long appendCells(int count) {
+    this.record.putInt(1, count);
+    return appendRecord();
+  }
+
+  /**
+   * Start building a record in the reusable record buffer. The write lock must be held.
+   *
+   * @param type the type of the record
+   * @param body the number of bytes that follow the type
+   * @return the buffer to write the body into
+   */
+  private ByteBuffer startRecord(byte type, int body) {
+    if (this.record.capacity() < 1 + body) {
+      this.record = ByteBuffer.allocate(Math.max(1 + body, this.record.capacity() << 1));
+    }
+    this.record.clear();
+    return this.record.put(type);
+  }
+
+  /**
+   * Make room for more bytes at the end of the record being built. The write lock must be
+   * held.
+   *
+   * @param bytes the number of bytes about to be written
+   * @return the buffer to write them into
+   */
+  private ByteBuffer growRecord(int bytes) {
+    if (this.record.remaining() < bytes) {
+      ByteBuffer grown = ByteBuffer.allocate(this.record.capacity() << 1);
+      this.record.flip();
+      this.record = grown.put(this.record);
+    }
+    return this.record;
+  }
+
+  /**
+   * Append the record that was built to the log. The write lock must be held.
+   *
+   * @return the size of the log once the record is written
+   */
+  private long appendRecord() {
+    this.record.flip();
+    return this.log.append(this.record);
+  }
+
+  /**
+   * Wait until the log is durable up to the given size, then take a checkpoint if the log
+   * has grown too large.
+   *
+   * @param end the size returned when the last record of a write was appended
+   */
+  private void commit(long end) {
+    if (end > 0) {
+      this.log.commit(end);
+    }
+    if (this.log.size() >= this.checkpointBytes) {
+      this.writeLock.lock();
+      try {
+        if (this.log.size() >= this.checkpointBytes) {
+          checkpoint();
+        }
+      } finally {
+        this.writeLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Apply one logged record to the underlying spreadsheet. The record is read in full first,
+   * and one that cannot be read is damaged, since only valid writes are logged. A write that
+   * was read but failed when it was made fails again in the same way and is skipped.
+   *
+   * @param in the payload of the record
+   * @throws IOException if the record is damaged
+   */
+  private void replay(ByteBuffer in) throws IOException {
+    Runnable write;
+    try {
+      write = decode(in);
+    } catch (IllegalArgumentException | BufferUnderflowException e) {
+      throw new IOException("Damaged log record: " + e.getMessage(), e);
+    }
+    if (in.hasRemaining()) {
+      throw new IOException("Damaged log record: " + in.remaining() + " bytes left over");
+    }
+    try {
+      write.run();
+    } catch (IllegalArgumentException e) {
+      // the write failed in the same way when it was first made
+    }
+  }
+
+  /**
+   * Read one logged record, checking it the way the write that logged it was checked.
+   *
+   * @param in the payload of the record
+   * @return the write to apply to the underlying spreadsheet
+   * @throws IllegalArgumentException if the record holds an unknown type or invalid numbers
+   * @throws BufferUnderflowException if the record is too short
+   */
+  private Runnable decode(ByteBuffer in)
+          throws IllegalArgumentException, BufferUnderflowException {
+    byte type = in.get();
+    switch (type) {
+      case SET:
+        int row = in.getInt();
+        int col = in.getInt();
+        double value = in.getDouble();
+        if (row < 0 || col < 0) {
+          throw new IllegalArgumentException("Row or column cannot be negative");
+        }
+        return () -> this.sheet.set(row, col, value);
+      case FILL_RANGE:
+        int fromRow = in.getInt();
+        int fromCol = in.getInt();
+        int toRow = in.getInt();
+        int toCol = in.getInt();
+        double fill = in.getDouble();
+        RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+        return () -> this.sheet.fillRange(fromRow, fromCol, toRow, toCol, fill);
+      case SET_RANGE:
+        return decodeSetRange(in);
+      case MACRO:
+        MacroCommand command = MacroCodec.decode(in);
+        return () -> this.sheet.execute(command);
+      case BATCH:
+        int size = in.getInt();
+        if (size < 0 || size > in.remaining()) {
+          throw new IllegalArgumentException("Invalid batch size " + size);
+        }
+        MacroCommand[] commands = new MacroCommand[size];
+        for (int i = 0; i < commands.length; i++) {
+          commands[i] = MacroCodec.decode(in);
+        }
+        return () -> this.sheet.executeBatch(Arrays.asList(commands));
+      case CELLS:
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / CELL_BYTES) {
+          throw new IllegalArgumentException("Invalid cell count " + count);
+        }
+        int[] rows = new int[count];
+        int[] cols = new int[count];
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+          rows[i] = in.getInt();
+          cols[i] = in.getInt();
+          values[i] = in.getDouble();
+          if (rows[i] < 0 || cols[i] < 0) {
+            throw new IllegalArgumentException("Row or column cannot be negative");
+          }
+        }
+        return () -> {
+          for (int i = 0; i < count; i++) {
+            this.sheet.set(rows[i], cols[i], values[i]);
+          }
+        };
+      default:
+        throw new IllegalArgumentException("Unknown log record type " + type);
+    }
+  }
+
+  /**
+   * Read one logged range of values.
+   *
+   * @param in the body of the record
+   * @return the write to apply to the underlying spreadsheet
+   * @throws IllegalArgumentException if the range is invalid or does not match the values
+   */
+  private Runnable decodeSetRange(ByteBuffer in) throws IllegalArgumentException {
+    int fromRow = in.getInt();
+    int fromCol = in.getInt();
+    int toRow = in.getInt();
+    int toCol = in.getInt();
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    long area = RangeChecks.area(fromRow, fromCol, toRow, toCol);
+    if (area != in.remaining() / Double.BYTES) {
+      throw new IllegalArgumentException("Range does not match its values");
+    }
+    double[] values = new double[(int) area];
+    in.asDoubleBuffer().get(values);
+    in.position(in.position() + values.length * Double.BYTES);
+    return () -> this.sheet.setRange(fromRow, fromCol, toRow, toCol, values);
+  }
+
+  /**
+   * Load the cells of the checkpoint, if there is one, into the underlying spreadsheet.
+   *
+   * @return the generation of the first log that is not part of the checkpoint, or 0 if
+   *         there is no checkpoint
+   * @throws IOException if the checkpoint cannot be read or is damaged
+   */
+  private long loadCheckpoint() throws IOException {
+    Path file = this.directory.resolve(CHECKPOINT_FILE);
+    if (!Files.exists(file)) {
+      return 0;
+    }
+    try (SnapshotReader reader = new SnapshotReader(file)) {
+      reader.load(this.sheet);
+      return reader.getTag();
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Write a snapshot of every non-empty cell to a new checkpoint file, then put it in place of
+   * the old one in a single atomic step. The directory is forced afterwards, so that the new
+   * name survives a crash before the log is emptied.
+   *
+   * @param generation the generation of the first log that is not part of the checkpoint
+   * @throws IOException if the checkpoint cannot be written
+   */
+  private void writeCheckpoint(long generation) throws IOException {
+    Path temp = this.directory.resolve(CHECKPOINT_FILE + ".tmp");
+    SnapshotWriter.write(this.sheet, temp, generation);
+    Files.move(temp, this.directory.resolve(CHECKPOINT_FILE),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    forceDirectory();
+  }
+
+  /**
+   * Force the entries of the directory to the storage device. Some platforms cannot open a
+   * directory as a file, and there the move is left to the file system.
+   *
+   * @throws IOException if the directory was opened but cannot be forced
+   */
+  private void forceDirectory() throws IOException {
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(this.directory, StandardOpenOption.READ);
+    } catch (IOException e) {
+      return;
+    }
+    try (FileChannel dir = channel) {
+      dir.force(true);
+    }
+  }
+}
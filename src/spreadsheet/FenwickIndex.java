@@ -0,0 +1,231 @@
+package spreadsheet;
+
+/**
+ * A two-dimensional Fenwick tree (binary indexed tree) over a fixed rectangle of cells
+ * starting at (0, 0). It keeps the sum of the numbers and the count of non-empty cells, so
+ * that both can be updated for one cell and queried for any range in O(log rows * log cols).
+ *
+ * <p>Every node keeps its sum as a pair of a rounded sum and the error of that rounding, in the
+ * manner of Neumaier's compensated summation, and queries combine the pairs the same way. A
+ * small number next to a large one that is later removed is therefore not lost, and the sums
+ * do not drift away from a fresh sum of the cells however many updates a node has seen.
+ */
+final class FenwickIndex {
+  private final int rows;
+  private final int cols;
+  private final int stride;
+  private final double[] sums;
+  private final double[] errors;
+  private final int[] counts;
+
+  /**
+   * Create an index of the given size with every cell empty.
+   *
+   * @param rows the number of rows covered, starting with row 0
+   * @param cols the number of columns covered, starting with column 0
+   * @throws IllegalArgumentException if a dimension is not positive or the index is too large
+   */
+  FenwickIndex(int rows, int cols) throws IllegalArgumentException {
+    if (rows <= 0 || cols <= 0) {
+      throw new IllegalArgumentException("Index dimensions must be positive");
+    }
+    long size = ((long) rows + 1) * ((long) cols + 1);
+    if (size > Integer.MAX_VALUE - 8) {
+      throw new IllegalArgumentException("Index dimensions are too large");
+    }
+    this.rows = rows;
+    this.cols = cols;
+    this.stride = cols + 1;
+    this.sums = new double[(int) size];
+    this.errors = new double[(int) size];
+    this.counts = new int[(int) size];
+  }
+
+  /**
+   * Return the number of rows covered by this index.
+   *
+   * @return the number of rows covered
+   */
+  int rows() {
+    return rows;
+  }
+
+  /**
+   * Return the number of columns covered by this index.
+   *
+   * @return the number of columns covered
+   */
+  int cols() {
+    return cols;
+  }
+
+  /**
+   * Returns whether the given cell lies inside this index.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return true if the cell is covered, false otherwise
+   */
+  boolean covers(int row, int col) {
+    return row < rows && col < cols;
+  }
+
+  /**
+   * Record a change to one cell. The old number is taken out and the new one put in as two
+   * separate terms, since their difference may not be representable.
+   *
+   * @param row        the row number of the cell, which must be covered
+   * @param col        the column number of the cell, which must be covered
+   * @param oldValue   the number the cell held
+   * @param newValue   the number the cell holds now
+   * @param countDelta +1 if the cell became non-empty, -1 if it became empty, 0 otherwise
+   */
+  void update(int row, int col, double oldValue, double newValue, int countDelta) {
+    for (int i = row + 1; i <= rows; i += i & -i) {
+      int base = i * stride;
+      for (int j = col + 1; j <= cols; j += j & -j) {
+        addToNode(base + j, -oldValue);
+        addToNode(base + j, newValue);
+        counts[base + j] += countDelta;
+      }
+    }
+  }
+
+  /**
+   * Return the sum of the numbers in a covered range.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range, which must be covered
+   * @param toCol   the last column of the range, which must be covered
+   * @return the sum of the numbers in the range
+   */
+  double sum(int fromRow, int fromCol, int toRow, int toCol) {
+    double[] total = new double[2];
+    prefixSum(toRow + 1, toCol + 1, 1, total);
+    prefixSum(fromRow, toCol + 1, -1, total);
+    prefixSum(toRow + 1, fromCol, -1, total);
+    prefixSum(fromRow, fromCol, 1, total);
+    return total[0] + total[1];
+  }
+
+  /**
+   * Return the number of non-empty cells in a covered range.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range, which must be covered
+   * @param toCol   the last column of the range, which must be covered
+   * @return the number of non-empty cells in the range
+   */
+  long count(int fromRow, int fromCol, int toRow, int toCol) {
+    return prefixCount(toRow + 1, toCol + 1) - prefixCount(fromRow, toCol + 1)
+            - prefixCount(toRow + 1, fromCol) + prefixCount(fromRow, fromCol);
+  }
+
+  /**
+   * Rebuild the whole index from the contents of a spreadsheet in time proportional to the
+   * number of covered cells. This is cheaper than one update per cell when a large part of
+   * the index changes at once.
+   *
+   * @param sheet the spreadsheet to read the cells from
+   */
+  void rebuild(SpreadSheet sheet) {
+    double[] values = new double[cols];
+    for (int i = 1; i <= rows; i++) {
+      sheet.getRange(i - 1, 0, i - 1, cols - 1, values);
+      int base = i * stride;
+      for (int j = 1; j <= cols; j++) {
+        sums[base + j] = values[j - 1];
+        errors[base + j] = 0;
+        counts[base + j] = sheet.isEmpty(i - 1, j - 1) ? 0 : 1;
+      }
+    }
+    for (int i = 1; i <= rows; i++) {
+      int base = i * stride;
+      for (int j = 1; j <= cols; j++) {
+        int parent = j + (j & -j);
+        if (parent <= cols) {
+          addToNode(base + parent, sums[base + j]);
+          addToNode(base + parent, errors[base + j]);
+          counts[base + parent] += counts[base + j];
+        }
+      }
+    }
+    for (int i = 1; i <= rows; i++) {
+      int parent = i + (i & -i);
+      if (parent <= rows) {
+        for (int j = 1; j <= cols; j++) {
+          addToNode(parent * stride + j, sums[i * stride + j]);
+          addToNode(parent * stride + j, errors[i * stride + j]);
+          counts[parent * stride + j] += counts[i * stride + j];
+        }
+      }
+    }
+  }
+
+  /**
+   * Add a number to the compensated sum of a node.
+   *
+   * @param node  the index of the node
+   * @param value the number to add
+   */
+  private void addToNode(int node, double value) {
+    double sum = sums[node];
+    double rounded = sum + value;
+    errors[node] += Math.abs(sum) >= Math.abs(value) ? (sum - rounded) + value
+            : (value - rounded) + sum;
+    sums[node] = rounded;
+  }
+
+  /**
+   * Add the sum of the numbers in rows [0, row) and columns [0, col), with the given sign, to
+   * a compensated total.
+   *
+   * @param row   the number of leading rows
+   * @param col   the number of leading columns
+   * @param sign  1 to add the prefix sum, -1 to subtract it
+   * @param total the rounded total at index 0 and its error at index 1
+   */
+  private void prefixSum(int row, int col, int sign, double[] total) {
+    for (int i = row; i > 0; i -= i & -i) {
+      int base = i * stride;
+      for (int j = col; j > 0; j -= j & -j) {
+        accumulate(total, sign * sums[base + j]);
+        accumulate(total, sign * errors[base + j]);
+      }
+    }
+  }
+
+  /**
+   * Add a number to a compensated total.
+   *
+   * @param total the rounded total at index 0 and its error at index 1
+   * @param value the number to add
+   */
+  private static void accumulate(double[] total, double value) {
+    double sum = total[0];
+    double rounded = sum + value;
+    total[1] += Math.abs(sum) >= Math.abs(value) ? (sum - rounded) + value
+            : (value - rounded) + sum;
+    total[0] = rounded;
+  }
+
+  /**
+   * Return the number of non-empty cells in rows [0, row) and columns [0, col).
+   *
+   * @param row the number of leading rows
+   * @param col the number of leading columns
+   * @return the prefix count
+   */
+  private long prefixCount(int row, int col) {
+    long count = 0;
+    for (int i = row; i > 0; i -= i & -i) {
+      int base = i * stride;
+      for (int j = col; j > 0; j -= j & -j) {
+        count += counts[base + j];
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,633 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+
+/**
+ * A macro spreadsheet that adds formula cells to another macro spreadsheet. A formula cell
+ * holds an {@link Aggregate} of a source range, such as its sum or average, and unlike the
+ * value written by {@link MacroAverage} it follows every later change to that range. The
+ * source range of a formula may hold other formulas, but no formula may depend on itself,
+ * directly or through others.
+ *
+ * <p>Formulas are recalculated incrementally. The source ranges of all formulas are kept in a
+ * {@link RectangleIndex}, so a write finds the formulas that read the written cells without
+ * looking at the others and marks them dirty, together with every formula that reads those in
+ * turn. Nothing is computed on a write: a dirty formula is recalculated when it is read, after
+ * the dirty formulas it reads, and a read of a range first recalculates the dirty formulas
+ * inside it, found through a third index that holds only the dirty formulas. The cost of
+ * keeping formulas current is thus proportional to the formulas that changed, not to the
+ * number of formulas.
+ *
+ * <p>The last computed value of every formula is stored in the underlying spreadsheet, so
+ * every write must go through this object. Macros are executed by the underlying spreadsheet,
+ * so that it can journal, log or parallelize them. A built-in macro is handed to it as it is:
+ * the dirty formulas in the range it reads are recalculated first, and the cells it may write
+ * are treated as written afterwards. Any other macro runs against this object, which reads
+ * and writes the cells through the spreadsheet handed to the macro, so its writes reach the
+ * formulas. Writing a formula cell replaces the formula with the value written.
+ */
+public class FormulaSpreadSheet implements MacroSpreadSheet {
+  private final MacroSpreadSheet delegate;
+  private final LongObjectHashMap<Formula> formulas;
+  private final RectangleIndex<Formula> locations;
+  private final RectangleIndex<Formula> sources;
+  private final RectangleIndex<Formula> dirty;
+  private final ArrayList<Formula> pending;
+  private SpreadSheet cells;
+
+  /**
+   * Add formula cells to a spreadsheet. The values it already holds become plain cells.
+   *
+   * @param delegate the spreadsheet holding the cells
+   * @throws IllegalArgumentException if the spreadsheet is null
+   */
+  public FormulaSpreadSheet(MacroSpreadSheet delegate) throws IllegalArgumentException {
+    if (delegate == null) {
+      throw new IllegalArgumentException("Spreadsheet cannot be null");
+    }
+    this.delegate = delegate;
+    this.formulas = new LongObjectHashMap<Formula>();
+    this.locations = new RectangleIndex<Formula>();
+    this.sources = new RectangleIndex<Formula>();
+    this.dirty = new RectangleIndex<Formula>();
+    this.pending = new ArrayList<Formula>();
+    this.cells = delegate;
+  }
+
+  /**
+   * Make a cell a formula computing the given function over a source range, replacing any
+   * value or formula the cell held.
+   *
+   * @param row      the row number of the formula cell, starting with 0
+   * @param col      the column number of the formula cell, starting with 0
+   * @param function the function to compute
+   * @param fromRow  the first row of the source range, starting with 0
+   * @param fromCol  the first column of the source range, starting with 0
+   * @param toRow    the last row of the source range, inclusive
+   * @param toCol    the last column of the source range, inclusive
+   * @throws IllegalArgumentException if the cell or range is invalid, the function is null, or
+   *                                  the formula would depend on itself
+   */
+  public void setFormula(int row, int col, Aggregate function, int fromRow, int fromCol,
+                         int toRow, int toCol) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (function == null) {
+      throw new IllegalArgumentException("Function cannot be null");
+    }
+    Formula formula = new Formula(row, col, function, fromRow, fromCol, toRow, toCol);
+    Formula old = this.formulas.get(CellKey.pack(row, col));
+    if (dependsOn(formula, row, col, old)) {
+      throw new IllegalArgumentException("Formula cannot depend on itself");
+    }
+    if (old != null) {
+      unregister(old);
+    }
+    this.formulas.put(CellKey.pack(row, col), formula);
+    this.locations.add(row, col, row, col, formula);
+    this.sources.add(fromRow, fromCol, toRow, toCol, formula);
+    this.cells.set(row, col, 0.0);
+    markDirty(formula);
+  }
+
+  /**
+   * Turn a formula cell into a plain cell holding the current value of the formula.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell held a formula, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  public boolean removeFormula(int row, int col) throws IllegalArgumentException {
+    Formula formula = formulaAt(row, col);
+    if (formula == null) {
+      return false;
+    }
+    evaluate(formula);
+    unregister(formula);
+    return true;
+  }
+
+  /**
+   * Returns whether the specified cell holds a formula.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell holds a formula, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  public boolean isFormula(int row, int col) throws IllegalArgumentException {
+    return formulaAt(row, col) != null;
+  }
+
+  /**
+   * Return the number of formulas in this spreadsheet.
+   *
+   * @return the number of formulas
+   */
+  public int getFormulaCount() {
+    return this.formulas.size();
+  }
+
+  /**
+   * Return the number of formulas whose value is out of date and will be recalculated when
+   * it is read.
+   *
+   * @return the number of dirty formulas
+   */
+  public int getDirtyCount() {
+    return this.dirty.size();
+  }
+
+  /**
+   * Recalculate every dirty formula now, each after the formulas it reads.
+   */
+  public void recalculate() {
+    refresh(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Get the number at the specified cell, recalculating it first if it is a dirty formula.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    Formula formula = formulaAt(row, col);
+    if (formula != null && formula.dirty) {
+      evaluate(formula);
+    }
+    return this.cells.get(row, col);
+  }
+
+  /**
+   * Set the value of the specified cell, replacing any formula it held, and mark the formulas
+   * reading it dirty.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    this.cells.set(row, col, value);
+    Formula formula = formulaAt(row, col);
+    if (formula != null) {
+      unregister(formula);
+    }
+    written(row, col, row, col);
+  }
+
+  /**
+   * Returns whether the specified cell is empty. A formula cell is never empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    return this.cells.isEmpty(row, col);
+  }
+
+  /**
+   * Return the width of the underlying spreadsheet.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return this.cells.getWidth();
+  }
+
+  /**
+   * Return the height of the underlying spreadsheet.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return this.cells.getHeight();
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order, after
+   * recalculating the dirty formulas inside it.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    refresh(fromRow, fromCol, toRow, toCol);
+    this.cells.getRange(fromRow, fromCol, toRow, toCol, dest);
+  }
+
+  /**
+   * Set every cell in the specified range to the same value, replacing the formulas inside
+   * it, and mark the formulas reading the range dirty.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    this.cells.fillRange(fromRow, fromCol, toRow, toCol, value);
+    unregisterInside(fromRow, fromCol, toRow, toCol);
+    written(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Set the cells in the specified range to the values in an array, replacing the formulas
+   * inside it, and mark the formulas reading the range dirty.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    this.cells.setRange(fromRow, fromCol, toRow, toCol, values);
+    unregisterInside(fromRow, fromCol, toRow, toCol);
+    written(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range, after recalculating the dirty
+   * formulas inside it.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    refresh(fromRow, fromCol, toRow, toCol);
+    return this.cells.sumRange(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Pass every non-empty cell in the specified range to the visitor, after recalculating the
+   * dirty formulas inside it.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to receive the non-empty cells
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    refresh(fromRow, fromCol, toRow, toCol);
+    this.cells.forEachNonEmpty(fromRow, fromCol, toRow, toCol, visitor);
+  }
+
+  /**
+   * Executes the given macro command through the underlying spreadsheet. A built-in macro is
+   * handed over as it is, after the dirty formulas in the range it reads are recalculated, and
+   * the formulas inside the range it may write are then replaced by the values written. If it
+   * fails, those formulas are kept and recalculated instead. Any other macro runs against this
+   * spreadsheet, with its cells read and written through the spreadsheet that the underlying
+   * one hands to the macro, so that its writes still reach the formulas.
+   *
+   * @param command the macro command to execute
+   */
+  @Override
+  public void execute(MacroCommand command) {
+    int[] read = MacroBounds.read(command);
+    if (read != null) {
+      if (read.length > 0) {
+        refresh(read[0], read[1], read[2], read[3]);
+      }
+      int[] writes = MacroBounds.written(command);
+      if (writes.length == 0) {
+        this.delegate.execute(command);
+        return;
+      }
+      try {
+        this.delegate.execute(command);
+      } catch (RuntimeException e) {
+        dirtyInside(writes[0], writes[1], writes[2], writes[3]);
+        written(writes[0], writes[1], writes[2], writes[3]);
+        throw e;
+      }
+      unregisterInside(writes[0], writes[1], writes[2], writes[3]);
+      written(writes[0], writes[1], writes[2], writes[3]);
+      return;
+    }
+    this.delegate.execute(sheet -> {
+      SpreadSheet outer = this.cells;
+      this.cells = sheet;
+      try {
+        command.execute(this);
+      } finally {
+        this.cells = outer;
+      }
+    });
+  }
+
+  /**
+   * Return the formula at a cell.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the formula, or null if the cell holds none
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  private Formula formulaAt(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if (this.formulas.size() == 0) {
+      return null;
+    }
+    return this.formulas.get(CellKey.pack(row, col));
+  }
+
+  /**
+   * Returns whether a new formula would read a cell, directly or through the formulas in its
+   * source range, leaving out a formula that it replaces.
+   *
+   * @param formula  the new formula
+   * @param row      the row of the cell
+   * @param col      the column of the cell
+   * @param replaced the formula that the new formula replaces, or null
+   * @return true if the formula would read the cell, false otherwise
+   */
+  private boolean dependsOn(Formula formula, int row, int col, Formula replaced) {
+    ArrayList<Formula> reached = new ArrayList<Formula>();
+    ArrayList<Formula> upstream = new ArrayList<Formula>();
+    reached.add(formula);
+    formula.visiting = true;
+    boolean found = false;
+    for (int i = 0; i < reached.size() && !found; i++) {
+      Formula current = reached.get(i);
+      if (current.reads(row, col)) {
+        found = true;
+      }
+      upstreamOf(current, upstream);
+      for (Formula read : upstream) {
+        if (!read.visiting && read != replaced) {
+          read.visiting = true;
+          reached.add(read);
+        }
+      }
+    }
+    for (Formula current : reached) {
+      current.visiting = false;
+    }
+    return found;
+  }
+
+  /**
+   * Mark the formulas reading a written range dirty.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void written(int fromRow, int fromCol, int toRow, int toCol) {
+    if (this.formulas.size() == 0) {
+      return;
+    }
+    this.sources.forEachIntersecting(fromRow, fromCol, toRow, toCol, this.pending::add);
+    for (Formula formula : this.pending) {
+      markDirty(formula);
+    }
+    this.pending.clear();
+  }
+
+  /**
+   * Mark a formula dirty, together with every formula that reads it, directly or through
+   * others. Formulas that are dirty already are not visited again, as the formulas reading
+   * them are dirty too.
+   *
+   * @param formula the formula whose value is out of date
+   */
+  private void markDirty(Formula formula) {
+    if (formula.dirty) {
+      return;
+    }
+    ArrayList<Formula> stack = new ArrayList<Formula>();
+    formula.dirty = true;
+    stack.add(formula);
+    while (!stack.isEmpty()) {
+      Formula current = stack.remove(stack.size() - 1);
+      this.dirty.add(current.row, current.col, current.row, current.col, current);
+      this.sources.forEachContaining(current.row, current.col, downstream -> {
+        if (!downstream.dirty) {
+          downstream.dirty = true;
+          stack.add(downstream);
+        }
+      });
+    }
+  }
+
+  /**
+   * Recalculate the dirty formulas inside a range that is about to be read.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void refresh(int fromRow, int fromCol, int toRow, int toCol) {
+    if (this.dirty.size() == 0) {
+      return;
+    }
+    ArrayList<Formula> inside = new ArrayList<Formula>();
+    this.dirty.forEachIntersecting(fromRow, fromCol, toRow, toCol, inside::add);
+    for (Formula formula : inside) {
+      evaluate(formula);
+    }
+  }
+
+  /**
+   * Recalculate a formula if it is dirty, after the dirty formulas in its source range. The
+   * formulas are visited depth first with an explicit stack, so long chains of formulas do not
+   * exhaust the call stack.
+   *
+   * @param formula the formula to recalculate
+   */
+  private void evaluate(Formula formula) {
+    if (!formula.dirty) {
+      return;
+    }
+    ArrayList<Formula> stack = new ArrayList<Formula>();
+    ArrayList<Formula> upstream = new ArrayList<Formula>();
+    stack.add(formula);
+    while (!stack.isEmpty()) {
+      Formula current = stack.get(stack.size() - 1);
+      if (!current.dirty) {
+        stack.remove(stack.size() - 1);
+      } else if (!current.visiting) {
+        current.visiting = true;
+        upstreamOf(current, upstream);
+        for (Formula read : upstream) {
+          if (read.dirty) {
+            stack.add(read);
+          }
+        }
+      } else {
+        this.cells.set(current.row, current.col, current.function.apply(this.cells,
+                current.fromRow, current.fromCol, current.toRow, current.toCol));
+        current.visiting = false;
+        markClean(current);
+        stack.remove(stack.size() - 1);
+      }
+    }
+  }
+
+  /**
+   * Collect the formulas located in the source range of a formula.
+   *
+   * @param formula the formula
+   * @param out     the list to receive the formulas it reads, emptied first
+   */
+  private void upstreamOf(Formula formula, ArrayList<Formula> out) {
+    out.clear();
+    this.locations.forEachIntersecting(formula.fromRow, formula.fromCol, formula.toRow,
+            formula.toCol, out::add);
+  }
+
+  /**
+   * Mark a dirty formula up to date.
+   *
+   * @param formula the formula whose value was recalculated or dropped
+   */
+  private void markClean(Formula formula) {
+    if (formula.dirty) {
+      formula.dirty = false;
+      this.dirty.remove(formula.row, formula.col, formula.row, formula.col, formula);
+    }
+  }
+
+  /**
+   * Mark every formula located inside a range dirty, so that a value left in its cell by a
+   * failed write is replaced by the formula again.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void dirtyInside(int fromRow, int fromCol, int toRow, int toCol) {
+    if (this.formulas.size() == 0) {
+      return;
+    }
+    this.locations.forEachIntersecting(fromRow, fromCol, toRow, toCol, this.pending::add);
+    for (Formula formula : this.pending) {
+      markDirty(formula);
+    }
+    this.pending.clear();
+  }
+
+  /**
+   * Remove every formula located inside a range.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void unregisterInside(int fromRow, int fromCol, int toRow, int toCol) {
+    if (this.formulas.size() == 0) {
+      return;
+    }
+    this.locations.forEachIntersecting(fromRow, fromCol, toRow, toCol, this.pending::add);
+    for (Formula formula : this.pending) {
+      unregister(formula);
+    }
+    this.pending.clear();
+  }
+
+  /**
+   * Remove a formula, leaving its cell with the last value stored there.
+   *
+   * @param formula the formula to remove
+   */
+  private void unregister(Formula formula) {
+    this.formulas.remove(CellKey.pack(formula.row, formula.col));
+    this.locations.remove(formula.row, formula.col, formula.row, formula.col, formula);
+    this.sources.remove(formula.fromRow, formula.fromCol, formula.toRow, formula.toCol,
+            formula);
+    markClean(formula);
+  }
+
+  /**
+   * A formula cell: the function it computes, its source range and its state.
+   */
+  private static final class Formula {
+    private final int row;
+    private final int col;
+    private final Aggregate function;
+    private final int fromRow;
+    private final int fromCol;
+    private final int toRow;
+    private final int toCol;
+    private boolean dirty;
+    private boolean visiting;
+
+    /**
+     * Create a formula.
+     *
+     * @param row      the row of the formula cell
+     * @param col      the column of the formula cell
+     * @param function the function to compute
+     * @param fromRow  the first row of the source range
+     * @param fromCol  the first column of the source range
+     * @param toRow    the last row of the source range
+     * @param toCol    the last column of the source range
+     */
+    Formula(int row, int col, Aggregate function, int fromRow, int fromCol, int toRow,
+            int toCol) {
+      this.row = row;
+      this.col = col;
+      this.function = function;
+      this.fromRow = fromRow;
+      this.fromCol = fromCol;
+      this.toRow = toRow;
+      this.toCol = toCol;
+    }
+
+    /**
+     * Returns whether the source range of this formula holds a cell.
+     *
+     * @param row the row of the cell
+     * @param col the column of the cell
+     * @return true if the formula reads the cell, false otherwise
+     */
+    boolean reads(int row, int col) {
+      return row >= this.fromRow && row <= this.toRow && col >= this.fromCol
+              && col <= this.toCol;
+    }
+  }
+}
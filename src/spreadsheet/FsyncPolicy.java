@@ -0,0 +1,32 @@
+package spreadsheet;
+
+/**
+ * When a {@link DurableSpreadSheet} forces its write-ahead log to the storage device. Every
+ * policy writes a change to the operating system before the call that made it returns; they
+ * differ in how much can be lost if the whole machine goes down.
+ */
+public enum FsyncPolicy {
+  /**
+   * Force the log before every write returns. Writes from several threads that wait at the
+   * same time share one force, so nothing acknowledged is ever lost.
+   */
+  ALWAYS,
+
+  /**
+   * Force the log at most once per {@link #PERIOD_MILLIS} milliseconds: when a write finds
+   * that the period has passed, and otherwise from a background thread once the period is
+   * over. The writes acknowledged in the last period can be lost.
+   */
+  PERIODIC,
+
+  /**
+   * Never force the log, leaving it to the operating system. Only a crash of the whole machine
+   * can lose acknowledged writes.
+   */
+  NEVER;
+
+  /**
+   * The longest time, in milliseconds, between two forces under the {@link #PERIODIC} policy.
+   */
+  public static final long PERIOD_MILLIS = 100;
+}
@@ -0,0 +1,229 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * The instructions understood by {@link NewSpreadSheetController} and {@link ScriptController},
+ * parsed in one place. Each instruction is read from a {@link Tokens} source and turned into a
+ * {@link MacroCommand}: the macros for bulk, range and aggregate instructions, an
+ * {@link AssignValue} for {@code assign-value}, and a {@link Step} supplied by the controller
+ * for the instructions that only produce output, which each controller writes in its own way.
+ */
+final class Instructions {
+
+  /**
+   * This class only offers static helpers.
+   */
+  private Instructions() {
+  }
+
+  /**
+   * Read the arguments of an instruction and turn it into a command.
+   *
+   * @param instruction the name of the instruction
+   * @param tokens      the source of its arguments
+   * @param steps       the controller supplying the steps that produce output
+   * @return the command to execute
+   * @throws IllegalArgumentException if an argument is invalid
+   * @throws IOException              if the arguments cannot be read
+   */
+  static MacroCommand parse(String instruction, Tokens tokens, Steps steps)
+          throws IllegalArgumentException, IOException {
+    int fromRow;
+    int fromCol;
+    int toRow;
+    int toCol;
+    int destRow;
+    int destCol;
+    switch (instruction) {
+      case "assign-value":
+        fromRow = tokens.nextRow();
+        fromCol = tokens.nextColumn();
+        return new AssignValue(fromRow, fromCol, tokens.nextDouble());
+      case "print-value":
+        fromRow = tokens.nextRow();
+        return steps.printValue(fromRow, tokens.nextColumn());
+      case "bulk-assign-value":
+        fromRow = tokens.nextRow();
+        fromCol = tokens.nextColumn();
+        toRow = tokens.nextRow();
+        toCol = tokens.nextColumn();
+        return new BulkMacroAssign(fromRow, fromCol, toRow, toCol, tokens.nextDouble());
+      case "average":
+        fromRow = tokens.nextRow();
+        fromCol = tokens.nextColumn();
+        toRow = tokens.nextRow();
+        toCol = tokens.nextColumn();
+        destRow = tokens.nextRow();
+        destCol = tokens.nextColumn();
+        return new MacroAverage(fromRow, fromCol, toRow, toCol, destRow, destCol);
+      case "sum":
+      case "min":
+      case "max":
+      case "count":
+      case "variance":
+      case "stddev":
+      case "statistics":
+        fromRow = tokens.nextRow();
+        fromCol = tokens.nextColumn();
+        toRow = tokens.nextRow();
+        toCol = tokens.nextColumn();
+        destRow = tokens.nextRow();
+        destCol = tokens.nextColumn();
+        return new MacroAggregate(fromRow, fromCol, toRow, toCol, destRow, destCol,
+                aggregatesOf(instruction));
+      case "range-assign":
+        fromRow = tokens.nextRow();
+        fromCol = tokens.nextColumn();
+        toRow = tokens.nextRow();
+        toCol = tokens.nextColumn();
+        double startValue = tokens.nextDouble();
+        double increment = tokens.nextDouble();
+        return new MacroRangeAssign(fromRow, fromCol, toRow, toCol, startValue, increment);
+      case "stats":
+        return steps.stats();
+      case "menu":
+        return steps.menu();
+      default:
+        return steps.undefined(instruction);
+    }
+  }
+
+  /**
+   * Return the aggregate functions computed by an aggregate instruction.
+   *
+   * @param instruction the name of the instruction, such as {@code sum} or
+   *                    {@code statistics}
+   * @return the functions to compute, in the order their results are stored
+   */
+  static Aggregate[] aggregatesOf(String instruction) {
+    if (instruction.equals("statistics")) {
+      return Aggregate.values();
+    }
+    return new Aggregate[]{Aggregate.valueOf(instruction.toUpperCase(Locale.ROOT))};
+  }
+
+  /**
+   * Return the output of the {@code stats} instruction for a sheet.
+   *
+   * @param sheet the sheet the instruction runs against
+   * @return the report of the sheet if it records statistics, or a message saying it does not
+   */
+  static String statistics(SpreadSheet sheet) {
+    return sheet instanceof InstrumentedSpreadSheet
+            ? ((InstrumentedSpreadSheet) sheet).report()
+            : "Statistics are not recorded for this spreadsheet" + System.lineSeparator();
+  }
+
+  /**
+   * The source of the arguments of an instruction.
+   */
+  interface Tokens {
+
+    /**
+     * Read a row given as letters.
+     *
+     * @return the row number, starting with 0
+     * @throws IllegalArgumentException if the row is invalid
+     * @throws IOException              if the input cannot be read
+     */
+    int nextRow() throws IllegalArgumentException, IOException;
+
+    /**
+     * Read a column given as a number starting with 1.
+     *
+     * @return the column number, starting with 0
+     * @throws IllegalArgumentException if the column is not a number
+     * @throws IOException              if the input cannot be read
+     */
+    int nextColumn() throws IllegalArgumentException, IOException;
+
+    /**
+     * Read a value.
+     *
+     * @return the value
+     * @throws IllegalArgumentException if the value is not a number
+     * @throws IOException              if the input cannot be read
+     */
+    double nextDouble() throws IllegalArgumentException, IOException;
+  }
+
+  /**
+   * Supplies the steps of the instructions that only produce output, which every controller
+   * writes in its own way.
+   */
+  interface Steps {
+
+    /**
+     * Return the step of {@code print-value}.
+     *
+     * @param row the row of the cell to print
+     * @param col the column of the cell to print
+     * @return the step printing the value of the cell
+     */
+    Step printValue(int row, int col);
+
+    /**
+     * Return the step of {@code stats}.
+     *
+     * @return the step printing the statistics of the sheet
+     */
+    Step stats();
+
+    /**
+     * Return the step of {@code menu}.
+     *
+     * @return the step printing the menu, if the controller has one
+     */
+    Step menu();
+
+    /**
+     * Return the step of an instruction that does not exist.
+     *
+     * @param instruction the name of the instruction
+     * @return the step reporting it
+     */
+    Step undefined(String instruction);
+  }
+
+  /**
+   * A command of a controller itself, such as writing output, as opposed to a macro.
+   */
+  interface Step extends MacroCommand {
+  }
+
+  /**
+   * Assigns a value to one cell, the command of the {@code assign-value} instruction. It is
+   * applied directly to the sheet rather than executed as a macro.
+   */
+  static final class AssignValue implements MacroCommand {
+    private final int row;
+    private final int col;
+    private final double value;
+
+    /**
+     * Create the command.
+     *
+     * @param row   the row of the cell
+     * @param col   the column of the cell
+     * @param value the value to assign
+     */
+    AssignValue(int row, int col, double value) {
+      this.row = row;
+      this.col = col;
+      this.value = value;
+    }
+
+    /**
+     * Assign the value to the cell.
+     *
+     * @param sheet the spreadsheet to write
+     * @throws IllegalArgumentException if the row or column is negative
+     */
+    @Override
+    public void execute(SpreadSheet sheet) throws IllegalArgumentException {
+      sheet.set(this.row, this.col, this.value);
+    }
+  }
+}
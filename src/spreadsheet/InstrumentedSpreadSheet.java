@@ -0,0 +1,591 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A spreadsheet that counts and times the operations on another spreadsheet. Every
+ * operation has a counter and a {@link LatencyHistogram}, and every class of macro executed
+ * has its own. Macros that take longer than a threshold are also reported to Java Flight
+ * Recorder as a {@link SlowMacroEvent}. All of it may be recorded by any number of threads
+ * at once without locks, so the decorator is exactly as thread-safe as the spreadsheet it
+ * wraps.
+ *
+ * <p>Single-cell reads and writes take tens of nanoseconds, about as long as reading the
+ * clock twice, so only one in {@value #SAMPLE_RATE} of them is timed. They are all counted,
+ * and the latencies of the sampled ones have the same distribution. Range operations and
+ * macros are always timed.
+ *
+ * <p>Every operation also adds up the cells it touched: one for single-cell operations, the
+ * whole range for range operations, the cells visited for {@link #forEachNonEmpty}, and the
+ * rectangle of a {@link PartitionedMacro}. Other macros do not declare the cells they work
+ * over and count none. Dividing the counts by the time since the spreadsheet was instrumented
+ * gives the throughput of each operation, in operations and cells per second.
+ *
+ * <p>Writes made by a macro go straight to the wrapped spreadsheet, so they are accounted to
+ * the macro rather than counted as writes of their own.
+ */
+public class InstrumentedSpreadSheet implements MacroSpreadSheet {
+  /**
+   * The latency above which a macro is reported as slow, unless another one is given.
+   */
+  public static final long DEFAULT_SLOW_MACRO_NANOS = 100_000_000L;
+  private static final int SAMPLE_RATE = 64;
+  private static final long NOT_TIMED = Long.MIN_VALUE;
+
+  private final SpreadSheet delegate;
+  private final long slowMacroNanos;
+  private final long started;
+  private final Operation get;
+  private final Operation set;
+  private final Operation isEmpty;
+  private final Operation getRange;
+  private final Operation fillRange;
+  private final Operation setRange;
+  private final Operation sumRange;
+  private final Operation forEachNonEmpty;
+  private final Operation batch;
+  private final ConcurrentHashMap<Class<?>, Operation> macros;
+
+  /**
+   * Instrument a spreadsheet, reporting macros slower than
+   * {@link #DEFAULT_SLOW_MACRO_NANOS}.
+   *
+   * @param delegate the spreadsheet to instrument
+   * @throws IllegalArgumentException if the spreadsheet is null
+   */
+  public InstrumentedSpreadSheet(SpreadSheet delegate) throws IllegalArgumentException {
+    this(delegate, DEFAULT_SLOW_MACRO_NANOS);
+  }
+
+  /**
+   * Instrument a spreadsheet. Macros of a spreadsheet that does not support them are run
+   * directly against it.
+   *
+   * @param delegate       the spreadsheet to instrument
+   * @param slowMacroNanos the latency in nanoseconds above which a macro is reported to Java
+   *                       Flight Recorder
+   * @throws IllegalArgumentException if the spreadsheet is null or the latency is negative
+   */
+  public InstrumentedSpreadSheet(SpreadSheet delegate, long slowMacroNanos)
+          throws IllegalArgumentException {
+    if (delegate == null) {
+      throw new IllegalArgumentException("Spreadsheet cannot be null");
+    }
+    if (slowMacroNanos < 0) {
+      throw new IllegalArgumentException("Latency cannot be negative");
+    }
+    this.delegate = delegate;
+    this.slowMacroNanos = slowMacroNanos;
+    this.started = System.nanoTime();
+    this.get = new Operation("get", true);
+    this.set = new Operation("set", true);
+    this.isEmpty = new Operation("isEmpty", true);
+    this.getRange = new Operation("getRange", false);
+    this.fillRange = new Operation("fillRange", false);
+    this.setRange = new Operation("setRange", false);
+    this.sumRange = new Operation("sumRange", false);
+    this.forEachNonEmpty = new Operation("forEachNonEmpty", false);
+    this.batch = new Operation("executeBatch", false);
+    this.macros = new ConcurrentHashMap<Class<?>, Operation>();
+  }
+
+  /**
+   * Return the statistics of every operation that has been performed at least once: the
+   * spreadsheet operations first, then the macros by name. Each entry is a copy taken now,
+   * which later operations do not change, and its throughput is measured over the time since
+   * this spreadsheet was instrumented.
+   *
+   * @return the statistics of the operations
+   */
+  public List<Stats> snapshot() {
+    long elapsed = Math.max(1, System.nanoTime() - this.started);
+    List<Stats> result = new ArrayList<Stats>();
+    for (Operation operation : new Operation[]{this.get, this.set, this.isEmpty, this.getRange,
+        this.fillRange, this.setRange, this.sumRange, this.forEachNonEmpty, this.batch}) {
+      operation.addTo(result, elapsed);
+    }
+    List<Stats> macroStats = new ArrayList<Stats>();
+    for (Operation operation : this.macros.values()) {
+      operation.addTo(macroStats, elapsed);
+    }
+    macroStats.sort(Comparator.comparing(Stats::getName));
+    result.addAll(macroStats);
+    return result;
+  }
+
+  /**
+   * Return a report of {@link #snapshot()}, one line per operation.
+   *
+   * @return the report
+   */
+  public String report() {
+    StringBuilder report = new StringBuilder();
+    for (Stats stats : snapshot()) {
+      report.append(stats).append(System.lineSeparator());
+    }
+    return report.toString();
+  }
+
+  /**
+   * Get the number at the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    long start = this.get.start();
+    try {
+      return this.delegate.get(row, col);
+    } finally {
+      this.get.end(start, 1);
+    }
+  }
+
+  /**
+   * Set the value of the specified cell to the specified value.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    long start = this.set.start();
+    try {
+      this.delegate.set(row, col, value);
+    } finally {
+      this.set.end(start, 1);
+    }
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    long start = this.isEmpty.start();
+    try {
+      return this.delegate.isEmpty(row, col);
+    } finally {
+      this.isEmpty.end(start, 1);
+    }
+  }
+
+  /**
+   * Return the width of this spreadsheet.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return this.delegate.getWidth();
+  }
+
+  /**
+   * Return the height of this spreadsheet.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return this.delegate.getHeight();
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    long start = this.getRange.start();
+    long cells = 0;
+    try {
+      this.delegate.getRange(fromRow, fromCol, toRow, toCol, dest);
+      cells = RangeChecks.area(fromRow, fromCol, toRow, toCol);
+    } finally {
+      this.getRange.end(start, cells);
+    }
+  }
+
+  /**
+   * Set every cell in the specified range to the same value.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    long start = this.fillRange.start();
+    long cells = 0;
+    try {
+      this.delegate.fillRange(fromRow, fromCol, toRow, toCol, value);
+      cells = RangeChecks.area(fromRow, fromCol, toRow, toCol);
+    } finally {
+      this.fillRange.end(start, cells);
+    }
+  }
+
+  /**
+   * Set the cells in the specified range to the values in an array, in row-major order.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    long start = this.setRange.start();
+    long cells = 0;
+    try {
+      this.delegate.setRange(fromRow, fromCol, toRow, toCol, values);
+      cells = RangeChecks.area(fromRow, fromCol, toRow, toCol);
+    } finally {
+      this.setRange.end(start, cells);
+    }
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    long start = this.sumRange.start();
+    long cells = 0;
+    try {
+      double sum = this.delegate.sumRange(fromRow, fromCol, toRow, toCol);
+      cells = RangeChecks.area(fromRow, fromCol, toRow, toCol);
+      return sum;
+    } finally {
+      this.sumRange.end(start, cells);
+    }
+  }
+
+  /**
+   * Call the visitor for every non-empty cell in the specified range. The time spent in the
+   * visitor is part of the latency recorded.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to call for each non-empty cell
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    long[] visited = {0};
+    CellVisitor counted = visitor == null ? null : (row, col, value) -> {
+      visited[0]++;
+      visitor.visit(row, col, value);
+    };
+    long start = this.forEachNonEmpty.start();
+    try {
+      this.delegate.forEachNonEmpty(fromRow, fromCol, toRow, toCol, counted);
+    } finally {
+      this.forEachNonEmpty.end(start, visited[0]);
+    }
+  }
+
+  /**
+   * Execute a macro, recording its latency under its class and reporting it to Java Flight
+   * Recorder if it is slow.
+   *
+   * @param command the macro to execute
+   */
+  @Override
+  public void execute(MacroCommand command) {
+    Operation operation = macroOperation(command.getClass());
+    long start = operation.start();
+    try {
+      if (this.delegate instanceof MacroSpreadSheet) {
+        ((MacroSpreadSheet) this.delegate).execute(command);
+      } else {
+        command.execute(this.delegate);
+      }
+    } finally {
+      long latency = operation.end(start, cellsOf(command));
+      if (latency >= this.slowMacroNanos) {
+        SlowMacroEvent event = new SlowMacroEvent();
+        if (event.isEnabled()) {
+          event.macro = operation.name;
+          event.latency = latency;
+          event.commit();
+        }
+      }
+    }
+  }
+
+  /**
+   * Execute a batch of macros as one operation.
+   *
+   * @param commands the macros to execute, in order
+   * @throws IllegalArgumentException if a macro fails, in which case none of them has any
+   *                                  effect
+   */
+  @Override
+  public void executeBatch(List<MacroCommand> commands) throws IllegalArgumentException {
+    long start = this.batch.start();
+    try {
+      if (this.delegate instanceof MacroSpreadSheet) {
+        ((MacroSpreadSheet) this.delegate).executeBatch(commands);
+      } else {
+        MacroSpreadSheet.super.executeBatch(commands);
+      }
+    } finally {
+      long cells = 0;
+      for (MacroCommand command : commands) {
+        cells += cellsOf(command);
+      }
+      this.batch.end(start, cells);
+    }
+  }
+
+  /**
+   * Return the number of cells a macro works over, as far as it declares them.
+   *
+   * @param command the macro
+   * @return the area of the rectangle of a {@link PartitionedMacro}, or 0 for other macros
+   */
+  private static long cellsOf(MacroCommand command) {
+    if (!(command instanceof PartitionedMacro)) {
+      return 0;
+    }
+    PartitionedMacro macro = (PartitionedMacro) command;
+    if (macro.getToRow() < macro.getFromRow() || macro.getToCol() < macro.getFromCol()) {
+      return 0;
+    }
+    return RangeChecks.area(macro.getFromRow(), macro.getFromCol(), macro.getToRow(),
+            macro.getToCol());
+  }
+
+  /**
+   * Return the operation that records the macros of a class, creating it on first use.
+   *
+   * @param type the class of the macro
+   * @return the operation for that class
+   */
+  private Operation macroOperation(Class<?> type) {
+    Operation operation = this.macros.get(type);
+    if (operation == null) {
+      String name = type.getSimpleName().isEmpty() ? type.getName() : type.getSimpleName();
+      operation = this.macros.computeIfAbsent(type, t -> new Operation("macro " + name, false));
+    }
+    return operation;
+  }
+
+  /**
+   * The counters and latency histogram of one kind of operation.
+   */
+  private static final class Operation {
+    private final String name;
+    private final boolean sampled;
+    private final LongAdder count;
+    private final LongAdder cells;
+    private final LatencyHistogram latency;
+
+    /**
+     * Create the records of an operation.
+     *
+     * @param name    the name of the operation
+     * @param sampled whether only some of the operations are timed
+     */
+    Operation(String name, boolean sampled) {
+      this.name = name;
+      this.sampled = sampled;
+      this.count = new LongAdder();
+      this.cells = new LongAdder();
+      this.latency = new LatencyHistogram();
+    }
+
+    /**
+     * Count one operation and decide whether to time it.
+     *
+     * @return the time the operation started, or {@link #NOT_TIMED}
+     */
+    long start() {
+      this.count.increment();
+      if (this.sampled && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) != 0) {
+        return NOT_TIMED;
+      }
+      return System.nanoTime();
+    }
+
+    /**
+     * Count the cells an operation touched, and record its latency if it was timed.
+     *
+     * @param start the value returned by {@link #start()}
+     * @param cells the number of cells the operation touched
+     * @return the latency in nanoseconds, or -1 if the operation was not timed
+     */
+    long end(long start, long cells) {
+      if (cells != 0) {
+        this.cells.add(cells);
+      }
+      if (start == NOT_TIMED) {
+        return -1;
+      }
+      long latency = System.nanoTime() - start;
+      this.latency.record(latency);
+      return latency;
+    }
+
+    /**
+     * Add the statistics of this operation to a list, if it has been performed.
+     *
+     * @param result  the list to add to
+     * @param elapsed the nanoseconds over which the operations were counted
+     */
+    void addTo(List<Stats> result, long elapsed) {
+      long total = this.count.sum();
+      if (total > 0) {
+        result.add(new Stats(this.name, total, this.cells.sum(), elapsed,
+                this.latency.copy()));
+      }
+    }
+  }
+
+  /**
+   * The statistics of one kind of operation at the time of a {@link #snapshot()}.
+   */
+  public static final class Stats {
+    private final String name;
+    private final long count;
+    private final long cells;
+    private final long elapsedNanos;
+    private final LatencyHistogram latency;
+
+    /**
+     * Create the statistics of an operation.
+     *
+     * @param name         the name of the operation
+     * @param count        the number of times it was performed
+     * @param cells        the number of cells those operations touched
+     * @param elapsedNanos the nanoseconds over which the operations were counted
+     * @param latency      the latencies of the timed ones
+     */
+    Stats(String name, long count, long cells, long elapsedNanos, LatencyHistogram latency) {
+      this.name = name;
+      this.count = count;
+      this.cells = cells;
+      this.elapsedNanos = elapsedNanos;
+      this.latency = latency;
+    }
+
+    /**
+     * Return the name of the operation, such as {@code get} or {@code macro MacroAverage}.
+     *
+     * @return the name of the operation
+     */
+    public String getName() {
+      return this.name;
+    }
+
+    /**
+     * Return the number of times the operation was performed.
+     *
+     * @return the number of operations
+     */
+    public long getCount() {
+      return this.count;
+    }
+
+    /**
+     * Return the number of cells the operations touched. Macros other than
+     * {@link PartitionedMacro}s touch no cells as far as this count goes.
+     *
+     * @return the number of cells
+     */
+    public long getCells() {
+      return this.cells;
+    }
+
+    /**
+     * Return the time over which the operations were counted, from when the spreadsheet was
+     * instrumented to when these statistics were taken.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    public long getElapsedNanos() {
+      return this.elapsedNanos;
+    }
+
+    /**
+     * Return the number of operations per second over the elapsed time.
+     *
+     * @return the operations per second
+     */
+    public double getOpsPerSecond() {
+      return this.count * 1e9 / this.elapsedNanos;
+    }
+
+    /**
+     * Return the number of cells touched per second over the elapsed time.
+     *
+     * @return the cells per second
+     */
+    public double getCellsPerSecond() {
+      return this.cells * 1e9 / this.elapsedNanos;
+    }
+
+    /**
+     * Return the latencies of the operations that were timed. For single-cell operations
+     * only a sample of them is timed.
+     *
+     * @return the histogram of latencies, which is not updated any more
+     */
+    public LatencyHistogram getLatency() {
+      return this.latency;
+    }
+
+    /**
+     * Return the statistics on one line.
+     *
+     * @return the name, the count, a summary of the latencies, the cells and the throughput
+     */
+    @Override
+    public String toString() {
+      return this.name + ": ops=" + this.count + " timed " + this.latency
+              + String.format(" cells=%d ops/s=%.1f cells/s=%.1f", this.cells,
+              getOpsPerSecond(), getCellsPerSecond());
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package spreadsheet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds that any number of threads may record into without
+ * locks. As in HdrHistogram, values below 64 have a bucket each and larger values fall into
+ * buckets of 32 per power of two, so every recorded value is known to within about 3% while
+ * the whole range of a long fits into fewer than 2,000 counters. Recording a value is one
+ * atomic increment of its bucket, plus updates of the total and the maximum.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int LINEAR_LIMIT = 64;
+  private static final int LINEAR_BITS = 6;
+  private static final int BUCKETS = LINEAR_LIMIT + (Long.SIZE - 1 - LINEAR_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts;
+  private final LongAdder total;
+  private final AtomicLong max;
+
+  /**
+   * Create an empty histogram.
+   */
+  public LatencyHistogram() {
+    this.counts = new AtomicLongArray(BUCKETS);
+    this.total = new LongAdder();
+    this.max = new AtomicLong();
+  }
+
+  /**
+   * Record one latency. Negative values, which a clock going backwards can produce, are
+   * recorded as 0.
+   *
+   * @param nanos the latency in nanoseconds
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    this.counts.incrementAndGet(bucketOf(value));
+    this.total.add(value);
+    long current = this.max.get();
+    while (value > current && !this.max.compareAndSet(current, value)) {
+      current = this.max.get();
+    }
+  }
+
+  /**
+   * Return the number of recorded latencies.
+   *
+   * @return the number of recorded latencies
+   */
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      count += this.counts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Return the mean of the recorded latencies.
+   *
+   * @return the mean in nanoseconds, or 0 if nothing was recorded
+   */
+  public double getMean() {
+    long count = getCount();
+    return count == 0 ? 0.0 : (double) this.total.sum() / count;
+  }
+
+  /**
+   * Return the largest recorded latency.
+   *
+   * @return the largest latency in nanoseconds, or 0 if nothing was recorded
+   */
+  public long getMax() {
+    return this.max.get();
+  }
+
+  /**
+   * Return the latency below which the given percentage of the recorded latencies lie. The
+   * result is the upper end of the bucket holding that latency, and never more than the
+   * largest recorded latency.
+   *
+   * @param percentile the percentage, between 0 and 100
+   * @return the latency in nanoseconds, or 0 if nothing was recorded
+   * @throws IllegalArgumentException if the percentage is out of range
+   */
+  public long getValueAtPercentile(double percentile) throws IllegalArgumentException {
+    if (!(percentile >= 0 && percentile <= 100)) {
+      throw new IllegalArgumentException("Percentile must be between 0 and 100");
+    }
+    long count = getCount();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += this.counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), getMax());
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * Return a copy of this histogram as it is now. Values recorded concurrently may or may not
+   * be part of the copy.
+   *
+   * @return a new histogram with the same counts
+   */
+  public LatencyHistogram copy() {
+    LatencyHistogram copy = new LatencyHistogram();
+    for (int i = 0; i < BUCKETS; i++) {
+      copy.counts.set(i, this.counts.get(i));
+    }
+    copy.total.add(this.total.sum());
+    copy.max.set(this.max.get());
+    return copy;
+  }
+
+  /**
+   * Return a one-line summary of this histogram, with latencies in microseconds.
+   *
+   * @return the summary
+   */
+  @Override
+  public String toString() {
+    return String.format("count=%d mean=%.2fus p50=%.2fus p99=%.2fus p99.9=%.2fus max=%.2fus",
+            getCount(), getMean() / 1e3, getValueAtPercentile(50) / 1e3,
+            getValueAtPercentile(99) / 1e3, getValueAtPercentile(99.9) / 1e3,
+            getMax() / 1e3);
+  }
+
+  /**
+   * Return the bucket of a value.
+   *
+   * @param value the value, not negative
+   * @return the index of its bucket
+   */
+  private static int bucketOf(long value) {
+    if (value < LINEAR_LIMIT) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_LIMIT + (exponent - LINEAR_BITS) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * Return the largest value that falls into a bucket.
+   *
+   * @param bucket the index of the bucket
+   * @return the largest value of the bucket
+   */
+  private static long highestValueOf(int bucket) {
+    if (bucket < LINEAR_LIMIT) {
+      return bucket;
+    }
+    int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + LINEAR_BITS;
+    long subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (1L << exponent) + (subBucket + 1) * width - 1;
+  }
+}
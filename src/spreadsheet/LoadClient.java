@@ -0,0 +1,202 @@
+package spreadsheet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load generator for {@link SpreadSheetServer}. It opens a number of sessions at once, and
+ * each session sends requests one after the other, waiting for the answer of each before
+ * sending the next. A request writes a cell of a column owned by the session and prints it
+ * back; every tenth request also averages the column. The round trip of every request is
+ * recorded, and the printed values are checked, so the report gives the throughput, the
+ * latency distribution and whether any answer was wrong.
+ */
+public class LoadClient {
+  private final int port;
+  private final int sessions;
+  private final int requests;
+  private final LatencyHistogram latency;
+  private final AtomicLong failures;
+  private long elapsedNanos;
+
+  /**
+   * Prepare a load of the given number of sessions, each sending the given number of
+   * requests, against a server on the given port of the loopback interface.
+   *
+   * @param port     the port of the server
+   * @param sessions the number of sessions to open at once
+   * @param requests the number of requests per session
+   * @throws IllegalArgumentException if the number of sessions or requests is not positive
+   */
+  public LoadClient(int port, int sessions, int requests) throws IllegalArgumentException {
+    if (sessions <= 0 || requests <= 0) {
+      throw new IllegalArgumentException("Sessions and requests must be positive");
+    }
+    this.port = port;
+    this.sessions = sessions;
+    this.requests = requests;
+    this.latency = new LatencyHistogram();
+    this.failures = new AtomicLong();
+  }
+
+  /**
+   * Run the load: open every session, send every request and wait for every answer.
+   *
+   * @return the round-trip latencies of the requests
+   * @throws IllegalStateException if a session cannot connect or is cut off
+   */
+  public LatencyHistogram run() throws IllegalStateException {
+    List<Thread> threads = new ArrayList<Thread>();
+    List<RuntimeException> errors = new ArrayList<RuntimeException>();
+    long start = System.nanoTime();
+    for (int i = 0; i < this.sessions; i++) {
+      int session = i;
+      Thread thread = new Thread(() -> {
+        try {
+          runSession(session);
+        } catch (RuntimeException e) {
+          synchronized (errors) {
+            errors.add(e);
+          }
+        }
+      }, "load-session-" + i);
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the sessions");
+      }
+    }
+    this.elapsedNanos = System.nanoTime() - start;
+    if (!errors.isEmpty()) {
+      throw errors.get(0);
+    }
+    return this.latency;
+  }
+
+  /**
+   * Return the number of answers that were not what the request should have produced.
+   *
+   * @return the number of wrong answers
+   */
+  public long getFailures() {
+    return this.failures.get();
+  }
+
+  /**
+   * Return the number of requests answered per second during the last run.
+   *
+   * @return the throughput in requests per second
+   */
+  public double getThroughput() {
+    return this.elapsedNanos == 0 ? 0.0
+            : this.latency.getCount() * 1e9 / this.elapsedNanos;
+  }
+
+  /**
+   * Return a report of the last run.
+   *
+   * @return the number of sessions and requests, the throughput, the latencies and the number
+   *         of wrong answers
+   */
+  public String report() {
+    return String.format("sessions=%d requests=%d throughput=%.0f/s failures=%d%n%s%n",
+            this.sessions, this.latency.getCount(), getThroughput(), getFailures(),
+            this.latency);
+  }
+
+  /**
+   * Run one session. It owns the column with its number, so the values it prints back must
+   * be the values it wrote.
+   *
+   * @param session the number of the session
+   * @throws IllegalStateException if the session cannot connect or is cut off
+   */
+  private void runSession(int session) throws IllegalStateException {
+    int col = session + 1;
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.port)) {
+      socket.setTcpNoDelay(true);
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+              StandardCharsets.UTF_8));
+      Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+      StringBuilder request = new StringBuilder();
+      for (int i = 0; i < this.requests; i++) {
+        String row = rowName(i % 1000);
+        request.setLength(0);
+        request.append("assign-value ").append(row).append(' ').append(col).append(' ')
+                .append(i).append('\n');
+        request.append("print-value ").append(row).append(' ').append(col).append('\n');
+        boolean average = i % 10 == 9;
+        if (average) {
+          request.append("average A ").append(col).append(' ').append(row).append(' ')
+                  .append(col).append(" A ").append(col).append('\n');
+        }
+        long start = System.nanoTime();
+        out.append(request);
+        out.flush();
+        String answer = in.readLine();
+        this.latency.record(System.nanoTime() - start);
+        if (answer == null) {
+          throw new IllegalStateException("Session " + session + " was closed");
+        }
+        if (!answer.equals("Value: " + (double) i)) {
+          this.failures.incrementAndGet();
+        }
+      }
+      out.append("quit\n");
+      out.flush();
+    } catch (IOException e) {
+      throw new IllegalStateException("Session " + session + " failed: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Return the letters naming a row, as the instructions expect them.
+   *
+   * @param row the row number, starting with 0
+   * @return the letters of the row, starting with A
+   */
+  static String rowName(int row) {
+    StringBuilder letters = new StringBuilder();
+    int n = row + 1;
+    while (n > 0) {
+      n--;
+      letters.append((char) ('A' + n % 26));
+      n /= 26;
+    }
+    return letters.reverse().toString();
+  }
+
+  /**
+   * Run a load against a server and print the report. The arguments are the port, the number
+   * of sessions and the number of requests per session; the last two default to 100 and
+   * 1,000.
+   *
+   * @param args the command line arguments
+   */
+  public static void main(String[] args) {
+    if (args.length < 1) {
+      System.err.println("Usage: LoadClient port [sessions [requests]]");
+      return;
+    }
+    int port = Integer.parseInt(args[0]);
+    int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    int requests = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+    LoadClient client = new LoadClient(port, sessions, requests);
+    client.run();
+    System.out.print(client.report());
+  }
+}
@@ -0,0 +1,218 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash table that maps primitive long keys to primitive double values.
+ * Keys and values live in two parallel arrays and collisions are resolved by linear probing,
+ * so lookups and updates of existing keys never allocate. Negative keys are reserved (one of
+ * them marks a free slot), which suits the keys produced by {@link CellKey}.
+ */
+final class LongDoubleHashMap {
+  private static final long FREE = -1L;
+  private static final int MIN_CAPACITY = 16;
+  private static final int MAX_CAPACITY = 1 << 30;
+
+  private long[] keys;
+  private double[] values;
+  private int size;
+  private int shift;
+  private int resizeAt;
+
+  /**
+   * Create an empty map.
+   */
+  LongDoubleHashMap() {
+    allocate(MIN_CAPACITY);
+  }
+
+  /**
+   * Return the value mapped to the given key.
+   *
+   * @param key          the key to look up
+   * @param defaultValue the value to return if the key is absent
+   * @return the mapped value, or the default value if the key is absent
+   */
+  double get(long key, double defaultValue) {
+    int slot = indexOf(key);
+    return slot < 0 ? defaultValue : values[slot];
+  }
+
+  /**
+   * Returns whether the given key is present in this map.
+   *
+   * @param key the key to look up
+   * @return true if the key is present, false otherwise
+   */
+  boolean containsKey(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  /**
+   * Map the given key to the given value, replacing any previous value.
+   *
+   * @param key   the key, which must not be negative
+   * @param value the value to associate with the key
+   * @return true if the key was not present before, false if its value was replaced
+   * @throws IllegalArgumentException if the key is negative
+   */
+  boolean put(long key, double value) throws IllegalArgumentException {
+    if (key < 0) {
+      throw new IllegalArgumentException("Key cannot be negative");
+    }
+    int mask = keys.length - 1;
+    int slot = slotOf(key);
+    while (keys[slot] != FREE) {
+      if (keys[slot] == key) {
+        values[slot] = value;
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size >= resizeAt) {
+      rehash(keys.length << 1);
+    }
+    return true;
+  }
+
+  /**
+   * Remove the given key from this map. The entries that follow it in its probe sequence are
+   * shifted back, so no tombstones are left behind and lookups stay short.
+   *
+   * @param key the key to remove
+   * @return true if the key was present, false otherwise
+   */
+  boolean remove(long key) {
+    int hole = indexOf(key);
+    if (hole < 0) {
+      return false;
+    }
+    int mask = keys.length - 1;
+    int next = (hole + 1) & mask;
+    long current;
+    while ((current = keys[next]) != FREE) {
+      if (((next - slotOf(current)) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = current;
+        values[hole] = values[next];
+        hole = next;
+      }
+      next = (next + 1) & mask;
+    }
+    keys[hole] = FREE;
+    values[hole] = 0.0;
+    size--;
+    return true;
+  }
+
+  /**
+   * Pass every entry of this map to the given visitor, in no particular order. The map must
+   * not be modified while it is being visited.
+   *
+   * @param visitor the visitor to receive the entries
+   */
+  void forEach(EntryVisitor visitor) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != FREE) {
+        visitor.visit(keys[i], values[i]);
+      }
+    }
+  }
+
+  /**
+   * Return the number of keys in this map.
+   *
+   * @return the number of keys in this map
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Find the slot holding the given key.
+   *
+   * @param key the key to look up
+   * @return the slot index, or -1 if the key is absent
+   */
+  private int indexOf(long key) {
+    if (key < 0) {
+      return -1;
+    }
+    int mask = keys.length - 1;
+    int slot = slotOf(key);
+    long current;
+    while ((current = keys[slot]) != FREE) {
+      if (current == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Compute the home slot of a key using Fibonacci hashing, which spreads the row and column
+   * halves of a packed cell key over the whole table.
+   *
+   * @param key the key to hash
+   * @return the home slot of the key
+   */
+  private int slotOf(long key) {
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+  }
+
+  /**
+   * Allocate empty tables of the given capacity.
+   *
+   * @param capacity the new capacity, a power of two
+   */
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    Arrays.fill(keys, FREE);
+    values = new double[capacity];
+    shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    resizeAt = capacity == MAX_CAPACITY ? MAX_CAPACITY - 1 : capacity >> 1;
+  }
+
+  /**
+   * Move every entry into tables of the given capacity.
+   *
+   * @param capacity the new capacity, a power of two
+   * @throws IllegalStateException if the map cannot grow any further
+   */
+  private void rehash(int capacity) throws IllegalStateException {
+    if (capacity <= 0 || keys.length == MAX_CAPACITY) {
+      throw new IllegalStateException("Map cannot hold more entries");
+    }
+    long[] oldKeys = keys;
+    double[] oldValues = values;
+    allocate(capacity);
+    int mask = capacity - 1;
+    for (int i = 0; i < oldKeys.length; i++) {
+      long key = oldKeys[i];
+      if (key != FREE) {
+        int slot = slotOf(key);
+        while (keys[slot] != FREE) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  /**
+   * Receives the entries of a map one at a time.
+   */
+  interface EntryVisitor {
+
+    /**
+     * Visit one entry of the map.
+     *
+     * @param key   the key of the entry
+     * @param value the value of the entry
+     */
+    void visit(long key, double value);
+  }
+}
@@ -0,0 +1,197 @@
+package spreadsheet;
+
+/**
+ * A macro command for computing one or more aggregate functions of the values within a
+ * specified range in a spreadsheet, and setting the results in consecutive cells of a row,
+ * starting at a designated cell. All the functions that need more than the sum of the range
+ * are computed together, in a single pass over the range.
+ */
+public class MacroAggregate implements MacroCommand {
+  private final int fromRow;
+  private final int fromCol;
+  private final int toRow;
+  private final int toCol;
+  private final int destRow;
+  private final int destCol;
+  private final Aggregate[] functions;
+
+  /**
+   * Constructs a macro for computing aggregate functions of a cell range and placing the
+   * results in the specified cell and the cells to its right.
+   *
+   * @param fromRow   The start row index for the range.
+   * @param fromCol   The start column index for the range.
+   * @param toRow     The end row index for the range.
+   * @param toCol     The end column index for the range.
+   * @param destRow   The row index of the cells to receive the results.
+   * @param destCol   The column index of the cell to receive the first result.
+   * @param functions The functions to compute, in the order their results are stored.
+   * @throws IllegalArgumentException if any parameter is negative, or no function is given.
+   */
+  public MacroAggregate(int fromRow, int fromCol, int toRow, int toCol, int destRow,
+                        int destCol, Aggregate... functions) throws IllegalArgumentException {
+    if (fromRow < 0 || fromCol < 0 || toRow < 0 || toCol < 0 || destRow < 0 || destCol < 0) {
+      throw new IllegalArgumentException("Invalid input!");
+    }
+    if (functions == null || functions.length == 0) {
+      throw new IllegalArgumentException("No aggregate function given");
+    }
+    if ((long) destCol + functions.length - 1 > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Invalid input!");
+    }
+    for (Aggregate function : functions) {
+      if (function == null) {
+        throw new IllegalArgumentException("No aggregate function given");
+      }
+    }
+    this.fromRow = fromRow;
+    this.fromCol = fromCol;
+    this.toRow = toRow;
+    this.toCol = toCol;
+    this.destRow = destRow;
+    this.destCol = destCol;
+    this.functions = functions.clone();
+  }
+
+  /**
+   * Executes this macro command on the given spreadsheet. An empty range gives 0 for every
+   * function, as it does for {@link MacroAverage}.
+   *
+   * @param spreadSheet the spreadsheet on which to execute the macro
+   */
+  @Override
+  public void execute(SpreadSheet spreadSheet) {
+    double[] results = new double[this.functions.length];
+    if (toRow >= fromRow && toCol >= fromCol) {
+      RangeStatistics statistics = null;
+      double sum = 0;
+      if (uses(Aggregate.MIN, Aggregate.MAX, Aggregate.VARIANCE, Aggregate.STDDEV)) {
+        statistics = RangeStatistics.of(spreadSheet, fromRow, fromCol, toRow, toCol);
+        sum = statistics.getSum();
+      } else if (uses(Aggregate.SUM, Aggregate.AVERAGE)) {
+        sum = spreadSheet.sumRange(fromRow, fromCol, toRow, toCol);
+      }
+      for (int i = 0; i < results.length; i++) {
+        results[i] = valueOf(this.functions[i], spreadSheet, statistics, sum);
+      }
+    }
+    for (int i = 0; i < results.length; i++) {
+      spreadSheet.set(destRow, destCol + i, results[i]);
+    }
+  }
+
+  /**
+   * Return the first row of the range.
+   *
+   * @return the first row of the range
+   */
+  int getFromRow() {
+    return fromRow;
+  }
+
+  /**
+   * Return the first column of the range.
+   *
+   * @return the first column of the range
+   */
+  int getFromCol() {
+    return fromCol;
+  }
+
+  /**
+   * Return the last row of the range.
+   *
+   * @return the last row of the range
+   */
+  int getToRow() {
+    return toRow;
+  }
+
+  /**
+   * Return the last column of the range.
+   *
+   * @return the last column of the range
+   */
+  int getToCol() {
+    return toCol;
+  }
+
+  /**
+   * Return the row of the cells that receive the results.
+   *
+   * @return the row of the cells that receive the results
+   */
+  int getDestRow() {
+    return destRow;
+  }
+
+  /**
+   * Return the column of the cell that receives the first result.
+   *
+   * @return the column of the cell that receives the first result
+   */
+  int getDestCol() {
+    return destCol;
+  }
+
+  /**
+   * Return the number of functions computed, which is the number of cells written.
+   *
+   * @return the number of functions
+   */
+  int getFunctionCount() {
+    return functions.length;
+  }
+
+  /**
+   * Returns whether this macro computes any of the given functions.
+   *
+   * @param candidates the functions to look for
+   * @return true if at least one of them is computed
+   */
+  private boolean uses(Aggregate... candidates) {
+    for (Aggregate function : this.functions) {
+      for (Aggregate candidate : candidates) {
+        if (function == candidate) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Return the value of one function over the range.
+   *
+   * @param function    the function
+   * @param spreadSheet the spreadsheet on which the macro is executed
+   * @param statistics  the statistics of the range, or null if none of the functions of this
+   *                    macro needs them
+   * @param sum         the sum of the range
+   * @return the value of the function
+   */
+  private double valueOf(Aggregate function, SpreadSheet spreadSheet,
+                         RangeStatistics statistics, double sum) {
+    switch (function) {
+      case SUM:
+        return sum;
+      case AVERAGE:
+        return sum / RangeChecks.area(fromRow, fromCol, toRow, toCol);
+      case MIN:
+        return statistics.getMin();
+      case MAX:
+        return statistics.getMax();
+      case VARIANCE:
+        return statistics.getVariance();
+      case STDDEV:
+        return statistics.getStandardDeviation();
+      case COUNT:
+        if (statistics != null) {
+          return statistics.getNonEmpty();
+        }
+        return function.apply(spreadSheet, fromRow, fromCol, toRow, toCol);
+      default:
+        return function.apply(spreadSheet, fromRow, fromCol, toRow, toCol);
+    }
+  }
+}
@@ -4,7 +4,7 @@ package spreadsheet;
  * A macro command for computing the average of values within a specified range in a spreadsheet
  * and setting the result in a designated cell.
  */
-public class MacroAverage implements MacroCommand {
+public class MacroAverage implements PartitionedMacro {
   private final int fromRow;
   private final int fromCol;
   private final int toRow;
@@ -45,14 +45,96 @@ public class MacroAverage implements MacroCommand {
   @Override
   public void execute(SpreadSheet spreadSheet) {
     double sum = 0;
-    int count = 0;
-    for (int i = fromRow; i <= toRow; i++) {
-      for (int j = fromCol; j <= toCol; j++) {
-        sum += spreadSheet.get(i, j);
-        count++;
-      }
+    if (toRow >= fromRow && toCol >= fromCol) {
+      sum = executeRows(spreadSheet, fromRow, toRow);
+    }
+    complete(spreadSheet, sum);
+  }
+
+  /**
+   * Sums the cells of the given rows of the range.
+   *
+   * @param spreadSheet the spreadsheet on which to execute the macro
+   * @param fromRow     the first row of the stripe
+   * @param toRow       the last row of the stripe, inclusive
+   * @return the sum of the cells in the stripe
+   */
+  @Override
+  public double executeRows(SpreadSheet spreadSheet, int fromRow, int toRow) {
+    return spreadSheet.sumRange(fromRow, this.fromCol, toRow, this.toCol);
+  }
+
+  /**
+   * Divides the sum of the whole range by its number of cells, empty ones included, and
+   * stores the average in the destination cell.
+   *
+   * @param spreadSheet the spreadsheet on which the macro was executed
+   * @param total       the sum of the cells in the range
+   */
+  @Override
+  public void complete(SpreadSheet spreadSheet, double total) {
+    double average = 0;
+    if (toRow >= fromRow && toCol >= fromCol) {
+      average = total / RangeChecks.area(fromRow, fromCol, toRow, toCol);
     }
-    double average = count > 0 ? sum / count : 0;
     spreadSheet.set(destRow, destCol, average);
   }
+
+  /**
+   * Returns the start row index for the averaging range.
+   *
+   * @return The start row index for the averaging range.
+   */
+  @Override
+  public int getFromRow() {
+    return fromRow;
+  }
+
+  /**
+   * Returns the start column index for the averaging range.
+   *
+   * @return The start column index for the averaging range.
+   */
+  @Override
+  public int getFromCol() {
+    return fromCol;
+  }
+
+  /**
+   * Returns the end row index for the averaging range.
+   *
+   * @return The end row index for the averaging range.
+   */
+  @Override
+  public int getToRow() {
+    return toRow;
+  }
+
+  /**
+   * Returns the end column index for the averaging range.
+   *
+   * @return The end column index for the averaging range.
+   */
+  @Override
+  public int getToCol() {
+    return toCol;
+  }
+
+  /**
+   * Return the row of the cell that receives the average.
+   *
+   * @return the destination row
+   */
+  int getDestRow() {
+    return destRow;
+  }
+
+  /**
+   * Return the column of the cell that receives the average.
+   *
+   * @return the destination column
+   */
+  int getDestCol() {
+    return destCol;
+  }
 }
@@ -0,0 +1,37 @@
+package spreadsheet;
+
+import java.util.List;
+
+/**
+ * The part of batch execution shared by every {@link MacroSpreadSheet}: running the commands
+ * of a batch against a write buffer so that nothing reaches the spreadsheet before all of
+ * them have succeeded.
+ */
+final class MacroBatches {
+
+  /**
+   * This class only offers static helpers.
+   */
+  private MacroBatches() {
+  }
+
+  /**
+   * Run a batch of commands against a new buffer over the given spreadsheet.
+   *
+   * @param sheet    the spreadsheet the batch is meant for
+   * @param commands the macro commands to execute, in order
+   * @return the buffer holding every write of the batch, ready to be applied
+   * @throws IllegalArgumentException if the list or one of its commands is null
+   */
+  static WriteBuffer run(SpreadSheet sheet, List<MacroCommand> commands)
+          throws IllegalArgumentException {
+    if (commands == null || commands.contains(null)) {
+      throw new IllegalArgumentException("Commands cannot be null");
+    }
+    WriteBuffer buffer = new WriteBuffer(sheet);
+    for (MacroCommand command : commands) {
+      command.execute(buffer);
+    }
+    return buffer;
+  }
+}
@@ -0,0 +1,86 @@
+package spreadsheet;
+
+/**
+ * The rectangles of cells that the built-in macros read and write. A spreadsheet that
+ * decorates another one uses them to hand a built-in macro to the decorated spreadsheet as it
+ * is, so that the macro keeps its type for journaling, logging and parallel execution, and
+ * still brings its own state up to date around it. Subclasses of the built-in macros may read
+ * and write other cells, so only the built-in classes themselves are known.
+ *
+ * <p>A rectangle is returned as an array of its first row, first column, last row and last
+ * column. A macro that reads or writes no cell at all has an empty array, and a macro that is
+ * not known has none.
+ */
+final class MacroBounds {
+  private static final int[] NONE = new int[0];
+
+  /**
+   * This class only offers static helpers.
+   */
+  private MacroBounds() {
+  }
+
+  /**
+   * Return the rectangle of cells a macro may read.
+   *
+   * @param command the macro
+   * @return the rectangle, an empty array if the macro reads no cell, or null if the macro is
+   *         not known
+   */
+  static int[] read(MacroCommand command) {
+    Class<?> type = command.getClass();
+    if (type == BulkMacroAssign.class || type == MacroRangeAssign.class) {
+      return NONE;
+    } else if (type == MacroAverage.class) {
+      MacroAverage average = (MacroAverage) command;
+      return rectangle(average.getFromRow(), average.getFromCol(), average.getToRow(),
+              average.getToCol());
+    } else if (type == MacroAggregate.class) {
+      MacroAggregate aggregate = (MacroAggregate) command;
+      return rectangle(aggregate.getFromRow(), aggregate.getFromCol(), aggregate.getToRow(),
+              aggregate.getToCol());
+    }
+    return null;
+  }
+
+  /**
+   * Return the rectangle of cells a macro may write.
+   *
+   * @param command the macro
+   * @return the rectangle, an empty array if the macro writes no cell, or null if the macro
+   *         is not known
+   */
+  static int[] written(MacroCommand command) {
+    Class<?> type = command.getClass();
+    if (type == BulkMacroAssign.class || type == MacroRangeAssign.class) {
+      PartitionedMacro assign = (PartitionedMacro) command;
+      return rectangle(assign.getFromRow(), assign.getFromCol(), assign.getToRow(),
+              assign.getToCol());
+    } else if (type == MacroAverage.class) {
+      MacroAverage average = (MacroAverage) command;
+      return rectangle(average.getDestRow(), average.getDestCol(), average.getDestRow(),
+              average.getDestCol());
+    } else if (type == MacroAggregate.class) {
+      MacroAggregate aggregate = (MacroAggregate) command;
+      return rectangle(aggregate.getDestRow(), aggregate.getDestCol(), aggregate.getDestRow(),
+              aggregate.getDestCol() + aggregate.getFunctionCount() - 1);
+    }
+    return null;
+  }
+
+  /**
+   * Return a rectangle, or an empty array if it holds no cell.
+   *
+   * @param fromRow the first row of the rectangle
+   * @param fromCol the first column of the rectangle
+   * @param toRow   the last row of the rectangle
+   * @param toCol   the last column of the rectangle
+   * @return the rectangle
+   */
+  private static int[] rectangle(int fromRow, int fromCol, int toRow, int toCol) {
+    if (toRow < fromRow || toCol < fromCol) {
+      return NONE;
+    }
+    return new int[]{fromRow, fromCol, toRow, toCol};
+  }
+}
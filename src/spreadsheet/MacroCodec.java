@@ -0,0 +1,101 @@
+package spreadsheet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the built-in macros into a few bytes and decodes them again, so that a macro can be
+ * logged by what it is rather than by the cells it writes. A bulk assign over a million cells
+ * is encoded in 25 bytes. Macros of other classes cannot be encoded.
+ */
+final class MacroCodec {
+  private static final byte BULK_ASSIGN = 1;
+  private static final byte RANGE_ASSIGN = 2;
+  private static final byte AVERAGE = 3;
+
+  /**
+   * This class only offers static helpers.
+   */
+  private MacroCodec() {
+  }
+
+  /**
+   * Return the number of bytes needed to encode the given macro.
+   *
+   * @param command the macro to encode
+   * @return the size of its encoding, or -1 if the macro cannot be encoded
+   */
+  static int sizeOf(MacroCommand command) {
+    if (command == null) {
+      return -1;
+    }
+    Class<?> type = command.getClass();
+    if (type == BulkMacroAssign.class) {
+      return 1 + 4 * Integer.BYTES + Double.BYTES;
+    } else if (type == MacroRangeAssign.class) {
+      return 1 + 4 * Integer.BYTES + 2 * Double.BYTES;
+    } else if (type == MacroAverage.class) {
+      return 1 + 6 * Integer.BYTES;
+    }
+    return -1;
+  }
+
+  /**
+   * Write the encoding of a macro into a buffer.
+   *
+   * @param command the macro to encode
+   * @param out     the buffer to write into, with at least {@link #sizeOf} bytes remaining
+   * @throws IllegalArgumentException if the macro cannot be encoded
+   */
+  static void encode(MacroCommand command, ByteBuffer out) throws IllegalArgumentException {
+    int size = sizeOf(command);
+    if (size < 0) {
+      throw new IllegalArgumentException("Macro cannot be encoded");
+    }
+    PartitionedMacro macro = (PartitionedMacro) command;
+    if (command instanceof BulkMacroAssign) {
+      out.put(BULK_ASSIGN);
+    } else if (command instanceof MacroRangeAssign) {
+      out.put(RANGE_ASSIGN);
+    } else {
+      out.put(AVERAGE);
+    }
+    out.putInt(macro.getFromRow()).putInt(macro.getFromCol())
+            .putInt(macro.getToRow()).putInt(macro.getToCol());
+    if (command instanceof BulkMacroAssign) {
+      out.putDouble(((BulkMacroAssign) command).getValue());
+    } else if (command instanceof MacroRangeAssign) {
+      MacroRangeAssign assign = (MacroRangeAssign) command;
+      out.putDouble(assign.getStartValue()).putDouble(assign.getIncrement());
+    } else {
+      MacroAverage average = (MacroAverage) command;
+      out.putInt(average.getDestRow()).putInt(average.getDestCol());
+    }
+  }
+
+  /**
+   * Read one encoded macro from a buffer.
+   *
+   * @param in the buffer to read from, positioned at the start of the encoding
+   * @return the decoded macro
+   * @throws IllegalArgumentException if the encoding is not recognized
+   */
+  static MacroCommand decode(ByteBuffer in) throws IllegalArgumentException {
+    byte tag = in.get();
+    int fromRow = in.getInt();
+    int fromCol = in.getInt();
+    int toRow = in.getInt();
+    int toCol = in.getInt();
+    switch (tag) {
+      case BULK_ASSIGN:
+        return new BulkMacroAssign(fromRow, fromCol, toRow, toCol, in.getDouble());
+      case RANGE_ASSIGN:
+        double startValue = in.getDouble();
+        return new MacroRangeAssign(fromRow, fromCol, toRow, toCol, startValue, in.getDouble());
+      case AVERAGE:
+        int destRow = in.getInt();
+        return new MacroAverage(fromRow, fromCol, toRow, toCol, destRow, in.getInt());
+      default:
+        throw new IllegalArgumentException("Unknown macro encoding " + tag);
+    }
+  }
+}
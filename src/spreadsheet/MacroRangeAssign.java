@@ -5,7 +5,7 @@ package spreadsheet;
  * macro commands. This allows the spreadsheet to perform complex operations
  * as macros, enhancing its capabilities beyond simple cell operations.
  */
-public class MacroRangeAssign implements MacroCommand {
+public class MacroRangeAssign implements PartitionedMacro {
   private final int fromRow;
   private final int fromCol;
   private final int toRow;
@@ -45,12 +45,115 @@ public class MacroRangeAssign implements MacroCommand {
    */
   @Override
   public void execute(SpreadSheet spreadSheet) {
-    double currentValue = startValue;
-    for (int i = fromRow; i <= toRow; i++) {
-      for (int j = fromCol; j <= toCol; j++) {
-        spreadSheet.set(i, j, currentValue);
-        currentValue += increment;
+    if (toRow < fromRow || toCol < fromCol) {
+      return;
+    }
+    executeRows(spreadSheet, fromRow, toRow);
+  }
+
+  /**
+   * Assigns values to the cells of the given rows of the range. The value of each cell is
+   * computed from its position in the range, so stripes can be assigned independently.
+   *
+   * @param spreadSheet the spreadsheet on which to execute the macro
+   * @param fromRow     the first row of the stripe
+   * @param toRow       the last row of the stripe, inclusive
+   * @return always 0, as assigning produces no partial result
+   */
+  @Override
+  public double executeRows(SpreadSheet spreadSheet, int fromRow, int toRow) {
+    int cols = this.toCol - this.fromCol + 1;
+    int rowsPerChunk = RangeChecks.rowsPerChunk(fromRow, toRow, cols);
+    double[] values = new double[rowsPerChunk * cols];
+    for (int i = fromRow; i <= toRow; i += rowsPerChunk) {
+      int lastRow = Math.min(toRow, i + rowsPerChunk - 1);
+      int count = (lastRow - i + 1) * cols;
+      long first = ((long) i - this.fromRow) * cols;
+      for (int k = 0; k < count; k++) {
+        values[k] = valueAt(first + k);
       }
+      spreadSheet.setRange(i, this.fromCol, lastRow, this.toCol, values);
     }
+    return 0;
+  }
+
+  /**
+   * Does nothing, as every cell has already been assigned by its stripe.
+   *
+   * @param spreadSheet the spreadsheet on which the macro was executed
+   * @param total       the sum of the partial results of all stripes
+   */
+  @Override
+  public void complete(SpreadSheet spreadSheet, double total) {
+    // nothing left to do once every stripe has been assigned
+  }
+
+  /**
+   * Returns the row index of the starting cell in the range to be assigned values.
+   *
+   * @return the row index of the starting cell
+   */
+  @Override
+  public int getFromRow() {
+    return fromRow;
+  }
+
+  /**
+   * Returns the column index of the starting cell in the range to be assigned values.
+   *
+   * @return the column index of the starting cell
+   */
+  @Override
+  public int getFromCol() {
+    return fromCol;
+  }
+
+  /**
+   * Returns the row index of the ending cell in the range to be assigned values.
+   *
+   * @return the row index of the ending cell
+   */
+  @Override
+  public int getToRow() {
+    return toRow;
+  }
+
+  /**
+   * Returns the column index of the ending cell in the range to be assigned values.
+   *
+   * @return the column index of the ending cell
+   */
+  @Override
+  public int getToCol() {
+    return toCol;
+  }
+
+  /**
+   * Return the value this macro assigns to the cell at the given position in its range,
+   * counting cells in row-major order from 0.
+   *
+   * @param index the position of the cell in the range
+   * @return the value assigned to that cell
+   */
+  double valueAt(long index) {
+    return startValue + increment * index;
+  }
+
+  /**
+   * Return the value this macro assigns to the first cell of its range.
+   *
+   * @return the starting value
+   */
+  double getStartValue() {
+    return startValue;
+  }
+
+  /**
+   * Return the amount by which the assigned value grows from one cell to the next.
+   *
+   * @return the increment
+   */
+  double getIncrement() {
+    return increment;
   }
 }
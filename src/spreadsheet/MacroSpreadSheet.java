@@ -1,5 +1,7 @@
 package spreadsheet;
 
+import java.util.List;
+
 /**
  * An interface that extends SpreadSheet to support the execution of macro commands.
  */
@@ -12,4 +14,17 @@ public interface MacroSpreadSheet extends SpreadSheet {
    */
   void execute(MacroCommand command);
 
+  /**
+   * Executes a list of macro commands as one unit. The commands run in order against a
+   * buffer, so each one sees the writes of those before it, and the buffered writes are
+   * applied to this spreadsheet only once every command has succeeded. If a command throws,
+   * the exception is passed on and this spreadsheet is left unchanged.
+   *
+   * @param commands the macro commands to execute, in order
+   * @throws IllegalArgumentException if the list or one of its commands is null
+   */
+  default void executeBatch(List<MacroCommand> commands) throws IllegalArgumentException {
+    WriteBuffer buffer = MacroBatches.run(this, commands);
+    buffer.applyTo(this);
+  }
 }
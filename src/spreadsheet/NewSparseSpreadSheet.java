@@ -1,18 +1,895 @@
 package spreadsheet;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
 /**
  * NewSparseSpreadSheet extending the SparseSpreadSheet and implementing the
  * MacroSpreadSheet interface to execute a Macro Command.
+ *
+ * <p>The sheet is divided into square regions of {@link #REGION_SIZE} by {@link #REGION_SIZE}
+ * cells. A region starts out sparse, with its cells in the inherited hash map. Once a quarter
+ * of its cells are filled it is promoted to a dense tile, and if it later falls below a
+ * sixteenth it is demoted back to the hash map. Both moves are invisible to callers.
+ *
+ * <p>A sheet created with a journal capacity journals every executed macro so that it can be
+ * undone and redone; a sheet created without one keeps no history and executes macros at full
+ * speed. The journal keeps only the prior state of the cells the macro wrote: the values found
+ * in a written range, plus one record for the range itself. It holds a bounded number of
+ * records, forgetting the oldest macros first. A macro that writes more cells than the journal
+ * holds drops the whole history, and the next {@link #undo()} reports it. Undoing a macro whose
+ * cells were written without a macro since is refused rather than losing the newer values.
  */
 public class NewSparseSpreadSheet extends SparseSpreadSheet implements MacroSpreadSheet {
+  /**
+   * The number of rows and columns spanned by one region.
+   */
+  public static final int REGION_SIZE = CellTile.SIZE;
+  private static final int PROMOTE_AT = REGION_SIZE * REGION_SIZE / 4;
+  private static final int DEMOTE_BELOW = REGION_SIZE * REGION_SIZE / 16;
+  /**
+   * A journal capacity of about a million records, taking about 17 megabytes when full.
+   */
+  public static final int DEFAULT_JOURNAL_CAPACITY = 1 << 20;
+
+  private final LongObjectHashMap<Region> regions;
+  private long lastRegionKey;
+  private Region lastRegion;
+  private int denseRegions;
+  private final UndoJournal journal;
+  private boolean recording;
+
+  /**
+   * Create an empty spreadsheet that keeps no undo history.
+   */
+  public NewSparseSpreadSheet() {
+    this(0);
+  }
+
+  /**
+   * Create an empty spreadsheet whose undo journal holds at most the given number of records.
+   * Each record takes 17 bytes.
+   *
+   * @param journalCapacity the maximum number of undo records, or 0 to disable undo
+   * @throws IllegalArgumentException if the capacity is negative
+   */
+  public NewSparseSpreadSheet(int journalCapacity) throws IllegalArgumentException {
+    super();
+    this.regions = new LongObjectHashMap<Region>();
+    this.lastRegionKey = -1;
+    this.lastRegion = null;
+    this.denseRegions = 0;
+    this.journal = new UndoJournal(journalCapacity);
+    this.recording = false;
+  }
+
+  /**
+   * Get the number at the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    return cell(row, col);
+  }
+
+  /**
+   * Set the value of the specified cell to the specified value.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    noteWrite(row, col, row, col);
+    store(row, col, value);
+    includeInBounds(row, col);
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    Region region = findRegion(row, col);
+    if (region == null) {
+      return true;
+    }
+    if (region.tile != null) {
+      return region.tile.isEmpty(row & CellTile.MASK, col & CellTile.MASK);
+    }
+    return super.isEmpty(row, col);
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order. The range is
+   * validated once for the whole range.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, dest);
+    int i = 0;
+    for (int row = fromRow; row <= toRow; row++) {
+      for (int col = fromCol; col <= toCol; col++) {
+        dest[i++] = cell(row, col);
+      }
+    }
+  }
+
+  /**
+   * Set every cell in the specified range to the same value. Regions that the range covers
+   * completely become dense tiles straight away, and the width and height are updated once
+   * for the whole range.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    noteWrite(fromRow, fromCol, toRow, toCol);
+    int rowStart = fromRow;
+    while (true) {
+      int rowEnd = Math.min(toRow, rowStart | CellTile.MASK);
+      int colStart = fromCol;
+      while (true) {
+        int colEnd = Math.min(toCol, colStart | CellTile.MASK);
+        fillBlock(rowStart, colStart, rowEnd, colEnd, value);
+        if (colEnd == toCol) {
+          break;
+        }
+        colStart = colEnd + 1;
+      }
+      if (rowEnd == toRow) {
+        break;
+      }
+      rowStart = rowEnd + 1;
+    }
+    includeInBounds(toRow, toCol);
+  }
+
+  /**
+   * Set the cells in the specified range to the values in an array, taken in row-major order.
+   * The range is validated and the width and height are updated once for the whole range.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, values);
+    noteWrite(fromRow, fromCol, toRow, toCol);
+    int i = 0;
+    for (int row = fromRow; row <= toRow; row++) {
+      for (int col = fromCol; col <= toCol; col++) {
+        store(row, col, values[i++]);
+      }
+    }
+    includeInBounds(toRow, toCol);
+  }
+
+  /**
+   * Pass every non-empty cell in the specified range to the given visitor, in row-major
+   * order. Sparse cells come from the row index and dense ones from the occupancy bitmaps of
+   * the tiles that overlap the range. Rows of regions without a dense tile are visited as the
+   * row index lists them; in the rows of a region that has one, the sparse cells of each row
+   * are merged with the cells of the dense tiles, which never share a column with them.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to receive the cells
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (visitor == null) {
+      throw new IllegalArgumentException("Visitor cannot be null");
+    }
+    long[] tiles = denseTiles(fromRow, fromCol, toRow, toCol);
+    int row = fromRow;
+    int first = 0;
+    while (first < tiles.length) {
+      int regionRow = CellKey.row(tiles[first]);
+      int last = first;
+      while (last < tiles.length && CellKey.row(tiles[last]) == regionRow) {
+        last++;
+      }
+      int bandFrom = Math.max(fromRow, regionRow << CellTile.SHIFT);
+      int bandTo = Math.min(toRow, (regionRow << CellTile.SHIFT) + CellTile.MASK);
+      if (row < bandFrom) {
+        super.forEachNonEmpty(row, fromCol, bandFrom - 1, toCol, visitor);
+      }
+      for (int r = bandFrom; r <= bandTo; r++) {
+        visitMergedRow(r, fromCol, toCol, tiles, first, last, visitor);
+      }
+      if (bandTo == toRow) {
+        return;
+      }
+      row = bandTo + 1;
+      first = last;
+    }
+    super.forEachNonEmpty(row, fromCol, toRow, toCol, visitor);
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range, visiting only non-empty cells.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    double[] sum = {super.sumRange(fromRow, fromCol, toRow, toCol)};
+    visitDense(fromRow, fromCol, toRow, toCol, (row, col, value) -> sum[0] += value);
+    return sum[0];
+  }
 
   /**
-   * Executes this macro command on the given spreadsheet.
+   * Empty the specified cell. A dense region that falls below the demotion threshold moves
+   * back to the hash map, and a region left without cells is forgotten.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell held a value, false if it was already empty
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean clear(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    noteWrite(row, col, row, col);
+    if (!remove(row, col)) {
+      return false;
+    }
+    if ((row + 1) == getHeight() || (col + 1) == getWidth()) {
+      recomputeBounds();
+    }
+    return true;
+  }
+
+  /**
+   * Executes this macro command on the given spreadsheet, journaling the prior state of every
+   * cell it writes if this sheet keeps a journal. Executing a macro forgets the macros that
+   * could have been redone.
    *
    * @param command the command on which to execute the macro
    */
   @Override
   public void execute(MacroCommand command) {
-    command.execute(this);
+    if (!this.journal.isEnabled()) {
+      command.execute(this);
+      return;
+    }
+    UndoJournal.Change change = this.journal.begin(command);
+    this.recording = true;
+    try {
+      command.execute(new UndoRecorder(this, change));
+    } finally {
+      this.recording = false;
+      this.journal.finish(change, true);
+    }
+  }
+
+  /**
+   * Executes a list of macro commands as one unit. The buffered range writes are applied as
+   * ranges, so they keep the fast path of {@link #fillRange}. The whole batch is
+   * journaled as a single change, so one undo reverts all of it.
+   *
+   * @param commands the macro commands to execute, in order
+   * @throws IllegalArgumentException if the list or one of its commands is null
+   */
+  @Override
+  public void executeBatch(List<MacroCommand> commands) throws IllegalArgumentException {
+    WriteBuffer buffer = MacroBatches.run(this, commands);
+    if (this.journal.isEnabled()) {
+      List<MacroCommand> batch = new ArrayList<MacroCommand>(commands);
+      UndoJournal.Change change = this.journal.begin(sheet -> {
+        for (MacroCommand command : batch) {
+          command.execute(sheet);
+        }
+      });
+      this.recording = true;
+      try {
+        buffer.applyTo(new UndoRecorder(this, change));
+      } finally {
+        this.recording = false;
+        this.journal.finish(change, true);
+      }
+    } else {
+      buffer.applyTo(this);
+    }
+  }
+
+  /**
+   * Undo the most recently executed macro that has not been undone yet, restoring every cell
+   * it wrote to its prior state. Changes made without a macro are not journaled, so if one of
+   * them wrote a cell the macro wrote, the undo is refused and the history is forgotten,
+   * leaving every cell as it is.
+   *
+   * @return true if a macro was undone, false if there was nothing to undo
+   * @throws IllegalStateException if a cell the macro wrote was written without a macro since,
+   *                               or if the history was dropped because a macro wrote more
+   *                               cells than the journal holds
+   */
+  public boolean undo() throws IllegalStateException {
+    UndoJournal.Change change = this.journal.peekUndo();
+    if (change == null) {
+      if (this.journal.takeDropped()) {
+        throw new IllegalStateException(
+                "Cannot undo: a macro wrote more cells than the journal holds");
+      }
+      return false;
+    }
+    if (this.journal.isOverwritten(change)) {
+      this.journal.clearUndo();
+      throw new IllegalStateException(
+              "Cannot undo: cells written by the macro were changed after it");
+    }
+    this.journal.popUndo();
+    for (int i = change.size - 1; i >= 0; i--) {
+      long key = change.keys[i];
+      int row = CellKey.row(key);
+      int col = CellKey.col(key);
+      switch (change.kinds[i]) {
+        case UndoJournal.CELL_VALUE:
+          store(row, col, change.priors[i]);
+          break;
+        case UndoJournal.CELL_EMPTY:
+          remove(row, col);
+          break;
+        default:
+          long start = change.keys[--i];
+          clearRange(CellKey.row(start), CellKey.col(start), row, col);
+          break;
+      }
+    }
+    recomputeBounds();
+    return true;
+  }
+
+  /**
+   * Execute again the most recently undone macro.
+   *
+   * @return true if a macro was redone, false if there was nothing to redo
+   */
+  public boolean redo() {
+    UndoJournal.Change undone = this.journal.popRedo();
+    if (undone == null) {
+      return false;
+    }
+    UndoJournal.Change change = this.journal.begin(undone.command);
+    this.recording = true;
+    try {
+      undone.command.execute(new UndoRecorder(this, change));
+    } finally {
+      this.recording = false;
+      this.journal.finish(change, false);
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether there is an executed macro that can be undone.
+   *
+   * @return true if {@link #undo()} would undo a macro, false otherwise
+   */
+  public boolean canUndo() {
+    return this.journal.undoCount() > 0;
+  }
+
+  /**
+   * Returns whether there is an undone macro that can be redone.
+   *
+   * @return true if {@link #redo()} would redo a macro, false otherwise
+   */
+  public boolean canRedo() {
+    return this.journal.redoCount() > 0;
+  }
+
+  /**
+   * Returns whether the region containing the specified cell is currently stored as a dense
+   * tile rather than in the hash map.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the region is dense, false if it is sparse or holds no cells
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  public boolean isDenseRegion(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    Region region = findRegion(row, col);
+    return region != null && region.tile != null;
+  }
+
+  /**
+   * Return the number of non-empty regions stored as dense tiles.
+   *
+   * @return the number of dense regions
+   */
+  public int getDenseRegionCount() {
+    return this.denseRegions;
+  }
+
+  /**
+   * Return the number of non-empty regions stored in the hash map.
+   *
+   * @return the number of sparse regions
+   */
+  public int getSparseRegionCount() {
+    return this.regions.size() - this.denseRegions;
+  }
+
+  /**
+   * Recompute the width and height, including the cells held in dense tiles.
+   */
+  @Override
+  protected void recomputeBounds() {
+    super.recomputeBounds();
+    this.regions.forEach((key, region) -> {
+      if (region.tile != null) {
+        int baseRow = CellKey.row(key) << CellTile.SHIFT;
+        int baseCol = CellKey.col(key) << CellTile.SHIFT;
+        for (int r = 0; r < CellTile.SIZE; r++) {
+          long columns = region.tile.occupiedColumns(r);
+          if (columns != 0) {
+            includeInBounds(baseRow + r, baseCol + Long.SIZE - 1
+                    - Long.numberOfLeadingZeros(columns));
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Find the region holding the given cell, remembering the most recently used region. When
+   * no region exists yet, its key is left in the cache so that the caller can create it.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the region holding the cell, or null if it holds no cells
+   */
+  private Region findRegion(int row, int col) {
+    long key = CellKey.pack(row >>> CellTile.SHIFT, col >>> CellTile.SHIFT);
+    if (key != this.lastRegionKey) {
+      this.lastRegionKey = key;
+      this.lastRegion = this.regions.get(key);
+    }
+    return this.lastRegion;
+  }
+
+  /**
+   * Get the number at a cell whose position has already been validated.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the number at the cell, or 0 if the cell is empty
+   */
+  private double cell(int row, int col) {
+    Region region = findRegion(row, col);
+    if (region == null) {
+      return 0.0;
+    }
+    if (region.tile != null) {
+      return region.tile.get(row & CellTile.MASK, col & CellTile.MASK);
+    }
+    return super.get(row, col);
+  }
+
+  /**
+   * Empty a cell whose position has already been validated. A dense region that falls below
+   * the demotion threshold moves back to the hash map, and a region left without cells is
+   * forgotten. The caller is responsible for the width and height.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return true if the cell held a value, false if it was already empty
+   */
+  private boolean remove(int row, int col) {
+    Region region = findRegion(row, col);
+    if (region == null) {
+      return false;
+    }
+    if (region.tile != null) {
+      if (!region.tile.clear(row & CellTile.MASK, col & CellTile.MASK)) {
+        return false;
+      }
+      if (region.tile.count() < DEMOTE_BELOW) {
+        demote(row & ~CellTile.MASK, col & ~CellTile.MASK, region);
+      }
+    } else {
+      if (!detach(row, col)) {
+        return false;
+      }
+      region.sparseCount--;
+    }
+    if (region.tile == null && region.sparseCount == 0) {
+      this.regions.remove(this.lastRegionKey);
+      this.lastRegion = null;
+    }
+    return true;
+  }
+
+  /**
+   * Remember a validated range written outside of any macro, so that undoing a macro that
+   * wrote the same cells can be refused.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void noteWrite(int fromRow, int fromCol, int toRow, int toCol) {
+    if (!this.recording) {
+      this.journal.recordDirectWrite(fromRow, fromCol, toRow, toCol);
+    }
+  }
+
+  /**
+   * Empty every cell in a validated range. Dense regions that lie entirely inside the range
+   * are dropped as a whole, and the remaining cells are emptied one at a time. The caller is
+   * responsible for the width and height.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void clearRange(int fromRow, int fromCol, int toRow, int toCol) {
+    long fromRegionRow = ((long) fromRow + CellTile.MASK) >> CellTile.SHIFT;
+    long fromRegionCol = ((long) fromCol + CellTile.MASK) >> CellTile.SHIFT;
+    long toRegionRow = (((long) toRow + 1) >> CellTile.SHIFT) - 1;
+    long toRegionCol = (((long) toCol + 1) >> CellTile.SHIFT) - 1;
+    for (long r = fromRegionRow; r <= toRegionRow; r++) {
+      for (long c = fromRegionCol; c <= toRegionCol; c++) {
+        long key = CellKey.pack((int) r, (int) c);
+        Region region = this.regions.get(key);
+        if (region != null && region.tile != null) {
+          this.regions.remove(key);
+          this.denseRegions--;
+        }
+      }
+    }
+    this.lastRegionKey = -1;
+    this.lastRegion = null;
+    long[][] cells = {new long[16]};
+    int[] count = {0};
+    forEachNonEmpty(fromRow, fromCol, toRow, toCol, (row, col, value) -> {
+      if (count[0] == cells[0].length) {
+        cells[0] = Arrays.copyOf(cells[0], count[0] << 1);
+      }
+      cells[0][count[0]++] = CellKey.pack(row, col);
+    });
+    for (int i = 0; i < count[0]; i++) {
+      remove(CellKey.row(cells[0][i]), CellKey.col(cells[0][i]));
+    }
+  }
+
+  /**
+   * Store a value at a cell whose position has already been validated, promoting its region
+   * if it becomes dense enough. The caller is responsible for the width and height.
+   *
+   * @param row   the row number of the cell
+   * @param col   the column number of the cell
+   * @param value the value that this cell must be set to
+   */
+  private void store(int row, int col, double value) {
+    Region region = regionFor(row, col);
+    if (region.tile != null) {
+      region.tile.set(row & CellTile.MASK, col & CellTile.MASK, value);
+    } else if (put(row, col, value) && ++region.sparseCount >= PROMOTE_AT) {
+      promote(row & ~CellTile.MASK, col & ~CellTile.MASK, region);
+    }
+  }
+
+  /**
+   * Set every cell of a block that lies within a single region. A block that covers the whole
+   * region is written as one dense tile.
+   *
+   * @param fromRow the first row of the block
+   * @param fromCol the first column of the block
+   * @param toRow   the last row of the block
+   * @param toCol   the last column of the block
+   * @param value   the value that every cell in the block must be set to
+   */
+  private void fillBlock(int fromRow, int fromCol, int toRow, int toCol, double value) {
+    boolean wholeRegion = (fromRow & CellTile.MASK) == 0 && (fromCol & CellTile.MASK) == 0
+            && toRow - fromRow == CellTile.MASK && toCol - fromCol == CellTile.MASK;
+    if (!wholeRegion) {
+      for (int row = fromRow; row <= toRow; row++) {
+        for (int col = fromCol; col <= toCol; col++) {
+          store(row, col, value);
+        }
+      }
+      return;
+    }
+    Region region = regionFor(fromRow, fromCol);
+    if (region.tile == null) {
+      for (int row = fromRow; region.sparseCount > 0 && row <= toRow; row++) {
+        for (int col = fromCol; col <= toCol; col++) {
+          if (detach(row, col)) {
+            region.sparseCount--;
+          }
+        }
+      }
+      region.tile = new CellTile();
+      this.denseRegions++;
+    }
+    region.tile.fill(value);
+  }
+
+  /**
+   * Find the region holding the given cell, creating it if it holds no cells yet.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the region holding the cell
+   */
+  private Region regionFor(int row, int col) {
+    Region region = findRegion(row, col);
+    if (region == null) {
+      region = new Region();
+      this.regions.put(this.lastRegionKey, region);
+      this.lastRegion = region;
+    }
+    return region;
+  }
+
+  /**
+   * Pass the non-empty cells of the dense tiles that overlap a validated range to a visitor,
+   * in no particular order.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   * @param visitor the visitor to receive the cells
+   */
+  private void visitDense(int fromRow, int fromCol, int toRow, int toCol,
+                          CellVisitor visitor) {
+    visitDenseRegions(fromRow, fromCol, toRow, toCol, key -> visitTile(CellKey.row(key),
+            CellKey.col(key), this.regions.get(key).tile, fromRow, fromCol, toRow, toCol,
+            visitor));
+  }
+
+  /**
+   * Pass the packed key of every region holding a dense tile that overlaps a validated range
+   * to a consumer. The tiles are found by probing each region the range overlaps, or by
+   * scanning the region directory when that is shorter.
+   *
+   * @param fromRow  the first row of the range
+   * @param fromCol  the first column of the range
+   * @param toRow    the last row of the range
+   * @param toCol    the last column of the range
+   * @param consumer the consumer to receive the keys
+   */
+  private void visitDenseRegions(int fromRow, int fromCol, int toRow, int toCol,
+                                 LongConsumer consumer) {
+    if (this.denseRegions == 0) {
+      return;
+    }
+    int fromRegionRow = fromRow >>> CellTile.SHIFT;
+    int fromRegionCol = fromCol >>> CellTile.SHIFT;
+    int toRegionRow = toRow >>> CellTile.SHIFT;
+    int toRegionCol = toCol >>> CellTile.SHIFT;
+    if (RangeChecks.area(fromRegionRow, fromRegionCol, toRegionRow, toRegionCol)
+            <= this.regions.size()) {
+      for (int r = fromRegionRow; r <= toRegionRow; r++) {
+        for (int c = fromRegionCol; c <= toRegionCol; c++) {
+          long key = CellKey.pack(r, c);
+          Region region = this.regions.get(key);
+          if (region != null && region.tile != null) {
+            consumer.accept(key);
+          }
+        }
+      }
+    } else {
+      this.regions.forEach((key, region) -> {
+        int r = CellKey.row(key);
+        int c = CellKey.col(key);
+        if (region.tile != null && r >= fromRegionRow && r <= toRegionRow
+                && c >= fromRegionCol && c <= toRegionCol) {
+          consumer.accept(key);
+        }
+      });
+    }
+  }
+
+  /**
+   * Return the regions holding a dense tile that overlap a validated range, found the same
+   * way as by {@link #visitDense}.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   * @return the packed keys of the regions, in row-major order
+   */
+  private long[] denseTiles(int fromRow, int fromCol, int toRow, int toCol) {
+    long[][] keys = {new long[this.denseRegions == 0 ? 0 : 16]};
+    int[] count = {0};
+    visitDenseRegions(fromRow, fromCol, toRow, toCol, key -> {
+      if (count[0] == keys[0].length) {
+        keys[0] = Arrays.copyOf(keys[0], count[0] << 1);
+      }
+      keys[0][count[0]++] = key;
+    });
+    Arrays.sort(keys[0], 0, count[0]);
+    return Arrays.copyOf(keys[0], count[0]);
+  }
+
+  /**
+   * Pass the non-empty cells of one row to a visitor in column order, merging the sparse
+   * cells with those of the dense tiles of the row's region band.
+   *
+   * @param row     the row to visit
+   * @param fromCol the first column of the range
+   * @param toCol   the last column of the range
+   * @param tiles   the packed keys of dense regions, in row-major order
+   * @param first   the index of the first key of the row's region band
+   * @param last    the index past the last key of the row's region band
+   * @param visitor the visitor to receive the cells
+   */
+  private void visitMergedRow(int row, int fromCol, int toCol, long[] tiles, int first,
+                              int last, CellVisitor visitor) {
+    int[] next = {first};
+    super.forEachNonEmpty(row, fromCol, row, toCol, (r, col, value) -> {
+      while (next[0] < last && (CellKey.col(tiles[next[0]]) << CellTile.SHIFT) < col) {
+        visitTileRow(tiles[next[0]++], row, fromCol, toCol, visitor);
+      }
+      visitor.visit(r, col, value);
+    });
+    while (next[0] < last) {
+      visitTileRow(tiles[next[0]++], row, fromCol, toCol, visitor);
+    }
+  }
+
+  /**
+   * Pass the non-empty cells of one row of a dense region that lie inside a range of columns
+   * to a visitor.
+   *
+   * @param key     the packed key of the region
+   * @param row     the row to visit
+   * @param fromCol the first column of the range
+   * @param toCol   the last column of the range
+   * @param visitor the visitor to receive the cells
+   */
+  private void visitTileRow(long key, int row, int fromCol, int toCol, CellVisitor visitor) {
+    visitTile(CellKey.row(key), CellKey.col(key), this.regions.get(key).tile, row, fromCol,
+            row, toCol, visitor);
+  }
+
+  /**
+   * Pass the non-empty cells of one tile that lie inside a range to a visitor.
+   *
+   * @param regionRow the row of the tile in the region grid
+   * @param regionCol the column of the tile in the region grid
+   * @param tile      the tile to visit
+   * @param fromRow   the first row of the range
+   * @param fromCol   the first column of the range
+   * @param toRow     the last row of the range
+   * @param toCol     the last column of the range
+   * @param visitor   the visitor to receive the cells
+   */
+  private static void visitTile(int regionRow, int regionCol, CellTile tile, int fromRow,
+                                int fromCol, int toRow, int toCol, CellVisitor visitor) {
+    int baseRow = regionRow << CellTile.SHIFT;
+    int baseCol = regionCol << CellTile.SHIFT;
+    int firstRow = Math.max(fromRow, baseRow) - baseRow;
+    int lastRow = Math.min(toRow, baseRow + CellTile.MASK) - baseRow;
+    int firstCol = Math.max(fromCol, baseCol) - baseCol;
+    int lastCol = Math.min(toCol, baseCol + CellTile.MASK) - baseCol;
+    long colMask = (-1L << firstCol) & (-1L >>> (Long.SIZE - 1 - lastCol));
+    for (int r = firstRow; r <= lastRow; r++) {
+      long columns = tile.occupiedColumns(r) & colMask;
+      while (columns != 0) {
+        int c = Long.numberOfTrailingZeros(columns);
+        visitor.visit(baseRow + r, baseCol + c, tile.get(r, c));
+        columns &= columns - 1;
+      }
+    }
+  }
+
+  /**
+   * Move every cell of a sparse region from the hash map into a new dense tile.
+   *
+   * @param baseRow the first row of the region
+   * @param baseCol the first column of the region
+   * @param region  the region to promote
+   */
+  private void promote(int baseRow, int baseCol, Region region) {
+    CellTile tile = new CellTile();
+    for (int r = 0; r < CellTile.SIZE; r++) {
+      for (int c = 0; c < CellTile.SIZE; c++) {
+        if (!super.isEmpty(baseRow + r, baseCol + c)) {
+          tile.set(r, c, super.get(baseRow + r, baseCol + c));
+          detach(baseRow + r, baseCol + c);
+        }
+      }
+    }
+    region.tile = tile;
+    region.sparseCount = 0;
+    this.denseRegions++;
+  }
+
+  /**
+   * Move every cell of a dense region from its tile back into the hash map.
+   *
+   * @param baseRow the first row of the region
+   * @param baseCol the first column of the region
+   * @param region  the region to demote
+   */
+  private void demote(int baseRow, int baseCol, Region region) {
+    CellTile tile = region.tile;
+    for (int r = 0; r < CellTile.SIZE; r++) {
+      long columns = tile.occupiedColumns(r);
+      while (columns != 0) {
+        int c = Long.numberOfTrailingZeros(columns);
+        put(baseRow + r, baseCol + c, tile.get(r, c));
+        columns &= columns - 1;
+      }
+    }
+    region.tile = null;
+    region.sparseCount = tile.count();
+    this.denseRegions--;
+  }
+
+  /**
+   * The bookkeeping for one region: either the number of its cells in the hash map, or the
+   * dense tile that holds all of them.
+   */
+  private static final class Region {
+    private int sparseCount;
+    private CellTile tile;
   }
 }
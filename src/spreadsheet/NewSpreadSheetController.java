@@ -1,13 +1,37 @@
 package spreadsheet;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * A controller for an interactive spreadsheet application that extends the functionality
  * of the base SpreadSheetController. It adds commands for bulk assignments, averaging values,
  * and range assignments within the spreadsheet.
+ *
+ * <p>Commands are processed in two stages. A parser thread reads the input and turns every
+ * instruction into a {@link MacroCommand}, and the thread that called {@link #control()}
+ * executes those commands in order, taking them from a bounded queue. Reading and parsing the
+ * next instruction thus overlaps executing the current one. Consecutive {@code assign-value}
+ * instructions that are already parsed are applied together with
+ * {@link MacroSpreadSheet#executeBatch}, so a sheet that logs or journals its changes does so
+ * once per group; on a sheet that journals macros the group is also undone as one. All output
+ * is written by the executing thread, in the order of the instructions, exactly as if they
+ * were processed one at a time.
  */
 public class NewSpreadSheetController extends SpreadSheetController {
+  private static final int QUEUE_CAPACITY = 1 << 10;
+  private static final int MAX_BATCH = 1 << 12;
+  private static final Instructions.Step END = s -> {
+  };
+
+  private final SpreadSheet sheet;
+  private final Readable readable;
+  private final Instructions.Step prompt = s -> writeMessage("Type instruction: ");
+  private final Instructions.Steps steps = new ControllerSteps();
 
   /**
    * Constructs a new spreadsheet controller with the given model, input source, and output target.
@@ -19,6 +43,32 @@ public class NewSpreadSheetController extends SpreadSheetController {
   public NewSpreadSheetController(SpreadSheet sheet, Readable readable,
                                        Appendable appendable) {
     super(sheet, readable, appendable);
+    this.sheet = sheet;
+    this.readable = readable;
+  }
+
+  /**
+   * The main method that relinquishes control of the application to the controller. The
+   * output is the same as that of {@link SpreadSheetController#control()}, and a command that
+   * fails stops the controller with the same exception.
+   *
+   * @throws IllegalStateException if the controller is unable to transmit output
+   */
+  @Override
+  public void control() throws IllegalStateException {
+    BlockingQueue<MacroCommand> queue = new ArrayBlockingQueue<MacroCommand>(QUEUE_CAPACITY);
+    Scanner sc = new Scanner(this.readable);
+    Thread parser = new Thread(() -> parse(sc, queue), "spreadsheet-parser");
+    parser.setDaemon(true);
+
+    this.welcomeMessage();
+    parser.start();
+    try {
+      execute(queue);
+    } finally {
+      parser.interrupt();
+    }
+    this.farewellMessage();
   }
 
   /**
@@ -31,45 +81,49 @@ public class NewSpreadSheetController extends SpreadSheetController {
    */
   protected void processCommand(String userInstruction, Scanner sc,
                                 SpreadSheet sheet) {
-    switch (userInstruction) {
-      case "bulk-assign-value":
-        int fromRow = getRowNum(sc.next());
-        int fromCol = sc.nextInt();
-        int toRow = getRowNum(sc.next());
-        int toCol = sc.nextInt();
-        double value = sc.nextDouble();
-        MacroCommand macro = new BulkMacroAssign(fromRow, fromCol - 1,
-                toRow, toCol - 1, value);
-        ((MacroSpreadSheet) sheet).execute(macro);
-        break;
-
-      case "average":
-        fromRow = getRowNum(sc.next());
-        fromCol = sc.nextInt() - 1;
-        toRow = getRowNum(sc.next());
-        toCol = sc.nextInt() - 1;
-        int destRow = getRowNum(sc.next());
-        int destCol = sc.nextInt() - 1;
-        MacroCommand averageMacro = new MacroAverage(fromRow, fromCol, toRow,
-                toCol, destRow, destCol);
-        ((MacroSpreadSheet) sheet).execute(averageMacro);
-        break;
-
-      case "range-assign":
-        fromRow = getRowNum(sc.next());
-        fromCol = sc.nextInt() - 1;
-        toRow = getRowNum(sc.next());
-        toCol = sc.nextInt() - 1;
-        double startValue = sc.nextDouble();
-        double increment = sc.nextDouble();
-        MacroCommand rangeAssignMacro = new MacroRangeAssign(fromRow, fromCol,
-                toRow, toCol, startValue, increment);
-        ((MacroSpreadSheet) sheet).execute(rangeAssignMacro);
-        break;
-
-      default:
-        super.processCommand(userInstruction, sc, sheet);
-        break;
+    MacroCommand command = parseCommand(userInstruction, sc);
+    if (command instanceof Instructions.AssignValue) {
+      assign((Instructions.AssignValue) command, sheet);
+    } else {
+      run(command, sheet);
+    }
+  }
+
+  /**
+   * Turns the given instruction into a command, reading its arguments with the parser shared
+   * with {@link ScriptController}. Instructions that only produce output become commands that
+   * write it when they are executed.
+   *
+   * @param userInstruction the command entered by the user
+   * @param sc the scanner to read additional command arguments
+   * @return the command to execute
+   */
+  protected MacroCommand parseCommand(String userInstruction, Scanner sc) {
+    Instructions.Tokens tokens = new Instructions.Tokens() {
+      @Override
+      public int nextRow() throws IllegalArgumentException {
+        return getRowNum(sc.next());
+      }
+
+      @Override
+      public int nextColumn() {
+        return sc.nextInt() - 1;
+      }
+
+      @Override
+      public double nextDouble() {
+        return sc.nextDouble();
+      }
+    };
+    try {
+      return Instructions.parse(userInstruction, tokens, this.steps);
+    } catch (IllegalArgumentException e) {
+      if (userInstruction.equals("assign-value") || userInstruction.equals("print-value")) {
+        return error(e);
+      }
+      throw e;
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
     }
   }
 
@@ -88,5 +142,228 @@ public class NewSpreadSheetController extends SpreadSheetController {
     writeMessage("range-assign from-row-num from-col-num to-row-num to-col-num"
             + " start-value increment"
             + System.lineSeparator());
+    writeMessage("sum|min|max|count|variance|stddev from-row-num from-col-num to-row-num "
+            + "to-col-num dest-row-num dest-col-num"
+            + System.lineSeparator());
+    writeMessage("statistics from-row-num from-col-num to-row-num to-col-num "
+            + "dest-row-num dest-col-num (sum, average, min, max, count, variance and "
+            + "stddev, from the destination cell rightwards)"
+            + System.lineSeparator());
+    writeMessage("stats (counts and latencies of the operations so far)"
+            + System.lineSeparator());
+  }
+
+  /**
+   * The parser stage: reads instructions until the input ends or the user quits, and queues
+   * a command for each of them, preceded by the prompt. It ends by queueing {@link #END}, or
+   * the failure that stopped it.
+   *
+   * @param sc    the scanner to read instructions from
+   * @param queue the queue of commands to execute
+   */
+  private void parse(Scanner sc, BlockingQueue<MacroCommand> queue) {
+    MacroCommand last = END;
+    try {
+      while (sc.hasNext()) {
+        queue.put(this.prompt);
+        String userInstruction = sc.next();
+        if (userInstruction.equals("quit") || userInstruction.equals("q")) {
+          break;
+        }
+        queue.put(parseCommand(userInstruction, sc));
+      }
+    } catch (InterruptedException e) {
+      return;
+    } catch (RuntimeException e) {
+      last = (Instructions.Step) s -> {
+        throw e;
+      };
+    }
+    try {
+      queue.put(last);
+    } catch (InterruptedException e) {
+      // the executor has stopped and does not need the last command
+    }
+  }
+
+  /**
+   * The executor stage: executes queued commands in order until {@link #END}. An
+   * {@code assign-value} command is grouped with the ones queued right behind it, each behind
+   * its prompt, without waiting for more. The prompts of a group are written when the group
+   * is applied; since a group that is applied at once writes nothing else, the output is the
+   * same as if each command had been executed after its prompt.
+   *
+   * @param queue the queue of commands to execute
+   * @throws IllegalStateException if the executor is interrupted
+   */
+  private void execute(BlockingQueue<MacroCommand> queue) throws IllegalStateException {
+    List<MacroCommand> batch = new ArrayList<MacroCommand>();
+    MacroCommand next = null;
+    try {
+      while (true) {
+        if (next == null) {
+          next = queue.take();
+        }
+        if (next == END) {
+          return;
+        }
+        if (next instanceof Instructions.AssignValue) {
+          batch.add(next);
+          next = batch.size() < MAX_BATCH ? queue.poll() : null;
+          if (next == this.prompt) {
+            MacroCommand after = queue.poll();
+            if (after instanceof Instructions.AssignValue) {
+              batch.add(next);
+              next = after;
+              continue;
+            }
+            assign(batch);
+            batch.clear();
+            run(next, this.sheet);
+            next = after;
+          } else if (!(next instanceof Instructions.AssignValue)) {
+            assign(batch);
+            batch.clear();
+          }
+        } else {
+          run(next, this.sheet);
+          next = null;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for input");
+    }
+  }
+
+  /**
+   * Apply a group of {@code assign-value} commands and the prompts between them. The commands
+   * are applied as one batch when the sheet supports it, and then the prompts are written. If
+   * the batch is rejected nothing was written, and the group is run one command at a time so
+   * that each failure is reported where it happened.
+   *
+   * @param batch the commands to apply and the prompts between them, in order
+   */
+  private void assign(List<MacroCommand> batch) {
+    List<MacroCommand> commands = new ArrayList<MacroCommand>(batch.size());
+    for (MacroCommand command : batch) {
+      if (command instanceof Instructions.AssignValue) {
+        commands.add(command);
+      }
+    }
+    if (commands.size() > 1 && this.sheet instanceof MacroSpreadSheet) {
+      try {
+        ((MacroSpreadSheet) this.sheet).executeBatch(commands);
+        for (int i = commands.size(); i < batch.size(); i++) {
+          this.prompt.execute(this.sheet);
+        }
+        return;
+      } catch (IllegalArgumentException e) {
+        // run one at a time below
+      }
+    }
+    for (MacroCommand command : batch) {
+      if (command instanceof Instructions.AssignValue) {
+        assign((Instructions.AssignValue) command, this.sheet);
+      } else {
+        run(command, this.sheet);
+      }
+    }
+  }
+
+  /**
+   * Apply one {@code assign-value} command, reporting a failure as the base controller does.
+   *
+   * @param command the command to apply
+   * @param sheet   the spreadsheet model where the command is executed
+   */
+  private void assign(Instructions.AssignValue command, SpreadSheet sheet) {
+    try {
+      command.execute(sheet);
+    } catch (IllegalArgumentException e) {
+      writeMessage("Error: " + e.getMessage() + System.lineSeparator());
+    }
+  }
+
+  /**
+   * Execute one command: steps of the controller itself directly, and macros through the
+   * spreadsheet.
+   *
+   * @param command the command to execute
+   * @param sheet   the spreadsheet model where the command is executed
+   */
+  private void run(MacroCommand command, SpreadSheet sheet) {
+    if (command instanceof Instructions.Step) {
+      command.execute(sheet);
+    } else {
+      ((MacroSpreadSheet) sheet).execute(command);
+    }
+  }
+
+  /**
+   * Returns a step reporting the given failure as the base controller does.
+   *
+   * @param e the failure to report
+   * @return the step writing the message
+   */
+  private Instructions.Step error(IllegalArgumentException e) {
+    return s -> writeMessage("Error: " + e.getMessage() + System.lineSeparator());
+  }
+
+  /**
+   * The output steps of the interactive controller, written as the base controller writes
+   * them.
+   */
+  private final class ControllerSteps implements Instructions.Steps {
+
+    /**
+     * Return a step writing the value of a cell, or the error if the cell is invalid.
+     *
+     * @param row the row of the cell to print
+     * @param col the column of the cell to print
+     * @return the step
+     */
+    @Override
+    public Instructions.Step printValue(int row, int col) {
+      return s -> {
+        try {
+          writeMessage("Value: " + s.get(row, col) + System.lineSeparator());
+        } catch (IllegalArgumentException e) {
+          writeMessage("Error: " + e.getMessage() + System.lineSeparator());
+        }
+      };
+    }
+
+    /**
+     * Return a step writing the statistics of the sheet.
+     *
+     * @return the step
+     */
+    @Override
+    public Instructions.Step stats() {
+      return s -> writeMessage(Instructions.statistics(s));
+    }
+
+    /**
+     * Return a step writing the welcome message and the menu.
+     *
+     * @return the step
+     */
+    @Override
+    public Instructions.Step menu() {
+      return s -> welcomeMessage();
+    }
+
+    /**
+     * Return a step reporting an undefined instruction.
+     *
+     * @param instruction the name of the instruction
+     * @return the step
+     */
+    @Override
+    public Instructions.Step undefined(String instruction) {
+      return s -> writeMessage("Undefined instruction: " + instruction
+              + System.lineSeparator());
+    }
   }
 }
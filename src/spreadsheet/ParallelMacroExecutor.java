@@ -0,0 +1,108 @@
+package spreadsheet;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Executes partitioned macros over large rectangles by splitting them into stripes of rows
+ * and running the stripes on a fork/join pool. Macros below a size threshold, and macros that
+ * cannot be partitioned, run sequentially on the calling thread. This must only be used with
+ * spreadsheets that are safe to write from several threads.
+ */
+final class ParallelMacroExecutor {
+  private final ForkJoinPool pool;
+  private final long threshold;
+  private final long grain;
+
+  /**
+   * Create an executor that runs on the given pool.
+   *
+   * @param pool      the pool to run stripes on
+   * @param threshold the number of cells below which a macro runs sequentially
+   * @throws IllegalArgumentException if the pool is null or the threshold is not positive
+   */
+  ParallelMacroExecutor(ForkJoinPool pool, long threshold) throws IllegalArgumentException {
+    if (pool == null || threshold <= 0) {
+      throw new IllegalArgumentException("Pool cannot be null and threshold must be positive");
+    }
+    this.pool = pool;
+    this.threshold = threshold;
+    this.grain = Math.max(1, threshold / (4L * pool.getParallelism()));
+  }
+
+  /**
+   * Execute a macro on the given spreadsheet, in parallel if it is large enough.
+   *
+   * @param sheet   the thread-safe spreadsheet on which to execute the macro
+   * @param command the macro command to execute
+   */
+  void execute(SpreadSheet sheet, MacroCommand command) {
+    if (!(command instanceof PartitionedMacro)) {
+      command.execute(sheet);
+      return;
+    }
+    PartitionedMacro macro = (PartitionedMacro) command;
+    int fromRow = macro.getFromRow();
+    int toRow = macro.getToRow();
+    int fromCol = macro.getFromCol();
+    int toCol = macro.getToCol();
+    if (toRow <= fromRow || toCol < fromCol
+            || RangeChecks.area(fromRow, fromCol, toRow, toCol) < this.threshold) {
+      command.execute(sheet);
+      return;
+    }
+    long rowsPerStripe = Math.max(1, this.grain / ((long) toCol - fromCol + 1));
+    double total = this.pool.invoke(new Stripe(sheet, macro, fromRow, toRow, rowsPerStripe));
+    macro.complete(sheet, total);
+  }
+
+  /**
+   * A task that runs one stripe of rows of a macro, splitting it in two while it is larger
+   * than the grain.
+   */
+  private static final class Stripe extends RecursiveTask<Double> {
+    private static final long serialVersionUID = 1L;
+
+    private final transient SpreadSheet sheet;
+    private final transient PartitionedMacro macro;
+    private final int fromRow;
+    private final int toRow;
+    private final long rowsPerStripe;
+
+    /**
+     * Create a task for the given rows of a macro.
+     *
+     * @param sheet         the spreadsheet on which to execute the macro
+     * @param macro         the macro to execute
+     * @param fromRow       the first row of the stripe
+     * @param toRow         the last row of the stripe, inclusive
+     * @param rowsPerStripe the number of rows below which the stripe is run directly
+     */
+    private Stripe(SpreadSheet sheet, PartitionedMacro macro, int fromRow, int toRow,
+                   long rowsPerStripe) {
+      this.sheet = sheet;
+      this.macro = macro;
+      this.fromRow = fromRow;
+      this.toRow = toRow;
+      this.rowsPerStripe = rowsPerStripe;
+    }
+
+    /**
+     * Run this stripe, or split it and run both halves.
+     *
+     * @return the sum of the partial results of the rows in this stripe
+     */
+    @Override
+    protected Double compute() {
+      if ((long) toRow - fromRow + 1 <= rowsPerStripe) {
+        return macro.executeRows(sheet, fromRow, toRow);
+      }
+      int middle = (int) (((long) fromRow + toRow) >>> 1);
+      Stripe low = new Stripe(sheet, macro, fromRow, middle, rowsPerStripe);
+      Stripe high = new Stripe(sheet, macro, middle + 1, toRow, rowsPerStripe);
+      low.fork();
+      double highTotal = high.compute();
+      return low.join() + highTotal;
+    }
+  }
+}
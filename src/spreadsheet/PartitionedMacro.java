@@ -0,0 +1,56 @@
+package spreadsheet;
+
+/**
+ * This interface represents a macro command that works over a rectangle of cells and can be
+ * split into independent stripes of rows. A thread-safe spreadsheet may run the stripes in
+ * parallel, add up the partial results they return, and then complete the macro once.
+ */
+public interface PartitionedMacro extends MacroCommand {
+
+  /**
+   * Return the first row of the rectangle this macro works over.
+   *
+   * @return the first row of the rectangle
+   */
+  int getFromRow();
+
+  /**
+   * Return the first column of the rectangle this macro works over.
+   *
+   * @return the first column of the rectangle
+   */
+  int getFromCol();
+
+  /**
+   * Return the last row of the rectangle this macro works over.
+   *
+   * @return the last row of the rectangle, inclusive
+   */
+  int getToRow();
+
+  /**
+   * Return the last column of the rectangle this macro works over.
+   *
+   * @return the last column of the rectangle, inclusive
+   */
+  int getToCol();
+
+  /**
+   * Run the part of this macro that covers a stripe of rows of its rectangle. Stripes never
+   * depend on each other, so they may run in any order or at the same time.
+   *
+   * @param sheet   the spreadsheet on which to execute the macro
+   * @param fromRow the first row of the stripe
+   * @param toRow   the last row of the stripe, inclusive
+   * @return the partial result of the stripe, to be added to those of the other stripes
+   */
+  double executeRows(SpreadSheet sheet, int fromRow, int toRow);
+
+  /**
+   * Finish this macro after every stripe has run.
+   *
+   * @param sheet the spreadsheet on which the macro was executed
+   * @param total the sum of the partial results of all stripes
+   */
+  void complete(SpreadSheet sheet, double total);
+}
@@ -0,0 +1,86 @@
+package spreadsheet;
+
+/**
+ * Validation shared by the range operations of {@link SpreadSheet} and its implementations.
+ * A range is the inclusive rectangle from (fromRow, fromCol) to (toRow, toCol), and its cells
+ * are laid out in arrays in row-major order.
+ */
+final class RangeChecks {
+  /**
+   * The number of cells that range operations handle per chunk when they need a buffer, so
+   * that very large ranges do not need one very large array.
+   */
+  static final int CHUNK_CELLS = 1 << 16;
+
+  /**
+   * This class only offers static helpers.
+   */
+  private RangeChecks() {
+  }
+
+  /**
+   * Check that a range is well formed.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   * @throws IllegalArgumentException if a row or column is negative, or the range is reversed
+   */
+  static void checkRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    if ((fromRow < 0) || (fromCol < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if ((toRow < fromRow) || (toCol < fromCol)) {
+      throw new IllegalArgumentException("Invalid cell range");
+    }
+  }
+
+  /**
+   * Check that a range is well formed and that an array can hold all of its cells.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   * @param array   the array that holds the cells of the range
+   * @throws IllegalArgumentException if the range is invalid or the array is missing or short
+   */
+  static void checkRange(int fromRow, int fromCol, int toRow, int toCol, double[] array)
+          throws IllegalArgumentException {
+    checkRange(fromRow, fromCol, toRow, toCol);
+    if (array == null) {
+      throw new IllegalArgumentException("Array cannot be null");
+    }
+    if (array.length < area(fromRow, fromCol, toRow, toCol)) {
+      throw new IllegalArgumentException("Array is too small for the cell range");
+    }
+  }
+
+  /**
+   * Return the number of cells in a well formed range.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   * @return the number of cells in the range
+   */
+  static long area(int fromRow, int fromCol, int toRow, int toCol) {
+    return ((long) toRow - fromRow + 1) * ((long) toCol - fromCol + 1);
+  }
+
+  /**
+   * Return how many rows of a range fit in one chunk of {@link #CHUNK_CELLS} cells. At least
+   * one row is always returned, however wide the range is.
+   *
+   * @param fromRow the first row of the range
+   * @param toRow   the last row of the range
+   * @param cols    the number of columns in the range
+   * @return the number of rows to handle per chunk
+   */
+  static int rowsPerChunk(int fromRow, int toRow, int cols) {
+    return Math.max(1, Math.min(toRow - fromRow + 1, CHUNK_CELLS / cols));
+  }
+}
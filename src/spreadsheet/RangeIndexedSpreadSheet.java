@@ -0,0 +1,338 @@
+package spreadsheet;
+
+/**
+ * A macro spreadsheet that keeps a summed range index alongside another macro spreadsheet.
+ * The index covers a fixed rectangle starting at (0, 0) and is updated on every write, so the
+ * sum and the number of non-empty cells of any range inside it are answered in
+ * O(log rows * log cols) instead of by visiting every cell. Ranges that reach outside the
+ * rectangle are answered by the underlying spreadsheet.
+ *
+ * <p>Every write must go through this object for the index to stay correct. Macros are
+ * executed by the underlying spreadsheet, so that it can journal, log or parallelize them. A
+ * built-in macro is handed to it as it is, and the cells it may write are brought up to date
+ * in the index afterwards; any other macro runs against this object, which reads and writes
+ * the cells through the spreadsheet handed to the macro. The index needs about 20 bytes per
+ * covered cell.
+ */
+public class RangeIndexedSpreadSheet implements MacroSpreadSheet {
+  private final MacroSpreadSheet delegate;
+  private final FenwickIndex index;
+  private final long rebuildArea;
+  private SpreadSheet cells;
+
+  /**
+   * Attach a summed range index covering the given number of rows and columns to a
+   * spreadsheet. The index is built from the cells the spreadsheet already holds.
+   *
+   * @param delegate the spreadsheet to index
+   * @param rows     the number of rows covered by the index, starting with row 0
+   * @param cols     the number of columns covered by the index, starting with column 0
+   * @throws IllegalArgumentException if the spreadsheet is null or a dimension is not positive
+   */
+  public RangeIndexedSpreadSheet(MacroSpreadSheet delegate, int rows, int cols)
+          throws IllegalArgumentException {
+    if (delegate == null) {
+      throw new IllegalArgumentException("Spreadsheet cannot be null");
+    }
+    this.delegate = delegate;
+    this.cells = delegate;
+    this.index = new FenwickIndex(rows, cols);
+    long logs = (long) (32 - Integer.numberOfLeadingZeros(rows))
+            * (32 - Integer.numberOfLeadingZeros(cols));
+    this.rebuildArea = Math.max(1, (long) rows * cols / logs);
+    this.index.rebuild(delegate);
+  }
+
+  /**
+   * Get the number at the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    return this.cells.get(row, col);
+  }
+
+  /**
+   * Set the value of the specified cell to the specified value and update the index.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    if (row >= 0 && col >= 0 && this.index.covers(row, col)) {
+      boolean wasEmpty = this.cells.isEmpty(row, col);
+      double old = this.cells.get(row, col);
+      this.cells.set(row, col, value);
+      this.index.update(row, col, old, value, wasEmpty ? 1 : 0);
+    } else {
+      this.cells.set(row, col, value);
+    }
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    return this.cells.isEmpty(row, col);
+  }
+
+  /**
+   * Return the width of the underlying spreadsheet.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return this.cells.getWidth();
+  }
+
+  /**
+   * Return the height of the underlying spreadsheet.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return this.cells.getHeight();
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    this.cells.getRange(fromRow, fromCol, toRow, toCol, dest);
+  }
+
+  /**
+   * Set every cell in the specified range to the same value and update the index. When the
+   * range covers a large part of the index, the index is rebuilt instead of updated per cell.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    long covered = coveredArea(fromRow, fromCol, toRow, toCol);
+    if (covered == 0 || covered >= this.rebuildArea) {
+      this.cells.fillRange(fromRow, fromCol, toRow, toCol, value);
+      if (covered > 0) {
+        this.index.rebuild(this.cells);
+      }
+      return;
+    }
+    int lastRow = Math.min(toRow, this.index.rows() - 1);
+    int lastCol = Math.min(toCol, this.index.cols() - 1);
+    for (int row = fromRow; row <= lastRow; row++) {
+      for (int col = fromCol; col <= lastCol; col++) {
+        boolean wasEmpty = this.cells.isEmpty(row, col);
+        this.index.update(row, col, this.cells.get(row, col), value, wasEmpty ? 1 : 0);
+      }
+    }
+    this.cells.fillRange(fromRow, fromCol, toRow, toCol, value);
+  }
+
+  /**
+   * Set the cells in the specified range to the values in an array and update the index.
+   * When the range covers a large part of the index, the index is rebuilt instead of updated
+   * per cell.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, values);
+    long covered = coveredArea(fromRow, fromCol, toRow, toCol);
+    if (covered == 0 || covered >= this.rebuildArea) {
+      this.cells.setRange(fromRow, fromCol, toRow, toCol, values);
+      if (covered > 0) {
+        this.index.rebuild(this.cells);
+      }
+      return;
+    }
+    int cols = toCol - fromCol + 1;
+    int lastRow = Math.min(toRow, this.index.rows() - 1);
+    int lastCol = Math.min(toCol, this.index.cols() - 1);
+    for (int row = fromRow; row <= lastRow; row++) {
+      for (int col = fromCol; col <= lastCol; col++) {
+        double value = values[(row - fromRow) * cols + (col - fromCol)];
+        boolean wasEmpty = this.cells.isEmpty(row, col);
+        this.index.update(row, col, this.cells.get(row, col), value, wasEmpty ? 1 : 0);
+      }
+    }
+    this.cells.setRange(fromRow, fromCol, toRow, toCol, values);
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range, from the index when the range lies
+   * inside it.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (this.index.covers(toRow, toCol)) {
+      return this.index.sum(fromRow, fromCol, toRow, toCol);
+    }
+    return this.cells.sumRange(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Return the number of non-empty cells in the specified range, which must lie inside the
+   * index.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the number of non-empty cells in the range
+   * @throws IllegalArgumentException if the range is invalid or reaches outside the index
+   */
+  public long countRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (!this.index.covers(toRow, toCol)) {
+      throw new IllegalArgumentException("Cell range is outside the index");
+    }
+    return this.index.count(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Call the visitor for every non-empty cell in the specified range, as the underlying
+   * spreadsheet finds them.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to call for each non-empty cell
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    this.cells.forEachNonEmpty(fromRow, fromCol, toRow, toCol, visitor);
+  }
+
+  /**
+   * Executes the given macro command through the underlying spreadsheet. A built-in macro is
+   * handed over as it is, and the part of the index it may have written is updated from the
+   * cells afterwards, or rebuilt if that part is large or the macro fails. Any other macro
+   * runs against this spreadsheet, with its cells read and written through the spreadsheet
+   * that the underlying one hands to the macro, so that its writes update the index.
+   *
+   * @param command the macro command to execute
+   */
+  @Override
+  public void execute(MacroCommand command) {
+    int[] written = MacroBounds.written(command);
+    if (written == null) {
+      this.delegate.execute(sheet -> {
+        SpreadSheet outer = this.cells;
+        this.cells = sheet;
+        try {
+          command.execute(this);
+        } finally {
+          this.cells = outer;
+        }
+      });
+      return;
+    }
+    long covered = written.length == 0 ? 0
+            : coveredArea(written[0], written[1], written[2], written[3]);
+    if (covered == 0) {
+      this.delegate.execute(command);
+      return;
+    }
+    if (covered >= this.rebuildArea) {
+      try {
+        this.delegate.execute(command);
+      } finally {
+        this.index.rebuild(this.delegate);
+      }
+      return;
+    }
+    int lastRow = Math.min(written[2], this.index.rows() - 1);
+    int lastCol = Math.min(written[3], this.index.cols() - 1);
+    double[] before = new double[(int) covered];
+    boolean[] wasEmpty = new boolean[(int) covered];
+    int i = 0;
+    for (int row = written[0]; row <= lastRow; row++) {
+      for (int col = written[1]; col <= lastCol; col++) {
+        wasEmpty[i] = this.delegate.isEmpty(row, col);
+        before[i++] = this.delegate.get(row, col);
+      }
+    }
+    try {
+      this.delegate.execute(command);
+    } catch (RuntimeException e) {
+      this.index.rebuild(this.delegate);
+      throw e;
+    }
+    i = 0;
+    for (int row = written[0]; row <= lastRow; row++) {
+      for (int col = written[1]; col <= lastCol; col++) {
+        int countDelta = (wasEmpty[i] ? 1 : 0) - (this.delegate.isEmpty(row, col) ? 1 : 0);
+        this.index.update(row, col, before[i], this.delegate.get(row, col), countDelta);
+        i++;
+      }
+    }
+  }
+
+  /**
+   * Return the number of cells of a range that lie inside the index.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   * @return the number of covered cells
+   */
+  private long coveredArea(int fromRow, int fromCol, int toRow, int toCol) {
+    if (!this.index.covers(fromRow, fromCol)) {
+      return 0;
+    }
+    return RangeChecks.area(fromRow, fromCol, Math.min(toRow, this.index.rows() - 1),
+            Math.min(toCol, this.index.cols() - 1));
+  }
+}
@@ -0,0 +1,259 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+/**
+ * The sum, extremes, mean and variance of a range of cells, and the number of its non-empty
+ * cells, computed in one pass over the range. Empty cells count as 0, as they do for
+ * {@link MacroAverage}.
+ *
+ * <p>Only the non-empty cells are read, with {@link SpreadSheet#forEachNonEmpty}, so the cost
+ * follows the number of values rather than the area of the range. The values are gathered in
+ * chunks, and each chunk is reduced by unrolled loops with four independent accumulators, which
+ * the JIT compiler can keep in registers and vectorize. The empty cells are then accounted for
+ * at once, as a block of zeros. The partial results are combined with compensated (Kahan)
+ * summation for the sum, and with the pairwise update of Chan et al. for the variance, so
+ * neither loses precision on long ranges or on values far from 0.
+ */
+public final class RangeStatistics {
+  private long cells;
+  private long nonEmpty;
+  private double sum;
+  private double compensation;
+  private double mean;
+  private double squares;
+  private double min;
+  private double max;
+  private double[] chunk;
+  private int filled;
+
+  /**
+   * Create the statistics of an empty range.
+   */
+  private RangeStatistics() {
+    this.cells = 0;
+    this.nonEmpty = 0;
+    this.sum = 0;
+    this.compensation = 0;
+    this.mean = 0;
+    this.squares = 0;
+    this.min = Double.POSITIVE_INFINITY;
+    this.max = Double.NEGATIVE_INFINITY;
+    this.chunk = null;
+    this.filled = 0;
+  }
+
+  /**
+   * Compute the statistics of the specified range of a spreadsheet.
+   *
+   * @param sheet   the spreadsheet to read
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the statistics of the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  public static RangeStatistics of(SpreadSheet sheet, int fromRow, int fromCol, int toRow,
+                                   int toCol) throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    long area = RangeChecks.area(fromRow, fromCol, toRow, toCol);
+    RangeStatistics statistics = new RangeStatistics();
+    statistics.chunk = new double[(int) Math.min(area, 1 << 10)];
+    sheet.forEachNonEmpty(fromRow, fromCol, toRow, toCol,
+            (row, col, value) -> statistics.add(value));
+    if (statistics.filled > 0) {
+      statistics.accept(statistics.chunk, statistics.filled);
+    }
+    statistics.chunk = null;
+    statistics.nonEmpty = statistics.cells;
+    long zeros = area - statistics.cells;
+    if (zeros > 0) {
+      statistics.min = Math.min(statistics.min, 0.0);
+      statistics.max = Math.max(statistics.max, 0.0);
+      statistics.merge(zeros, 0.0, 0.0, 0.0);
+    }
+    return statistics;
+  }
+
+  /**
+   * Return the number of cells in the range, empty ones included.
+   *
+   * @return the number of cells
+   */
+  public long getCells() {
+    return this.cells;
+  }
+
+  /**
+   * Return the number of non-empty cells in the range.
+   *
+   * @return the number of non-empty cells
+   */
+  public long getNonEmpty() {
+    return this.nonEmpty;
+  }
+
+  /**
+   * Return the sum of the cells.
+   *
+   * @return the sum of the cells
+   */
+  public double getSum() {
+    return this.sum + this.compensation;
+  }
+
+  /**
+   * Return the mean of the cells.
+   *
+   * @return the mean of the cells
+   */
+  public double getMean() {
+    return this.cells == 0 ? 0.0 : getSum() / this.cells;
+  }
+
+  /**
+   * Return the smallest cell.
+   *
+   * @return the smallest cell
+   */
+  public double getMin() {
+    return this.min;
+  }
+
+  /**
+   * Return the largest cell.
+   *
+   * @return the largest cell
+   */
+  public double getMax() {
+    return this.max;
+  }
+
+  /**
+   * Return the population variance of the cells, that is the mean of their squared distances
+   * from their mean.
+   *
+   * @return the variance of the cells
+   */
+  public double getVariance() {
+    return this.cells == 0 ? 0.0 : Math.max(0.0, this.squares / this.cells);
+  }
+
+  /**
+   * Return the population standard deviation of the cells.
+   *
+   * @return the standard deviation of the cells
+   */
+  public double getStandardDeviation() {
+    return Math.sqrt(getVariance());
+  }
+
+  /**
+   * Gather the value of one non-empty cell. The buffer grows up to a chunk of
+   * {@link RangeChecks#CHUNK_CELLS} values, and a full chunk is reduced before gathering more.
+   *
+   * @param value the value of the cell
+   */
+  private void add(double value) {
+    if (this.filled == this.chunk.length) {
+      if (this.chunk.length < RangeChecks.CHUNK_CELLS) {
+        this.chunk = Arrays.copyOf(this.chunk, this.chunk.length << 1);
+      } else {
+        accept(this.chunk, this.filled);
+        this.filled = 0;
+      }
+    }
+    this.chunk[this.filled++] = value;
+  }
+
+  /**
+   * Add a chunk of cells to these statistics. The chunk is reduced on its own, with one pass
+   * for its sum and extremes and one for its squared distances from its mean while it is
+   * still in cache, and the result is merged into the running totals.
+   *
+   * @param values the array holding the cells
+   * @param length the number of cells, starting at index 0
+   */
+  private void accept(double[] values, int length) {
+    double s0 = 0;
+    double s1 = 0;
+    double s2 = 0;
+    double s3 = 0;
+    double lo0 = Double.POSITIVE_INFINITY;
+    double lo1 = Double.POSITIVE_INFINITY;
+    double hi0 = Double.NEGATIVE_INFINITY;
+    double hi1 = Double.NEGATIVE_INFINITY;
+    int i = 0;
+    for (; i + 3 < length; i += 4) {
+      double v0 = values[i];
+      double v1 = values[i + 1];
+      double v2 = values[i + 2];
+      double v3 = values[i + 3];
+      s0 += v0;
+      s1 += v1;
+      s2 += v2;
+      s3 += v3;
+      lo0 = Math.min(lo0, Math.min(v0, v1));
+      lo1 = Math.min(lo1, Math.min(v2, v3));
+      hi0 = Math.max(hi0, Math.max(v0, v1));
+      hi1 = Math.max(hi1, Math.max(v2, v3));
+    }
+    for (; i < length; i++) {
+      s0 += values[i];
+      lo0 = Math.min(lo0, values[i]);
+      hi0 = Math.max(hi0, values[i]);
+    }
+    double chunkSum = (s0 + s1) + (s2 + s3);
+    double chunkMean = chunkSum / length;
+
+    double d0 = 0;
+    double d1 = 0;
+    double q0 = 0;
+    double q1 = 0;
+    i = 0;
+    for (; i + 1 < length; i += 2) {
+      double e0 = values[i] - chunkMean;
+      double e1 = values[i + 1] - chunkMean;
+      d0 += e0;
+      d1 += e1;
+      q0 += e0 * e0;
+      q1 += e1 * e1;
+    }
+    for (; i < length; i++) {
+      double e = values[i] - chunkMean;
+      d0 += e;
+      q0 += e * e;
+    }
+    double residual = d0 + d1;
+    double chunkSquares = (q0 + q1) - residual * residual / length;
+
+    this.min = Math.min(this.min, Math.min(lo0, lo1));
+    this.max = Math.max(this.max, Math.max(hi0, hi1));
+    merge(length, chunkSum, chunkMean, chunkSquares);
+  }
+
+  /**
+   * Merge the statistics of a chunk into the running totals.
+   *
+   * @param count   the number of cells in the chunk
+   * @param total   the sum of the chunk
+   * @param average the mean of the chunk
+   * @param squares the sum of the squared distances of the chunk from its mean
+   */
+  private void merge(long count, double total, double average, double squares) {
+    long combined = this.cells + count;
+    double delta = average - this.mean;
+    this.mean += delta * count / combined;
+    this.squares += squares + delta * delta * ((double) this.cells * count / combined);
+    this.cells = combined;
+
+    double t = this.sum + total;
+    if (Math.abs(this.sum) >= Math.abs(total)) {
+      this.compensation += (this.sum - t) + total;
+    } else {
+      this.compensation += (total - t) + this.sum;
+    }
+    this.sum = t;
+  }
+}
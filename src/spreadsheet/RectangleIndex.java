@@ -0,0 +1,276 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * A spatial index of cell rectangles, each with a value attached, answering which rectangles
+ * contain a cell or intersect a range.
+ *
+ * <p>The index is a stack of grids with buckets of growing size: 64 by 64 cells on the first
+ * level, sixteen times more in each direction on every level after it, up to a last level
+ * whose four buckets cover every possible cell. A rectangle is kept on the first level where it
+ * spans at most two buckets in each direction, in each bucket it overlaps, so it is stored at
+ * most four times whatever its size. Looking up a cell visits one bucket per level and only
+ * the rectangles in those buckets; a rectangle spanning several buckets is reported from the
+ * bucket holding the top left corner of its intersection with the range, so it is reported
+ * once.
+ *
+ * @param <T> the type of the values attached to the rectangles
+ */
+final class RectangleIndex<T> {
+  private static final int FIRST_SHIFT = 6;
+  private static final int SHIFT_STEP = 4;
+  private static final int LEVELS = 7;
+
+  private final ArrayList<LongObjectHashMap<ArrayList<Entry<T>>>> levels;
+  private int size;
+
+  /**
+   * Create an empty index.
+   */
+  RectangleIndex() {
+    this.levels = new ArrayList<LongObjectHashMap<ArrayList<Entry<T>>>>(LEVELS);
+    for (int i = 0; i < LEVELS; i++) {
+      this.levels.add(new LongObjectHashMap<ArrayList<Entry<T>>>());
+    }
+  }
+
+  /**
+   * Add a rectangle with a value attached. The same value may be added with several
+   * rectangles, and the same rectangle with several values.
+   *
+   * @param fromRow the first row of the rectangle
+   * @param fromCol the first column of the rectangle
+   * @param toRow   the last row of the rectangle, inclusive
+   * @param toCol   the last column of the rectangle, inclusive
+   * @param value   the value attached to the rectangle
+   * @throws IllegalArgumentException if the rectangle is invalid or the value is null
+   */
+  void add(int fromRow, int fromCol, int toRow, int toCol, T value)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (value == null) {
+      throw new IllegalArgumentException("Value cannot be null");
+    }
+    Entry<T> entry = new Entry<T>(fromRow, fromCol, toRow, toCol, value);
+    int level = levelOf(fromRow, fromCol, toRow, toCol);
+    int shift = shiftOf(level);
+    LongObjectHashMap<ArrayList<Entry<T>>> buckets = this.levels.get(level);
+    for (int row = fromRow >>> shift; row <= toRow >>> shift; row++) {
+      for (int col = fromCol >>> shift; col <= toCol >>> shift; col++) {
+        long key = CellKey.pack(row, col);
+        ArrayList<Entry<T>> bucket = buckets.get(key);
+        if (bucket == null) {
+          bucket = new ArrayList<Entry<T>>(4);
+          buckets.put(key, bucket);
+        }
+        bucket.add(entry);
+      }
+    }
+    this.size++;
+  }
+
+  /**
+   * Remove a rectangle added with the given value. Values are compared by identity.
+   *
+   * @param fromRow the first row of the rectangle
+   * @param fromCol the first column of the rectangle
+   * @param toRow   the last row of the rectangle, inclusive
+   * @param toCol   the last column of the rectangle, inclusive
+   * @param value   the value attached to the rectangle
+   * @return true if the rectangle was found and removed, false otherwise
+   */
+  boolean remove(int fromRow, int fromCol, int toRow, int toCol, T value) {
+    if (fromRow < 0 || fromCol < 0 || toRow < fromRow || toCol < fromCol) {
+      return false;
+    }
+    int level = levelOf(fromRow, fromCol, toRow, toCol);
+    int shift = shiftOf(level);
+    LongObjectHashMap<ArrayList<Entry<T>>> buckets = this.levels.get(level);
+    boolean removed = false;
+    for (int row = fromRow >>> shift; row <= toRow >>> shift; row++) {
+      for (int col = fromCol >>> shift; col <= toCol >>> shift; col++) {
+        long key = CellKey.pack(row, col);
+        ArrayList<Entry<T>> bucket = buckets.get(key);
+        if (bucket == null) {
+          continue;
+        }
+        for (int i = 0; i < bucket.size(); i++) {
+          Entry<T> entry = bucket.get(i);
+          if (entry.value == value && entry.fromRow == fromRow && entry.fromCol == fromCol
+                  && entry.toRow == toRow && entry.toCol == toCol) {
+            bucket.remove(i);
+            removed = true;
+            break;
+          }
+        }
+        if (bucket.isEmpty()) {
+          buckets.remove(key);
+        }
+      }
+    }
+    if (removed) {
+      this.size--;
+    }
+    return removed;
+  }
+
+  /**
+   * Pass the value of every rectangle containing the given cell to the visitor.
+   *
+   * @param row     the row of the cell
+   * @param col     the column of the cell
+   * @param visitor the visitor to receive the values
+   */
+  void forEachContaining(int row, int col, Consumer<? super T> visitor) {
+    forEachIntersecting(row, col, row, col, visitor);
+  }
+
+  /**
+   * Pass the value of every rectangle intersecting the given range to the visitor, once per
+   * rectangle. The index must not be modified while it is being visited.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to receive the values
+   */
+  void forEachIntersecting(int fromRow, int fromCol, int toRow, int toCol,
+                           Consumer<? super T> visitor) {
+    if (this.size == 0) {
+      return;
+    }
+    for (int level = 0; level < LEVELS; level++) {
+      LongObjectHashMap<ArrayList<Entry<T>>> buckets = this.levels.get(level);
+      if (buckets.size() == 0) {
+        continue;
+      }
+      int shift = shiftOf(level);
+      int firstRow = fromRow >>> shift;
+      int lastRow = toRow >>> shift;
+      int firstCol = fromCol >>> shift;
+      int lastCol = toCol >>> shift;
+      if ((long) (lastRow - firstRow + 1) * (lastCol - firstCol + 1) > buckets.size()) {
+        buckets.forEach((key, bucket) -> {
+          int row = CellKey.row(key);
+          int col = CellKey.col(key);
+          if (row >= firstRow && row <= lastRow && col >= firstCol && col <= lastCol) {
+            visitBucket(bucket, row, col, shift, fromRow, fromCol, toRow, toCol, visitor);
+          }
+        });
+        continue;
+      }
+      for (int row = firstRow; row <= lastRow; row++) {
+        for (int col = firstCol; col <= lastCol; col++) {
+          ArrayList<Entry<T>> bucket = buckets.get(CellKey.pack(row, col));
+          if (bucket != null) {
+            visitBucket(bucket, row, col, shift, fromRow, fromCol, toRow, toCol, visitor);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Return the number of rectangles in this index.
+   *
+   * @return the number of rectangles
+   */
+  int size() {
+    return this.size;
+  }
+
+  /**
+   * Pass the values of the rectangles of one bucket that intersect a range and whose
+   * intersection with it starts in this bucket.
+   *
+   * @param bucket    the rectangles of the bucket
+   * @param bucketRow the row of the bucket in its grid
+   * @param bucketCol the column of the bucket in its grid
+   * @param shift     the binary logarithm of the bucket size of the grid
+   * @param fromRow   the first row of the range
+   * @param fromCol   the first column of the range
+   * @param toRow     the last row of the range
+   * @param toCol     the last column of the range
+   * @param visitor   the visitor to receive the values
+   */
+  private void visitBucket(ArrayList<Entry<T>> bucket, int bucketRow, int bucketCol, int shift,
+                           int fromRow, int fromCol, int toRow, int toCol,
+                           Consumer<? super T> visitor) {
+    for (int i = 0; i < bucket.size(); i++) {
+      Entry<T> entry = bucket.get(i);
+      if (entry.fromRow > toRow || entry.toRow < fromRow || entry.fromCol > toCol
+              || entry.toCol < fromCol) {
+        continue;
+      }
+      if (Math.max(entry.fromRow, fromRow) >>> shift == bucketRow
+              && Math.max(entry.fromCol, fromCol) >>> shift == bucketCol) {
+        visitor.accept(entry.value);
+      }
+    }
+  }
+
+  /**
+   * Return the first level on which a rectangle spans at most two buckets in each direction.
+   *
+   * @param fromRow the first row of the rectangle
+   * @param fromCol the first column of the rectangle
+   * @param toRow   the last row of the rectangle
+   * @param toCol   the last column of the rectangle
+   * @return the level of the rectangle
+   */
+  private static int levelOf(int fromRow, int fromCol, int toRow, int toCol) {
+    int level = 0;
+    while (level < LEVELS - 1) {
+      int shift = shiftOf(level);
+      if ((toRow >>> shift) - (fromRow >>> shift) <= 1
+              && (toCol >>> shift) - (fromCol >>> shift) <= 1) {
+        break;
+      }
+      level++;
+    }
+    return level;
+  }
+
+  /**
+   * Return the binary logarithm of the bucket size of a level.
+   *
+   * @param level the level
+   * @return the number of bits a row or column is shifted by to find its bucket
+   */
+  private static int shiftOf(int level) {
+    return FIRST_SHIFT + SHIFT_STEP * level;
+  }
+
+  /**
+   * One rectangle of the index with its value.
+   *
+   * @param <T> the type of the value
+   */
+  private static final class Entry<T> {
+    private final int fromRow;
+    private final int fromCol;
+    private final int toRow;
+    private final int toCol;
+    private final T value;
+
+    /**
+     * Create an entry.
+     *
+     * @param fromRow the first row of the rectangle
+     * @param fromCol the first column of the rectangle
+     * @param toRow   the last row of the rectangle
+     * @param toCol   the last column of the rectangle
+     * @param value   the value attached to the rectangle
+     */
+    Entry(int fromRow, int fromCol, int toRow, int toCol, T value) {
+      this.fromRow = fromRow;
+      this.fromCol = fromCol;
+      this.toRow = toRow;
+      this.toCol = toCol;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,242 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+/**
+ * An index of the positions of non-empty cells, organised by row. Each row keeps the columns
+ * of its cells in a primitive array, and the row numbers are kept in another one, so that the
+ * cells of a rectangle can be found in time proportional to the number of cells and rows it
+ * contains rather than its area.
+ *
+ * <p>Both arrays are sorted lazily: positions added in increasing order keep them sorted for
+ * free, and positions added out of order are sorted on the next query. This keeps random
+ * insertion at amortized O(log n) instead of shifting large arrays on every insert. Row numbers
+ * of emptied rows stay in the array until it is cleaned; when it is full and more than half of
+ * it is stale, it is cleaned instead of grown, so rows that are emptied and filled again over
+ * and over without any query keep it at most about four times the number of live rows.
+ */
+final class RowIndex {
+  private final LongObjectHashMap<Row> rows;
+  private int[] rowIds;
+  private int rowIdCount;
+  private boolean rowIdsClean;
+
+  /**
+   * Create an empty index.
+   */
+  RowIndex() {
+    this.rows = new LongObjectHashMap<Row>();
+    this.rowIds = new int[16];
+    this.rowIdCount = 0;
+    this.rowIdsClean = true;
+  }
+
+  /**
+   * Add a position that is not in the index yet.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   */
+  void add(int row, int col) {
+    Row entry = this.rows.get(row);
+    if (entry == null) {
+      entry = new Row();
+      this.rows.put(row, entry);
+      if (this.rowIdCount == this.rowIds.length) {
+        if (this.rowIdCount > 2 * this.rows.size()) {
+          cleanRowIds();
+        }
+        if (this.rowIdCount == this.rowIds.length) {
+          this.rowIds = Arrays.copyOf(this.rowIds, this.rowIdCount << 1);
+        }
+      }
+      if (this.rowIdCount > 0 && row <= this.rowIds[this.rowIdCount - 1]) {
+        this.rowIdsClean = false;
+      }
+      this.rowIds[this.rowIdCount++] = row;
+    }
+    entry.add(col);
+  }
+
+  /**
+   * Remove a position from the index.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   */
+  void remove(int row, int col) {
+    Row entry = this.rows.get(row);
+    if (entry != null && entry.remove(col) && entry.size == 0) {
+      this.rows.remove(row);
+      this.rowIdsClean = false;
+    }
+  }
+
+  /**
+   * Returns whether the index holds no positions.
+   *
+   * @return true if the index is empty, false otherwise
+   */
+  boolean isEmpty() {
+    return this.rows.size() == 0;
+  }
+
+  /**
+   * Return the highest row number in the index.
+   *
+   * @return the highest row number, or -1 if the index is empty
+   */
+  int maxRow() {
+    cleanRowIds();
+    return this.rowIdCount == 0 ? -1 : this.rowIds[this.rowIdCount - 1];
+  }
+
+  /**
+   * Return the highest column number in the index, which takes time proportional to the
+   * number of rows.
+   *
+   * @return the highest column number, or -1 if the index is empty
+   */
+  int maxCol() {
+    int[] max = {-1};
+    this.rows.forEach((row, entry) -> {
+      entry.sort();
+      max[0] = Math.max(max[0], entry.cols[entry.size - 1]);
+    });
+    return max[0];
+  }
+
+  /**
+   * Pass every position inside a rectangle to the given visitor, in row-major order.
+   *
+   * @param fromRow the first row of the rectangle
+   * @param fromCol the first column of the rectangle
+   * @param toRow   the last row of the rectangle
+   * @param toCol   the last column of the rectangle
+   * @param visitor the visitor to receive the positions
+   */
+  void visit(int fromRow, int fromCol, int toRow, int toCol, PositionVisitor visitor) {
+    cleanRowIds();
+    for (int p = lowerBound(this.rowIds, this.rowIdCount, fromRow); p < this.rowIdCount; p++) {
+      int row = this.rowIds[p];
+      if (row > toRow) {
+        break;
+      }
+      Row entry = this.rows.get(row);
+      entry.sort();
+      for (int q = lowerBound(entry.cols, entry.size, fromCol); q < entry.size; q++) {
+        int col = entry.cols[q];
+        if (col > toCol) {
+          break;
+        }
+        visitor.visit(row, col);
+      }
+    }
+  }
+
+  /**
+   * Sort the row numbers and drop those of rows that have been emptied or listed twice.
+   */
+  private void cleanRowIds() {
+    if (this.rowIdsClean) {
+      return;
+    }
+    Arrays.sort(this.rowIds, 0, this.rowIdCount);
+    int kept = 0;
+    for (int i = 0; i < this.rowIdCount; i++) {
+      int row = this.rowIds[i];
+      if ((kept == 0 || this.rowIds[kept - 1] != row) && this.rows.get(row) != null) {
+        this.rowIds[kept++] = row;
+      }
+    }
+    this.rowIdCount = kept;
+    this.rowIdsClean = true;
+  }
+
+  /**
+   * Find the first element of a sorted array prefix that is not less than the given value.
+   *
+   * @param array the sorted array
+   * @param size  the number of elements in use
+   * @param value the value to look for
+   * @return the index of the first element not less than the value, or size if there is none
+   */
+  private static int lowerBound(int[] array, int size, int value) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (array[mid] < value) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Receives the positions in an index one at a time.
+   */
+  interface PositionVisitor {
+
+    /**
+     * Visit one position.
+     *
+     * @param row the row number of the cell
+     * @param col the column number of the cell
+     */
+    void visit(int row, int col);
+  }
+
+  /**
+   * The columns of the non-empty cells of one row.
+   */
+  private static final class Row {
+    private int[] cols = new int[4];
+    private int size;
+    private boolean sorted = true;
+
+    /**
+     * Add a column that is not in this row yet.
+     *
+     * @param col the column number to add
+     */
+    private void add(int col) {
+      if (size == cols.length) {
+        cols = Arrays.copyOf(cols, size << 1);
+      }
+      if (size > 0 && col < cols[size - 1]) {
+        sorted = false;
+      }
+      cols[size++] = col;
+    }
+
+    /**
+     * Remove a column from this row.
+     *
+     * @param col the column number to remove
+     * @return true if the column was present, false otherwise
+     */
+    private boolean remove(int col) {
+      sort();
+      int pos = lowerBound(cols, size, col);
+      if (pos == size || cols[pos] != col) {
+        return false;
+      }
+      System.arraycopy(cols, pos + 1, cols, pos, size - pos - 1);
+      size--;
+      return true;
+    }
+
+    /**
+     * Sort the columns of this row if they were added out of order.
+     */
+    private void sort() {
+      if (!sorted) {
+        Arrays.sort(cols, 0, size);
+        sorted = true;
+      }
+    }
+  }
+}
@@ -0,0 +1,183 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Walks the non-empty cells of a spreadsheet in row-major order, one row at a time, for
+ * writers that stream a spreadsheet out. The spreadsheet is read in bands of rows holding at
+ * most {@link RangeChecks#CHUNK_CELLS} non-empty cells (or one row, if a row holds more than
+ * that), so no more than one band is ever held in memory. Bands are sized by the cells they
+ * hold rather than by their area: a band that holds few cells is followed by one twice as
+ * tall, and a band that holds too many is read again at half the height. A sparse sheet is
+ * therefore walked in a number of reads that grows with its non-empty cells and only with
+ * the logarithm of its height, however far apart its rows are.
+ */
+final class RowScanner {
+
+  /**
+   * This class only offers static helpers.
+   */
+  private RowScanner() {
+  }
+
+  /**
+   * Pass every non-empty row of the given spreadsheet to a consumer, in increasing row order,
+   * with its cells in increasing column order.
+   *
+   * @param sheet    the spreadsheet to walk
+   * @param consumer the consumer to receive the rows
+   * @throws IOException if the consumer fails to write a row
+   */
+  static void forEachRow(SpreadSheet sheet, RowConsumer consumer) throws IOException {
+    int height = sheet.getHeight();
+    int width = sheet.getWidth();
+    if (height <= 0 || width <= 0) {
+      return;
+    }
+    Band band = new Band();
+    long rows = RangeChecks.rowsPerChunk(0, height - 1, width);
+    int first = 0;
+    while (true) {
+      int last = (int) Math.min(height - 1, first + rows - 1);
+      if (!band.collect(sheet, first, last, width)) {
+        rows = (last - first + 1) / 2;
+        continue;
+      }
+      band.emit(first, consumer);
+      if (last == height - 1) {
+        return;
+      }
+      rows = last - first + 1;
+      if (band.count < RangeChecks.CHUNK_CELLS / 2) {
+        rows = Math.min(height, rows << 1);
+      }
+      first = last + 1;
+    }
+  }
+
+  /**
+   * The non-empty cells of one band of rows, in growable primitive arrays that are reused
+   * from band to band.
+   */
+  private static final class Band {
+    private long[] order;
+    private int[] cols;
+    private double[] values;
+    private int count;
+    private boolean overflowed;
+    private long[] rowOrder;
+    private int[] rowCols;
+    private double[] rowValues;
+
+    /**
+     * Create an empty band.
+     */
+    private Band() {
+      this.order = new long[64];
+      this.cols = new int[64];
+      this.values = new double[64];
+      this.count = 0;
+      this.overflowed = false;
+      this.rowOrder = new long[64];
+      this.rowCols = new int[64];
+      this.rowValues = new double[64];
+    }
+
+    /**
+     * Read the non-empty cells of a band of rows. A band of more than one row holding more
+     * than {@link RangeChecks#CHUNK_CELLS} cells is not kept.
+     *
+     * @param sheet the spreadsheet to read
+     * @param first the first row of the band
+     * @param last  the last row of the band
+     * @param width the width of the spreadsheet
+     * @return true if the band was read, false if it holds too many cells
+     */
+    private boolean collect(SpreadSheet sheet, int first, int last, int width) {
+      this.count = 0;
+      this.overflowed = false;
+      boolean bounded = last > first;
+      sheet.forEachNonEmpty(first, 0, last, width - 1, (row, col, value) -> {
+        if (this.overflowed) {
+          return;
+        }
+        if (bounded && this.count == RangeChecks.CHUNK_CELLS) {
+          this.overflowed = true;
+          return;
+        }
+        add(row - first, col, value);
+      });
+      return !this.overflowed;
+    }
+
+    /**
+     * Append one cell, growing the arrays if needed.
+     *
+     * @param rowOffset the row of the cell, relative to the first row of the band
+     * @param col       the column of the cell
+     * @param value     the value of the cell
+     */
+    private void add(int rowOffset, int col, double value) {
+      int i = this.count++;
+      if (i == this.order.length) {
+        this.order = Arrays.copyOf(this.order, i << 1);
+        this.cols = Arrays.copyOf(this.cols, i << 1);
+        this.values = Arrays.copyOf(this.values, i << 1);
+      }
+      this.order[i] = ((long) rowOffset << 32) | i;
+      this.cols[i] = col;
+      this.values[i] = value;
+    }
+
+    /**
+     * Pass the rows of the band to a consumer: the cells are sorted by row, then each row by
+     * column.
+     *
+     * @param first    the first row of the band
+     * @param consumer the consumer to receive the rows
+     * @throws IOException if the consumer fails to write a row
+     */
+    private void emit(int first, RowConsumer consumer) throws IOException {
+      Arrays.sort(this.order, 0, this.count);
+      int start = 0;
+      while (start < this.count) {
+        long rowOffset = this.order[start] >>> 32;
+        int n = 0;
+        while (start + n < this.count && (this.order[start + n] >>> 32) == rowOffset) {
+          if (n == this.rowOrder.length) {
+            this.rowOrder = Arrays.copyOf(this.rowOrder, n << 1);
+            this.rowCols = Arrays.copyOf(this.rowCols, n << 1);
+            this.rowValues = Arrays.copyOf(this.rowValues, n << 1);
+          }
+          int i = (int) this.order[start + n];
+          this.rowOrder[n++] = ((long) this.cols[i] << 32) | i;
+        }
+        Arrays.sort(this.rowOrder, 0, n);
+        for (int k = 0; k < n; k++) {
+          this.rowCols[k] = (int) (this.rowOrder[k] >>> 32);
+          this.rowValues[k] = this.values[(int) this.rowOrder[k]];
+        }
+        consumer.row(first + (int) rowOffset, this.rowCols, this.rowValues, n);
+        start += n;
+      }
+    }
+  }
+
+  /**
+   * Receives the non-empty rows of a spreadsheet one at a time.
+   */
+  interface RowConsumer {
+
+    /**
+     * Receive one non-empty row. The arrays are reused for the next row.
+     *
+     * @param row    the row number
+     * @param cols   the columns of the non-empty cells, in increasing order
+     * @param values the values of the non-empty cells
+     * @param count  the number of non-empty cells
+     * @throws IOException if the row cannot be written
+     */
+    void row(int row, int[] cols, double[] values, int count) throws IOException;
+  }
+}
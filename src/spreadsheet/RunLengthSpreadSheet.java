@@ -0,0 +1,518 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A sparse spreadsheet that stores constant rectangles as single runs instead of one entry per
+ * cell. Every {@link #fillRange} call, and so every {@link BulkMacroAssign}, becomes one run
+ * holding its rectangle and value, and a run is merged with a neighbouring run of the same
+ * value that lines up with it. Other writes store single cells as {@link SparseSpreadSheet}
+ * does.
+ *
+ * <p>Runs never overlap each other or the single cells. A write over part of a run splits the
+ * run around the written cells into at most four smaller runs, except for single cells set to
+ * the value their run already holds, which leave the run as it is. Runs are found through a
+ * {@link RectangleIndex}, and sums over a range add up each run in constant time.
+ * {@link #getCompressionRatio} reports how many cells each stored entry holds on average.
+ */
+public class RunLengthSpreadSheet extends SparseSpreadSheet {
+  private final RectangleIndex<Run> runs;
+  private final ArrayList<Run> found;
+  private long runCells;
+  private long singleCells;
+
+  /**
+   * Create an empty spreadsheet.
+   */
+  public RunLengthSpreadSheet() {
+    super();
+    this.runs = new RectangleIndex<Run>();
+    this.found = new ArrayList<Run>();
+  }
+
+  /**
+   * Return the number of runs stored.
+   *
+   * @return the number of runs
+   */
+  public int getRunCount() {
+    return this.runs.size();
+  }
+
+  /**
+   * Return the number of cells held by runs.
+   *
+   * @return the number of cells held by runs
+   */
+  public long getRunCellCount() {
+    return this.runCells;
+  }
+
+  /**
+   * Return the number of cells stored one by one, outside runs.
+   *
+   * @return the number of single cells
+   */
+  public long getSingleCellCount() {
+    return this.singleCells;
+  }
+
+  /**
+   * Return the number of non-empty cells for each stored entry, counting a run and a single
+   * cell as one entry each. A spreadsheet storing every cell on its own has a ratio of 1.
+   *
+   * @return the compression ratio, or 1 if the spreadsheet is empty
+   */
+  public double getCompressionRatio() {
+    long entries = this.runs.size() + this.singleCells;
+    if (entries == 0) {
+      return 1.0;
+    }
+    return (double) (this.runCells + this.singleCells) / entries;
+  }
+
+  /**
+   * Get the number at the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    Run run = runAt(row, col);
+    return run == null ? super.get(row, col) : run.value;
+  }
+
+  /**
+   * Set the value of the specified cell, splitting the run holding it unless the run already
+   * holds the value.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    Run run = runAt(row, col);
+    if (run != null) {
+      if (Double.doubleToLongBits(run.value) == Double.doubleToLongBits(value)) {
+        return;
+      }
+      carve(row, col, row, col);
+    }
+    super.set(row, col, value);
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    return runAt(row, col) == null && super.isEmpty(row, col);
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    super.getRange(fromRow, fromCol, toRow, toCol, dest);
+    collect(fromRow, fromCol, toRow, toCol);
+    int cols = toCol - fromCol + 1;
+    for (Run run : this.found) {
+      int firstCol = Math.max(fromCol, run.fromCol);
+      int lastCol = Math.min(toCol, run.toCol);
+      int lastRow = Math.min(toRow, run.toRow);
+      for (int row = Math.max(fromRow, run.fromRow); row <= lastRow; row++) {
+        int i = (row - fromRow) * cols + (firstCol - fromCol);
+        for (int col = firstCol; col <= lastCol; col++) {
+          dest[i++] = run.value;
+        }
+      }
+    }
+    this.found.clear();
+  }
+
+  /**
+   * Set every cell in the specified range to the same value, storing the range as one run.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (fromRow == toRow && fromCol == toCol) {
+      set(fromRow, fromCol, value);
+      return;
+    }
+    carve(fromRow, fromCol, toRow, toCol);
+    long[][] cells = {new long[16]};
+    int[] count = {0};
+    super.forEachNonEmpty(fromRow, fromCol, toRow, toCol, (row, col, old) -> {
+      if (count[0] == cells[0].length) {
+        cells[0] = Arrays.copyOf(cells[0], count[0] << 1);
+      }
+      cells[0][count[0]++] = CellKey.pack(row, col);
+    });
+    for (int i = 0; i < count[0]; i++) {
+      detach(CellKey.row(cells[0][i]), CellKey.col(cells[0][i]));
+    }
+    addRun(new Run(fromRow, fromCol, toRow, toCol, value));
+    includeInBounds(toRow, toCol);
+  }
+
+  /**
+   * Set the cells in the specified range to the values in an array, splitting the runs they
+   * fall in.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, values);
+    carve(fromRow, fromCol, toRow, toCol);
+    int i = 0;
+    for (int row = fromRow; row <= toRow; row++) {
+      for (int col = fromCol; col <= toCol; col++) {
+        put(row, col, values[i++]);
+      }
+    }
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range. Each run inside it adds its value
+   * times the number of its cells in the range.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    double sum = super.sumRange(fromRow, fromCol, toRow, toCol);
+    collect(fromRow, fromCol, toRow, toCol);
+    for (Run run : this.found) {
+      sum += run.value * RangeChecks.area(Math.max(fromRow, run.fromRow),
+              Math.max(fromCol, run.fromCol), Math.min(toRow, run.toRow),
+              Math.min(toCol, run.toCol));
+    }
+    this.found.clear();
+    return sum;
+  }
+
+  /**
+   * Pass every non-empty cell in the specified range to the visitor, in row-major order.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to receive the non-empty cells
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (visitor == null) {
+      throw new IllegalArgumentException("Visitor cannot be null");
+    }
+    collect(fromRow, fromCol, toRow, toCol);
+    if (this.found.isEmpty()) {
+      super.forEachNonEmpty(fromRow, fromCol, toRow, toCol, visitor);
+      return;
+    }
+    ArrayList<Run> inRange = new ArrayList<Run>(this.found);
+    this.found.clear();
+    inRange.sort((a, b) -> Integer.compare(a.fromCol, b.fromCol));
+    int lastRow = Math.min(toRow, getHeight() - 1);
+    long[][] order = {new long[16]};
+    double[][] values = {new double[16]};
+    int[] count = new int[1];
+    for (int row = fromRow; row <= lastRow; row++) {
+      count[0] = 0;
+      super.forEachNonEmpty(row, fromCol, row, toCol, (r, col, value) -> {
+        int i = count[0]++;
+        if (i == order[0].length) {
+          order[0] = Arrays.copyOf(order[0], i << 1);
+          values[0] = Arrays.copyOf(values[0], i << 1);
+        }
+        order[0][i] = ((long) col << 32) | i;
+        values[0][i] = value;
+      });
+      long[] sorted = order[0];
+      double[] singles = values[0];
+      Arrays.sort(sorted, 0, count[0]);
+      int next = 0;
+      for (Run run : inRange) {
+        if (row < run.fromRow || row > run.toRow) {
+          continue;
+        }
+        int firstCol = Math.max(fromCol, run.fromCol);
+        for (; next < count[0] && (int) (sorted[next] >>> 32) < firstCol; next++) {
+          visitor.visit(row, (int) (sorted[next] >>> 32), singles[(int) sorted[next]]);
+        }
+        int runLastCol = Math.min(toCol, run.toCol);
+        for (int col = firstCol; col <= runLastCol; col++) {
+          visitor.visit(row, col, run.value);
+        }
+      }
+      for (; next < count[0]; next++) {
+        visitor.visit(row, (int) (sorted[next] >>> 32), singles[(int) sorted[next]]);
+      }
+    }
+  }
+
+  /**
+   * Clear the specified cell, splitting the run holding it.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell held a value, false if it was already empty
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean clear(int row, int col) throws IllegalArgumentException {
+    if (runAt(row, col) == null) {
+      return super.clear(row, col);
+    }
+    carve(row, col, row, col);
+    if ((row + 1) == getHeight() || (col + 1) == getWidth()) {
+      recomputeBounds();
+    }
+    return true;
+  }
+
+  /**
+   * Store a single cell and count it.
+   *
+   * @param row   the row number of the cell
+   * @param col   the column number of the cell
+   * @param value the value of the cell
+   * @return true if the cell was empty, false if its value was replaced
+   */
+  @Override
+  protected boolean put(int row, int col, double value) {
+    boolean added = super.put(row, col, value);
+    if (added) {
+      this.singleCells++;
+    }
+    return added;
+  }
+
+  /**
+   * Remove a single cell and stop counting it.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return true if the cell held a value, false otherwise
+   */
+  @Override
+  protected boolean detach(int row, int col) {
+    boolean removed = super.detach(row, col);
+    if (removed) {
+      this.singleCells--;
+    }
+    return removed;
+  }
+
+  /**
+   * Recompute the width and height from the single cells and the runs.
+   */
+  @Override
+  protected void recomputeBounds() {
+    super.recomputeBounds();
+    collect(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    for (Run run : this.found) {
+      includeInBounds(run.toRow, run.toCol);
+    }
+    this.found.clear();
+  }
+
+  /**
+   * Return the run holding a cell.
+   *
+   * @param row the row of the cell
+   * @param col the column of the cell
+   * @return the run, or null if the cell is not in a run
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  private Run runAt(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if (this.runs.size() == 0) {
+      return null;
+    }
+    collect(row, col, row, col);
+    Run run = this.found.isEmpty() ? null : this.found.get(0);
+    this.found.clear();
+    return run;
+  }
+
+  /**
+   * Remove a range from every run it overlaps, replacing each such run by the parts of it
+   * above, below, left and right of the range.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void carve(int fromRow, int fromCol, int toRow, int toCol) {
+    if (this.runs.size() == 0) {
+      return;
+    }
+    collect(fromRow, fromCol, toRow, toCol);
+    ArrayList<Run> overlapped = new ArrayList<Run>(this.found);
+    this.found.clear();
+    for (Run run : overlapped) {
+      removeRun(run);
+      int middleFrom = Math.max(fromRow, run.fromRow);
+      int middleTo = Math.min(toRow, run.toRow);
+      if (run.fromRow < fromRow) {
+        storeRun(new Run(run.fromRow, run.fromCol, fromRow - 1, run.toCol, run.value));
+      }
+      if (run.toRow > toRow) {
+        storeRun(new Run(toRow + 1, run.fromCol, run.toRow, run.toCol, run.value));
+      }
+      if (run.fromCol < fromCol) {
+        storeRun(new Run(middleFrom, run.fromCol, middleTo, fromCol - 1, run.value));
+      }
+      if (run.toCol > toCol) {
+        storeRun(new Run(middleFrom, toCol + 1, middleTo, run.toCol, run.value));
+      }
+    }
+  }
+
+  /**
+   * Store a new run, first merging it with a run of the same value that lines up with it on
+   * any side.
+   *
+   * @param run the run to store, which must not overlap any stored run or single cell
+   */
+  private void addRun(Run run) {
+    Run merged = run;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      Run[] neighbours = {
+          merged.fromRow > 0 ? runAt(merged.fromRow - 1, merged.fromCol) : null,
+          merged.toRow < Integer.MAX_VALUE ? runAt(merged.toRow + 1, merged.fromCol) : null,
+          merged.fromCol > 0 ? runAt(merged.fromRow, merged.fromCol - 1) : null,
+          merged.toCol < Integer.MAX_VALUE ? runAt(merged.fromRow, merged.toCol + 1) : null};
+      for (Run neighbour : neighbours) {
+        if (neighbour == null || Double.doubleToLongBits(neighbour.value)
+                != Double.doubleToLongBits(merged.value)) {
+          continue;
+        }
+        boolean sameCols = neighbour.fromCol == merged.fromCol && neighbour.toCol == merged.toCol;
+        boolean sameRows = neighbour.fromRow == merged.fromRow && neighbour.toRow == merged.toRow;
+        if (sameCols || sameRows) {
+          removeRun(neighbour);
+          merged = new Run(Math.min(merged.fromRow, neighbour.fromRow),
+                  Math.min(merged.fromCol, neighbour.fromCol),
+                  Math.max(merged.toRow, neighbour.toRow),
+                  Math.max(merged.toCol, neighbour.toCol), merged.value);
+          changed = true;
+          break;
+        }
+      }
+    }
+    storeRun(merged);
+  }
+
+  /**
+   * Put a run in the index and count its cells.
+   *
+   * @param run the run to store
+   */
+  private void storeRun(Run run) {
+    this.runs.add(run.fromRow, run.fromCol, run.toRow, run.toCol, run);
+    this.runCells += RangeChecks.area(run.fromRow, run.fromCol, run.toRow, run.toCol);
+  }
+
+  /**
+   * Take a run out of the index and stop counting its cells.
+   *
+   * @param run the run to remove
+   */
+  private void removeRun(Run run) {
+    this.runs.remove(run.fromRow, run.fromCol, run.toRow, run.toCol, run);
+    this.runCells -= RangeChecks.area(run.fromRow, run.fromCol, run.toRow, run.toCol);
+  }
+
+  /**
+   * Collect the runs intersecting a range into the list of found runs.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void collect(int fromRow, int fromCol, int toRow, int toCol) {
+    this.found.clear();
+    this.runs.forEachIntersecting(fromRow, fromCol, toRow, toCol, this.found::add);
+  }
+
+  /**
+   * A rectangle of cells holding the same value.
+   */
+  private static final class Run {
+    private final int fromRow;
+    private final int fromCol;
+    private final int toRow;
+    private final int toCol;
+    private final double value;
+
+    /**
+     * Create a run.
+     *
+     * @param fromRow the first row of the rectangle
+     * @param fromCol the first column of the rectangle
+     * @param toRow   the last row of the rectangle
+     * @param toCol   the last column of the rectangle
+     * @param value   the value of every cell of the rectangle
+     */
+    Run(int fromRow, int fromCol, int toRow, int toCol, double value) {
+      this.fromRow = fromRow;
+      this.fromCol = fromCol;
+      this.toRow = toRow;
+      this.toCol = toCol;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,228 @@
+package spreadsheet;
+
+import java.io.Flushable;
+import java.io.IOException;
+
+/**
+ * A controller that runs a script of spreadsheet instructions without any interaction. It
+ * understands the instructions of {@link NewSpreadSheetController}, one per line and parsed by
+ * the same {@link Instructions}, but prints no welcome message, menu or prompts: the only
+ * output is the values asked for with {@code print-value} and one message per failed
+ * instruction, naming its line.
+ *
+ * <p>Scripts may hold millions of instructions, so they are read by a
+ * {@link CommandTokenizer} instead of a {@link java.util.Scanner}, and the output is collected
+ * in memory and transmitted in large pieces rather than one message at a time. An
+ * interactive controller, such as one serving a network session, also transmits and flushes
+ * its output whenever it has run every instruction received so far and is about to wait for
+ * more, so each answer reaches the other side before the next question is expected.
+ */
+public class ScriptController {
+  private static final int FLUSH_CHARS = 1 << 16;
+
+  private final SpreadSheet sheet;
+  private final Readable readable;
+  private final Appendable appendable;
+  private final boolean interactive;
+  private final StringBuilder output;
+  private final Instructions.Steps steps;
+  private long errors;
+
+  /**
+   * Create a controller that runs the script read from the given readable against the given
+   * sheet, transmitting its output to the given appendable.
+   *
+   * @param sheet      the sheet to work with (the model)
+   * @param readable   the Readable object holding the script
+   * @param appendable the Appendable object to transmit any output
+   * @throws IllegalArgumentException if an argument is null
+   */
+  public ScriptController(SpreadSheet sheet, Readable readable, Appendable appendable)
+          throws IllegalArgumentException {
+    this(sheet, readable, appendable, false);
+  }
+
+  /**
+   * Create a controller that runs the instructions read from the given readable against the
+   * given sheet, transmitting its output to the given appendable.
+   *
+   * @param sheet       the sheet to work with (the model)
+   * @param readable    the Readable object holding the instructions
+   * @param appendable  the Appendable object to transmit any output
+   * @param interactive whether to transmit the output, and flush the appendable if it is
+   *                    {@link Flushable}, every time before reading more instructions
+   * @throws IllegalArgumentException if an argument is null
+   */
+  public ScriptController(SpreadSheet sheet, Readable readable, Appendable appendable,
+                          boolean interactive) throws IllegalArgumentException {
+    if ((sheet == null) || (readable == null) || (appendable == null)) {
+      throw new IllegalArgumentException("Sheet, readable or appendable is null");
+    }
+    this.sheet = sheet;
+    this.readable = interactive ? buffer -> {
+      flush();
+      return readable.read(buffer);
+    } : readable;
+    this.appendable = appendable;
+    this.interactive = interactive;
+    this.output = new StringBuilder();
+    this.steps = new ScriptSteps();
+  }
+
+  /**
+   * Run the script until it ends or reaches a {@code q} or {@code quit} instruction. An
+   * instruction that fails is reported and skipped, and the script goes on with the next line.
+   *
+   * @return the number of instructions that failed
+   * @throws IllegalStateException if the script cannot be read or the output transmitted
+   */
+  public long control() throws IllegalStateException {
+    CommandTokenizer tokens = new CommandTokenizer(this.readable);
+    Instructions.Tokens arguments = new Instructions.Tokens() {
+      @Override
+      public int nextRow() throws IllegalArgumentException, IOException {
+        return tokens.nextRow();
+      }
+
+      @Override
+      public int nextColumn() throws IllegalArgumentException, IOException {
+        return tokens.nextInt() - 1;
+      }
+
+      @Override
+      public double nextDouble() throws IllegalArgumentException, IOException {
+        return tokens.nextDouble();
+      }
+    };
+    try {
+      while (tokens.nextLine()) {
+        String instruction = tokens.nextWord();
+        if (instruction.equals("quit") || instruction.equals("q")) {
+          break;
+        }
+        try {
+          processCommand(instruction, arguments);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+          this.errors++;
+          this.output.append("Error at line ").append(tokens.getLine()).append(": ")
+                  .append(e.getMessage()).append(System.lineSeparator());
+        }
+        if (this.output.length() >= FLUSH_CHARS) {
+          flush();
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read the script: " + e.getMessage());
+    } finally {
+      flush();
+    }
+    return this.errors;
+  }
+
+  /**
+   * Run one instruction, reading its arguments from the current line. Output steps and
+   * {@code assign-value} are applied directly to the sheet, and macros are executed through it.
+   *
+   * @param instruction the name of the instruction
+   * @param tokens      the arguments of the current line
+   * @throws IllegalArgumentException if the instruction or its arguments are invalid
+   * @throws IOException              if the script cannot be read
+   */
+  private void processCommand(String instruction, Instructions.Tokens tokens)
+          throws IllegalArgumentException, IOException {
+    MacroCommand command = Instructions.parse(instruction, tokens, this.steps);
+    if (command instanceof Instructions.Step || command instanceof Instructions.AssignValue) {
+      command.execute(this.sheet);
+    } else {
+      execute(command);
+    }
+  }
+
+  /**
+   * Run a macro, through the sheet if it supports macros so that it is journaled or logged
+   * like any other, and directly against the sheet otherwise.
+   *
+   * @param command the macro to run
+   */
+  private void execute(MacroCommand command) {
+    if (this.sheet instanceof MacroSpreadSheet) {
+      ((MacroSpreadSheet) this.sheet).execute(command);
+    } else {
+      command.execute(this.sheet);
+    }
+  }
+
+  /**
+   * Transmit the collected output, and flush it if the controller is interactive.
+   *
+   * @throws IllegalStateException if the output cannot be transmitted
+   */
+  private void flush() throws IllegalStateException {
+    if (this.output.length() == 0) {
+      return;
+    }
+    try {
+      this.appendable.append(this.output);
+      if (this.interactive && this.appendable instanceof Flushable) {
+        ((Flushable) this.appendable).flush();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+    this.output.setLength(0);
+  }
+
+  /**
+   * The output steps of a script: values and statistics are collected with the rest of the
+   * output, the menu is not printed, and an undefined instruction fails like any other.
+   */
+  private final class ScriptSteps implements Instructions.Steps {
+
+    /**
+     * Return a step collecting the value of a cell.
+     *
+     * @param row the row of the cell to print
+     * @param col the column of the cell to print
+     * @return the step
+     */
+    @Override
+    public Instructions.Step printValue(int row, int col) {
+      return sheet -> output.append("Value: ").append(sheet.get(row, col))
+              .append(System.lineSeparator());
+    }
+
+    /**
+     * Return a step collecting the statistics of the sheet.
+     *
+     * @return the step
+     */
+    @Override
+    public Instructions.Step stats() {
+      return sheet -> output.append(Instructions.statistics(sheet));
+    }
+
+    /**
+     * Return a step doing nothing, as a script prints no menu.
+     *
+     * @return the step
+     */
+    @Override
+    public Instructions.Step menu() {
+      return sheet -> {
+      };
+    }
+
+    /**
+     * Return a step failing with the name of the instruction.
+     *
+     * @param instruction the name of the instruction
+     * @return the step
+     */
+    @Override
+    public Instructions.Step undefined(String instruction) {
+      return sheet -> {
+        throw new IllegalArgumentException("Undefined instruction: " + instruction);
+      };
+    }
+  }
+}
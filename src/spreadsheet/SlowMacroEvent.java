@@ -0,0 +1,27 @@
+package spreadsheet;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A Java Flight Recorder event for a macro that took longer than the threshold of an
+ * {@link InstrumentedSpreadSheet}. It is only created for slow macros, so it costs nothing
+ * on the common path, and it is recorded whenever a recording is running with the event
+ * enabled, which it is by default.
+ */
+@Name("spreadsheet.SlowMacro")
+@Label("Slow Macro")
+@Category("Spreadsheet")
+@Description("A macro that took longer than the slow-macro threshold")
+class SlowMacroEvent extends Event {
+  @Label("Macro")
+  String macro;
+
+  @Label("Latency")
+  @Timespan(Timespan.NANOSECONDS)
+  long latency;
+}
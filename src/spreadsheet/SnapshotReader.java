@@ -0,0 +1,286 @@
+package spreadsheet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Loads a snapshot written by {@link SnapshotWriter} into a spreadsheet. The file is read
+ * through memory maps, and each run of consecutive cells is copied out of the map in one go
+ * and stored with a single {@link SpreadSheet#setRange} call, so loading costs little more
+ * than faulting in the pages of the file.
+ *
+ * <p>Opening a snapshot checks its header, trailer and checksum. The row index lets a range of
+ * rows be loaded without reading the rest of the file.
+ */
+public final class SnapshotReader implements Closeable {
+  private static final long WINDOW_BYTES = 1L << 30;
+
+  private final FileChannel channel;
+  private final long tag;
+  private final int height;
+  private final int width;
+  private final long cellCount;
+  private final long indexOffset;
+  private final int rowCount;
+  private final MappedByteBuffer index;
+
+  /**
+   * Open the snapshot in the given file and check that it is intact.
+   *
+   * @param file the file holding the snapshot
+   * @throws IllegalArgumentException if the file is null or does not hold an intact snapshot
+   * @throws IllegalStateException    if the file cannot be read
+   */
+  public SnapshotReader(Path file) throws IllegalArgumentException, IllegalStateException {
+    if (file == null) {
+      throw new IllegalArgumentException("File is null");
+    }
+    try {
+      this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot open snapshot " + file + ": " + e.getMessage());
+    }
+    try {
+      long size = this.channel.size();
+      if (size < SnapshotWriter.HEADER_BYTES + SnapshotWriter.TRAILER_BYTES) {
+        throw new IllegalArgumentException("Snapshot is truncated: " + file);
+      }
+      ByteBuffer header = read(0, SnapshotWriter.HEADER_BYTES);
+      ByteBuffer trailer = read(size - SnapshotWriter.TRAILER_BYTES,
+              SnapshotWriter.TRAILER_BYTES);
+      if (header.getInt() != SnapshotWriter.MAGIC
+              || header.getInt() != SnapshotWriter.VERSION) {
+        throw new IllegalArgumentException("Not a spreadsheet snapshot: " + file);
+      }
+      this.tag = header.getLong();
+      this.height = header.getInt();
+      this.width = header.getInt();
+      this.cellCount = header.getLong();
+      this.indexOffset = trailer.getLong();
+      this.rowCount = trailer.getInt();
+      long indexBytes = (long) this.rowCount * SnapshotWriter.INDEX_ENTRY_BYTES;
+      if (this.rowCount < 0 || this.indexOffset < SnapshotWriter.HEADER_BYTES
+              || this.indexOffset + indexBytes + SnapshotWriter.TRAILER_BYTES != size
+              || checksum(size) != trailer.getInt()) {
+        throw new IllegalArgumentException("Snapshot is damaged: " + file);
+      }
+      this.index = this.channel.map(FileChannel.MapMode.READ_ONLY, this.indexOffset,
+              indexBytes);
+    } catch (IOException e) {
+      closeQuietly();
+      throw new IllegalStateException("Cannot read snapshot " + file + ": " + e.getMessage());
+    } catch (RuntimeException e) {
+      closeQuietly();
+      throw e;
+    }
+  }
+
+  /**
+   * Return the height of the spreadsheet the snapshot was taken of.
+   *
+   * @return the height of the spreadsheet
+   */
+  public int getHeight() {
+    return this.height;
+  }
+
+  /**
+   * Return the width of the spreadsheet the snapshot was taken of.
+   *
+   * @return the width of the spreadsheet
+   */
+  public int getWidth() {
+    return this.width;
+  }
+
+  /**
+   * Return the number of non-empty cells in the snapshot.
+   *
+   * @return the number of cells
+   */
+  public long getCellCount() {
+    return this.cellCount;
+  }
+
+  /**
+   * Return the tag stored in the header of the snapshot.
+   *
+   * @return the tag
+   */
+  long getTag() {
+    return this.tag;
+  }
+
+  /**
+   * Store every cell of the snapshot in the given spreadsheet.
+   *
+   * @param sheet the spreadsheet to load the cells into
+   * @return the number of cells loaded
+   * @throws IllegalArgumentException if the spreadsheet is null
+   * @throws IllegalStateException    if the file cannot be read
+   */
+  public long load(SpreadSheet sheet) throws IllegalArgumentException, IllegalStateException {
+    return load(sheet, 0, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Store the cells of the given rows of the snapshot in the given spreadsheet. The first of
+   * the rows is found through the row index, and only the blocks of those rows are read.
+   *
+   * @param sheet   the spreadsheet to load the cells into
+   * @param fromRow the first row to load
+   * @param toRow   the last row to load, inclusive
+   * @return the number of cells loaded
+   * @throws IllegalArgumentException if the spreadsheet is null or the rows are invalid
+   * @throws IllegalStateException    if the file cannot be read
+   */
+  public long load(SpreadSheet sheet, int fromRow, int toRow)
+          throws IllegalArgumentException, IllegalStateException {
+    if (sheet == null) {
+      throw new IllegalArgumentException("Spreadsheet is null");
+    }
+    if (fromRow < 0 || toRow < fromRow) {
+      throw new IllegalArgumentException("Invalid cell range");
+    }
+    long loaded = 0;
+    double[] values = new double[64];
+    MappedByteBuffer window = null;
+    DoubleBuffer doubles = null;
+    long windowStart = 0;
+    long windowEnd = 0;
+    try {
+      for (int i = firstIndexAtOrAfter(fromRow); i < this.rowCount; i++) {
+        int row = this.index.getInt(i * SnapshotWriter.INDEX_ENTRY_BYTES);
+        if (row > toRow) {
+          break;
+        }
+        long blockStart = this.index.getLong(i * SnapshotWriter.INDEX_ENTRY_BYTES
+                + Integer.BYTES);
+        long blockEnd = i + 1 < this.rowCount
+                ? this.index.getLong((i + 1) * SnapshotWriter.INDEX_ENTRY_BYTES + Integer.BYTES)
+                : this.indexOffset;
+        if (window == null || blockStart < windowStart || blockEnd > windowEnd) {
+          windowStart = blockStart;
+          windowEnd = Math.min(this.indexOffset,
+                  Math.max(blockEnd, blockStart + WINDOW_BYTES));
+          window = this.channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                  windowEnd - windowStart);
+          doubles = window.asDoubleBuffer();
+        }
+        int position = (int) (blockStart - windowStart) + Integer.BYTES;
+        int runs = window.getInt(position);
+        position += Integer.BYTES;
+        for (int r = 0; r < runs; r++) {
+          int col = window.getInt(position);
+          int length = window.getInt(position + Integer.BYTES);
+          position += 2 * Integer.BYTES;
+          if (length == 1) {
+            sheet.set(row, col, window.getDouble(position));
+          } else {
+            if (values.length < length) {
+              values = new double[Math.max(length, values.length << 1)];
+            }
+            doubles.position(position / Double.BYTES);
+            doubles.get(values, 0, length);
+            sheet.setRange(row, col, row, col + length - 1, values);
+          }
+          position += length * Double.BYTES;
+          loaded += length;
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read snapshot: " + e.getMessage());
+    }
+    return loaded;
+  }
+
+  /**
+   * Close the file of the snapshot.
+   *
+   * @throws IllegalStateException if the file cannot be closed
+   */
+  @Override
+  public void close() throws IllegalStateException {
+    try {
+      this.channel.close();
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot close snapshot: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Find the first entry of the row index whose row is at least the given row.
+   *
+   * @param row the row to look for
+   * @return the position of the entry, or the number of rows if there is none
+   */
+  private int firstIndexAtOrAfter(int row) {
+    int low = 0;
+    int high = this.rowCount;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (this.index.getInt(mid * SnapshotWriter.INDEX_ENTRY_BYTES) < row) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Compute the checksum of the file in the order it was written: everything after the
+   * header up to the checksum itself, then the header.
+   *
+   * @param size the size of the file
+   * @return the checksum
+   * @throws IOException if the file cannot be read
+   */
+  private int checksum(long size) throws IOException {
+    CRC32 crc = new CRC32();
+    long end = size - Integer.BYTES;
+    for (long start = SnapshotWriter.HEADER_BYTES; start < end; start += WINDOW_BYTES) {
+      crc.update(this.channel.map(FileChannel.MapMode.READ_ONLY, start,
+              Math.min(WINDOW_BYTES, end - start)));
+    }
+    crc.update(read(0, SnapshotWriter.HEADER_BYTES));
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Read a few bytes of the file into a new buffer.
+   *
+   * @param offset the offset of the first byte
+   * @param bytes  the number of bytes to read
+   * @return a buffer holding the bytes, ready to be read
+   * @throws IOException if the file cannot be read
+   */
+  private ByteBuffer read(long offset, int bytes) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(bytes);
+    while (buffer.hasRemaining()) {
+      if (this.channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Close the file after a failure, keeping the original failure.
+   */
+  private void closeQuietly() {
+    try {
+      this.channel.close();
+    } catch (IOException e) {
+      // the original failure is the one worth reporting
+    }
+  }
+}
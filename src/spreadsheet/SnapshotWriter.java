@@ -0,0 +1,208 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the non-empty cells of a spreadsheet to a binary snapshot file that
+ * {@link SnapshotReader} loads back through a memory map.
+ *
+ * <p>A snapshot is laid out as follows, with every number big-endian:
+ * <ul>
+ *   <li>a 32 byte header: magic, version, tag, height, width and number of cells;</li>
+ *   <li>one block per non-empty row, in increasing row order: the row and its number of runs,
+ *   then each run of consecutive non-empty columns as its first column, its length and its
+ *   values;</li>
+ *   <li>a row index holding the row and file offset of every block;</li>
+ *   <li>a 16 byte trailer: the offset of the row index, the number of rows and a CRC32 of the
+ *   rest of the file.</li>
+ * </ul>
+ * Every value lands on a multiple of 8 bytes, so whole runs can be copied straight out of the
+ * mapped file. A dense row is a single run, and a sparse cell costs 16 bytes.
+ *
+ * <p>The spreadsheet is read in bands of rows holding at most {@link RangeChecks#CHUNK_CELLS}
+ * non-empty cells (see {@link RowScanner}), so writing never needs more memory than a band and
+ * the row index.
+ */
+public final class SnapshotWriter {
+  static final int MAGIC = 0x53534E50;
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 32;
+  static final int TRAILER_BYTES = 16;
+  static final int INDEX_ENTRY_BYTES = Integer.BYTES + Long.BYTES;
+
+  private final FileChannel channel;
+  private final ByteBuffer out;
+  private final CRC32 crc;
+  private long position;
+  private int[] rows;
+  private long[] offsets;
+  private int rowCount;
+  private long cellCount;
+
+  /**
+   * Create a writer that writes into the given channel, starting after the header.
+   *
+   * @param channel the channel of the snapshot file
+   */
+  private SnapshotWriter(FileChannel channel) {
+    this.channel = channel;
+    this.out = ByteBuffer.allocateDirect(1 << 20);
+    this.crc = new CRC32();
+    this.position = HEADER_BYTES;
+    this.rows = new int[64];
+    this.offsets = new long[64];
+  }
+
+  /**
+   * Write a snapshot of the given spreadsheet to a file, replacing anything the file held.
+   *
+   * @param sheet the spreadsheet to write
+   * @param file  the file to write the snapshot to
+   * @return the number of cells written
+   * @throws IllegalArgumentException if the spreadsheet or file is null
+   * @throws IllegalStateException    if the file cannot be written
+   */
+  public static long write(SpreadSheet sheet, Path file)
+          throws IllegalArgumentException, IllegalStateException {
+    if (sheet == null || file == null) {
+      throw new IllegalArgumentException("Spreadsheet or file is null");
+    }
+    try {
+      return write(sheet, file, 0);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot write snapshot " + file + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Write a snapshot of the given spreadsheet to a file, recording a tag in its header, and
+   * force it to the storage device.
+   *
+   * @param sheet the spreadsheet to write
+   * @param file  the file to write the snapshot to
+   * @param tag   a number stored in the header for the caller's own use
+   * @return the number of cells written
+   * @throws IOException if the file cannot be written
+   */
+  static long write(SpreadSheet sheet, Path file, long tag) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      SnapshotWriter writer = new SnapshotWriter(channel);
+      RowScanner.forEachRow(sheet, writer::writeRow);
+      writer.finish(tag, sheet.getHeight(), sheet.getWidth());
+      channel.force(true);
+      return writer.cellCount;
+    }
+  }
+
+  /**
+   * Write the block of one non-empty row.
+   *
+   * @param row    the row number
+   * @param cols   the columns of the non-empty cells, in increasing order
+   * @param values the values of the non-empty cells
+   * @param count  the number of non-empty cells
+   * @throws IOException if the file cannot be written
+   */
+  private void writeRow(int row, int[] cols, double[] values, int count) throws IOException {
+    int runs = 1;
+    for (int i = 1; i < count; i++) {
+      if (cols[i] != cols[i - 1] + 1) {
+        runs++;
+      }
+    }
+    addIndexEntry(row);
+    ensure(2 * Integer.BYTES);
+    out.putInt(row).putInt(runs);
+    int start = 0;
+    while (start < count) {
+      int length = 1;
+      while (start + length < count && cols[start + length] == cols[start] + length) {
+        length++;
+      }
+      ensure(2 * Integer.BYTES);
+      out.putInt(cols[start]).putInt(length);
+      for (int i = start; i < start + length; i++) {
+        ensure(Double.BYTES);
+        out.putDouble(values[i]);
+      }
+      start += length;
+    }
+    cellCount += count;
+  }
+
+  /**
+   * Remember the offset of the block of a row that is about to be written.
+   *
+   * @param row the row of the block
+   */
+  private void addIndexEntry(int row) {
+    if (rowCount == rows.length) {
+      rows = Arrays.copyOf(rows, rowCount << 1);
+      offsets = Arrays.copyOf(offsets, rowCount << 1);
+    }
+    rows[rowCount] = row;
+    offsets[rowCount] = position + out.position();
+    rowCount++;
+  }
+
+  /**
+   * Write the row index, the trailer and finally the header.
+   *
+   * @param tag    the tag to store in the header
+   * @param height the height of the spreadsheet
+   * @param width  the width of the spreadsheet
+   * @throws IOException if the file cannot be written
+   */
+  private void finish(long tag, int height, int width) throws IOException {
+    long indexOffset = position + out.position();
+    for (int i = 0; i < rowCount; i++) {
+      ensure(INDEX_ENTRY_BYTES);
+      out.putInt(rows[i]).putLong(offsets[i]);
+    }
+    ensure(TRAILER_BYTES);
+    out.putLong(indexOffset).putInt(rowCount);
+    drain();
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putInt(MAGIC).putInt(VERSION).putLong(tag).putInt(height).putInt(width)
+            .putLong(cellCount).flip();
+    crc.update(header.duplicate());
+    channel.write(header, 0);
+    out.putInt((int) crc.getValue()).flip();
+    while (out.hasRemaining()) {
+      position += channel.write(out, position);
+    }
+  }
+
+  /**
+   * Make sure the output buffer has room for the given number of bytes, writing it out if not.
+   *
+   * @param bytes the number of bytes about to be put
+   * @throws IOException if the file cannot be written
+   */
+  private void ensure(int bytes) throws IOException {
+    if (out.remaining() < bytes) {
+      drain();
+    }
+  }
+
+  /**
+   * Write the output buffer to the file, adding its bytes to the checksum.
+   *
+   * @throws IOException if the file cannot be written
+   */
+  private void drain() throws IOException {
+    out.flip();
+    crc.update(out.duplicate());
+    while (out.hasRemaining()) {
+      position += channel.write(out, position);
+    }
+    out.clear();
+  }
+}
@@ -1,15 +1,15 @@
 package spreadsheet;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Objects;
-
 /**
  * This class represents a sparse spreadsheet. A sparse spreadsheet is a spreadsheet
- * with a large number of empty cells. It represents this efficiently using a hash map.
+ * with a large number of empty cells. It represents this efficiently using a hash map
+ * from packed cell positions to primitive values, so that reading and writing a cell
+ * does not allocate. A row index of the non-empty positions lets range operations visit
+ * only the cells that are present.
  */
 public class SparseSpreadSheet implements SpreadSheet {
-  private final Map<CellPosition, Double> sheet;
+  private final LongDoubleHashMap sheet;
+  private final RowIndex rowIndex;
   private int width;
   private int height;
 
@@ -17,7 +17,8 @@ public class SparseSpreadSheet implements SpreadSheet {
    * Create an empty spreadsheet.
    */
   public SparseSpreadSheet() {
-    this.sheet = new HashMap<CellPosition, Double>();
+    this.sheet = new LongDoubleHashMap();
+    this.rowIndex = new RowIndex();
     this.width = 0;
     this.height = 0;
   }
@@ -35,7 +36,7 @@ public class SparseSpreadSheet implements SpreadSheet {
     if ((row < 0) || (col < 0)) {
       throw new IllegalArgumentException("Row or column cannot be negative");
     }
-    return this.sheet.getOrDefault(new CellPosition(row, col), 0.0);
+    return this.sheet.get(CellKey.pack(row, col), 0.0);
   }
 
   /**
@@ -51,14 +52,147 @@ public class SparseSpreadSheet implements SpreadSheet {
     if ((row < 0) || (col < 0)) {
       throw new IllegalArgumentException("Row or column cannot be negative");
     }
-    this.sheet.put(new CellPosition(row, col), value);
-    if ((row + 1) > height) {
-      height = row + 1;
+    put(row, col, value);
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order. The range is
+   * validated once and each cell costs a single hash lookup.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, dest);
+    int i = 0;
+    for (int row = fromRow; row <= toRow; row++) {
+      for (int col = fromCol; col <= toCol; col++) {
+        dest[i++] = this.sheet.get(CellKey.pack(row, col), 0.0);
+      }
     }
+  }
 
-    if ((col + 1) > width) {
-      width = col + 1;
+  /**
+   * Set every cell in the specified range to the same value. The range is validated and the
+   * width and height are updated once for the whole range.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    for (int row = fromRow; row <= toRow; row++) {
+      for (int col = fromCol; col <= toCol; col++) {
+        if (this.sheet.put(CellKey.pack(row, col), value)) {
+          this.rowIndex.add(row, col);
+        }
+      }
+    }
+    includeInBounds(toRow, toCol);
+  }
+
+  /**
+   * Set the cells in the specified range to the values in an array, taken in row-major order.
+   * The range is validated and the width and height are updated once for the whole range.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, values);
+    int i = 0;
+    for (int row = fromRow; row <= toRow; row++) {
+      for (int col = fromCol; col <= toCol; col++) {
+        if (this.sheet.put(CellKey.pack(row, col), values[i++])) {
+          this.rowIndex.add(row, col);
+        }
+      }
+    }
+    includeInBounds(toRow, toCol);
+  }
+
+  /**
+   * Pass every non-empty cell in the specified range to the given visitor, in row-major
+   * order. Only the rows and cells that are present are visited.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to receive the cells
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (visitor == null) {
+      throw new IllegalArgumentException("Visitor cannot be null");
+    }
+    this.rowIndex.visit(fromRow, fromCol, toRow, toCol, (row, col) ->
+            visitor.visit(row, col, this.sheet.get(CellKey.pack(row, col), 0.0)));
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range. Only the non-empty cells are
+   * visited, since the empty ones add nothing.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    double[] sum = {0};
+    this.rowIndex.visit(fromRow, fromCol, toRow, toCol,
+            (row, col) -> sum[0] += this.sheet.get(CellKey.pack(row, col), 0.0));
+    return sum[0];
+  }
+
+  /**
+   * Empty the specified cell. If the cell was the last non-empty one in the highest row or
+   * column, the width and height shrink accordingly, which takes time proportional to the
+   * number of non-empty cells.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell held a value, false if it was already empty
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  public boolean clear(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if (!detach(row, col)) {
+      return false;
+    }
+    if ((row + 1) == getHeight() || (col + 1) == getWidth()) {
+      recomputeBounds();
     }
+    return true;
   }
 
   /**
@@ -74,7 +208,7 @@ public class SparseSpreadSheet implements SpreadSheet {
     if ((row < 0) || (col < 0)) {
       throw new IllegalArgumentException("Row or column cannot be negative");
     }
-    return !this.sheet.containsKey(new CellPosition(row, col));
+    return !this.sheet.containsKey(CellKey.pack(row, col));
   }
 
   /**
@@ -100,51 +234,65 @@ public class SparseSpreadSheet implements SpreadSheet {
   }
 
   /**
-   * Represents a specific position in a spreadsheet, defined by its row and column indices.
+   * Store a value in the hash map and grow the width and height to include its cell. The
+   * row and column must already have been validated.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @return true if the cell was empty before, false if its value was replaced
    */
-  private static class CellPosition {
-    private final int row;
-    private final int column;
+  protected boolean put(int row, int col, double value) {
+    boolean added = this.sheet.put(CellKey.pack(row, col), value);
+    if (added) {
+      this.rowIndex.add(row, col);
+    }
+    includeInBounds(row, col);
+    return added;
+  }
 
-    /**
-     * Constructs a CellPosition with the specified row and column indices.
-     *
-     * @param row    the zero-based index of the row
-     * @param column the zero-based index of the column
-     */
-    private CellPosition(int row, int column) {
-      this.row = row;
-      this.column = column;
+  /**
+   * Remove a cell from the hash map without changing the width or height. Subclasses use
+   * this when a cell moves to a different representation, or before recomputing the bounds.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell was in the hash map, false otherwise
+   */
+  protected boolean detach(int row, int col) {
+    if (!this.sheet.remove(CellKey.pack(row, col))) {
+      return false;
     }
+    this.rowIndex.remove(row, col);
+    return true;
+  }
 
-    /**
-     * Compares this CellPosition with another object for equality.
-     * Two CellPositions are considered equal if they have the same row and column indices.
-     *
-     * @param o the object to be compared for equality with this CellPosition
-     * @return true if the specified object is equal to this CellPosition, false otherwise
-     */
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) {
-        return true;
-      }
-      if (!(o instanceof CellPosition)) {
-        return false;
-      }
-      CellPosition other = (CellPosition) o;
-      return this.row == other.row && this.column == other.column;
+  /**
+   * Grow the width and height so that they include the given cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   */
+  protected void includeInBounds(int row, int col) {
+    if ((row + 1) > height) {
+      height = row + 1;
+    }
+
+    if ((col + 1) > width) {
+      width = col + 1;
     }
+  }
 
-    /**
-     * Computes the hash code for this CellPosition.
-     * The hash code is computed using the row and column indices of this CellPosition.
-     *
-     * @return a hash code value for this object
-     */
-    @Override
-    public int hashCode() {
-      return Objects.hash(this.row, this.column);
+  /**
+   * Recompute the width and height from scratch, in time proportional to the number of
+   * non-empty rows. Subclasses that keep cells outside the hash map extend this to include
+   * them.
+   */
+  protected void recomputeBounds() {
+    this.width = 0;
+    this.height = 0;
+    if (!this.rowIndex.isEmpty()) {
+      includeInBounds(this.rowIndex.maxRow(), this.rowIndex.maxCol());
     }
   }
 }
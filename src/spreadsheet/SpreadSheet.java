@@ -52,4 +52,124 @@ public interface SpreadSheet {
    * @return the height of this spreadsheet
    */
   int getHeight();
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order. Empty cells
+   * are copied as 0. Implementations may override this to validate the range once and avoid
+   * a lookup per cell.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  default void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, dest);
+    int i = 0;
+    for (int row = fromRow; row <= toRow; row++) {
+      for (int col = fromCol; col <= toCol; col++) {
+        dest[i++] = get(row, col);
+      }
+    }
+  }
+
+  /**
+   * Set every cell in the specified range to the same value.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  default void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    for (int row = fromRow; row <= toRow; row++) {
+      for (int col = fromCol; col <= toCol; col++) {
+        set(row, col, value);
+      }
+    }
+  }
+
+  /**
+   * Set the cells in the specified range to the values in an array, taken in row-major order.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  default void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, values);
+    int i = 0;
+    for (int row = fromRow; row <= toRow; row++) {
+      for (int col = fromCol; col <= toCol; col++) {
+        set(row, col, values[i++]);
+      }
+    }
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range. Empty cells count as 0.
+   * Implementations may override this to answer without visiting every cell.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  default double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    int cols = toCol - fromCol + 1;
+    int rowsPerChunk = RangeChecks.rowsPerChunk(fromRow, toRow, cols);
+    double[] values = new double[rowsPerChunk * cols];
+    double sum = 0;
+    for (int row = fromRow; row <= toRow; row += rowsPerChunk) {
+      int lastRow = Math.min(toRow, row + rowsPerChunk - 1);
+      int cells = (lastRow - row + 1) * cols;
+      getRange(row, fromCol, lastRow, toCol, values);
+      for (int i = 0; i < cells; i++) {
+        sum += values[i];
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Pass every non-empty cell in the specified range to the given visitor, in no particular
+   * order. Implementations may override this so that the cost depends on the number of
+   * non-empty cells rather than the area of the range.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to receive the cells
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  default void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                               CellVisitor visitor) throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (visitor == null) {
+      throw new IllegalArgumentException("Visitor cannot be null");
+    }
+    for (int row = fromRow; row <= toRow; row++) {
+      for (int col = fromCol; col <= toCol; col++) {
+        if (!isEmpty(row, col)) {
+          visitor.visit(row, col, get(row, col));
+        }
+      }
+    }
+  }
 }
@@ -74,7 +74,6 @@ public class SpreadSheetController {
           row = getRowNum(sc.next()); //get in the row string
           col = sc.nextInt(); //get in the column number, starting with 1
           value = sc.nextDouble();
-          System.out.println("Setting cell (" + row + "," + (col - 1));
           sheet.set(row, col - 1, value); //use the spreadsheet
         } catch (IllegalArgumentException e) {
           writeMessage("Error: " + e.getMessage() + System.lineSeparator());
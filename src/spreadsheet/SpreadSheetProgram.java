@@ -1,20 +1,316 @@
 package spreadsheet;
 
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * The driver of this application.
  */
 public class SpreadSheetProgram {
+  private static final String USAGE = String.join(System.lineSeparator(),
+          "Usage: SpreadSheetProgram [options]",
+          "  --open <file>            start from a snapshot",
+          "  --save <file>            write a snapshot when quitting",
+          "  --import <file>          start from a CSV file",
+          "  --export <file>          write a CSV file when quitting",
+          "  --durable <directory>    keep the spreadsheet in a directory (not with --open,",
+          "                           --save, --import or --export)",
+          "  --fsync <policy>         always, periodic or never, with --durable only",
+          "  --script <file>          run the instructions in a file",
+          "  --slow-macro-ms <ms>     record statistics and report macros slower than this",
+          "  --serve <port>           share one spreadsheet over the loopback interface",
+          "                           (with --slow-macro-ms, --save and --export only)",
+          "");
+
   /**
-   * main method of the program.
+   * main method of the program. Without arguments the spreadsheet lives in memory only.
+   * {@code --open <file>} starts from a snapshot written by {@link SnapshotWriter}, and
+   * {@code --save <file>} writes one when the program quits; {@code --import <file>} and
+   * {@code --export <file>} do the same with CSV files. With {@code --durable <directory>}
+   * the spreadsheet is kept in that directory and rebuilt from it on the next start, and
+   * {@code --fsync always|periodic|never} chooses how often the log is forced to the disk.
+   * {@code --script <file>} runs the instructions in the file with a {@link ScriptController}
+   * instead of reading them interactively. {@code --slow-macro-ms <milliseconds>} records
+   * the counts and latencies of all operations with an {@link InstrumentedSpreadSheet}, shown
+   * by the {@code stats} instruction, and reports macros slower than that to Java Flight
+   * Recorder. {@code --serve <port>} shares one in-memory {@link VersionedSpreadSheet} with
+   * every client that connects to that port of the loopback interface, through a
+   * {@link SpreadSheetServer}; {@code --save} and {@code --export} then write its latest
+   * {@link VersionedSpreadSheet#snapshot() snapshot} when the program is stopped, while clients
+   * may still be writing. Unknown, repeated, incomplete and conflicting options are rejected
+   * with a usage message.
    * @param args any command line arguments
    */
   public static void main(String[] args) {
-    SpreadSheet model = new SparseSpreadSheet();
-    Readable rd = new InputStreamReader(System.in);
-    Appendable ap = System.out;
-    SpreadSheetController controller = new SpreadSheetController(model, rd, ap);
-    controller.control();
+    Options options;
+    try {
+      options = Options.parse(args);
+    } catch (IllegalArgumentException e) {
+      System.err.println(e.getMessage());
+      System.err.print(USAGE);
+      System.exit(2);
+      return;
+    }
+    if (options.port >= 0) {
+      serve(options.port, options.slowMacroMillis, options.save, options.exportFile);
+      return;
+    }
+    if (options.directory == null) {
+      SpreadSheet model = new SparseSpreadSheet();
+      if (options.open != null) {
+        try (SnapshotReader reader = new SnapshotReader(Paths.get(options.open))) {
+          reader.load(model);
+        }
+      }
+      if (options.importFile != null) {
+        CsvImporter.read(Paths.get(options.importFile), model);
+      }
+      run(model, options.script, options.slowMacroMillis);
+      write(model, options.save, options.exportFile);
+      return;
+    }
+    try (DurableSpreadSheet model = new DurableSpreadSheet(new NewSparseSpreadSheet(),
+            Paths.get(options.directory), options.policy,
+            DurableSpreadSheet.DEFAULT_CHECKPOINT_BYTES)) {
+      run(model, options.script, options.slowMacroMillis);
+    }
+  }
+
+  /**
+   * Run the instructions of the given script against the sheet, or read them interactively if
+   * there is no script.
+   *
+   * @param model           the sheet to work with
+   * @param script          the file holding the script, or null to read instructions
+   *                        interactively
+   * @param slowMacroMillis the latency above which macros are reported as slow, or a
+   *                        negative number not to instrument the sheet
+   * @throws IllegalStateException if the script cannot be read
+   */
+  private static void run(SpreadSheet model, String script, long slowMacroMillis)
+          throws IllegalStateException {
+    SpreadSheet sheet = slowMacroMillis < 0 ? model
+            : new InstrumentedSpreadSheet(model, slowMacroMillis * 1_000_000L);
+    if (script == null) {
+      Readable rd = new InputStreamReader(System.in);
+      SpreadSheetController controller = sheet instanceof MacroSpreadSheet
+              ? new NewSpreadSheetController(sheet, rd, System.out)
+              : new SpreadSheetController(sheet, rd, System.out);
+      controller.control();
+      return;
+    }
+    try (Reader reader = Files.newBufferedReader(Paths.get(script))) {
+      new ScriptController(sheet, reader, System.out).control();
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot read " + script + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Write a sheet to a snapshot file and a CSV file, if they are given.
+   *
+   * @param sheet      the sheet to write
+   * @param save       the snapshot file to write, or null
+   * @param exportFile the CSV file to write, or null
+   * @throws IllegalStateException if a file cannot be written
+   */
+  private static void write(SpreadSheet sheet, String save, String exportFile)
+          throws IllegalStateException {
+    if (save != null) {
+      SnapshotWriter.write(sheet, Paths.get(save));
+    }
+    if (exportFile != null) {
+      CsvExporter.write(sheet, Paths.get(exportFile));
+    }
+  }
+
+  /**
+   * Serve a new versioned spreadsheet on the given port until the program is stopped. The
+   * server is closed by a shutdown hook, which then writes the latest version to the files
+   * given, if any; no session can change that version halfway through.
+   *
+   * @param port            the port to listen on
+   * @param slowMacroMillis the latency above which macros are reported as slow, or a
+   *                        negative number not to instrument the sheet
+   * @param save            the snapshot file to write when stopped, or null
+   * @param exportFile      the CSV file to write when stopped, or null
+   * @throws IllegalStateException if the port cannot be listened on
+   */
+  private static void serve(int port, long slowMacroMillis, String save, String exportFile)
+          throws IllegalStateException {
+    VersionedSpreadSheet model = new VersionedSpreadSheet();
+    MacroSpreadSheet sheet = model;
+    if (slowMacroMillis >= 0) {
+      sheet = new InstrumentedSpreadSheet(sheet, slowMacroMillis * 1_000_000L);
+    }
+    SpreadSheetServer server = new SpreadSheetServer(sheet, port);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      server.close();
+      write(model.snapshot(), save, exportFile);
+    }, "spreadsheet-shutdown"));
+    System.out.println("Serving on port " + server.getPort());
+    try {
+      server.awaitClose();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * The options given on the command line.
+   */
+  private static final class Options {
+    private String directory;
+    private String open;
+    private String save;
+    private String importFile;
+    private String exportFile;
+    private String script;
+    private String fsync;
+    private long slowMacroMillis = -1;
+    private int port = -1;
+    private FsyncPolicy policy = FsyncPolicy.ALWAYS;
+
+    /**
+     * Parse the command line arguments, each option followed by its value.
+     *
+     * @param args the command line arguments
+     * @return the options
+     * @throws IllegalArgumentException if an option is unknown, given twice, missing its value
+     *                                  or has an invalid one, or if two options conflict
+     */
+    static Options parse(String[] args) throws IllegalArgumentException {
+      Options options = new Options();
+      Set<String> seen = new HashSet<String>();
+      for (int i = 0; i < args.length; i += 2) {
+        String option = args[i];
+        if (!option.startsWith("--")) {
+          throw new IllegalArgumentException("Unexpected argument: " + option);
+        }
+        if (i + 1 == args.length) {
+          throw new IllegalArgumentException("Missing value for " + option);
+        }
+        if (!seen.add(option)) {
+          throw new IllegalArgumentException("Option given twice: " + option);
+        }
+        String value = args[i + 1];
+        switch (option) {
+          case "--durable":
+            options.directory = value;
+            break;
+          case "--fsync":
+            options.fsync = value;
+            options.policy = parsePolicy(value);
+            break;
+          case "--open":
+            options.open = value;
+            break;
+          case "--save":
+            options.save = value;
+            break;
+          case "--import":
+            options.importFile = value;
+            break;
+          case "--export":
+            options.exportFile = value;
+            break;
+          case "--script":
+            options.script = value;
+            break;
+          case "--slow-macro-ms":
+            options.slowMacroMillis = parseNumber(option, value, Long.MAX_VALUE / 1_000_000L);
+            break;
+          case "--serve":
+            options.port = (int) parseNumber(option, value, 65535);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option: " + option);
+        }
+      }
+      options.check();
+      return options;
+    }
+
+    /**
+     * Reject the options that cannot be used together.
+     *
+     * @throws IllegalArgumentException if two options conflict
+     */
+    private void check() throws IllegalArgumentException {
+      if (this.port >= 0) {
+        reject("--serve", "--durable", this.directory);
+        reject("--serve", "--fsync", this.fsync);
+        reject("--serve", "--open", this.open);
+        reject("--serve", "--import", this.importFile);
+        reject("--serve", "--script", this.script);
+      }
+      if (this.directory != null) {
+        reject("--durable", "--open", this.open);
+        reject("--durable", "--save", this.save);
+        reject("--durable", "--import", this.importFile);
+        reject("--durable", "--export", this.exportFile);
+      } else if (this.fsync != null) {
+        throw new IllegalArgumentException("--fsync can only be used with --durable");
+      }
+    }
+
+    /**
+     * Reject an option that conflicts with another one that was given.
+     *
+     * @param given       the option that was given
+     * @param conflicting the option that cannot be used with it
+     * @param value       the value of the conflicting option, or null if it was not given
+     * @throws IllegalArgumentException if the conflicting option was given
+     */
+    private static void reject(String given, String conflicting, String value)
+            throws IllegalArgumentException {
+      if (value != null) {
+        throw new IllegalArgumentException(given + " cannot be used with " + conflicting);
+      }
+    }
+
+    /**
+     * Parse the value of {@code --fsync}.
+     *
+     * @param value the value
+     * @return the policy it names
+     * @throws IllegalArgumentException if it names no policy
+     */
+    private static FsyncPolicy parsePolicy(String value) throws IllegalArgumentException {
+      for (FsyncPolicy policy : FsyncPolicy.values()) {
+        if (policy.name().equalsIgnoreCase(value)) {
+          return policy;
+        }
+      }
+      throw new IllegalArgumentException("--fsync must be always, periodic or never");
+    }
+
+    /**
+     * Parse a number that must lie between 0 and a maximum.
+     *
+     * @param option the option the number belongs to
+     * @param value  the value
+     * @param max    the largest valid number
+     * @return the number
+     * @throws IllegalArgumentException if the value is not such a number
+     */
+    private static long parseNumber(String option, String value, long max)
+            throws IllegalArgumentException {
+      long number;
+      try {
+        number = Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        number = -1;
+      }
+      if (number < 0 || number > max) {
+        throw new IllegalArgumentException(option + " must be a number from 0 to " + max);
+      }
+      return number;
+    }
   }
 }
@@ -0,0 +1,238 @@
+package spreadsheet;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A server that lets many clients work on one spreadsheet over TCP. Every connection is a
+ * session running the instructions of {@link NewSpreadSheetController}, one per line, with a
+ * {@link ScriptController} in interactive mode: there are no prompts, and the answers to the
+ * instructions received so far are sent as soon as the session waits for more. Sessions are
+ * independent, so the spreadsheet must be safe to use from many threads at once, as
+ * {@link ConcurrentSparseSpreadSheet} is.
+ *
+ * <p>Each session runs on a thread of its own, which on Java 21 and later is a virtual
+ * thread, so that thousands of mostly idle sessions cost little more than their buffers. On
+ * older runtimes the sessions run on a pool of platform threads. The server only listens on
+ * the loopback interface.
+ *
+ * <p>A session that fails with an unexpected exception is logged to the standard error stream
+ * and closed, without affecting the other sessions or the server.
+ */
+public class SpreadSheetServer implements Closeable {
+  private final MacroSpreadSheet sheet;
+  private final ServerSocket listener;
+  private final ExecutorService sessions;
+  private final Set<Socket> connections;
+  private final AtomicLong sessionCount;
+  private final AtomicLong failedSessions;
+  private final ReentrantLock lock;
+  private final Thread acceptor;
+  private boolean closed;
+
+  /**
+   * Start serving a spreadsheet on the given port of the loopback interface.
+   *
+   * @param sheet the spreadsheet to share, which must be thread-safe
+   * @param port  the port to listen on, or 0 for any free port
+   * @throws IllegalArgumentException if the spreadsheet is null or the port is out of range
+   * @throws IllegalStateException    if the port cannot be listened on
+   */
+  public SpreadSheetServer(MacroSpreadSheet sheet, int port)
+          throws IllegalArgumentException, IllegalStateException {
+    if (sheet == null) {
+      throw new IllegalArgumentException("Spreadsheet cannot be null");
+    }
+    if (port < 0 || port > 0xFFFF) {
+      throw new IllegalArgumentException("Invalid port " + port);
+    }
+    this.sheet = sheet;
+    try {
+      this.listener = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot listen on port " + port + ": " + e.getMessage());
+    }
+    this.sessions = newSessionExecutor();
+    this.connections = ConcurrentHashMap.newKeySet();
+    this.sessionCount = new AtomicLong();
+    this.failedSessions = new AtomicLong();
+    this.lock = new ReentrantLock();
+    this.closed = false;
+    this.acceptor = new Thread(this::accept, "spreadsheet-acceptor");
+    this.acceptor.start();
+  }
+
+  /**
+   * Return the port this server listens on.
+   *
+   * @return the port
+   */
+  public int getPort() {
+    return this.listener.getLocalPort();
+  }
+
+  /**
+   * Return the number of sessions that are open now.
+   *
+   * @return the number of open sessions
+   */
+  public int getOpenSessions() {
+    return this.connections.size();
+  }
+
+  /**
+   * Return the number of sessions accepted since the server started.
+   *
+   * @return the number of sessions
+   */
+  public long getSessionCount() {
+    return this.sessionCount.get();
+  }
+
+  /**
+   * Return the number of sessions that ended with an unexpected exception.
+   *
+   * @return the number of failed sessions
+   */
+  public long getFailedSessions() {
+    return this.failedSessions.get();
+  }
+
+  /**
+   * Wait until the server is closed.
+   *
+   * @throws InterruptedException if the waiting thread is interrupted
+   */
+  public void awaitClose() throws InterruptedException {
+    this.acceptor.join();
+  }
+
+  /**
+   * Stop accepting sessions and close the open ones. The server is marked closed under the lock
+   * the acceptor holds while registering a connection, so every connection is either
+   * registered before and closed here, or closed by the acceptor itself.
+   */
+  @Override
+  public void close() {
+    try {
+      this.listener.close();
+    } catch (IOException e) {
+      // the listener is unusable either way
+    }
+    this.lock.lock();
+    try {
+      this.closed = true;
+    } finally {
+      this.lock.unlock();
+    }
+    for (Socket connection : this.connections) {
+      closeQuietly(connection);
+    }
+    this.sessions.shutdown();
+  }
+
+  /**
+   * The acceptor thread: hand every new connection to a session thread until the listener is
+   * closed. A connection accepted once the server is closed is closed at once.
+   */
+  private void accept() {
+    while (!this.listener.isClosed()) {
+      Socket connection;
+      try {
+        connection = this.listener.accept();
+      } catch (IOException e) {
+        break;
+      }
+      this.lock.lock();
+      try {
+        if (this.closed) {
+          closeQuietly(connection);
+          break;
+        }
+        this.connections.add(connection);
+      } finally {
+        this.lock.unlock();
+      }
+      this.sessionCount.incrementAndGet();
+      try {
+        this.sessions.execute(() -> serve(connection));
+      } catch (RuntimeException e) {
+        this.connections.remove(connection);
+        closeQuietly(connection);
+      }
+    }
+  }
+
+  /**
+   * Run one session until the client quits or disconnects. Any other failure is logged and
+   * ends only this session.
+   *
+   * @param connection the connection to the client
+   */
+  private void serve(Socket connection) {
+    try {
+      connection.setTcpNoDelay(true);
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+              connection.getInputStream(), StandardCharsets.UTF_8));
+      BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+              connection.getOutputStream(), StandardCharsets.UTF_8));
+      new ScriptController(this.sheet, in, out, true).control();
+    } catch (IOException | IllegalStateException e) {
+      // the client went away; its session ends here
+    } catch (RuntimeException e) {
+      this.failedSessions.incrementAndGet();
+      System.err.println("Session from " + connection.getRemoteSocketAddress() + " failed: "
+              + e);
+    } finally {
+      this.connections.remove(connection);
+      closeQuietly(connection);
+    }
+  }
+
+  /**
+   * Close a connection, ignoring any failure.
+   *
+   * @param connection the connection to close
+   */
+  private static void closeQuietly(Socket connection) {
+    try {
+      connection.close();
+    } catch (IOException e) {
+      // nothing more can be done with it
+    }
+  }
+
+  /**
+   * Create the executor running the sessions: one virtual thread per session where the
+   * runtime has them, found by reflection so that the code runs on older runtimes too, and a
+   * pool of daemon platform threads otherwise.
+   *
+   * @return the executor for the sessions
+   */
+  private static ExecutorService newSessionExecutor() {
+    try {
+      return (ExecutorService) Executors.class
+              .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "spreadsheet-session");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package spreadsheet;
+
+/**
+ * This class represents a spreadsheet that is sparse overall but dense locally. Cells are
+ * kept in fixed-size square tiles that are allocated on demand the first time one of their
+ * cells is set, and tiles are found through a hash map keyed by packed tile positions. Reads
+ * and writes inside a filled block are plain array accesses, and a dense cell costs about
+ * eight bytes.
+ */
+public class TiledSpreadSheet implements SpreadSheet {
+  private final LongObjectHashMap<CellTile> tiles;
+  private long lastTileKey;
+  private CellTile lastTile;
+  private int width;
+  private int height;
+
+  /**
+   * Create an empty spreadsheet.
+   */
+  public TiledSpreadSheet() {
+    this.tiles = new LongObjectHashMap<CellTile>();
+    this.lastTileKey = -1;
+    this.lastTile = null;
+    this.width = 0;
+    this.height = 0;
+  }
+
+  /**
+   * Get the number at the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    CellTile tile = findTile(row, col);
+    return tile == null ? 0.0 : tile.get(row & CellTile.MASK, col & CellTile.MASK);
+  }
+
+  /**
+   * Set the value of the specified cell to the specified value.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    CellTile tile = findTile(row, col);
+    if (tile == null) {
+      tile = new CellTile();
+      this.tiles.put(this.lastTileKey, tile);
+      this.lastTile = tile;
+    }
+    tile.set(row & CellTile.MASK, col & CellTile.MASK, value);
+    if ((row + 1) > height) {
+      height = row + 1;
+    }
+
+    if ((col + 1) > width) {
+      width = col + 1;
+    }
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    CellTile tile = findTile(row, col);
+    return tile == null || tile.isEmpty(row & CellTile.MASK, col & CellTile.MASK);
+  }
+
+  /**
+   * Return the width of this spreadsheet. The width is defined by the cell with
+   * the highest column number that is not empty.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return this.width;
+  }
+
+  /**
+   * Return the height of this spreadsheet. The height is defined by the cell with
+   * the highest row number that is not empty.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return this.height;
+  }
+
+  /**
+   * Return the number of tiles allocated so far.
+   *
+   * @return the number of allocated tiles
+   */
+  public int getTileCount() {
+    return this.tiles.size();
+  }
+
+  /**
+   * Find the tile holding the given cell. The most recently used tile is remembered, so runs
+   * of accesses within one block skip the directory lookup. When no tile exists yet, the key
+   * of the missing tile is left in the cache so that the caller can create it.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the tile holding the cell, or null if it has not been allocated
+   */
+  private CellTile findTile(int row, int col) {
+    long key = CellKey.pack(row >>> CellTile.SHIFT, col >>> CellTile.SHIFT);
+    if (key != this.lastTileKey) {
+      this.lastTileKey = key;
+      this.lastTile = this.tiles.get(key);
+    }
+    return this.lastTile;
+  }
+}
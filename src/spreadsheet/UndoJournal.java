@@ -0,0 +1,389 @@
+package spreadsheet;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A bounded history of the changes made by executed macros, used to undo and redo them.
+ * Each change remembers the prior state of the cells its macro wrote, in primitive arrays.
+ * A written range is remembered as its non-empty cells plus the range itself, rather
+ * than one record per cell. When the history holds more records than its capacity,
+ * the oldest changes are forgotten first.
+ *
+ * <p>The journal also remembers the rectangles written outside of any macro while there are
+ * changes to undo, so that undoing a macro whose cells have been written since can be refused
+ * instead of overwriting the newer values. Each change keeps the rectangles its macro wrote,
+ * up to a few of them and otherwise their bounding box, so the check may refuse an undo
+ * because of a write near the macro's cells, but never lets one clobber them.
+ */
+final class UndoJournal {
+  static final byte CELL_VALUE = 0;
+  static final byte CELL_EMPTY = 1;
+  static final byte REGION_START = 2;
+  static final byte REGION_END = 3;
+  private static final int MAX_AREAS = 8;
+  private static final int MAX_DIRECT_WRITES = 1024;
+
+  private final int capacity;
+  private final Deque<Change> undoStack;
+  private final Deque<Change> redoStack;
+  private long used;
+  private long sequence;
+  private boolean dropped;
+  private int[] directAreas;
+  private long[] directSequences;
+  private int directCount;
+
+  /**
+   * Create an empty journal that holds at most the given number of records.
+   *
+   * @param capacity the maximum number of records, or 0 to keep no history
+   * @throws IllegalArgumentException if the capacity is negative
+   */
+  UndoJournal(int capacity) throws IllegalArgumentException {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("Journal capacity cannot be negative");
+    }
+    this.capacity = capacity;
+    this.undoStack = new ArrayDeque<Change>();
+    this.redoStack = new ArrayDeque<Change>();
+    this.used = 0;
+    this.sequence = 0;
+    this.dropped = false;
+    this.directAreas = new int[4 * 16];
+    this.directSequences = new long[16];
+    this.directCount = 0;
+  }
+
+  /**
+   * Returns whether this journal keeps any history at all.
+   *
+   * @return true if the capacity is positive, false otherwise
+   */
+  boolean isEnabled() {
+    return this.capacity > 0;
+  }
+
+  /**
+   * Start recording the change made by a macro.
+   *
+   * @param command the macro whose change is recorded
+   * @return the change to record into
+   */
+  Change begin(MacroCommand command) {
+    return new Change(command, this.capacity, ++this.sequence);
+  }
+
+  /**
+   * Add a finished change to the history, evicting the oldest changes if the history
+   * is over capacity. A change that did not fit at all wipes the history, since earlier
+   * changes can no longer be undone in order.
+   *
+   * @param change    the finished change
+   * @param clearRedo whether to forget the changes that could be redone
+   */
+  void finish(Change change, boolean clearRedo) {
+    if (clearRedo) {
+      this.redoStack.clear();
+    }
+    if (change.overflowed) {
+      clearUndo();
+      this.dropped = true;
+      return;
+    }
+    this.undoStack.addLast(change);
+    this.used += change.size;
+    while (this.used > this.capacity) {
+      this.used -= this.undoStack.removeFirst().size;
+    }
+  }
+
+  /**
+   * Return the most recent change without taking it off the history.
+   *
+   * @return the most recent change, or null if there is none
+   */
+  Change peekUndo() {
+    return this.undoStack.peekLast();
+  }
+
+  /**
+   * Take the most recent change off the history so that it can be undone.
+   *
+   * @return the most recent change, or null if there is none
+   */
+  Change popUndo() {
+    Change change = this.undoStack.pollLast();
+    if (change != null) {
+      this.used -= change.size;
+      this.redoStack.addLast(change);
+      if (this.undoStack.isEmpty()) {
+        this.directCount = 0;
+      }
+    }
+    return change;
+  }
+
+  /**
+   * Forget every change that could be undone.
+   */
+  void clearUndo() {
+    this.undoStack.clear();
+    this.used = 0;
+    this.directCount = 0;
+  }
+
+  /**
+   * Returns whether the history was dropped because a change did not fit, and forgets that it
+   * was, so that it is reported once.
+   *
+   * @return true if the history was dropped since this was last asked
+   */
+  boolean takeDropped() {
+    boolean wasDropped = this.dropped;
+    this.dropped = false;
+    return wasDropped;
+  }
+
+  /**
+   * Remember that a rectangle was written outside of any macro. Nothing is remembered when
+   * there is nothing to undo. Once many rectangles are remembered, they are merged into their
+   * bounding box, as if they had all been written last.
+   *
+   * @param fromRow the first row of the rectangle
+   * @param fromCol the first column of the rectangle
+   * @param toRow   the last row of the rectangle
+   * @param toCol   the last column of the rectangle
+   */
+  void recordDirectWrite(int fromRow, int fromCol, int toRow, int toCol) {
+    if (this.undoStack.isEmpty()) {
+      return;
+    }
+    if (this.directCount == MAX_DIRECT_WRITES) {
+      int[] box = {fromRow, fromCol, toRow, toCol};
+      for (int i = 0; i < this.directCount; i++) {
+        box[0] = Math.min(box[0], this.directAreas[4 * i]);
+        box[1] = Math.min(box[1], this.directAreas[4 * i + 1]);
+        box[2] = Math.max(box[2], this.directAreas[4 * i + 2]);
+        box[3] = Math.max(box[3], this.directAreas[4 * i + 3]);
+      }
+      this.directCount = 0;
+      appendDirectWrite(box[0], box[1], box[2], box[3]);
+      return;
+    }
+    appendDirectWrite(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Returns whether a cell written by a change may have been written outside of any macro
+   * since the change was made.
+   *
+   * @param change the change to check
+   * @return true if undoing the change could overwrite a newer value
+   */
+  boolean isOverwritten(Change change) {
+    for (int i = 0; i < this.directCount; i++) {
+      if (this.directSequences[i] >= change.sequence
+              && change.intersects(this.directAreas[4 * i], this.directAreas[4 * i + 1],
+              this.directAreas[4 * i + 2], this.directAreas[4 * i + 3])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Append a rectangle written outside of any macro, stamped with the latest change.
+   *
+   * @param fromRow the first row of the rectangle
+   * @param fromCol the first column of the rectangle
+   * @param toRow   the last row of the rectangle
+   * @param toCol   the last column of the rectangle
+   */
+  private void appendDirectWrite(int fromRow, int fromCol, int toRow, int toCol) {
+    if (this.directCount == this.directSequences.length) {
+      this.directSequences = Arrays.copyOf(this.directSequences, this.directCount << 1);
+      this.directAreas = Arrays.copyOf(this.directAreas, this.directCount << 3);
+    }
+    int at = 4 * this.directCount;
+    this.directAreas[at] = fromRow;
+    this.directAreas[at + 1] = fromCol;
+    this.directAreas[at + 2] = toRow;
+    this.directAreas[at + 3] = toCol;
+    this.directSequences[this.directCount++] = this.sequence;
+  }
+
+  /**
+   * Take the most recently undone change so that it can be redone.
+   *
+   * @return the most recently undone change, or null if there is none
+   */
+  Change popRedo() {
+    return this.redoStack.pollLast();
+  }
+
+  /**
+   * Return the number of changes that can be undone.
+   *
+   * @return the number of changes that can be undone
+   */
+  int undoCount() {
+    return this.undoStack.size();
+  }
+
+  /**
+   * Return the number of changes that can be redone.
+   *
+   * @return the number of changes that can be redone
+   */
+  int redoCount() {
+    return this.redoStack.size();
+  }
+
+  /**
+   * The prior state of every cell written by one macro, in the order of the writes. Undoing
+   * the records in reverse order restores the state from before the macro.
+   */
+  static final class Change {
+    final MacroCommand command;
+    private final int limit;
+    private final long sequence;
+    private final int[] areas;
+    private int areaCount;
+    long[] keys;
+    double[] priors;
+    byte[] kinds;
+    int size;
+    boolean overflowed;
+
+    /**
+     * Create an empty change for the given macro.
+     *
+     * @param command  the macro whose change is recorded
+     * @param limit    the most records this change may hold
+     * @param sequence the number of this change in the order changes were begun
+     */
+    private Change(MacroCommand command, int limit, long sequence) {
+      this.command = command;
+      this.limit = limit;
+      this.sequence = sequence;
+      this.areas = new int[4 * MAX_AREAS];
+      this.areaCount = 0;
+      this.keys = new long[8];
+      this.priors = new double[8];
+      this.kinds = new byte[8];
+      this.size = 0;
+      this.overflowed = false;
+    }
+
+    /**
+     * Returns whether the given number of further records would still fit in this change.
+     * Once a record does not fit, the change is marked as overflowed and records nothing more.
+     *
+     * @param records the number of further records
+     * @return true if they fit, false otherwise
+     */
+    boolean reserve(long records) {
+      if (!overflowed && size + records > limit) {
+        overflowed = true;
+      }
+      return !overflowed;
+    }
+
+    /**
+     * Record the prior state of one cell.
+     *
+     * @param row      the row number of the cell
+     * @param col      the column number of the cell
+     * @param wasEmpty whether the cell was empty
+     * @param prior    the prior value of the cell, ignored if it was empty
+     */
+    void recordCell(int row, int col, boolean wasEmpty, double prior) {
+      if (reserve(1)) {
+        append(CellKey.pack(row, col), wasEmpty ? CELL_EMPTY : CELL_VALUE, prior);
+      }
+    }
+
+    /**
+     * Record that a whole range was empty.
+     *
+     * @param fromRow the first row of the range
+     * @param fromCol the first column of the range
+     * @param toRow   the last row of the range
+     * @param toCol   the last column of the range
+     */
+    void recordEmptyRange(int fromRow, int fromCol, int toRow, int toCol) {
+      if (reserve(2)) {
+        append(CellKey.pack(fromRow, fromCol), REGION_START, 0.0);
+        append(CellKey.pack(toRow, toCol), REGION_END, 0.0);
+      }
+    }
+
+    /**
+     * Remember that the macro wrote a rectangle. Beyond a few rectangles, they are merged into
+     * their bounding box.
+     *
+     * @param fromRow the first row of the rectangle
+     * @param fromCol the first column of the rectangle
+     * @param toRow   the last row of the rectangle
+     * @param toCol   the last column of the rectangle
+     */
+    void touch(int fromRow, int fromCol, int toRow, int toCol) {
+      if (areaCount == MAX_AREAS) {
+        for (int i = 1; i < areaCount; i++) {
+          areas[0] = Math.min(areas[0], areas[4 * i]);
+          areas[1] = Math.min(areas[1], areas[4 * i + 1]);
+          areas[2] = Math.max(areas[2], areas[4 * i + 2]);
+          areas[3] = Math.max(areas[3], areas[4 * i + 3]);
+        }
+        areaCount = 1;
+      }
+      int at = 4 * areaCount++;
+      areas[at] = fromRow;
+      areas[at + 1] = fromCol;
+      areas[at + 2] = toRow;
+      areas[at + 3] = toCol;
+    }
+
+    /**
+     * Returns whether the macro wrote a rectangle that intersects the given one.
+     *
+     * @param fromRow the first row of the rectangle
+     * @param fromCol the first column of the rectangle
+     * @param toRow   the last row of the rectangle
+     * @param toCol   the last column of the rectangle
+     * @return true if they intersect
+     */
+    private boolean intersects(int fromRow, int fromCol, int toRow, int toCol) {
+      for (int i = 0; i < areaCount; i++) {
+        int at = 4 * i;
+        if (areas[at] <= toRow && fromRow <= areas[at + 2] && areas[at + 1] <= toCol
+                && fromCol <= areas[at + 3]) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Append one record, growing the arrays if needed.
+     *
+     * @param key   the packed cell position
+     * @param kind  the kind of record
+     * @param prior the prior value
+     */
+    private void append(long key, byte kind, double prior) {
+      if (size == keys.length) {
+        int grown = keys.length << 1;
+        keys = Arrays.copyOf(keys, grown);
+        priors = Arrays.copyOf(priors, grown);
+        kinds = Arrays.copyOf(kinds, grown);
+      }
+      keys[size] = key;
+      priors[size] = prior;
+      kinds[size] = kind;
+      size++;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package spreadsheet;
+
+/**
+ * A spreadsheet that passes everything through to another spreadsheet while recording, for
+ * every write, the prior state of the cells it overwrites. Macros are executed against a
+ * recorder so that their changes can later be undone.
+ */
+final class UndoRecorder implements SpreadSheet {
+  private final SpreadSheet sheet;
+  private final UndoJournal.Change change;
+
+  /**
+   * Create a recorder that records into the given change.
+   *
+   * @param sheet  the spreadsheet to pass operations through to
+   * @param change the change to record into
+   */
+  UndoRecorder(SpreadSheet sheet, UndoJournal.Change change) {
+    this.sheet = sheet;
+    this.change = change;
+  }
+
+  /**
+   * Get the number at the specified cell.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    return this.sheet.get(row, col);
+  }
+
+  /**
+   * Record the prior state of the specified cell, then set it to the specified value.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    boolean wasEmpty = this.sheet.isEmpty(row, col);
+    this.change.touch(row, col, row, col);
+    this.change.recordCell(row, col, wasEmpty, wasEmpty ? 0.0 : this.sheet.get(row, col));
+    this.sheet.set(row, col, value);
+  }
+
+  /**
+   * Returns whether the specified cell is empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    return this.sheet.isEmpty(row, col);
+  }
+
+  /**
+   * Return the width of the underlying spreadsheet.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return this.sheet.getWidth();
+  }
+
+  /**
+   * Return the height of the underlying spreadsheet.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return this.sheet.getHeight();
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    this.sheet.getRange(fromRow, fromCol, toRow, toCol, dest);
+  }
+
+  /**
+   * Record the prior state of the specified range, then fill it with the specified value.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    recordRange(fromRow, fromCol, toRow, toCol);
+    this.sheet.fillRange(fromRow, fromCol, toRow, toCol, value);
+  }
+
+  /**
+   * Record the prior state of the specified range, then set it from the specified values.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, values);
+    recordRange(fromRow, fromCol, toRow, toCol);
+    this.sheet.setRange(fromRow, fromCol, toRow, toCol, values);
+  }
+
+  /**
+   * Pass every non-empty cell in the specified range to the given visitor.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to receive the cells
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    this.sheet.forEachNonEmpty(fromRow, fromCol, toRow, toCol, visitor);
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    return this.sheet.sumRange(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Record the prior state of a validated range: every cell found in it by one pass over its
+   * non-empty cells, followed by the range itself. Undoing the records in reverse order empties
+   * the range and then restores the cells, so the range costs one record per non-empty cell
+   * plus two, and a range that is already full costs nothing more.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void recordRange(int fromRow, int fromCol, int toRow, int toCol) {
+    this.change.touch(fromRow, fromCol, toRow, toCol);
+    long[] present = {0};
+    this.sheet.forEachNonEmpty(fromRow, fromCol, toRow, toCol, (row, col, value) -> {
+      this.change.recordCell(row, col, false, value);
+      present[0]++;
+    });
+    if (present[0] < RangeChecks.area(fromRow, fromCol, toRow, toCol)) {
+      this.change.recordEmptyRange(fromRow, fromCol, toRow, toCol);
+    }
+  }
+}
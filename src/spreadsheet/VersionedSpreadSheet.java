@@ -0,0 +1,978 @@
+package spreadsheet;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A spreadsheet that keeps immutable versions of itself, so that readers never see a write
+ * half done and can hold on to a consistent view while writers go on. Each write, and each
+ * macro as a whole, is applied as a transaction that builds a new version and then publishes
+ * it at once; until then readers see the previous version. {@link #snapshot()} returns the
+ * latest published version in constant time, without locks, and reading it never blocks or
+ * is blocked by writers. A version stays unchanged however long it is held, which also makes
+ * it suitable for exporting a consistent sheet in the background.
+ *
+ * <p>Cells are stored in tiles of 8 by 8, found through a hash array mapped trie keyed by the
+ * position of the tile. Versions share every tile and trie node that they have in common:
+ * a transaction copies a tile or node the first time it changes it, tagging the copy with
+ * its own epoch, and changes the copies in place from then on. A single write thus costs a
+ * tile and a path of small nodes, and a macro over a large range copies each tile it touches
+ * once. Old versions need no bookkeeping: their tiles and nodes are reclaimed by the garbage
+ * collector as soon as no snapshot refers to them.
+ *
+ * <p>Writers are serialized by a lock. A macro that fails leaves no trace, since its version
+ * is never published.
+ */
+public class VersionedSpreadSheet implements MacroSpreadSheet {
+  private static final int TILE_SHIFT = 3;
+  private static final int TILE_SIZE = 1 << TILE_SHIFT;
+  private static final int TILE_MASK = TILE_SIZE - 1;
+  private static final int BITS = 6;
+  private static final int FANOUT_MASK = (1 << BITS) - 1;
+
+  private final ReentrantLock writeLock;
+  private volatile Snapshot published;
+  private long nextEpoch;
+
+  /**
+   * Create an empty spreadsheet.
+   */
+  public VersionedSpreadSheet() {
+    this.writeLock = new ReentrantLock();
+    this.published = new Snapshot(new Node(0), 0, 0, 0, 0);
+    this.nextEpoch = 1;
+  }
+
+  /**
+   * Return the latest version of this spreadsheet. It takes constant time and no lock, and
+   * the version returned never changes.
+   *
+   * @return a read-only view of the spreadsheet as it is now
+   */
+  public Snapshot snapshot() {
+    return this.published;
+  }
+
+  /**
+   * Get the number at the specified cell in the latest version.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    return this.published.get(row, col);
+  }
+
+  /**
+   * Set the value of the specified cell to the specified value, publishing a new version.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    checkCell(row, col);
+    write(s -> s.set(row, col, value));
+  }
+
+  /**
+   * Returns whether the specified cell is empty in the latest version.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    return this.published.isEmpty(row, col);
+  }
+
+  /**
+   * Return the width of the latest version.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return this.published.getWidth();
+  }
+
+  /**
+   * Return the height of the latest version.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return this.published.getHeight();
+  }
+
+  /**
+   * Copy the numbers in the specified range of the latest version into an array, in
+   * row-major order.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    this.published.getRange(fromRow, fromCol, toRow, toCol, dest);
+  }
+
+  /**
+   * Set every cell in the specified range to the same value, publishing a new version.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    write(s -> s.fillRange(fromRow, fromCol, toRow, toCol, value));
+  }
+
+  /**
+   * Set the cells in the specified range to the values in an array, publishing a new version.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, values);
+    write(s -> s.setRange(fromRow, fromCol, toRow, toCol, values));
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range of the latest version.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    return this.published.sumRange(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Call the visitor for every non-empty cell in the specified range of the latest version,
+   * tile by tile.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to call for each non-empty cell
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    this.published.forEachNonEmpty(fromRow, fromCol, toRow, toCol, visitor);
+  }
+
+  /**
+   * Execute a macro as one transaction. Readers see either none of its writes or all of
+   * them, and none if it fails.
+   *
+   * @param command the macro to execute
+   */
+  @Override
+  public void execute(MacroCommand command) {
+    write(command);
+  }
+
+  /**
+   * Execute macros in order as one transaction.
+   *
+   * @param commands the macros to execute, in order
+   * @throws IllegalArgumentException if a macro fails, in which case none of them has any
+   *                                  effect
+   */
+  @Override
+  public void executeBatch(List<MacroCommand> commands) throws IllegalArgumentException {
+    write(s -> {
+      for (MacroCommand command : commands) {
+        command.execute(s);
+      }
+    });
+  }
+
+  /**
+   * Apply a change to a new version and publish it, unless the change fails.
+   *
+   * @param change the change, applied to the transaction building the new version
+   */
+  private void write(MacroCommand change) {
+    this.writeLock.lock();
+    try {
+      Transaction transaction = new Transaction(this.published, this.nextEpoch++);
+      change.execute(transaction);
+      this.published = transaction.commit();
+    } finally {
+      this.writeLock.unlock();
+    }
+  }
+
+  /**
+   * Check that a cell position is valid.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  private static void checkCell(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+  }
+
+  /**
+   * Scramble the key of a tile into the hash that places it in the trie. The function is a
+   * bijection, so distinct tiles have distinct hashes and the trie needs no collision lists.
+   *
+   * @param key the packed position of the tile
+   * @return the hash of the key
+   */
+  private static long hash(long key) {
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * The cells of a version, readable by any number of threads. A version that is being
+   * built by a transaction is only read by the writer. Each subclass keeps its own content: a
+   * published version in final fields, and a transaction in fields only its writer changes.
+   */
+  abstract static class Version implements SpreadSheet {
+
+    /**
+     * Return the root of the trie of tiles of this version.
+     *
+     * @return the root of the trie
+     */
+    abstract Node root();
+
+    /**
+     * Return the number of tiles in the trie of this version.
+     *
+     * @return the number of tiles
+     */
+    abstract long tileCount();
+
+    /**
+     * Get the number at the specified cell.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting with 0
+     * @return the number at the specified cell, as a double. If the cell is empty, it returns
+     *         a 0
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public double get(int row, int col) throws IllegalArgumentException {
+      checkCell(row, col);
+      Tile tile = find(row >>> TILE_SHIFT, col >>> TILE_SHIFT);
+      return tile == null ? 0.0 : tile.values[Tile.index(row, col)];
+    }
+
+    /**
+     * Returns whether the specified cell is empty.
+     *
+     * @param row the row number of the cell, starting with 0
+     * @param col the column number of the cell, starting with 0
+     * @return true if the cell is empty, false otherwise
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+      checkCell(row, col);
+      Tile tile = find(row >>> TILE_SHIFT, col >>> TILE_SHIFT);
+      return tile == null || (tile.occupied & (1L << Tile.index(row, col))) == 0;
+    }
+
+    /**
+     * Copy the numbers in the specified range into an array, in row-major order, one tile at
+     * a time.
+     *
+     * @param fromRow the first row of the range, starting with 0
+     * @param fromCol the first column of the range, starting with 0
+     * @param toRow   the last row of the range, inclusive
+     * @param toCol   the last column of the range, inclusive
+     * @param dest    the array to receive the numbers, starting at index 0
+     * @throws IllegalArgumentException if the range is invalid or the array is too small
+     */
+    @Override
+    public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+            throws IllegalArgumentException {
+      RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, dest);
+      int cols = toCol - fromCol + 1;
+      Arrays.fill(dest, 0, (int) RangeChecks.area(fromRow, fromCol, toRow, toCol), 0.0);
+      forEachTile(fromRow, fromCol, toRow, toCol, tile -> {
+        int firstRow = Math.max(fromRow, tile.firstRow());
+        int lastRow = Math.min(toRow, tile.firstRow() + TILE_MASK);
+        int firstCol = Math.max(fromCol, tile.firstCol());
+        int lastCol = Math.min(toCol, tile.firstCol() + TILE_MASK);
+        for (int row = firstRow; row <= lastRow; row++) {
+          int i = Tile.index(row, firstCol);
+          int d = (row - fromRow) * cols + (firstCol - fromCol);
+          System.arraycopy(tile.values, i, dest, d, lastCol - firstCol + 1);
+        }
+      });
+    }
+
+    /**
+     * Return the sum of the numbers in the specified range, one tile at a time.
+     *
+     * @param fromRow the first row of the range, starting with 0
+     * @param fromCol the first column of the range, starting with 0
+     * @param toRow   the last row of the range, inclusive
+     * @param toCol   the last column of the range, inclusive
+     * @return the sum of the numbers in the range
+     * @throws IllegalArgumentException if the range is invalid
+     */
+    @Override
+    public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+            throws IllegalArgumentException {
+      RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+      double[] sum = new double[1];
+      forEachTile(fromRow, fromCol, toRow, toCol, tile -> {
+        int firstRow = Math.max(fromRow, tile.firstRow());
+        int lastRow = Math.min(toRow, tile.firstRow() + TILE_MASK);
+        int firstCol = Math.max(fromCol, tile.firstCol());
+        int lastCol = Math.min(toCol, tile.firstCol() + TILE_MASK);
+        double s = 0;
+        for (int row = firstRow; row <= lastRow; row++) {
+          int end = Tile.index(row, lastCol);
+          for (int i = Tile.index(row, firstCol); i <= end; i++) {
+            s += tile.values[i];
+          }
+        }
+        sum[0] += s;
+      });
+      return sum[0];
+    }
+
+    /**
+     * Call the visitor for every non-empty cell in the specified range, tile by tile.
+     *
+     * @param fromRow the first row of the range, starting with 0
+     * @param fromCol the first column of the range, starting with 0
+     * @param toRow   the last row of the range, inclusive
+     * @param toCol   the last column of the range, inclusive
+     * @param visitor the visitor to call for each non-empty cell
+     * @throws IllegalArgumentException if the range is invalid or the visitor is null
+     */
+    @Override
+    public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                                CellVisitor visitor) throws IllegalArgumentException {
+      RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+      if (visitor == null) {
+        throw new IllegalArgumentException("Visitor cannot be null");
+      }
+      forEachTile(fromRow, fromCol, toRow, toCol, tile -> {
+        long cells = tile.occupied;
+        while (cells != 0) {
+          int i = Long.numberOfTrailingZeros(cells);
+          cells &= cells - 1;
+          int row = tile.firstRow() + (i >>> TILE_SHIFT);
+          int col = tile.firstCol() + (i & TILE_MASK);
+          if (row >= fromRow && row <= toRow && col >= fromCol && col <= toCol) {
+            visitor.visit(row, col, tile.values[i]);
+          }
+        }
+      });
+    }
+
+    /**
+     * Return the tile at the given position, if there is one.
+     *
+     * @param tileRow the row of the tile
+     * @param tileCol the column of the tile
+     * @return the tile, or null if none of its cells has been written
+     */
+    Tile find(int tileRow, int tileCol) {
+      long key = CellKey.pack(tileRow, tileCol);
+      long h = hash(key);
+      Node node = root();
+      for (int shift = 0; ; shift += BITS) {
+        long bit = 1L << ((h >>> shift) & FANOUT_MASK);
+        if ((node.bitmap & bit) == 0) {
+          return null;
+        }
+        Object slot = node.slots[Long.bitCount(node.bitmap & (bit - 1))];
+        if (slot instanceof Tile) {
+          Tile tile = (Tile) slot;
+          return tile.key == key ? tile : null;
+        }
+        node = (Node) slot;
+      }
+    }
+
+    /**
+     * Call a visitor for every tile overlapping a range. Small ranges look up each of their
+     * tiles; ranges covering more tile positions than there are tiles walk the whole trie.
+     *
+     * @param fromRow the first row of the range
+     * @param fromCol the first column of the range
+     * @param toRow   the last row of the range
+     * @param toCol   the last column of the range
+     * @param visitor the visitor to call for each tile
+     */
+    private void forEachTile(int fromRow, int fromCol, int toRow, int toCol,
+                             Consumer<Tile> visitor) {
+      int fromTileRow = fromRow >>> TILE_SHIFT;
+      int fromTileCol = fromCol >>> TILE_SHIFT;
+      int toTileRow = toRow >>> TILE_SHIFT;
+      int toTileCol = toCol >>> TILE_SHIFT;
+      if (RangeChecks.area(fromTileRow, fromTileCol, toTileRow, toTileCol) > tileCount()) {
+        walk(root(), tile -> {
+          int tileRow = CellKey.row(tile.key);
+          int tileCol = CellKey.col(tile.key);
+          if (tileRow >= fromTileRow && tileRow <= toTileRow && tileCol >= fromTileCol
+                  && tileCol <= toTileCol) {
+            visitor.accept(tile);
+          }
+        });
+        return;
+      }
+      for (int tileRow = fromTileRow; tileRow <= toTileRow; tileRow++) {
+        for (int tileCol = fromTileCol; tileCol <= toTileCol; tileCol++) {
+          Tile tile = find(tileRow, tileCol);
+          if (tile != null) {
+            visitor.accept(tile);
+          }
+        }
+      }
+    }
+
+    /**
+     * Call a visitor for every tile below a node of the trie.
+     *
+     * @param node    the node to start from
+     * @param visitor the visitor to call for each tile
+     */
+    private static void walk(Node node, Consumer<Tile> visitor) {
+      for (Object slot : node.slots) {
+        if (slot instanceof Tile) {
+          visitor.accept((Tile) slot);
+        } else {
+          walk((Node) slot, visitor);
+        }
+      }
+    }
+  }
+
+  /**
+   * A published version of a {@link VersionedSpreadSheet}. It never changes, so any number
+   * of threads may read it without locks for as long as they like; writing to it fails.
+   */
+  public static final class Snapshot extends Version {
+    private final Node root;
+    private final int width;
+    private final int height;
+    private final long tiles;
+    private final long version;
+
+    /**
+     * Create a published version.
+     *
+     * @param root    the root of the trie of tiles
+     * @param width   the width of the version
+     * @param height  the height of the version
+     * @param tiles   the number of tiles in the trie
+     * @param version the number of writes and macros applied to reach this version
+     */
+    Snapshot(Node root, int width, int height, long tiles, long version) {
+      this.root = root;
+      this.width = width;
+      this.height = height;
+      this.tiles = tiles;
+      this.version = version;
+    }
+
+    /**
+     * Return the width of this version.
+     *
+     * @return the width of this version
+     */
+    @Override
+    public int getWidth() {
+      return this.width;
+    }
+
+    /**
+     * Return the height of this version.
+     *
+     * @return the height of this version
+     */
+    @Override
+    public int getHeight() {
+      return this.height;
+    }
+
+    /**
+     * Return the root of the trie of tiles of this version.
+     *
+     * @return the root of the trie
+     */
+    @Override
+    Node root() {
+      return this.root;
+    }
+
+    /**
+     * Return the number of tiles in the trie of this version.
+     *
+     * @return the number of tiles
+     */
+    @Override
+    long tileCount() {
+      return this.tiles;
+    }
+
+    /**
+     * Return the number of transactions published before and including this version.
+     *
+     * @return the number of this version, starting with 0 for the empty spreadsheet
+     */
+    public long getVersion() {
+      return this.version;
+    }
+
+    /**
+     * Fail, since a snapshot cannot change.
+     *
+     * @param row   the row number of the cell
+     * @param col   the column number of the cell
+     * @param value the value for the cell
+     * @throws IllegalStateException always
+     */
+    @Override
+    public void set(int row, int col, double value) throws IllegalStateException {
+      throw new IllegalStateException("Snapshot is read-only");
+    }
+
+    /**
+     * Fail, since a snapshot cannot change.
+     *
+     * @param fromRow the first row of the range
+     * @param fromCol the first column of the range
+     * @param toRow   the last row of the range
+     * @param toCol   the last column of the range
+     * @param value   the value for the cells
+     * @throws IllegalStateException always
+     */
+    @Override
+    public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+            throws IllegalStateException {
+      throw new IllegalStateException("Snapshot is read-only");
+    }
+
+    /**
+     * Fail, since a snapshot cannot change.
+     *
+     * @param fromRow the first row of the range
+     * @param fromCol the first column of the range
+     * @param toRow   the last row of the range
+     * @param toCol   the last column of the range
+     * @param values  the values for the cells
+     * @throws IllegalStateException always
+     */
+    @Override
+    public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+            throws IllegalStateException {
+      throw new IllegalStateException("Snapshot is read-only");
+    }
+  }
+
+  /**
+   * A version being built by one writer. It starts as the latest published version and
+   * copies each tile and node before its first change.
+   */
+  private static final class Transaction extends Version {
+    private final long epoch;
+    private final long version;
+    private Node root;
+    private int width;
+    private int height;
+    private long tiles;
+
+    /**
+     * Start a transaction on top of a published version.
+     *
+     * @param base  the version to start from
+     * @param epoch the epoch that tags the tiles and nodes copied by this transaction
+     */
+    Transaction(Snapshot base, long epoch) {
+      this.epoch = epoch;
+      this.version = base.version + 1;
+      this.root = base.root;
+      this.width = base.width;
+      this.height = base.height;
+      this.tiles = base.tiles;
+    }
+
+    /**
+     * Return the width of this version.
+     *
+     * @return the width of this version
+     */
+    @Override
+    public int getWidth() {
+      return this.width;
+    }
+
+    /**
+     * Return the height of this version.
+     *
+     * @return the height of this version
+     */
+    @Override
+    public int getHeight() {
+      return this.height;
+    }
+
+    /**
+     * Return the root of the trie of tiles of this version.
+     *
+     * @return the root of the trie
+     */
+    @Override
+    Node root() {
+      return this.root;
+    }
+
+    /**
+     * Return the number of tiles in the trie of this version.
+     *
+     * @return the number of tiles
+     */
+    @Override
+    long tileCount() {
+      return this.tiles;
+    }
+
+    /**
+     * Return the version built by this transaction, to be published.
+     *
+     * @return the new version
+     */
+    Snapshot commit() {
+      return new Snapshot(this.root, this.width, this.height, this.tiles, this.version);
+    }
+
+    /**
+     * Set the value of the specified cell to the specified value.
+     *
+     * @param row   the row number of the cell, starting with 0
+     * @param col   the column number of the cell, starting at 0
+     * @param value the value that this cell must be set to
+     * @throws IllegalArgumentException if the row or column are negative
+     */
+    @Override
+    public void set(int row, int col, double value) throws IllegalArgumentException {
+      checkCell(row, col);
+      Tile tile = writableTile(row >>> TILE_SHIFT, col >>> TILE_SHIFT);
+      int i = Tile.index(row, col);
+      tile.values[i] = value;
+      tile.occupied |= 1L << i;
+      includeInBounds(row, col);
+    }
+
+    /**
+     * Set every cell in the specified range to the same value, one tile at a time.
+     *
+     * @param fromRow the first row of the range, starting with 0
+     * @param fromCol the first column of the range, starting with 0
+     * @param toRow   the last row of the range, inclusive
+     * @param toCol   the last column of the range, inclusive
+     * @param value   the value that every cell in the range must be set to
+     * @throws IllegalArgumentException if the range is invalid
+     */
+    @Override
+    public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+            throws IllegalArgumentException {
+      RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+      writeTiles(fromRow, fromCol, toRow, toCol, null, value);
+    }
+
+    /**
+     * Set the cells in the specified range to the values in an array, one tile at a time.
+     *
+     * @param fromRow the first row of the range, starting with 0
+     * @param fromCol the first column of the range, starting with 0
+     * @param toRow   the last row of the range, inclusive
+     * @param toCol   the last column of the range, inclusive
+     * @param values  the values for the cells, starting at index 0
+     * @throws IllegalArgumentException if the range is invalid or the array is too small
+     */
+    @Override
+    public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+            throws IllegalArgumentException {
+      RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, values);
+      writeTiles(fromRow, fromCol, toRow, toCol, values, 0.0);
+    }
+
+    /**
+     * Write a range tile by tile, either from an array in row-major order or with one value.
+     *
+     * @param fromRow the first row of the range
+     * @param fromCol the first column of the range
+     * @param toRow   the last row of the range
+     * @param toCol   the last column of the range
+     * @param values  the values for the cells, or null to write the constant
+     * @param value   the value of every cell if there is no array
+     */
+    private void writeTiles(int fromRow, int fromCol, int toRow, int toCol, double[] values,
+                            double value) {
+      int cols = toCol - fromCol + 1;
+      int toTileRow = toRow >>> TILE_SHIFT;
+      int toTileCol = toCol >>> TILE_SHIFT;
+      for (int tileRow = fromRow >>> TILE_SHIFT; tileRow <= toTileRow; tileRow++) {
+        for (int tileCol = fromCol >>> TILE_SHIFT; tileCol <= toTileCol; tileCol++) {
+          Tile tile = writableTile(tileRow, tileCol);
+          int firstRow = Math.max(fromRow, tile.firstRow());
+          int lastRow = Math.min(toRow, tile.firstRow() + TILE_MASK);
+          int firstCol = Math.max(fromCol, tile.firstCol());
+          int lastCol = Math.min(toCol, tile.firstCol() + TILE_MASK);
+          int width = lastCol - firstCol + 1;
+          long rowBits = (1L << width) - 1;
+          for (int row = firstRow; row <= lastRow; row++) {
+            int i = Tile.index(row, firstCol);
+            if (values == null) {
+              Arrays.fill(tile.values, i, i + width, value);
+            } else {
+              System.arraycopy(values, (row - fromRow) * cols + (firstCol - fromCol),
+                      tile.values, i, width);
+            }
+            tile.occupied |= rowBits << i;
+          }
+        }
+      }
+      includeInBounds(toRow, toCol);
+    }
+
+    /**
+     * Grow the bounds of this version to include a cell.
+     *
+     * @param row the row of the cell
+     * @param col the column of the cell
+     */
+    private void includeInBounds(int row, int col) {
+      this.height = Math.max(this.height, row == Integer.MAX_VALUE ? row : row + 1);
+      this.width = Math.max(this.width, col == Integer.MAX_VALUE ? col : col + 1);
+    }
+
+    /**
+     * Return the tile at the given position as this transaction may change it, copying it
+     * and the nodes leading to it if they belong to an older version, and creating it if it
+     * does not exist yet.
+     *
+     * @param tileRow the row of the tile
+     * @param tileCol the column of the tile
+     * @return the tile, owned by this transaction
+     */
+    private Tile writableTile(int tileRow, int tileCol) {
+      long key = CellKey.pack(tileRow, tileCol);
+      long h = hash(key);
+      if (this.root.epoch != this.epoch) {
+        this.root = this.root.copy(this.epoch);
+      }
+      Node node = this.root;
+      for (int shift = 0; ; shift += BITS) {
+        long bit = 1L << ((h >>> shift) & FANOUT_MASK);
+        int position = Long.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+          Tile tile = new Tile(key, h, this.epoch);
+          node.insert(bit, position, tile);
+          this.tiles++;
+          return tile;
+        }
+        Object slot = node.slots[position];
+        if (slot instanceof Tile) {
+          Tile tile = (Tile) slot;
+          if (tile.key == key) {
+            if (tile.epoch != this.epoch) {
+              tile = tile.copy(this.epoch);
+              node.slots[position] = tile;
+            }
+            return tile;
+          }
+          Node child = new Node(this.epoch);
+          child.insert(1L << ((tile.hash >>> (shift + BITS)) & FANOUT_MASK), 0, tile);
+          node.slots[position] = child;
+          node = child;
+        } else {
+          Node child = (Node) slot;
+          if (child.epoch != this.epoch) {
+            child = child.copy(this.epoch);
+            node.slots[position] = child;
+          }
+          node = child;
+        }
+      }
+    }
+  }
+
+  /**
+   * A node of the trie of tiles. It has one slot for each bit set in its bitmap, holding a
+   * tile or a deeper node, so empty branches take no space.
+   */
+  static final class Node {
+    private final long epoch;
+    private long bitmap;
+    private Object[] slots;
+
+    /**
+     * Create an empty node.
+     *
+     * @param epoch the epoch of the transaction creating the node
+     */
+    Node(long epoch) {
+      this.epoch = epoch;
+      this.bitmap = 0;
+      this.slots = new Object[0];
+    }
+
+    /**
+     * Return a copy of this node for a later transaction.
+     *
+     * @param epoch the epoch of that transaction
+     * @return the copy
+     */
+    Node copy(long epoch) {
+      Node copy = new Node(epoch);
+      copy.bitmap = this.bitmap;
+      copy.slots = this.slots.clone();
+      return copy;
+    }
+
+    /**
+     * Add a slot.
+     *
+     * @param bit      the bit of the slot in the bitmap, not yet set
+     * @param position the index of the slot among the slots
+     * @param value    the tile or node for the slot
+     */
+    void insert(long bit, int position, Object value) {
+      Object[] grown = new Object[this.slots.length + 1];
+      System.arraycopy(this.slots, 0, grown, 0, position);
+      grown[position] = value;
+      System.arraycopy(this.slots, position, grown, position + 1, this.slots.length - position);
+      this.slots = grown;
+      this.bitmap |= bit;
+    }
+  }
+
+  /**
+   * Eight rows of eight cells, with a bit per cell telling whether it has been written.
+   */
+  static final class Tile {
+    private final long key;
+    private final long hash;
+    private final long epoch;
+    private final double[] values;
+    private long occupied;
+
+    /**
+     * Create an empty tile.
+     *
+     * @param key   the packed position of the tile
+     * @param hash  the hash of the key
+     * @param epoch the epoch of the transaction creating the tile
+     */
+    Tile(long key, long hash, long epoch) {
+      this(key, hash, epoch, new double[TILE_SIZE * TILE_SIZE], 0);
+    }
+
+    /**
+     * Create a tile with the given cells.
+     *
+     * @param key      the packed position of the tile
+     * @param hash     the hash of the key
+     * @param epoch    the epoch of the transaction creating the tile
+     * @param values   the values of the cells, row by row
+     * @param occupied the bits of the cells that have been written
+     */
+    private Tile(long key, long hash, long epoch, double[] values, long occupied) {
+      this.key = key;
+      this.hash = hash;
+      this.epoch = epoch;
+      this.values = values;
+      this.occupied = occupied;
+    }
+
+    /**
+     * Return a copy of this tile for a later transaction.
+     *
+     * @param epoch the epoch of that transaction
+     * @return the copy
+     */
+    Tile copy(long epoch) {
+      return new Tile(this.key, this.hash, epoch, this.values.clone(), this.occupied);
+    }
+
+    /**
+     * Return the first row of this tile.
+     *
+     * @return the row of the top left cell
+     */
+    int firstRow() {
+      return CellKey.row(this.key) << TILE_SHIFT;
+    }
+
+    /**
+     * Return the first column of this tile.
+     *
+     * @return the column of the top left cell
+     */
+    int firstCol() {
+      return CellKey.col(this.key) << TILE_SHIFT;
+    }
+
+    /**
+     * Return the index of a cell within its tile.
+     *
+     * @param row the row of the cell
+     * @param col the column of the cell
+     * @return the index of the cell in the values and the bitmap
+     */
+    static int index(int row, int col) {
+      return ((row & TILE_MASK) << TILE_SHIFT) | (col & TILE_MASK);
+    }
+  }
+}
@@ -0,0 +1,538 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A macro spreadsheet that keeps the rectangles written by {@link BulkMacroAssign} and
+ * {@link MacroRangeAssign} as virtual regions instead of writing their cells to another
+ * spreadsheet. A region is only a description of the macro, its rectangle and how the value
+ * of each cell follows from its position, so executing such a macro takes constant time and
+ * memory however many cells it covers. Values are computed when they are read.
+ *
+ * <p>Regions never overlap. When cells of a region are written afterwards, by a newer region
+ * or by a write to the underlying spreadsheet, the written rectangle is carved out of the
+ * region, which is replaced by its parts above, below, left and right of the rectangle; the
+ * parts keep computing their values from the position of the original rectangle. A region
+ * covered entirely is simply dropped. Reads return exactly what they would return if every
+ * macro had written its cells, in order; this includes {@link #isEmpty}, {@link #getWidth}
+ * and {@link #getHeight}.
+ *
+ * <p>Regions are found through a {@link RectangleIndex}. Sums over a region are computed in
+ * closed form, as the value times the area or as an arithmetic series, and only the cells
+ * outside regions are added from the underlying spreadsheet; the cells it holds beneath a
+ * region are never added and subtracted again, so they cannot cancel out other values. When
+ * the underlying spreadsheet is a {@link SparseSpreadSheet}, the cells a new region covers are
+ * cleared from it, which frees them and lets it sum the rest directly; other spreadsheets keep
+ * those cells, and their non-empty cells in a range with regions are added one by one. Every
+ * write must go through this object for the regions to be carved, which is why other macros
+ * are executed against it.
+ */
+public class VirtualRegionSpreadSheet implements MacroSpreadSheet {
+  private final SpreadSheet delegate;
+  private final SparseSpreadSheet clearable;
+  private final RectangleIndex<Region> regions;
+  private final ArrayList<Region> found;
+  private int width;
+  private int height;
+
+  /**
+   * Add virtual regions to a spreadsheet. The cells it already holds stay real cells.
+   *
+   * @param delegate the spreadsheet holding the real cells
+   * @throws IllegalArgumentException if the spreadsheet is null
+   */
+  public VirtualRegionSpreadSheet(SpreadSheet delegate) throws IllegalArgumentException {
+    if (delegate == null) {
+      throw new IllegalArgumentException("Spreadsheet cannot be null");
+    }
+    this.delegate = delegate;
+    this.clearable = delegate instanceof SparseSpreadSheet ? (SparseSpreadSheet) delegate : null;
+    this.regions = new RectangleIndex<Region>();
+    this.found = new ArrayList<Region>();
+  }
+
+  /**
+   * Return the number of virtual regions currently kept.
+   *
+   * @return the number of regions
+   */
+  public int getRegionCount() {
+    return this.regions.size();
+  }
+
+  /**
+   * Get the number at the specified cell, computing it if the cell lies in a region.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    Region region = regionAt(row, col);
+    return region == null ? this.delegate.get(row, col) : region.valueAt(row, col);
+  }
+
+  /**
+   * Set the value of the specified cell, making it a real cell.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    this.delegate.set(row, col, value);
+    overwritten(row, col, row, col);
+  }
+
+  /**
+   * Returns whether the specified cell is empty. A cell inside a region is never empty.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    return regionAt(row, col) == null && this.delegate.isEmpty(row, col);
+  }
+
+  /**
+   * Return the width of this spreadsheet, counting the cells of regions.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return Math.max(this.width, this.delegate.getWidth());
+  }
+
+  /**
+   * Return the height of this spreadsheet, counting the cells of regions.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return Math.max(this.height, this.delegate.getHeight());
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order. The real
+   * cells are copied first and the regions are laid over them.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    this.delegate.getRange(fromRow, fromCol, toRow, toCol, dest);
+    collect(fromRow, fromCol, toRow, toCol);
+    if (this.found.isEmpty()) {
+      return;
+    }
+    int cols = toCol - fromCol + 1;
+    for (Region region : this.found) {
+      int firstRow = Math.max(fromRow, region.fromRow);
+      int lastRow = Math.min(toRow, region.toRow);
+      int firstCol = Math.max(fromCol, region.fromCol);
+      int lastCol = Math.min(toCol, region.toCol);
+      for (int row = firstRow; row <= lastRow; row++) {
+        int i = (row - fromRow) * cols + (firstCol - fromCol);
+        for (int col = firstCol; col <= lastCol; col++) {
+          dest[i++] = region.valueAt(row, col);
+        }
+      }
+    }
+    this.found.clear();
+  }
+
+  /**
+   * Set every cell in the specified range to the same value, making them real cells.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    this.delegate.fillRange(fromRow, fromCol, toRow, toCol, value);
+    overwritten(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Set the cells in the specified range to the values in an array, making them real cells.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    this.delegate.setRange(fromRow, fromCol, toRow, toCol, values);
+    overwritten(fromRow, fromCol, toRow, toCol);
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range. The share of every region in the
+   * range is computed in closed form, and only the cells of the underlying spreadsheet that
+   * no region lies over are added to it.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    collect(fromRow, fromCol, toRow, toCol);
+    if (this.found.isEmpty()) {
+      return this.delegate.sumRange(fromRow, fromCol, toRow, toCol);
+    }
+    double[] sum = {0.0};
+    for (Region region : this.found) {
+      int firstRow = Math.max(fromRow, region.fromRow);
+      int lastRow = Math.min(toRow, region.toRow);
+      int firstCol = Math.max(fromCol, region.fromCol);
+      int lastCol = Math.min(toCol, region.toCol);
+      sum[0] += region.sum(firstRow, firstCol, lastRow, lastCol);
+    }
+    this.found.clear();
+    if (this.clearable != null) {
+      return sum[0] + this.delegate.sumRange(fromRow, fromCol, toRow, toCol);
+    }
+    this.delegate.forEachNonEmpty(fromRow, fromCol, toRow, toCol, (row, col, value) -> {
+      if (regionAt(row, col) == null) {
+        sum[0] += value;
+      }
+    });
+    return sum[0];
+  }
+
+  /**
+   * Pass every non-empty cell in the specified range to the visitor: the cells of the regions
+   * in the range, then the cells of the underlying spreadsheet that no region lies over.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to receive the non-empty cells
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    if (visitor == null) {
+      throw new IllegalArgumentException("Visitor cannot be null");
+    }
+    collect(fromRow, fromCol, toRow, toCol);
+    if (this.found.isEmpty()) {
+      this.delegate.forEachNonEmpty(fromRow, fromCol, toRow, toCol, visitor);
+      return;
+    }
+    ArrayList<Region> inside = new ArrayList<Region>(this.found);
+    this.found.clear();
+    for (Region region : inside) {
+      int lastRow = Math.min(toRow, region.toRow);
+      int firstCol = Math.max(fromCol, region.fromCol);
+      int lastCol = Math.min(toCol, region.toCol);
+      for (int row = Math.max(fromRow, region.fromRow); row <= lastRow; row++) {
+        for (int col = firstCol; col <= lastCol; col++) {
+          visitor.visit(row, col, region.valueAt(row, col));
+        }
+      }
+    }
+    this.delegate.forEachNonEmpty(fromRow, fromCol, toRow, toCol, (row, col, value) -> {
+      if (regionAt(row, col) == null) {
+        visitor.visit(row, col, value);
+      }
+    });
+  }
+
+  /**
+   * Executes the given macro command. Bulk and range assignments become virtual regions, and
+   * any other macro is executed against this spreadsheet.
+   *
+   * @param command the macro command to execute
+   */
+  @Override
+  public void execute(MacroCommand command) {
+    if (command.getClass() == BulkMacroAssign.class) {
+      BulkMacroAssign bulk = (BulkMacroAssign) command;
+      addRegion(new Region(bulk.getFromRow(), bulk.getFromCol(), bulk.getToRow(),
+              bulk.getToCol(), bulk.getValue(), 0, false));
+    } else if (command.getClass() == MacroRangeAssign.class) {
+      MacroRangeAssign range = (MacroRangeAssign) command;
+      if (range.getToRow() >= range.getFromRow() && range.getToCol() >= range.getFromCol()) {
+        addRegion(new Region(range.getFromRow(), range.getFromCol(), range.getToRow(),
+                range.getToCol(), range.getStartValue(), range.getIncrement(), true));
+      }
+    } else {
+      command.execute(this);
+    }
+  }
+
+  /**
+   * Add a region as the newest one, carving it out of the regions it overlaps and clearing
+   * the cells it covers from the underlying spreadsheet if it can be cleared.
+   *
+   * @param region the region to add
+   */
+  private void addRegion(Region region) {
+    carve(region.fromRow, region.fromCol, region.toRow, region.toCol);
+    if (this.clearable != null) {
+      long[][] covered = {new long[16]};
+      int[] count = {0};
+      Region r = region;
+      this.clearable.forEachNonEmpty(r.fromRow, r.fromCol, r.toRow, r.toCol, (row, col, v) -> {
+        if (count[0] == covered[0].length) {
+          covered[0] = Arrays.copyOf(covered[0], count[0] << 1);
+        }
+        covered[0][count[0]++] = CellKey.pack(row, col);
+      });
+      Arrays.sort(covered[0], 0, count[0]);
+      for (int i = 0; i < count[0]; i++) {
+        this.clearable.clear(CellKey.row(covered[0][i]), CellKey.col(covered[0][i]));
+      }
+    }
+    this.regions.add(region.fromRow, region.fromCol, region.toRow, region.toCol, region);
+    this.height = Math.max(this.height, region.toRow + 1);
+    this.width = Math.max(this.width, region.toCol + 1);
+  }
+
+  /**
+   * Record that a range was written to the underlying spreadsheet, by carving it out of the
+   * regions it overlaps.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void overwritten(int fromRow, int fromCol, int toRow, int toCol) {
+    if (this.regions.size() != 0) {
+      carve(fromRow, fromCol, toRow, toCol);
+    }
+  }
+
+  /**
+   * Remove a range from every region it overlaps, replacing each such region by the parts of
+   * it above, below, left and right of the range.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void carve(int fromRow, int fromCol, int toRow, int toCol) {
+    collect(fromRow, fromCol, toRow, toCol);
+    if (this.found.isEmpty()) {
+      return;
+    }
+    ArrayList<Region> overlapped = new ArrayList<Region>(this.found);
+    this.found.clear();
+    for (Region region : overlapped) {
+      this.regions.remove(region.fromRow, region.fromCol, region.toRow, region.toCol, region);
+      int middleFrom = Math.max(fromRow, region.fromRow);
+      int middleTo = Math.min(toRow, region.toRow);
+      if (region.fromRow < fromRow) {
+        storePart(region.part(region.fromRow, region.fromCol, fromRow - 1, region.toCol));
+      }
+      if (region.toRow > toRow) {
+        storePart(region.part(toRow + 1, region.fromCol, region.toRow, region.toCol));
+      }
+      if (region.fromCol < fromCol) {
+        storePart(region.part(middleFrom, region.fromCol, middleTo, fromCol - 1));
+      }
+      if (region.toCol > toCol) {
+        storePart(region.part(middleFrom, toCol + 1, middleTo, region.toCol));
+      }
+    }
+  }
+
+  /**
+   * Store a part of a carved region.
+   *
+   * @param part the part to store, which must not overlap any stored region
+   */
+  private void storePart(Region part) {
+    this.regions.add(part.fromRow, part.fromCol, part.toRow, part.toCol, part);
+  }
+
+  /**
+   * Return the region that holds a cell.
+   *
+   * @param row the row of the cell
+   * @param col the column of the cell
+   * @return the region, or null if the cell is not in any region
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  private Region regionAt(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    if (this.regions.size() == 0) {
+      return null;
+    }
+    this.regions.forEachContaining(row, col, this.found::add);
+    Region region = this.found.isEmpty() ? null : this.found.get(0);
+    this.found.clear();
+    return region;
+  }
+
+  /**
+   * Collect the regions intersecting a range into the list of found regions.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void collect(int fromRow, int fromCol, int toRow, int toCol) {
+    this.found.clear();
+    this.regions.forEachIntersecting(fromRow, fromCol, toRow, toCol, this.found::add);
+  }
+
+  /**
+   * A rectangle written by a macro, or the part of one left after carving. Its cells hold
+   * either one constant or a sequence growing by a fixed increment in the row-major order of
+   * the rectangle the macro wrote, which a part remembers through the origin and stride of
+   * that rectangle.
+   */
+  private static final class Region {
+    private final int fromRow;
+    private final int fromCol;
+    private final int toRow;
+    private final int toCol;
+    private final double start;
+    private final double increment;
+    private final boolean linear;
+    private final int originRow;
+    private final int originCol;
+    private final long stride;
+
+    /**
+     * Create a region covering the whole rectangle written by a macro.
+     *
+     * @param fromRow   the first row of the rectangle
+     * @param fromCol   the first column of the rectangle
+     * @param toRow     the last row of the rectangle
+     * @param toCol     the last column of the rectangle
+     * @param start     the value of the first cell
+     * @param increment the difference between consecutive cells
+     * @param linear    true if the values follow the increment, false if they are constant
+     */
+    Region(int fromRow, int fromCol, int toRow, int toCol, double start, double increment,
+           boolean linear) {
+      this(fromRow, fromCol, toRow, toCol, start, increment, linear, fromRow, fromCol,
+              (long) toCol - fromCol + 1);
+    }
+
+    /**
+     * Create a region covering part of the rectangle written by a macro.
+     *
+     * @param fromRow   the first row of the part
+     * @param fromCol   the first column of the part
+     * @param toRow     the last row of the part
+     * @param toCol     the last column of the part
+     * @param start     the value of the first cell of the whole rectangle
+     * @param increment the difference between consecutive cells
+     * @param linear    true if the values follow the increment, false if they are constant
+     * @param originRow the first row of the whole rectangle
+     * @param originCol the first column of the whole rectangle
+     * @param stride    the number of columns of the whole rectangle
+     */
+    private Region(int fromRow, int fromCol, int toRow, int toCol, double start,
+                   double increment, boolean linear, int originRow, int originCol,
+                   long stride) {
+      this.fromRow = fromRow;
+      this.fromCol = fromCol;
+      this.toRow = toRow;
+      this.toCol = toCol;
+      this.start = start;
+      this.increment = increment;
+      this.linear = linear;
+      this.originRow = originRow;
+      this.originCol = originCol;
+      this.stride = stride;
+    }
+
+    /**
+     * Return the part of this region covering a rectangle inside it.
+     *
+     * @param fromRow the first row of the part
+     * @param fromCol the first column of the part
+     * @param toRow   the last row of the part
+     * @param toCol   the last column of the part
+     * @return the part, computing the same values as this region
+     */
+    Region part(int fromRow, int fromCol, int toRow, int toCol) {
+      return new Region(fromRow, fromCol, toRow, toCol, this.start, this.increment,
+              this.linear, this.originRow, this.originCol, this.stride);
+    }
+
+    /**
+     * Return the value of a cell of this region, computed as the macro computed it.
+     *
+     * @param row the row of the cell
+     * @param col the column of the cell
+     * @return the value of the cell
+     */
+    double valueAt(int row, int col) {
+      if (!this.linear) {
+        return this.start;
+      }
+      long index = ((long) row - this.originRow) * this.stride + (col - this.originCol);
+      return this.start + this.increment * index;
+    }
+
+    /**
+     * Return the sum of the cells of a rectangle inside this region, as the value times the
+     * area or as the sum of an arithmetic series.
+     *
+     * @param fromRow the first row of the rectangle
+     * @param fromCol the first column of the rectangle
+     * @param toRow   the last row of the rectangle
+     * @param toCol   the last column of the rectangle
+     * @return the sum of the cells
+     */
+    double sum(int fromRow, int fromCol, int toRow, int toCol) {
+      long rows = (long) toRow - fromRow + 1;
+      long cols = (long) toCol - fromCol + 1;
+      double area = (double) rows * cols;
+      if (!this.linear) {
+        return this.start * area;
+      }
+      double rowOffsets = rows * (((double) fromRow - this.originRow)
+              + ((double) toRow - this.originRow)) / 2;
+      double colOffsets = cols * (((double) fromCol - this.originCol)
+              + ((double) toCol - this.originCol)) / 2;
+      double indexSum = rowOffsets * this.stride * cols + colOffsets * rows;
+      return this.start * area + this.increment * indexSum;
+    }
+  }
+}
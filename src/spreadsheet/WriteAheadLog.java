@@ -0,0 +1,428 @@
+package spreadsheet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records in a single file, written through a {@link FileChannel}.
+ *
+ * <p>The file starts with a header holding the generation of the log, which grows every time
+ * the log is reset. Each record is stored as its length, the CRC32 of its payload and the
+ * payload itself, so a record torn by a crash is recognized and dropped on the next start.
+ *
+ * <p>Appending only copies a record into memory. Committing writes every record appended so
+ * far and, depending on the {@link FsyncPolicy}, forces it to the device. While one thread is
+ * writing, the records of other threads keep accumulating and are written together by the
+ * next commit, so concurrent writers share the cost of a force (group commit).
+ *
+ * <p>Under {@link FsyncPolicy#PERIODIC}, a daemon thread forces whatever was written but not
+ * yet forced once per period, so that the last writes before a pause are forced too.
+ */
+final class WriteAheadLog implements Closeable {
+  private static final int MAGIC = 0x5357414C;
+  private static final int HEADER_BYTES = Integer.BYTES + Long.BYTES;
+  private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+  private static final long PERIOD_NANOS =
+          TimeUnit.MILLISECONDS.toNanos(FsyncPolicy.PERIOD_MILLIS);
+
+  private final FileChannel channel;
+  private final FsyncPolicy policy;
+  private final ReentrantLock lock;
+  private final Condition written;
+  private final CRC32 crc;
+  private final ScheduledExecutorService forcer;
+  private ByteBuffer pending;
+  private ByteBuffer spare;
+  private long generation;
+  private long appended;
+  private long writtenTo;
+  private long forcedTo;
+  private long lastForce;
+  private boolean writing;
+  private boolean closed;
+  private IOException failure;
+
+  /**
+   * Open the log in the given file, creating it if it does not exist. An existing log is not
+   * read until {@link #replay} is called.
+   *
+   * @param file   the file holding the log
+   * @param policy when to force the log to the device
+   * @throws IOException if the file cannot be opened or its header is invalid
+   */
+  WriteAheadLog(Path file, FsyncPolicy policy) throws IOException {
+    this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    this.policy = policy;
+    this.lock = new ReentrantLock();
+    this.written = this.lock.newCondition();
+    this.crc = new CRC32();
+    this.pending = ByteBuffer.allocate(1 << 16);
+    this.spare = ByteBuffer.allocate(1 << 16);
+    this.lastForce = System.nanoTime();
+    if (this.channel.size() < HEADER_BYTES) {
+      reset(0);
+    } else {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      this.channel.read(header, 0);
+      header.flip();
+      if (header.getInt() != MAGIC) {
+        this.channel.close();
+        throw new IOException("Not a spreadsheet log: " + file);
+      }
+      this.generation = header.getLong();
+      this.appended = this.channel.size();
+      this.writtenTo = this.appended;
+      this.forcedTo = this.appended;
+    }
+    if (policy == FsyncPolicy.PERIODIC) {
+      this.forcer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "spreadsheet-log-force");
+        thread.setDaemon(true);
+        return thread;
+      });
+      this.forcer.scheduleWithFixedDelay(this::forceIdle, FsyncPolicy.PERIOD_MILLIS,
+              FsyncPolicy.PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    } else {
+      this.forcer = null;
+    }
+  }
+
+  /**
+   * Return the generation of this log.
+   *
+   * @return the generation of this log
+   */
+  long generation() {
+    return this.generation;
+  }
+
+  /**
+   * Return the size of this log in bytes, including records that are not written yet.
+   *
+   * @return the size of this log in bytes
+   */
+  long size() {
+    this.lock.lock();
+    try {
+      return this.appended;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Pass the payload of every intact record to the given visitor, oldest first. The log ends
+   * at the first record that is incomplete or fails its checksum, and anything after it is
+   * cut off so that new records follow the last intact one.
+   *
+   * @param visitor the visitor to receive the payloads
+   * @throws IOException if the file cannot be read or truncated, or the visitor finds that
+   *                     an intact record is damaged, in which case nothing is cut off
+   */
+  void replay(RecordVisitor visitor) throws IOException {
+    long size = this.channel.size();
+    long end = HEADER_BYTES;
+    if (size > HEADER_BYTES) {
+      MappedByteBuffer map = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      map.position(HEADER_BYTES);
+      while (map.remaining() >= RECORD_HEADER_BYTES) {
+        int length = map.getInt();
+        int checksum = map.getInt();
+        if (length <= 0 || length > map.remaining()) {
+          break;
+        }
+        ByteBuffer payload = map.slice();
+        payload.limit(length);
+        this.crc.reset();
+        this.crc.update(payload.duplicate());
+        if ((int) this.crc.getValue() != checksum) {
+          break;
+        }
+        visitor.visit(payload);
+        map.position(map.position() + length);
+        end = map.position();
+      }
+    }
+    if (end < size) {
+      this.channel.truncate(end);
+      this.channel.force(false);
+    }
+    this.lock.lock();
+    try {
+      this.appended = end;
+      this.writtenTo = end;
+      this.forcedTo = end;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Append a record to this log. The record is not durable until it is committed.
+   *
+   * @param payload the payload of the record, from its position to its limit
+   * @return the size of the log once the record is written, to be passed to {@link #commit}
+   * @throws IllegalStateException if an earlier write to the file failed
+   */
+  long append(ByteBuffer payload) throws IllegalStateException {
+    this.lock.lock();
+    try {
+      checkFailure();
+      int length = payload.remaining();
+      ensurePending(RECORD_HEADER_BYTES + length);
+      this.crc.reset();
+      this.crc.update(payload.duplicate());
+      this.pending.putInt(length).putInt((int) this.crc.getValue()).put(payload);
+      this.appended += RECORD_HEADER_BYTES + length;
+      return this.appended;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until the log is written, and forced if the policy asks for it, at least up to the
+   * given size. Whichever waiting thread gets there first writes the records of all of them.
+   *
+   * @param upTo the size returned by {@link #append}
+   * @throws IllegalStateException if writing to the file failed
+   */
+  void commit(long upTo) throws IllegalStateException {
+    this.lock.lock();
+    try {
+      while (this.writtenTo < upTo
+              || (this.policy == FsyncPolicy.ALWAYS && this.forcedTo < upTo)) {
+        checkFailure();
+        if (this.writing) {
+          this.written.awaitUninterruptibly();
+        } else {
+          flushPending();
+        }
+      }
+      checkFailure();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Write and force every record appended so far.
+   *
+   * @throws IllegalStateException if writing to the file failed
+   */
+  void sync() throws IllegalStateException {
+    this.lock.lock();
+    try {
+      long target = this.appended;
+      while (this.forcedTo < target) {
+        checkFailure();
+        if (this.writing) {
+          this.written.awaitUninterruptibly();
+        } else if (this.writtenTo < target) {
+          flushPending();
+        } else {
+          forceWritten();
+        }
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Empty this log and start the given generation. Every record must have been committed, and
+   * no record may be appended while the log is reset.
+   *
+   * @param nextGeneration the generation of the emptied log
+   * @throws IOException if the file cannot be rewritten
+   */
+  void reset(long nextGeneration) throws IOException {
+    this.lock.lock();
+    try {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      header.putInt(MAGIC).putLong(nextGeneration).flip();
+      this.channel.truncate(HEADER_BYTES);
+      this.channel.write(header, 0);
+      this.channel.force(false);
+      this.generation = nextGeneration;
+      this.pending.clear();
+      this.appended = HEADER_BYTES;
+      this.writtenTo = HEADER_BYTES;
+      this.forcedTo = HEADER_BYTES;
+      this.lastForce = System.nanoTime();
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Write and force every record appended so far, then close the file.
+   *
+   * @throws IOException if the records cannot be written or the file cannot be closed
+   */
+  @Override
+  public void close() throws IOException {
+    if (this.forcer != null) {
+      this.forcer.shutdown();
+    }
+    try {
+      sync();
+    } catch (IllegalStateException e) {
+      this.channel.close();
+      throw new IOException(e.getMessage(), e);
+    } finally {
+      this.lock.lock();
+      try {
+        while (this.writing) {
+          this.written.awaitUninterruptibly();
+        }
+        this.closed = true;
+      } finally {
+        this.lock.unlock();
+      }
+    }
+    this.channel.close();
+  }
+
+  /**
+   * Force the records that were written since the last force, if no other thread is writing
+   * or forcing them. Run once per period under {@link FsyncPolicy#PERIODIC}; a failure is
+   * kept and reported to the next writer.
+   */
+  private void forceIdle() {
+    this.lock.lock();
+    try {
+      if (!this.closed && !this.writing && this.failure == null
+              && this.forcedTo < this.writtenTo) {
+        forceWritten();
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Write the pending records with the lock released, so that other threads can keep
+   * appending meanwhile, and force them if the policy asks for it. The lock must be held.
+   */
+  private void flushPending() {
+    ByteBuffer batch = this.pending;
+    this.pending = this.spare;
+    this.spare = null;
+    long target = this.appended;
+    long position = this.writtenTo;
+    long now = System.nanoTime();
+    boolean force = this.policy == FsyncPolicy.ALWAYS
+            || (this.policy == FsyncPolicy.PERIODIC && now - this.lastForce >= PERIOD_NANOS);
+    this.writing = true;
+    this.lock.unlock();
+    IOException error = null;
+    try {
+      batch.flip();
+      while (batch.hasRemaining()) {
+        position += this.channel.write(batch, position);
+      }
+      if (force) {
+        this.channel.force(false);
+      }
+    } catch (IOException e) {
+      error = e;
+    } finally {
+      this.lock.lock();
+      batch.clear();
+      this.spare = batch;
+      this.writing = false;
+      if (error == null) {
+        this.writtenTo = target;
+        if (force) {
+          this.forcedTo = target;
+          this.lastForce = now;
+        }
+      } else if (this.failure == null) {
+        this.failure = error;
+      }
+      this.written.signalAll();
+    }
+  }
+
+  /**
+   * Force the records that are already written. The lock must be held.
+   */
+  private void forceWritten() {
+    long target = this.writtenTo;
+    this.writing = true;
+    this.lock.unlock();
+    IOException error = null;
+    try {
+      this.channel.force(false);
+    } catch (IOException e) {
+      error = e;
+    } finally {
+      this.lock.lock();
+      this.writing = false;
+      if (error == null) {
+        this.forcedTo = Math.max(this.forcedTo, target);
+        this.lastForce = System.nanoTime();
+      } else if (this.failure == null) {
+        this.failure = error;
+      }
+      this.written.signalAll();
+    }
+  }
+
+  /**
+   * Make room in the pending buffer for the given number of bytes. The lock must be held.
+   *
+   * @param bytes the number of bytes about to be appended
+   */
+  private void ensurePending(int bytes) {
+    if (this.pending.remaining() < bytes) {
+      int capacity = this.pending.capacity();
+      while (capacity - this.pending.position() < bytes) {
+        capacity <<= 1;
+      }
+      ByteBuffer grown = ByteBuffer.allocate(capacity);
+      this.pending.flip();
+      grown.put(this.pending);
+      this.pending = grown;
+    }
+  }
+
+  /**
+   * Fail if an earlier write to the file failed, since the log no longer matches what was
+   * acknowledged. The lock must be held.
+   *
+   * @throws IllegalStateException if an earlier write failed
+   */
+  private void checkFailure() throws IllegalStateException {
+    if (this.failure != null) {
+      throw new IllegalStateException("Log could not be written: " + this.failure.getMessage());
+    }
+  }
+
+  /**
+   * Receives the payloads of the records of a log one at a time.
+   */
+  interface RecordVisitor {
+
+    /**
+     * Visit the payload of one record.
+     *
+     * @param payload the payload, from its position to its limit
+     * @throws IOException if the payload is damaged
+     */
+    void visit(ByteBuffer payload) throws IOException;
+  }
+}
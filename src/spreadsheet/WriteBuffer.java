@@ -0,0 +1,658 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A spreadsheet that records writes in a private buffer instead of applying them to the
+ * spreadsheet it is layered over. Reads see the buffered writes on top of the underlying
+ * cells. The buffer is used to run a batch of macros as one unit: if any of them fails, the
+ * buffer is simply dropped and the underlying spreadsheet is left untouched.
+ *
+ * <p>Range writes are kept as rectangles, in a {@link RectangleIndex}, and a range write
+ * carves the rectangles it overlaps so that they never overlap one another. Single cells are
+ * kept in a hash map on top of the rectangles. A sum over a range therefore costs one
+ * underlying sum per rectangle it meets, plus the single cells in it, however many cells the
+ * rectangles hold; and the rectangles are applied as ranges when the buffer is applied.
+ */
+final class WriteBuffer implements SpreadSheet {
+  private final SpreadSheet base;
+  private final LongDoubleHashMap cells;
+  private final RectangleIndex<Region> regions;
+  private final ArrayList<Region> found;
+  private int maxRow;
+  private int maxCol;
+
+  /**
+   * Create an empty buffer over the given spreadsheet.
+   *
+   * @param base the spreadsheet the buffer is layered over
+   */
+  WriteBuffer(SpreadSheet base) {
+    this.base = base;
+    this.cells = new LongDoubleHashMap();
+    this.regions = new RectangleIndex<Region>();
+    this.found = new ArrayList<Region>();
+    this.maxRow = -1;
+    this.maxCol = -1;
+  }
+
+  /**
+   * Get the number at the specified cell, as buffered or else as underlying.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return the number at the specified cell, as a double. If the cell is empty, it returns a 0
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public double get(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    long key = CellKey.pack(row, col);
+    return this.cells.containsKey(key) ? this.cells.get(key, 0.0) : beneathCell(row, col);
+  }
+
+  /**
+   * Buffer a write of the specified value to the specified cell.
+   *
+   * @param row   the row number of the cell, starting with 0
+   * @param col   the column number of the cell, starting at 0
+   * @param value the value that this cell must be set to
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public void set(int row, int col, double value) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    this.cells.put(CellKey.pack(row, col), value);
+    includeInBounds(row, col);
+  }
+
+  /**
+   * Returns whether the specified cell is empty both in the buffer and underneath.
+   *
+   * @param row the row number of the cell, starting with 0
+   * @param col the column number of the cell, starting with 0
+   * @return true if the cell is empty, false otherwise
+   * @throws IllegalArgumentException if the row or column are negative
+   */
+  @Override
+  public boolean isEmpty(int row, int col) throws IllegalArgumentException {
+    if ((row < 0) || (col < 0)) {
+      throw new IllegalArgumentException("Row or column cannot be negative");
+    }
+    return !this.cells.containsKey(CellKey.pack(row, col)) && regionAt(row, col) == null
+            && this.base.isEmpty(row, col);
+  }
+
+  /**
+   * Return the width the underlying spreadsheet would have after the buffered writes.
+   *
+   * @return the width of this spreadsheet
+   */
+  @Override
+  public int getWidth() {
+    return Math.max(this.base.getWidth(), this.maxCol + 1);
+  }
+
+  /**
+   * Return the height the underlying spreadsheet would have after the buffered writes.
+   *
+   * @return the height of this spreadsheet
+   */
+  @Override
+  public int getHeight() {
+    return Math.max(this.base.getHeight(), this.maxRow + 1);
+  }
+
+  /**
+   * Copy the numbers in the specified range into an array, in row-major order: the
+   * underlying numbers, overlaid with the buffered rectangles and cells.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param dest    the array to receive the numbers, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void getRange(int fromRow, int fromCol, int toRow, int toCol, double[] dest)
+          throws IllegalArgumentException {
+    this.base.getRange(fromRow, fromCol, toRow, toCol, dest);
+    int cols = toCol - fromCol + 1;
+    collect(fromRow, fromCol, toRow, toCol);
+    for (Region region : this.found) {
+      int firstCol = Math.max(fromCol, region.fromCol);
+      int lastCol = Math.min(toCol, region.toCol);
+      int lastRow = Math.min(toRow, region.toRow);
+      for (int row = Math.max(fromRow, region.fromRow); row <= lastRow; row++) {
+        int i = (row - fromRow) * cols + (firstCol - fromCol);
+        for (int col = firstCol; col <= lastCol; col++) {
+          dest[i++] = region.valueAt(row, col);
+        }
+      }
+    }
+    this.found.clear();
+    forEachCell(fromRow, fromCol, toRow, toCol,
+        (row, col, value) -> dest[(row - fromRow) * cols + (col - fromCol)] = value);
+  }
+
+  /**
+   * Buffer a write of the same value to every cell in the specified range, as one rectangle.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param value   the value that every cell in the range must be set to
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public void fillRange(int fromRow, int fromCol, int toRow, int toCol, double value)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol);
+    write(new Region(fromRow, fromCol, toRow, toCol, value, null, fromRow, fromCol));
+  }
+
+  /**
+   * Buffer a write of the values in an array to the specified range, as one rectangle. The
+   * values are copied, so the array may be reused.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param values  the values for the cells, starting at index 0
+   * @throws IllegalArgumentException if the range is invalid or the array is too small
+   */
+  @Override
+  public void setRange(int fromRow, int fromCol, int toRow, int toCol, double[] values)
+          throws IllegalArgumentException {
+    RangeChecks.checkRange(fromRow, fromCol, toRow, toCol, values);
+    double[] copy = Arrays.copyOf(values, (int) RangeChecks.area(fromRow, fromCol, toRow,
+            toCol));
+    write(new Region(fromRow, fromCol, toRow, toCol, 0.0, copy, fromRow, fromCol));
+  }
+
+  /**
+   * Pass every non-empty cell in the specified range to the given visitor. Underlying cells
+   * that have been overwritten are replaced by their buffered values.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @param visitor the visitor to receive the cells
+   * @throws IllegalArgumentException if the range is invalid or the visitor is null
+   */
+  @Override
+  public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                              CellVisitor visitor) throws IllegalArgumentException {
+    this.base.forEachNonEmpty(fromRow, fromCol, toRow, toCol, (row, col, value) -> {
+      if (!this.cells.containsKey(CellKey.pack(row, col)) && regionAt(row, col) == null) {
+        visitor.visit(row, col, value);
+      }
+    });
+    collect(fromRow, fromCol, toRow, toCol);
+    ArrayList<Region> overlapped = new ArrayList<Region>(this.found);
+    this.found.clear();
+    for (Region region : overlapped) {
+      region.forEachCell(Math.max(fromRow, region.fromRow), Math.max(fromCol, region.fromCol),
+              Math.min(toRow, region.toRow), Math.min(toCol, region.toCol),
+          (row, col, value) -> {
+            if (!this.cells.containsKey(CellKey.pack(row, col))) {
+              visitor.visit(row, col, value);
+            }
+          });
+    }
+    forEachCell(fromRow, fromCol, toRow, toCol, visitor);
+  }
+
+  /**
+   * Return the sum of the numbers in the specified range: the underlying sum, corrected by
+   * the sum of each buffered rectangle less the underlying sum beneath it, and by each
+   * buffered cell less the number beneath it.
+   *
+   * @param fromRow the first row of the range, starting with 0
+   * @param fromCol the first column of the range, starting with 0
+   * @param toRow   the last row of the range, inclusive
+   * @param toCol   the last column of the range, inclusive
+   * @return the sum of the numbers in the range
+   * @throws IllegalArgumentException if the range is invalid
+   */
+  @Override
+  public double sumRange(int fromRow, int fromCol, int toRow, int toCol)
+          throws IllegalArgumentException {
+    double[] sum = {this.base.sumRange(fromRow, fromCol, toRow, toCol)};
+    collect(fromRow, fromCol, toRow, toCol);
+    for (Region region : this.found) {
+      int firstRow = Math.max(fromRow, region.fromRow);
+      int firstCol = Math.max(fromCol, region.fromCol);
+      int lastRow = Math.min(toRow, region.toRow);
+      int lastCol = Math.min(toCol, region.toCol);
+      sum[0] += region.sum(firstRow, firstCol, lastRow, lastCol)
+              - this.base.sumRange(firstRow, firstCol, lastRow, lastCol);
+    }
+    this.found.clear();
+    forEachCell(fromRow, fromCol, toRow, toCol,
+        (row, col, value) -> sum[0] += value - beneathCell(row, col));
+    return sum[0];
+  }
+
+  /**
+   * Return the highest row written to the buffer.
+   *
+   * @return the highest buffered row, or -1 if nothing is buffered
+   */
+  int getMaxRow() {
+    return this.maxRow;
+  }
+
+  /**
+   * Return the highest column written to the buffer.
+   *
+   * @return the highest buffered column, or -1 if nothing is buffered
+   */
+  int getMaxCol() {
+    return this.maxCol;
+  }
+
+  /**
+   * Apply the buffered writes to a spreadsheet: each rectangle as one range write, then each
+   * single cell.
+   *
+   * @param target the spreadsheet to write to
+   */
+  void applyTo(SpreadSheet target) {
+    forEachRange((fromRow, fromCol, toRow, toCol, value, values) -> {
+      if (values == null) {
+        target.fillRange(fromRow, fromCol, toRow, toCol, value);
+      } else {
+        target.setRange(fromRow, fromCol, toRow, toCol, values);
+      }
+    });
+    forEachCell(target::set);
+  }
+
+  /**
+   * Pass every buffered rectangle to the given visitor, in no particular order. The
+   * rectangles never overlap.
+   *
+   * @param visitor the visitor to receive the rectangles
+   */
+  void forEachRange(RangeVisitor visitor) {
+    this.regions.forEachIntersecting(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE,
+            this.found::add);
+    ArrayList<Region> all = new ArrayList<Region>(this.found);
+    this.found.clear();
+    for (Region region : all) {
+      visitor.visit(region.fromRow, region.fromCol, region.toRow, region.toCol, region.value,
+              region.values());
+    }
+  }
+
+  /**
+   * Pass every buffered single cell to the given visitor, in no particular order. A single
+   * cell may lie inside a buffered rectangle, in which case it overrides it.
+   *
+   * @param visitor the visitor to receive the cells
+   */
+  void forEachCell(CellVisitor visitor) {
+    this.cells.forEach((key, value) -> visitor.visit(CellKey.row(key), CellKey.col(key), value));
+  }
+
+  /**
+   * Pass every buffered cell to the given visitor with its final value, once each and in no
+   * particular order, whether it was written alone or as part of a range. This takes time
+   * proportional to the number of cells written, so it is meant for callers that must look
+   * at each of them anyway.
+   *
+   * @param visitor the visitor to receive the writes
+   */
+  void forEachBuffered(CellVisitor visitor) {
+    forEachRange((fromRow, fromCol, toRow, toCol, value, values) -> {
+      int i = 0;
+      for (int row = fromRow; row <= toRow; row++) {
+        for (int col = fromCol; col <= toCol; col++, i++) {
+          if (!this.cells.containsKey(CellKey.pack(row, col))) {
+            visitor.visit(row, col, values == null ? value : values[i]);
+          }
+        }
+      }
+    });
+    forEachCell(visitor);
+  }
+
+  /**
+   * Buffer a range write: carve it out of the rectangles it overlaps, drop the single cells
+   * it covers, and keep it as a rectangle.
+   *
+   * @param region the range written
+   */
+  private void write(Region region) {
+    if (this.regions.size() > 0) {
+      collect(region.fromRow, region.fromCol, region.toRow, region.toCol);
+      ArrayList<Region> overlapped = new ArrayList<Region>(this.found);
+      this.found.clear();
+      for (Region old : overlapped) {
+        this.regions.remove(old.fromRow, old.fromCol, old.toRow, old.toCol, old);
+        int middleFrom = Math.max(region.fromRow, old.fromRow);
+        int middleTo = Math.min(region.toRow, old.toRow);
+        if (old.fromRow < region.fromRow) {
+          store(old.part(old.fromRow, old.fromCol, region.fromRow - 1, old.toCol));
+        }
+        if (old.toRow > region.toRow) {
+          store(old.part(region.toRow + 1, old.fromCol, old.toRow, old.toCol));
+        }
+        if (old.fromCol < region.fromCol) {
+          store(old.part(middleFrom, old.fromCol, middleTo, region.fromCol - 1));
+        }
+        if (old.toCol > region.toCol) {
+          store(old.part(middleFrom, region.toCol + 1, middleTo, old.toCol));
+        }
+      }
+    }
+    if (this.cells.size() > 0) {
+      for (long key : collectCells(region.fromRow, region.fromCol, region.toRow, region.toCol)) {
+        this.cells.remove(key);
+      }
+    }
+    store(region);
+    includeInBounds(region.toRow, region.toCol);
+  }
+
+  /**
+   * Return the keys of the single cells buffered inside a range.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   * @return the packed keys of the cells
+   */
+  private long[] collectCells(int fromRow, int fromCol, int toRow, int toCol) {
+    long[][] keys = {new long[16]};
+    int[] count = {0};
+    forEachCell(fromRow, fromCol, toRow, toCol, (row, col, value) -> {
+      if (count[0] == keys[0].length) {
+        keys[0] = Arrays.copyOf(keys[0], count[0] << 1);
+      }
+      keys[0][count[0]++] = CellKey.pack(row, col);
+    });
+    return Arrays.copyOf(keys[0], count[0]);
+  }
+
+  /**
+   * Pass every buffered single cell inside a range to the given visitor. The range's cells
+   * are looked up one by one when there are fewer of them than buffered cells, and the
+   * buffered cells are filtered otherwise.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   * @param visitor the visitor to receive the cells
+   */
+  private void forEachCell(int fromRow, int fromCol, int toRow, int toCol,
+                           CellVisitor visitor) {
+    if (this.cells.size() == 0) {
+      return;
+    }
+    if (RangeChecks.area(fromRow, fromCol, toRow, toCol) <= this.cells.size()) {
+      for (int row = fromRow; row <= toRow; row++) {
+        for (int col = fromCol; col <= toCol; col++) {
+          long key = CellKey.pack(row, col);
+          if (this.cells.containsKey(key)) {
+            visitor.visit(row, col, this.cells.get(key, 0.0));
+          }
+        }
+      }
+      return;
+    }
+    forEachCell((row, col, value) -> {
+      if (row >= fromRow && row <= toRow && col >= fromCol && col <= toCol) {
+        visitor.visit(row, col, value);
+      }
+    });
+  }
+
+  /**
+   * Return the number a cell would hold without its single buffered write: that of the
+   * buffered rectangle holding it, or else the underlying one.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the number beneath the cell's single write
+   */
+  private double beneathCell(int row, int col) {
+    Region region = regionAt(row, col);
+    return region == null ? this.base.get(row, col) : region.valueAt(row, col);
+  }
+
+  /**
+   * Return the buffered rectangle holding a cell, if any. There is at most one, since the
+   * rectangles never overlap.
+   *
+   * @param row the row number of the cell
+   * @param col the column number of the cell
+   * @return the rectangle, or null if the cell is in none
+   */
+  private Region regionAt(int row, int col) {
+    if (this.regions.size() == 0) {
+      return null;
+    }
+    Region[] holder = new Region[1];
+    this.regions.forEachContaining(row, col, region -> holder[0] = region);
+    return holder[0];
+  }
+
+  /**
+   * Collect the rectangles intersecting a range into {@link #found}.
+   *
+   * @param fromRow the first row of the range
+   * @param fromCol the first column of the range
+   * @param toRow   the last row of the range
+   * @param toCol   the last column of the range
+   */
+  private void collect(int fromRow, int fromCol, int toRow, int toCol) {
+    this.regions.forEachIntersecting(fromRow, fromCol, toRow, toCol, this.found::add);
+  }
+
+  /**
+   * Add a rectangle to the index.
+   *
+   * @param region the rectangle, which must not overlap any other
+   */
+  private void store(Region region) {
+    this.regions.add(region.fromRow, region.fromCol, region.toRow, region.toCol, region);
+  }
+
+  /**
+   * Grow the highest buffered row and column to include a cell.
+   *
+   * @param row the row of the cell
+   * @param col the column of the cell
+   */
+  private void includeInBounds(int row, int col) {
+    this.maxRow = Math.max(this.maxRow, row);
+    this.maxCol = Math.max(this.maxCol, col);
+  }
+
+  /**
+   * Receives the buffered rectangles one at a time.
+   */
+  interface RangeVisitor {
+
+    /**
+     * Visit one rectangle.
+     *
+     * @param fromRow the first row of the rectangle
+     * @param fromCol the first column of the rectangle
+     * @param toRow   the last row of the rectangle
+     * @param toCol   the last column of the rectangle
+     * @param value   the value of every cell, if the values are null
+     * @param values  the values of the cells in row-major order, or null if they all hold the
+     *                same value
+     */
+    void visit(int fromRow, int fromCol, int toRow, int toCol, double value, double[] values);
+  }
+
+  /**
+   * A buffered rectangle: either one value for every cell, or a part of an array of values
+   * written by a range write, whose top left cell may lie above and left of the rectangle once
+   * it has been carved.
+   */
+  private static final class Region {
+    private final int fromRow;
+    private final int fromCol;
+    private final int toRow;
+    private final int toCol;
+    private final double value;
+    private final double[] source;
+    private final int sourceRow;
+    private final int sourceCol;
+    private final int sourceCols;
+
+    /**
+     * Create a rectangle.
+     *
+     * @param fromRow   the first row of the rectangle
+     * @param fromCol   the first column of the rectangle
+     * @param toRow     the last row of the rectangle
+     * @param toCol     the last column of the rectangle
+     * @param value     the value of every cell, if there is no array
+     * @param source    the array of values written, or null
+     * @param sourceRow the row of the first value in the array
+     * @param sourceCol the column of the first value in the array
+     */
+    Region(int fromRow, int fromCol, int toRow, int toCol, double value, double[] source,
+           int sourceRow, int sourceCol) {
+      this(fromRow, fromCol, toRow, toCol, value, source, sourceRow, sourceCol,
+              toCol - fromCol + 1);
+    }
+
+    /**
+     * Create a rectangle reading from an array with the given number of columns.
+     *
+     * @param fromRow    the first row of the rectangle
+     * @param fromCol    the first column of the rectangle
+     * @param toRow      the last row of the rectangle
+     * @param toCol      the last column of the rectangle
+     * @param value      the value of every cell, if there is no array
+     * @param source     the array of values written, or null
+     * @param sourceRow  the row of the first value in the array
+     * @param sourceCol  the column of the first value in the array
+     * @param sourceCols the number of columns of the array
+     */
+    private Region(int fromRow, int fromCol, int toRow, int toCol, double value,
+                   double[] source, int sourceRow, int sourceCol, int sourceCols) {
+      this.fromRow = fromRow;
+      this.fromCol = fromCol;
+      this.toRow = toRow;
+      this.toCol = toCol;
+      this.value = value;
+      this.source = source;
+      this.sourceRow = sourceRow;
+      this.sourceCol = sourceCol;
+      this.sourceCols = sourceCols;
+    }
+
+    /**
+     * Return the part of this rectangle inside a range, reading from the same values.
+     *
+     * @param fromRow the first row of the part
+     * @param fromCol the first column of the part
+     * @param toRow   the last row of the part
+     * @param toCol   the last column of the part
+     * @return the part
+     */
+    Region part(int fromRow, int fromCol, int toRow, int toCol) {
+      return new Region(fromRow, fromCol, toRow, toCol, this.value, this.source,
+              this.sourceRow, this.sourceCol, this.sourceCols);
+    }
+
+    /**
+     * Return the value of a cell of this rectangle.
+     *
+     * @param row the row of the cell
+     * @param col the column of the cell
+     * @return the value of the cell
+     */
+    double valueAt(int row, int col) {
+      if (this.source == null) {
+        return this.value;
+      }
+      return this.source[(row - this.sourceRow) * this.sourceCols + (col - this.sourceCol)];
+    }
+
+    /**
+     * Return the sum of the values of this rectangle inside a range it contains.
+     *
+     * @param fromRow the first row of the range
+     * @param fromCol the first column of the range
+     * @param toRow   the last row of the range
+     * @param toCol   the last column of the range
+     * @return the sum of the values
+     */
+    double sum(int fromRow, int fromCol, int toRow, int toCol) {
+      if (this.source == null) {
+        return this.value * RangeChecks.area(fromRow, fromCol, toRow, toCol);
+      }
+      double sum = 0;
+      for (int row = fromRow; row <= toRow; row++) {
+        int i = (row - this.sourceRow) * this.sourceCols + (fromCol - this.sourceCol);
+        for (int col = fromCol; col <= toCol; col++) {
+          sum += this.source[i++];
+        }
+      }
+      return sum;
+    }
+
+    /**
+     * Pass every cell of this rectangle inside a range it contains to the given visitor.
+     *
+     * @param fromRow the first row of the range
+     * @param fromCol the first column of the range
+     * @param toRow   the last row of the range
+     * @param toCol   the last column of the range
+     * @param visitor the visitor to receive the cells
+     */
+    void forEachCell(int fromRow, int fromCol, int toRow, int toCol, CellVisitor visitor) {
+      for (int row = fromRow; row <= toRow; row++) {
+        for (int col = fromCol; col <= toCol; col++) {
+          visitor.visit(row, col, valueAt(row, col));
+        }
+      }
+    }
+
+    /**
+     * Return the values of this rectangle in row-major order, or null if they are all the
+     * same. The written array is returned as is when the rectangle was not carved.
+     *
+     * @return the values, or null
+     */
+    double[] values() {
+      if (this.source == null) {
+        return null;
+      }
+      int cols = this.toCol - this.fromCol + 1;
+      if (this.sourceRow == this.fromRow && this.sourceCol == this.fromCol
+              && this.sourceCols == cols) {
+        return this.source;
+      }
+      double[] values = new double[(int) RangeChecks.area(this.fromRow, this.fromCol,
+              this.toRow, this.toCol)];
+      int i = 0;
+      for (int row = this.fromRow; row <= this.toRow; row++) {
+        System.arraycopy(this.source, (row - this.sourceRow) * this.sourceCols
+                + (this.fromCol - this.sourceCol), values, i, cols);
+        i += cols;
+      }
+      return values;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import spreadsheet.BulkMacroAssign;
+import spreadsheet.CachingSpreadSheet;
+import spreadsheet.MacroAverage;
+import spreadsheet.MacroCommand;
+import spreadsheet.MacroRangeAssign;
+import spreadsheet.NewSparseSpreadSheet;
+import spreadsheet.SpreadSheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * This class tests that CachingSpreadSheet answers repeated sums from its cache and never
+ * returns a stale one.
+ */
+public class CachingSpreadSheetTest {
+
+  /**
+   * Tests that a repeated average is a hit, and that only writes inside its range drop it.
+   */
+  @Test
+  public void testRepeatedAverage() {
+    CachingSpreadSheet sheet = new CachingSpreadSheet(new NewSparseSpreadSheet());
+    sheet.execute(new MacroRangeAssign(0, 0, 99, 9, 0, 1));
+    MacroAverage average = new MacroAverage(0, 0, 99, 9, 200, 0);
+    sheet.execute(average);
+    sheet.execute(average);
+    assertEquals(1, sheet.getMisses());
+    assertEquals(1, sheet.getHits());
+    assertEquals(499.5, sheet.get(200, 0), 1e-9);
+
+    sheet.set(150, 0, 7);
+    sheet.execute(new BulkMacroAssign(0, 10, 99, 20, 1));
+    sheet.execute(average);
+    assertEquals(2, sheet.getHits());
+    assertEquals(0, sheet.getInvalidations());
+
+    sheet.set(50, 5, 0);
+    sheet.execute(average);
+    assertEquals(1, sheet.getInvalidations());
+    assertEquals(2, sheet.getMisses());
+    assertEquals(499.5 - 505.0 / 1000, sheet.get(200, 0), 1e-9);
+  }
+
+  /**
+   * Tests random writes and sums against a spreadsheet without a cache, with a capacity
+   * small enough to evict.
+   */
+  @Test
+  public void testMatchesUncachedSpreadSheet() {
+    CachingSpreadSheet sheet = new CachingSpreadSheet(new NewSparseSpreadSheet(), 8);
+    SpreadSheet expected = new NewSparseSpreadSheet();
+    Random random = new Random(5);
+    for (int i = 0; i < 3000; i++) {
+      int fromRow = random.nextInt(50);
+      int fromCol = random.nextInt(50);
+      switch (random.nextInt(4)) {
+        case 0:
+          sheet.set(fromRow, fromCol, i);
+          expected.set(fromRow, fromCol, i);
+          break;
+        case 1:
+          sheet.fillRange(fromRow, fromCol, fromRow + 2, fromCol + 2, i);
+          expected.fillRange(fromRow, fromCol, fromRow + 2, fromCol + 2, i);
+          break;
+        default:
+          int range = random.nextInt(12);
+          assertEquals(expected.sumRange(range, range * 2, range + 30, range * 2 + 20),
+                  sheet.sumRange(range, range * 2, range + 30, range * 2 + 20), 0.0);
+      }
+    }
+    assertTrue(sheet.getCachedCount() <= 8);
+    assertTrue(sheet.getHits() > 0);
+    assertTrue(sheet.getEvictions() > 0);
+    assertTrue(sheet.getInvalidations() > 0);
+  }
+
+  /**
+   * Tests that macros are journaled by the underlying spreadsheet while still invalidating
+   * the cache, and that a failed macro drops it.
+   */
+  @Test
+  public void testMacrosRunThroughDelegate() {
+    NewSparseSpreadSheet cells =
+            new NewSparseSpreadSheet(NewSparseSpreadSheet.DEFAULT_JOURNAL_CAPACITY);
+    CachingSpreadSheet sheet = new CachingSpreadSheet(cells);
+    sheet.execute(new BulkMacroAssign(0, 0, 9, 9, 1));
+    assertTrue(cells.canUndo());
+    assertEquals(100, sheet.sumRange(0, 0, 9, 9), 0.0);
+    sheet.execute(new BulkMacroAssign(5, 5, 5, 5, 2));
+    assertEquals(101, sheet.sumRange(0, 0, 9, 9), 0.0);
+    assertEquals(1, sheet.getInvalidations());
+
+    try {
+      sheet.execute(s -> {
+        throw new IllegalArgumentException("failed");
+      });
+      fail();
+    } catch (IllegalArgumentException e) {
+      assertEquals(0, sheet.getCachedCount());
+    }
+  }
+
+  /**
+   * Tests that an assign reaches the underlying spreadsheet as the macro itself, so that it
+   * can be logged or run in parallel, and that only the sums it overlaps are dropped.
+   */
+  @Test
+  public void testAssignKeepsItsType() {
+    List<MacroCommand> received = new ArrayList<MacroCommand>();
+    CachingSpreadSheet sheet = new CachingSpreadSheet(new NewSparseSpreadSheet() {
+      @Override
+      public void execute(MacroCommand command) {
+        received.add(command);
+        super.execute(command);
+      }
+    });
+    sheet.execute(new BulkMacroAssign(0, 0, 9, 9, 1));
+    assertEquals(100, sheet.sumRange(0, 0, 9, 9), 0.0);
+    assertEquals(0, sheet.sumRange(20, 0, 29, 9), 0.0);
+    MacroRangeAssign assign = new MacroRangeAssign(8, 8, 9, 9, 5, 0);
+    sheet.execute(assign);
+    assertSame(assign, received.get(1));
+    assertEquals(116, sheet.sumRange(0, 0, 9, 9), 0.0);
+    assertEquals(1, sheet.getInvalidations());
+    assertEquals(2, sheet.getCachedCount());
+    assertTrue(received.get(0) instanceof BulkMacroAssign);
+  }
+}
@@ -0,0 +1,149 @@
+import org.junit.Test;
+
+import java.util.Random;
+
+import spreadsheet.ColumnarSpreadSheet;
+import spreadsheet.MacroAverage;
+import spreadsheet.SparseSpreadSheet;
+import spreadsheet.SpreadSheet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the column-oriented storage of ColumnarSpreadSheet.
+ */
+public class ColumnarSpreadSheetTest {
+
+  /**
+   * Tests basic reads and writes, including appends and writes in the middle of a column.
+   */
+  @Test
+  public void testSetAndGet() {
+    ColumnarSpreadSheet sheet = new ColumnarSpreadSheet();
+    for (int row = 0; row < 1000; row += 2) {
+      sheet.set(row, 3, row);
+    }
+    for (int row = 1; row < 1000; row += 2) {
+      sheet.set(row, 3, -row);
+    }
+    sheet.set(10, 3, 0.5);
+    sheet.set(11, 3, 1.5);
+    sheet.set(11, 3, 2.5);
+    assertEquals(0.5, sheet.get(10, 3), 0.0);
+    assertEquals(2.5, sheet.get(11, 3), 0.0);
+    assertEquals(-999.0, sheet.get(999, 3), 0.0);
+    assertTrue(sheet.isEmpty(1000, 3));
+    assertTrue(sheet.isEmpty(0, 2));
+    assertEquals(4, sheet.getWidth());
+    assertEquals(1000, sheet.getHeight());
+  }
+
+  /**
+   * Tests that single-cell reads see writes still waiting to be merged, the newest one for a
+   * row first, and that range reads then agree with them.
+   */
+  @Test
+  public void testPointReadsSeeBufferedWrites() {
+    ColumnarSpreadSheet sheet = new ColumnarSpreadSheet();
+    sheet.set(100, 0, 1.0);
+    for (int row = 50; row > 0; row--) {
+      sheet.set(row, 0, row);
+    }
+    sheet.set(7, 0, -7.0);
+    assertEquals(-7.0, sheet.get(7, 0), 0.0);
+    assertEquals(8.0, sheet.get(8, 0), 0.0);
+    assertEquals(1.0, sheet.get(100, 0), 0.0);
+    assertFalse(sheet.isEmpty(50, 0));
+    assertTrue(sheet.isEmpty(0, 0));
+    assertTrue(sheet.isEmpty(51, 0));
+    assertEquals(1275.0 - 14.0 + 1.0, sheet.sumRange(0, 0, 100, 0), 0.0);
+    assertEquals(-7.0, sheet.get(7, 0), 0.0);
+  }
+
+  /**
+   * Tests point reads on a long column while its buffer holds thousands of scattered writes,
+   * some of them to the same row.
+   */
+  @Test
+  public void testLargeBufferedColumn() {
+    ColumnarSpreadSheet sheet = new ColumnarSpreadSheet();
+    SparseSpreadSheet expected = new SparseSpreadSheet();
+    for (int row = 0; row < 80000; row += 2) {
+      sheet.set(row, 1, 1.0);
+      expected.set(row, 1, 1.0);
+    }
+    Random r = new Random(11);
+    for (int i = 0; i < 6000; i++) {
+      int row = 2 * r.nextInt(4000) + 1;
+      sheet.set(row, 1, i);
+      expected.set(row, 1, i);
+      int probe = r.nextInt(8000);
+      assertEquals(expected.get(probe, 1), sheet.get(probe, 1), 0.0);
+      assertEquals(expected.isEmpty(probe, 1), sheet.isEmpty(probe, 1));
+    }
+    assertEquals(expected.sumRange(0, 1, 79999, 1), sheet.sumRange(0, 1, 79999, 1), 0.0);
+  }
+
+  /**
+   * Tests random writes and range operations against a spreadsheet storing cells in a map.
+   */
+  @Test
+  public void testMatchesSparseSpreadSheet() {
+    ColumnarSpreadSheet sheet = new ColumnarSpreadSheet();
+    SparseSpreadSheet expected = new SparseSpreadSheet();
+    Random random = new Random(11);
+    for (int i = 0; i < 5000; i++) {
+      int row = random.nextInt(200);
+      int col = random.nextInt(40);
+      for (SpreadSheet s : new SpreadSheet[]{sheet, expected}) {
+        if (i % 50 == 0) {
+          s.fillRange(row, col, row + 30, col + 2, i);
+        } else if (i % 50 == 1) {
+          s.setRange(row, col, row + 1, col + 1, new double[]{1, 2, 3, 4});
+        } else {
+          s.set(row, col, i);
+        }
+      }
+    }
+    double[] actual = new double[240 * 45];
+    double[] reference = new double[240 * 45];
+    sheet.getRange(0, 0, 239, 44, actual);
+    expected.getRange(0, 0, 239, 44, reference);
+    assertArrayEquals(reference, actual, 0.0);
+    assertEquals(expected.sumRange(17, 3, 190, 30), sheet.sumRange(17, 3, 190, 30), 1e-6);
+    assertEquals(expected.getWidth(), sheet.getWidth());
+    assertEquals(expected.getHeight(), sheet.getHeight());
+    long[] count = new long[1];
+    sheet.forEachNonEmpty(0, 0, 239, 44, (row, col, value) -> {
+      assertEquals(expected.get(row, col), value, 0.0);
+      count[0]++;
+    });
+    long[] expectedCount = new long[1];
+    expected.forEachNonEmpty(0, 0, 239, 44, (row, col, value) -> expectedCount[0]++);
+    assertEquals(expectedCount[0], count[0]);
+  }
+
+  /**
+   * Tests an average over a range of columns.
+   */
+  @Test
+  public void testColumnAverage() {
+    ColumnarSpreadSheet sheet = new ColumnarSpreadSheet();
+    double[] values = new double[100000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = i % 7;
+    }
+    for (int col = 0; col < 4; col++) {
+      sheet.setRange(0, col, values.length - 1, col, values);
+    }
+    new MacroAverage(0, 1, 99999, 2, 0, 10).execute(sheet);
+    double sum = 0;
+    for (double value : values) {
+      sum += value;
+    }
+    assertEquals(sum / values.length, sheet.get(0, 10), 1e-9);
+  }
+}
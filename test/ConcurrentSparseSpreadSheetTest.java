@@ -0,0 +1,204 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import spreadsheet.BulkMacroAssign;
+import spreadsheet.ConcurrentSparseSpreadSheet;
+import spreadsheet.MacroAverage;
+import spreadsheet.MacroRangeAssign;
+import spreadsheet.NewSparseSpreadSheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class is the tester for a concurrent sparse spreadsheet. Besides the usual single
+ * threaded checks, it hammers one sheet from several threads and checks that no update is
+ * lost and that the width and height end up right.
+ */
+public class ConcurrentSparseSpreadSheetTest {
+  private static final int THREADS = 8;
+
+  private ConcurrentSparseSpreadSheet sheet;
+
+  /**
+   * Sets up the testing environment before each test.
+   */
+  @Before
+  public void setup() {
+    sheet = new ConcurrentSparseSpreadSheet(4);
+  }
+
+  /**
+   * Run the given tasks at the same time and wait for all of them, rethrowing any failure.
+   *
+   * @param tasks the tasks to run
+   */
+  private static void runConcurrently(List<Callable<Void>> tasks) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(tasks.size());
+    try {
+      for (Future<Void> future : pool.invokeAll(tasks)) {
+        future.get();
+      }
+    } finally {
+      pool.shutdown();
+      pool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Tests the get and set methods from a single thread.
+   */
+  @Test
+  public void testGetSet() {
+    assertTrue(sheet.isEmpty(3, 4));
+    sheet.set(3, 4, 2.5);
+    assertFalse(sheet.isEmpty(3, 4));
+    assertEquals(2.5, sheet.get(3, 4), 0.001);
+    assertEquals(5, sheet.getWidth());
+    assertEquals(4, sheet.getHeight());
+  }
+
+  /**
+   * Tests that writes from many threads to interleaved cells are all kept.
+   */
+  @Test
+  public void testConcurrentWritesAreNotLost() throws Exception {
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      tasks.add(() -> {
+        for (int i = 0; i < 20000; i++) {
+          int row = i % 500;
+          int col = (i / 500) * THREADS + thread;
+          sheet.set(row, col, thread * 100000 + i);
+        }
+        return null;
+      });
+    }
+    runConcurrently(tasks);
+
+    assertEquals(20000L * THREADS, sheet.size());
+    for (int t = 0; t < THREADS; t++) {
+      for (int i = 0; i < 20000; i++) {
+        int row = i % 500;
+        int col = (i / 500) * THREADS + t;
+        assertEquals(t * 100000 + i, sheet.get(row, col), 0.001);
+      }
+    }
+    assertEquals(500, sheet.getHeight());
+    assertEquals(40 * THREADS, sheet.getWidth());
+  }
+
+  /**
+   * Tests that the width and height reach the true maximum when threads race to grow them.
+   */
+  @Test
+  public void testBoundsGrowMonotonically() throws Exception {
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      tasks.add(() -> {
+        for (int i = thread; i < 50000; i += THREADS) {
+          sheet.set(i, 50000 - i, 1);
+        }
+        return null;
+      });
+    }
+    runConcurrently(tasks);
+    assertEquals(50000, sheet.getHeight());
+    assertEquals(50001, sheet.getWidth());
+  }
+
+  /**
+   * Tests that readers and bulk writers on the same sheet never see a value that was
+   * not written.
+   */
+  @Test
+  public void testReadersDuringBulkWrites() throws Exception {
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int t = 0; t < THREADS / 2; t++) {
+      final double value = t + 1;
+      tasks.add(() -> {
+        for (int i = 0; i < 20; i++) {
+          sheet.execute(new BulkMacroAssign(0, 0, 199, 199, value));
+        }
+        return null;
+      });
+      tasks.add(() -> {
+        for (int i = 0; i < 20000; i++) {
+          double seen = sheet.get(i % 200, (i * 7) % 200);
+          if (seen != 0 && (seen < 1 || seen > THREADS / 2 || seen != Math.rint(seen))) {
+            throw new AssertionError("Unexpected value " + seen);
+          }
+        }
+        return null;
+      });
+    }
+    runConcurrently(tasks);
+    assertEquals(40000, sheet.size());
+    sheet.execute(new MacroAverage(0, 0, 0, 0, 300, 300));
+    assertEquals(sheet.get(0, 0), sheet.get(300, 300), 0.001);
+  }
+
+  /**
+   * Tests that large, mostly empty ranges are visited and summed from the stored cells.
+   */
+  @Test
+  public void testSumOfSparseRange() {
+    sheet.set(5, 5, 1);
+    sheet.set(1000000, 2000, 2);
+    sheet.set(3, 3000000, 4);
+    assertEquals(3.0, sheet.sumRange(0, 0, 2000000, 2000000), 0.001);
+    assertEquals(7.0, sheet.sumRange(0, 0, 2000000, 3000000), 0.001);
+  }
+
+  /**
+   * Tests that a sheet without stripes is rejected.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidStripes() {
+    new ConcurrentSparseSpreadSheet(0);
+  }
+
+  /**
+   * Tests that macros executed in parallel give the same cells as sequential execution.
+   */
+  @Test
+  public void testParallelMacrosMatchSequential() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      ConcurrentSparseSpreadSheet parallel = new ConcurrentSparseSpreadSheet(16, pool, 1000);
+      NewSparseSpreadSheet sequential = new NewSparseSpreadSheet();
+      BulkMacroAssign bulk = new BulkMacroAssign(0, 0, 299, 199, 2.5);
+      MacroRangeAssign range = new MacroRangeAssign(100, 50, 399, 249, 1, 0.5);
+      MacroAverage average = new MacroAverage(0, 0, 399, 249, 500, 0);
+      parallel.execute(bulk);
+      parallel.execute(range);
+      parallel.execute(average);
+      sequential.execute(bulk);
+      sequential.execute(range);
+      sequential.execute(average);
+      for (int i = 0; i < 400; i++) {
+        for (int j = 0; j < 250; j++) {
+          assertEquals(sequential.get(i, j), parallel.get(i, j), 0.0);
+          assertEquals(sequential.isEmpty(i, j), parallel.isEmpty(i, j));
+        }
+      }
+      assertEquals(sequential.get(500, 0), parallel.get(500, 0), 1e-9);
+      assertEquals(sequential.getWidth(), parallel.getWidth());
+      assertEquals(sequential.getHeight(), parallel.getHeight());
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,115 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import spreadsheet.CsvExporter;
+import spreadsheet.CsvImporter;
+import spreadsheet.NewSparseSpreadSheet;
+import spreadsheet.SparseSpreadSheet;
+import spreadsheet.SpreadSheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * This class tests reading spreadsheets from CSV data and writing them back.
+ */
+public class CsvTest {
+
+  /**
+   * Reads the given text as CSV data into a new spreadsheet.
+   */
+  private static SpreadSheet read(String text, SpreadSheet sheet) {
+    CsvImporter.read(Channels.newChannel(
+        new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII))), sheet);
+    return sheet;
+  }
+
+  /**
+   * Writes the given spreadsheet as CSV data and returns the text.
+   */
+  private static String write(SpreadSheet sheet) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CsvExporter.write(sheet, Channels.newChannel(bytes));
+    return new String(bytes.toByteArray(), StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Tests that empty fields create no cells and that lines map to rows.
+   */
+  @Test
+  public void testEmptyFieldsAreSkipped() {
+    SpreadSheet sheet = read("1,,3\n\n,, 5 ,6\r\n,\"7\"", new SparseSpreadSheet());
+    assertEquals(1.0, sheet.get(0, 0), 0.001);
+    assertTrue(sheet.isEmpty(0, 1));
+    assertEquals(3.0, sheet.get(0, 2), 0.001);
+    assertTrue(sheet.isEmpty(1, 0));
+    assertEquals(5.0, sheet.get(2, 2), 0.001);
+    assertEquals(6.0, sheet.get(2, 3), 0.001);
+    assertEquals(7.0, sheet.get(3, 1), 0.001);
+    assertEquals(4, sheet.getHeight());
+    assertEquals(4, sheet.getWidth());
+  }
+
+  /**
+   * Tests that every number format parses to exactly what Double.parseDouble returns.
+   */
+  @Test
+  public void testNumberFormats() {
+    String[] numbers = {"0", "-0.0", "+12", "3.25", ".5", "7.", "-1.5e3", "2E-5", "1e22",
+        "0.1", "0.000123", "123456789012345", "1234567890123456789", "3.141592653589793238",
+        "1e-400", "1e400", "NaN", "-Infinity", "9007199254740993"};
+    StringBuilder line = new StringBuilder();
+    for (String number : numbers) {
+      line.append(number).append(',');
+    }
+    SpreadSheet sheet = read(line.toString(), new SparseSpreadSheet());
+    for (int i = 0; i < numbers.length; i++) {
+      assertEquals(Double.doubleToLongBits(Double.parseDouble(numbers[i])),
+          Double.doubleToLongBits(sheet.get(0, i)));
+    }
+  }
+
+  /**
+   * Tests that a field that is not a number is reported with its position.
+   */
+  @Test
+  public void testInvalidNumber() {
+    try {
+      read("1,2\n3,abc\n", new SparseSpreadSheet());
+      fail("Expected the invalid field to be rejected");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("line 2, field 2"));
+    }
+  }
+
+  /**
+   * Tests that a spreadsheet written as CSV is read back unchanged, including a long dense
+   * block and a line longer than the read buffer.
+   */
+  @Test
+  public void testRoundTrip() {
+    NewSparseSpreadSheet sheet = new NewSparseSpreadSheet();
+    sheet.fillRange(0, 0, 99, 99, 2.0);
+    sheet.set(3, 150, -0.25);
+    sheet.set(120, 5, 1e20);
+    sheet.set(121, 1500000, 1.0 / 3);
+    String text = write(sheet);
+    assertTrue(text.startsWith("2,2,2,"));
+
+    SpreadSheet loaded = read(text, new SparseSpreadSheet());
+    assertEquals(20000.0, loaded.sumRange(0, 0, 99, 99), 0.001);
+    assertEquals(-0.25, loaded.get(3, 150), 0.0);
+    assertTrue(loaded.isEmpty(3, 149));
+    assertEquals(1e20, loaded.get(120, 5), 0.0);
+    assertEquals(1.0 / 3, loaded.get(121, 1500000), 0.0);
+    assertTrue(loaded.isEmpty(110, 0));
+    assertEquals(sheet.getHeight(), loaded.getHeight());
+    assertEquals(sheet.getWidth(), loaded.getWidth());
+    assertEquals(text, write(loaded));
+  }
+}
@@ -0,0 +1,209 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import spreadsheet.BulkMacroAssign;
+import spreadsheet.DurableSpreadSheet;
+import spreadsheet.FsyncPolicy;
+import spreadsheet.MacroAverage;
+import spreadsheet.MacroCommand;
+import spreadsheet.MacroRangeAssign;
+import spreadsheet.NewSparseSpreadSheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * This class tests that a durable spreadsheet is rebuilt from its log and checkpoint after
+ * it is closed and opened again.
+ */
+public class DurableSpreadSheetTest {
+  private Path directory;
+  private DurableSpreadSheet sheet;
+
+  /**
+   * Sets up the testing environment before each test.
+   */
+  @Before
+  public void setup() throws IOException {
+    directory = Files.createTempDirectory("durable");
+    sheet = open(DurableSpreadSheet.DEFAULT_CHECKPOINT_BYTES);
+  }
+
+  /**
+   * Closes the spreadsheet and deletes its files after each test.
+   */
+  @After
+  public void teardown() throws IOException {
+    sheet.close();
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  /**
+   * Opens a durable spreadsheet over a fresh sparse sheet in the test directory.
+   */
+  private DurableSpreadSheet open(long checkpointBytes) {
+    return new DurableSpreadSheet(new NewSparseSpreadSheet(), directory, FsyncPolicy.ALWAYS,
+            checkpointBytes);
+  }
+
+  /**
+   * Tests that writes of every kind survive a restart.
+   */
+  @Test
+  public void testRecoverFromLog() {
+    sheet.set(0, 0, 4.0);
+    sheet.fillRange(1, 0, 2, 1, 2.0);
+    sheet.setRange(3, 0, 3, 2, new double[]{1.0, 2.0, 3.0});
+    sheet.execute(new MacroAverage(0, 0, 2, 1, 5, 5));
+    sheet.execute(s -> s.set(7, 7, 9.0));
+    sheet.executeBatch(Arrays.<MacroCommand>asList(
+        new MacroRangeAssign(8, 0, 8, 3, 1.0, 1.0), new BulkMacroAssign(9, 0, 9, 0, 6.0)));
+    sheet.close();
+
+    sheet = open(DurableSpreadSheet.DEFAULT_CHECKPOINT_BYTES);
+    assertEquals(4.0, sheet.get(0, 0), 0.001);
+    assertEquals(2.0, sheet.get(2, 1), 0.001);
+    assertEquals(3.0, sheet.get(3, 2), 0.001);
+    assertEquals(12.0 / 6, sheet.get(5, 5), 0.001);
+    assertEquals(9.0, sheet.get(7, 7), 0.001);
+    assertEquals(4.0, sheet.get(8, 3), 0.001);
+    assertEquals(6.0, sheet.get(9, 0), 0.001);
+    assertEquals(10, sheet.getHeight());
+    assertEquals(8, sheet.getWidth());
+  }
+
+  /**
+   * Tests that a bulk assign over a million cells takes only a few bytes of log.
+   */
+  @Test
+  public void testMacroIsLoggedCompactly() {
+    long before = sheet.getLogSize();
+    sheet.execute(new BulkMacroAssign(0, 0, 999, 999, 1.0));
+    assertTrue(sheet.getLogSize() - before < 64);
+    sheet.close();
+
+    sheet = open(DurableSpreadSheet.DEFAULT_CHECKPOINT_BYTES);
+    assertEquals(1000000.0, sheet.sumRange(0, 0, 999, 999), 0.001);
+  }
+
+  /**
+   * Tests that a checkpoint empties the log and that later writes are replayed on top of it.
+   */
+  @Test
+  public void testRecoverFromCheckpoint() {
+    sheet.execute(new BulkMacroAssign(0, 0, 9, 9, 1.0));
+    sheet.checkpoint();
+    long emptyLog = sheet.getLogSize();
+    sheet.set(0, 0, 5.0);
+    sheet.execute(new MacroAverage(0, 0, 0, 1, 20, 20));
+    assertTrue(sheet.getLogSize() > emptyLog);
+    sheet.close();
+
+    sheet = open(DurableSpreadSheet.DEFAULT_CHECKPOINT_BYTES);
+    assertEquals(5.0, sheet.get(0, 0), 0.001);
+    assertEquals(1.0, sheet.get(9, 9), 0.001);
+    assertEquals(3.0, sheet.get(20, 20), 0.001);
+  }
+
+  /**
+   * Tests that the log is checkpointed automatically once it grows past the given size.
+   */
+  @Test
+  public void testAutomaticCheckpoint() {
+    sheet.close();
+    sheet = open(256);
+    for (int i = 0; i < 100; i++) {
+      sheet.set(i, i, i);
+    }
+    assertTrue(sheet.getLogSize() < 256);
+    assertTrue(Files.exists(directory.resolve("spreadsheet.checkpoint")));
+    sheet.close();
+
+    sheet = open(256);
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i, sheet.get(i, i), 0.001);
+    }
+  }
+
+  /**
+   * Tests that a record torn by a crash is dropped and the records before it are kept.
+   */
+  @Test
+  public void testTornRecordIsDropped() throws IOException {
+    sheet.set(1, 1, 1.0);
+    sheet.set(2, 2, 2.0);
+    sheet.close();
+    Path log = directory.resolve("spreadsheet.log");
+    long intact = Files.size(log);
+    Files.write(log, new byte[]{0, 0, 0, 21, 1, 2, 3}, StandardOpenOption.APPEND);
+
+    sheet = open(DurableSpreadSheet.DEFAULT_CHECKPOINT_BYTES);
+    assertEquals(1.0, sheet.get(1, 1), 0.001);
+    assertEquals(2.0, sheet.get(2, 2), 0.001);
+    assertEquals(intact, Files.size(log));
+    sheet.set(3, 3, 3.0);
+    sheet.close();
+
+    sheet = open(DurableSpreadSheet.DEFAULT_CHECKPOINT_BYTES);
+    assertEquals(3.0, sheet.get(3, 3), 0.001);
+  }
+
+  /**
+   * Tests that an intact record that cannot be read stops the spreadsheet from opening,
+   * and that the log is left as it was.
+   */
+  @Test
+  public void testDamagedRecordIsReported() throws IOException {
+    sheet.set(1, 1, 1.0);
+    sheet.close();
+    Path log = directory.resolve("spreadsheet.log");
+    byte[] payload = {99, 1, 2, 3};
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer record = ByteBuffer.allocate(2 * Integer.BYTES + payload.length);
+    record.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+    Files.write(log, record.array(), StandardOpenOption.APPEND);
+    long size = Files.size(log);
+
+    try {
+      open(DurableSpreadSheet.DEFAULT_CHECKPOINT_BYTES);
+      fail("A damaged record was replayed");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains("Damaged log record"));
+    }
+    assertEquals(size, Files.size(log));
+  }
+
+  /**
+   * Tests that writes under the periodic policy are kept once the spreadsheet has been idle
+   * and is closed.
+   */
+  @Test
+  public void testPeriodicPolicy() throws InterruptedException {
+    sheet.close();
+    sheet = new DurableSpreadSheet(new NewSparseSpreadSheet(), directory, FsyncPolicy.PERIODIC,
+            DurableSpreadSheet.DEFAULT_CHECKPOINT_BYTES);
+    sheet.set(4, 4, 4.0);
+    Thread.sleep(3 * FsyncPolicy.PERIOD_MILLIS);
+    sheet.set(5, 5, 5.0);
+    sheet.close();
+
+    sheet = open(DurableSpreadSheet.DEFAULT_CHECKPOINT_BYTES);
+    assertEquals(4.0, sheet.get(4, 4), 0.001);
+    assertEquals(5.0, sheet.get(5, 5), 0.001);
+  }
+}
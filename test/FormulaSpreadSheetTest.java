@@ -0,0 +1,199 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import spreadsheet.Aggregate;
+import spreadsheet.BulkMacroAssign;
+import spreadsheet.FormulaSpreadSheet;
+import spreadsheet.MacroAverage;
+import spreadsheet.MacroCommand;
+import spreadsheet.NewSparseSpreadSheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * This class tests formula cells and their incremental recalculation in FormulaSpreadSheet.
+ */
+public class FormulaSpreadSheetTest {
+
+  private FormulaSpreadSheet sheet;
+
+  /**
+   * Sets up a spreadsheet with the numbers 1 to 10 in the first row.
+   */
+  @Before
+  public void setUp() {
+    sheet = new FormulaSpreadSheet(new NewSparseSpreadSheet());
+    for (int col = 0; col < 10; col++) {
+      sheet.set(0, col, col + 1);
+    }
+  }
+
+  /**
+   * Tests every function and that formulas follow later writes.
+   */
+  @Test
+  public void testFunctionsFollowWrites() {
+    sheet.setFormula(1, 0, Aggregate.SUM, 0, 0, 0, 9);
+    sheet.setFormula(1, 1, Aggregate.AVERAGE, 0, 0, 0, 9);
+    sheet.setFormula(1, 2, Aggregate.MIN, 0, 0, 0, 9);
+    sheet.setFormula(1, 3, Aggregate.MAX, 0, 0, 0, 9);
+    assertEquals(55.0, sheet.get(1, 0), 0.0);
+    assertEquals(5.5, sheet.get(1, 1), 0.0);
+    assertEquals(1.0, sheet.get(1, 2), 0.0);
+    assertEquals(10.0, sheet.get(1, 3), 0.0);
+
+    sheet.set(0, 4, -20);
+    sheet.execute(new BulkMacroAssign(0, 8, 0, 9, 100));
+    assertEquals(4, sheet.getDirtyCount());
+    assertEquals(211.0, sheet.get(1, 0), 0.0);
+    assertEquals(21.1, sheet.get(1, 1), 1e-9);
+    assertEquals(-20.0, sheet.get(1, 2), 0.0);
+    assertEquals(100.0, sheet.get(1, 3), 0.0);
+    assertFalse(sheet.isEmpty(1, 3));
+  }
+
+  /**
+   * Tests that formulas reading other formulas are recalculated in order, including through
+   * range reads.
+   */
+  @Test
+  public void testChainedFormulas() {
+    sheet.setFormula(2, 0, Aggregate.SUM, 0, 0, 0, 9);
+    for (int row = 3; row < 2000; row++) {
+      sheet.setFormula(row, 0, Aggregate.SUM, row - 1, 0, row - 1, 0);
+    }
+    sheet.setFormula(1, 5, Aggregate.SUM, 2, 0, 1999, 0);
+    assertEquals(55.0 * 1998, sheet.get(1, 5), 0.0);
+
+    sheet.set(0, 0, 11);
+    assertEquals(1999, sheet.getDirtyCount());
+    assertEquals(65.0 * 1998, sheet.sumRange(2, 0, 1999, 0), 0.0);
+    assertEquals(65.0, sheet.get(1999, 0), 0.0);
+    assertEquals(65.0 * 1998, sheet.get(1, 5), 0.0);
+    assertEquals(0, sheet.getDirtyCount());
+  }
+
+  /**
+   * Tests that a write marks only the formulas reading it dirty.
+   */
+  @Test
+  public void testOnlyAffectedFormulasAreDirty() {
+    for (int i = 0; i < 5000; i++) {
+      sheet.set(100 + i, 0, i);
+      sheet.setFormula(100 + i, 1, Aggregate.MAX, 100 + i, 0, 100 + i, 0);
+    }
+    sheet.setFormula(50, 2, Aggregate.SUM, 0, 0, 100000, 0);
+    sheet.recalculate();
+    assertEquals(0, sheet.getDirtyCount());
+
+    sheet.set(2500, 0, 1e6);
+    assertEquals(2, sheet.getDirtyCount());
+    assertEquals(1e6, sheet.get(2500, 1), 0.0);
+    assertEquals(1, sheet.getDirtyCount());
+    assertEquals(1 + 5000.0 * 4999 / 2 - 2400 + 1e6, sheet.get(50, 2), 0.0);
+  }
+
+  /**
+   * Tests that formulas depending on themselves are rejected.
+   */
+  @Test
+  public void testCyclesAreRejected() {
+    try {
+      sheet.setFormula(0, 5, Aggregate.SUM, 0, 0, 0, 9);
+      fail("Expected a formula reading itself to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    sheet.setFormula(1, 0, Aggregate.SUM, 0, 0, 0, 9);
+    sheet.setFormula(2, 0, Aggregate.SUM, 1, 0, 1, 0);
+    try {
+      sheet.setFormula(0, 0, Aggregate.SUM, 2, 0, 2, 0);
+      fail("Expected a formula reading itself through others to be rejected");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(1.0, sheet.get(0, 0), 0.0);
+    assertFalse(sheet.isFormula(0, 0));
+
+    sheet.setFormula(2, 0, Aggregate.SUM, 3, 0, 3, 0);
+    sheet.setFormula(0, 0, Aggregate.SUM, 2, 0, 2, 0);
+    sheet.set(3, 0, 4);
+    assertEquals(58.0, sheet.get(1, 0), 0.0);
+  }
+
+  /**
+   * Tests that writing a formula cell replaces the formula.
+   */
+  @Test
+  public void testWritesReplaceFormulas() {
+    sheet.setFormula(1, 0, Aggregate.SUM, 0, 0, 0, 9);
+    sheet.setFormula(1, 1, Aggregate.SUM, 0, 0, 0, 9);
+    sheet.setFormula(1, 2, Aggregate.SUM, 0, 0, 0, 9);
+    sheet.set(1, 0, 7);
+    sheet.fillRange(1, 1, 5, 1, 8);
+    assertTrue(sheet.removeFormula(1, 2));
+    assertEquals(0, sheet.getFormulaCount());
+    sheet.set(0, 0, 100);
+    assertEquals(7.0, sheet.get(1, 0), 0.0);
+    assertEquals(8.0, sheet.get(1, 1), 0.0);
+    assertEquals(55.0, sheet.get(1, 2), 0.0);
+    assertFalse(sheet.removeFormula(1, 2));
+  }
+
+  /**
+   * Tests that macros run through the underlying spreadsheet, so it can undo them, while their
+   * writes still reach the formulas.
+   */
+  @Test
+  public void testMacrosRunThroughDelegate() {
+    NewSparseSpreadSheet cells =
+            new NewSparseSpreadSheet(NewSparseSpreadSheet.DEFAULT_JOURNAL_CAPACITY);
+    FormulaSpreadSheet formulas = new FormulaSpreadSheet(cells);
+    formulas.set(0, 0, 1.0);
+    formulas.setFormula(1, 0, Aggregate.SUM, 0, 0, 0, 9);
+    assertEquals(1.0, formulas.get(1, 0), 0.001);
+    formulas.execute(new BulkMacroAssign(0, 0, 0, 9, 2.0));
+    assertEquals(1, formulas.getDirtyCount());
+    assertEquals(20.0, formulas.get(1, 0), 0.001);
+    assertEquals(0, formulas.getDirtyCount());
+    assertTrue(cells.canUndo());
+  }
+
+  /**
+   * Tests that a built-in macro reaches the underlying spreadsheet as itself, reads the
+   * current values of the formulas in its range, and replaces the formulas it writes over.
+   */
+  @Test
+  public void testMacrosKeepTheirType() {
+    List<MacroCommand> received = new ArrayList<MacroCommand>();
+    FormulaSpreadSheet formulas = new FormulaSpreadSheet(new NewSparseSpreadSheet() {
+      @Override
+      public void execute(MacroCommand command) {
+        received.add(command);
+        super.execute(command);
+      }
+    });
+    formulas.set(0, 0, 3.0);
+    formulas.setFormula(0, 1, Aggregate.SUM, 0, 0, 0, 0);
+    formulas.setFormula(2, 0, Aggregate.SUM, 1, 0, 1, 1);
+    MacroAverage average = new MacroAverage(0, 0, 0, 1, 1, 0);
+    formulas.execute(average);
+    assertSame(average, received.get(0));
+    assertEquals(3.0, formulas.get(1, 0), 0.0);
+    assertEquals(3.0, formulas.get(2, 0), 0.0);
+
+    formulas.execute(new BulkMacroAssign(0, 1, 0, 1, 5.0));
+    assertFalse(formulas.isFormula(0, 1));
+    assertEquals(1, formulas.getFormulaCount());
+    assertEquals(2, received.size());
+    formulas.set(0, 0, 1.0);
+    assertEquals(5.0, formulas.get(0, 1), 0.0);
+  }
+}
@@ -0,0 +1,125 @@
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.List;
+
+import spreadsheet.BulkMacroAssign;
+import spreadsheet.InstrumentedSpreadSheet;
+import spreadsheet.LatencyHistogram;
+import spreadsheet.MacroAverage;
+import spreadsheet.NewSparseSpreadSheet;
+import spreadsheet.ScriptController;
+import spreadsheet.SparseSpreadSheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the counters and latency histograms of InstrumentedSpreadSheet.
+ */
+public class InstrumentedSpreadSheetTest {
+
+  /**
+   * Tests that percentiles are accurate to within the precision of the buckets.
+   */
+  @Test
+  public void testHistogram() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long value = 1; value <= 100000; value++) {
+      histogram.record(value);
+    }
+    histogram.record(-5);
+    assertEquals(100001, histogram.getCount());
+    assertEquals(100000, histogram.getMax());
+    assertEquals(100000.0 * 100001 / 2 / 100001, histogram.getMean(), 1e-6);
+    assertEquals(50000, histogram.getValueAtPercentile(50), 50000 / 32.0);
+    assertEquals(99000, histogram.getValueAtPercentile(99), 99000 / 32.0);
+    assertEquals(0, histogram.getValueAtPercentile(0));
+    assertEquals(100000, histogram.getValueAtPercentile(100));
+
+    LatencyHistogram copy = histogram.copy();
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(100001, copy.getCount());
+    assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+  }
+
+  /**
+   * Tests that every operation is counted and every macro class recorded separately.
+   */
+  @Test
+  public void testOperationsAreCounted() {
+    InstrumentedSpreadSheet sheet = new InstrumentedSpreadSheet(new NewSparseSpreadSheet(), 0);
+    for (int i = 0; i < 1000; i++) {
+      sheet.set(i, 0, i);
+      sheet.get(i, 0);
+    }
+    sheet.execute(new BulkMacroAssign(0, 1, 9, 9, 2));
+    sheet.execute(new MacroAverage(0, 0, 9, 9, 20, 20));
+    sheet.execute(new MacroAverage(0, 0, 99, 0, 20, 21));
+    assertEquals(49.5, sheet.get(20, 21), 1e-12);
+
+    List<InstrumentedSpreadSheet.Stats> stats = sheet.snapshot();
+    assertEquals(4, stats.size());
+    assertEquals("get", stats.get(0).getName());
+    assertEquals(1001, stats.get(0).getCount());
+    assertTrue(stats.get(0).getLatency().getCount() <= 1001);
+    assertEquals("set", stats.get(1).getName());
+    assertEquals(1000, stats.get(1).getCount());
+    assertEquals("macro BulkMacroAssign", stats.get(2).getName());
+    assertEquals(1, stats.get(2).getLatency().getCount());
+    assertEquals("macro MacroAverage", stats.get(3).getName());
+    assertEquals(2, stats.get(3).getCount());
+    assertEquals(2, stats.get(3).getLatency().getCount());
+  }
+
+  /**
+   * Tests that the cells touched by each operation are added up and turned into throughput.
+   */
+  @Test
+  public void testCellsAndThroughput() {
+    InstrumentedSpreadSheet sheet = new InstrumentedSpreadSheet(new NewSparseSpreadSheet(), 0);
+    sheet.set(0, 0, 1);
+    sheet.fillRange(0, 0, 9, 9, 2);
+    sheet.fillRange(0, 0, 1, 1, 3);
+    sheet.forEachNonEmpty(5, 5, 20, 20, (row, col, value) -> {
+    });
+    sheet.execute(new BulkMacroAssign(0, 0, 3, 4, 1));
+
+    List<InstrumentedSpreadSheet.Stats> stats = sheet.snapshot();
+    assertEquals("set", stats.get(0).getName());
+    assertEquals(1, stats.get(0).getCells());
+    assertEquals("fillRange", stats.get(1).getName());
+    assertEquals(104, stats.get(1).getCells());
+    assertEquals("forEachNonEmpty", stats.get(2).getName());
+    assertEquals(25, stats.get(2).getCells());
+    assertEquals("macro BulkMacroAssign", stats.get(3).getName());
+    assertEquals(20, stats.get(3).getCells());
+
+    InstrumentedSpreadSheet.Stats fill = stats.get(1);
+    assertTrue(fill.getElapsedNanos() > 0);
+    assertEquals(2e9 / fill.getElapsedNanos(), fill.getOpsPerSecond(), 1e-6);
+    assertEquals(104e9 / fill.getElapsedNanos(), fill.getCellsPerSecond(), 1e-6);
+    assertTrue(fill.toString().contains(" cells=104 ops/s="));
+  }
+
+  /**
+   * Tests the stats instruction of a script, on instrumented and plain sheets.
+   */
+  @Test
+  public void testStatsInstruction() {
+    StringBuilder output = new StringBuilder();
+    new ScriptController(new InstrumentedSpreadSheet(new SparseSpreadSheet()),
+            new StringReader("assign-value A 1 2\naverage A 1 B 2 C 1\nstats\n"), output)
+            .control();
+    String[] lines = output.toString().split(System.lineSeparator());
+    assertEquals(2, lines.length);
+    assertTrue(lines[0].startsWith("set: ops=1 timed count="));
+    assertTrue(lines[1].startsWith("macro MacroAverage: ops=1 timed count=1 "));
+
+    output.setLength(0);
+    new ScriptController(new SparseSpreadSheet(), new StringReader("stats\n"), output)
+            .control();
+    assertEquals("Statistics are not recorded for this spreadsheet" + System.lineSeparator(),
+            output.toString());
+  }
+}
@@ -0,0 +1,167 @@
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Random;
+
+import spreadsheet.Aggregate;
+import spreadsheet.CellVisitor;
+import spreadsheet.MacroAggregate;
+import spreadsheet.NewSparseSpreadSheet;
+import spreadsheet.RangeStatistics;
+import spreadsheet.ScriptController;
+import spreadsheet.SparseSpreadSheet;
+import spreadsheet.SpreadSheet;
+import spreadsheet.TiledSpreadSheet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * This class tests the aggregate macros and the one-pass statistics they are computed from.
+ */
+public class MacroAggregateTest {
+
+  /**
+   * Tests every function over a range with empty cells against a direct computation.
+   */
+  @Test
+  public void testAllFunctions() {
+    SpreadSheet sheet = new TiledSpreadSheet();
+    Random random = new Random(3);
+    double[] cells = new double[300 * 70];
+    for (int i = 0; i < cells.length; i++) {
+      if (random.nextInt(4) != 0) {
+        cells[i] = random.nextInt(2000) - 1000.5;
+        sheet.set(10 + i / 70, 5 + i % 70, cells[i]);
+      }
+    }
+    new MacroAggregate(10, 5, 309, 74, 0, 100, Aggregate.values()).execute(sheet);
+
+    double sum = 0;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    long count = 0;
+    for (double cell : cells) {
+      sum += cell;
+      min = Math.min(min, cell);
+      max = Math.max(max, cell);
+      count += cell != 0 ? 1 : 0;
+    }
+    double mean = sum / cells.length;
+    double squares = 0;
+    for (double cell : cells) {
+      squares += (cell - mean) * (cell - mean);
+    }
+    assertEquals(sum, sheet.get(0, 100), 1e-6);
+    assertEquals(mean, sheet.get(0, 101), 1e-9);
+    assertEquals(min, sheet.get(0, 102), 0.0);
+    assertEquals(max, sheet.get(0, 103), 0.0);
+    assertEquals(count, sheet.get(0, 104), 0.0);
+    assertEquals(squares / cells.length, sheet.get(0, 105), 1e-6);
+    assertEquals(Math.sqrt(squares / cells.length), sheet.get(0, 106), 1e-9);
+  }
+
+  /**
+   * Tests that the sum and variance stay exact on values with a large common offset.
+   */
+  @Test
+  public void testPrecision() {
+    SpreadSheet sheet = new SparseSpreadSheet();
+    double[] values = new double[200000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = 1e9 + (i % 2 == 0 ? 0.125 : -0.125);
+    }
+    sheet.setRange(0, 0, values.length - 1, 0, values);
+    RangeStatistics statistics = RangeStatistics.of(sheet, 0, 0, values.length - 1, 0);
+    assertEquals(values.length, statistics.getCells());
+    assertEquals(2e14, statistics.getSum(), 0.0);
+    assertEquals(1e9, statistics.getMean(), 0.0);
+    assertEquals(0.015625, statistics.getVariance(), 1e-12);
+    assertEquals(0.125, statistics.getStandardDeviation(), 1e-12);
+  }
+
+  /**
+   * Tests that a huge, mostly empty range is summarized from its non-empty cells, with the empty
+   * cells counted as zeros.
+   */
+  @Test
+  public void testSparseRange() {
+    SpreadSheet sheet = new SparseSpreadSheet();
+    sheet.set(0, 0, 4);
+    sheet.set(99999, 99999, -2);
+    sheet.set(50000, 7, 4);
+    RangeStatistics statistics = RangeStatistics.of(sheet, 0, 0, 99999, 99999);
+    double cells = 1e10;
+    double mean = 6 / cells;
+    double variance = (16 + 4 + 16) / cells - mean * mean;
+    assertEquals(1e10, statistics.getCells(), 0.0);
+    assertEquals(6, statistics.getSum(), 0.0);
+    assertEquals(mean, statistics.getMean(), 1e-24);
+    assertEquals(-2, statistics.getMin(), 0.0);
+    assertEquals(4, statistics.getMax(), 0.0);
+    assertEquals(variance, statistics.getVariance(), 1e-20);
+    assertEquals(3, statistics.getNonEmpty());
+
+    RangeStatistics positive = RangeStatistics.of(sheet, 0, 0, 9, 9);
+    assertEquals(0, positive.getMin(), 0.0);
+    assertEquals(4, positive.getMax(), 0.0);
+    assertEquals(1, positive.getNonEmpty());
+  }
+
+  /**
+   * Tests that the count is taken from the same pass as the other statistics.
+   */
+  @Test
+  public void testCountSharesThePass() {
+    int[] passes = {0};
+    SpreadSheet sheet = new SparseSpreadSheet() {
+      @Override
+      public void forEachNonEmpty(int fromRow, int fromCol, int toRow, int toCol,
+                                  CellVisitor visitor) {
+        passes[0]++;
+        super.forEachNonEmpty(fromRow, fromCol, toRow, toCol, visitor);
+      }
+    };
+    sheet.set(0, 0, 0.0);
+    sheet.set(3, 2, -5.0);
+    new MacroAggregate(0, 0, 9, 9, 20, 0, Aggregate.MIN, Aggregate.COUNT).execute(sheet);
+    assertEquals(1, passes[0]);
+    assertEquals(-5.0, sheet.get(20, 0), 0.0);
+    assertEquals(2.0, sheet.get(20, 1), 0.0);
+  }
+
+  /**
+   * Tests the aggregate instructions of a script, including an empty range.
+   */
+  @Test
+  public void testScriptInstructions() {
+    SpreadSheet sheet = new NewSparseSpreadSheet();
+    String script = "range-assign A 1 A 4 1 1\nsum A 1 B 4 C 1\nmin A 1 A 4 C 2\n"
+            + "max A 1 A 4 C 3\ncount A 1 B 4 C 4\nvariance A 1 A 4 C 5\n"
+            + "stddev A 1 A 4 C 6\nstatistics A 1 A 2 D 1\n";
+    StringBuilder output = new StringBuilder();
+    new ScriptController(sheet, new StringReader(script), output).control();
+    assertEquals("", output.toString());
+    assertEquals(10.0, sheet.get(2, 0), 0.0);
+    assertEquals(1.0, sheet.get(2, 1), 0.0);
+    assertEquals(4.0, sheet.get(2, 2), 0.0);
+    assertEquals(4.0, sheet.get(2, 3), 0.0);
+    assertEquals(1.25, sheet.get(2, 4), 1e-12);
+    assertEquals(Math.sqrt(1.25), sheet.get(2, 5), 1e-12);
+    double[] expected = {3, 1.5, 1, 2, 2, 0.25, 0.5};
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i], sheet.get(3, i), 1e-12);
+    }
+
+    new MacroAggregate(5, 5, 4, 4, 9, 0, Aggregate.MIN, Aggregate.COUNT).execute(sheet);
+    assertEquals(0.0, sheet.get(9, 0), 0.0);
+    assertEquals(0.0, sheet.get(9, 1), 0.0);
+  }
+
+  /**
+   * Tests that a macro without functions is rejected.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoFunctions() {
+    new MacroAggregate(0, 0, 1, 1, 2, 2);
+  }
+}
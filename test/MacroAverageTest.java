@@ -91,4 +91,16 @@ public class MacroAverageTest {
     macro.execute(spreadSheet);
     assertEquals(2.5, spreadSheet.get(0, 0), 0.01);
   }
+
+  /**
+   * Tests the average of a huge, mostly empty range, which must only visit the cells
+   * that are present.
+   */
+  @Test
+  public void testAverageOfHugeSparseRange() {
+    MacroAverage macro = new
+            MacroAverage(0, 0, 99999, 18277, 100000, 0);
+    macro.execute(spreadSheet);
+    assertEquals(10.0 / (100000.0 * 18278.0), spreadSheet.get(100000, 0), 1e-15);
+  }
 }
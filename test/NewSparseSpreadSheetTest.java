@@ -0,0 +1,427 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import spreadsheet.BulkMacroAssign;
+import spreadsheet.MacroAverage;
+import spreadsheet.MacroCommand;
+import spreadsheet.MacroRangeAssign;
+import spreadsheet.NewSparseSpreadSheet;
+import spreadsheet.SparseSpreadSheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * This class tests how a NewSparseSpreadSheet moves regions between its sparse and
+ * dense representations.
+ */
+public class NewSparseSpreadSheetTest {
+  private static final int SIZE = NewSparseSpreadSheet.REGION_SIZE;
+
+  private NewSparseSpreadSheet sheet;
+
+  /**
+   * Sets up the testing environment before each test.
+   */
+  @Before
+  public void setup() {
+    sheet = new NewSparseSpreadSheet();
+  }
+
+  /**
+   * Tests that scattered cells stay in the sparse representation.
+   */
+  @Test
+  public void testScatteredCellsStaySparse() {
+    for (int i = 0; i < 100; i++) {
+      sheet.set(i * SIZE, i * SIZE, i);
+    }
+    assertEquals(0, sheet.getDenseRegionCount());
+    assertEquals(100, sheet.getSparseRegionCount());
+    assertFalse(sheet.isDenseRegion(0, 0));
+  }
+
+  /**
+   * Tests that filling a block promotes its regions without changing any value.
+   */
+  @Test
+  public void testFilledBlockIsPromoted() {
+    sheet.execute(new BulkMacroAssign(0, 0, 2 * SIZE - 1, 2 * SIZE - 1, 7.0));
+    assertEquals(4, sheet.getDenseRegionCount());
+    assertEquals(0, sheet.getSparseRegionCount());
+    assertTrue(sheet.isDenseRegion(SIZE, SIZE));
+    for (int i = 0; i < 2 * SIZE; i++) {
+      for (int j = 0; j < 2 * SIZE; j++) {
+        assertEquals(7.0, sheet.get(i, j), 0.001);
+        assertFalse(sheet.isEmpty(i, j));
+      }
+    }
+    assertTrue(sheet.isEmpty(0, 2 * SIZE));
+    assertEquals(2 * SIZE, sheet.getWidth());
+    assertEquals(2 * SIZE, sheet.getHeight());
+  }
+
+  /**
+   * Tests that clearing most of a dense region demotes it and keeps the remaining cells.
+   */
+  @Test
+  public void testThinnedRegionIsDemoted() {
+    sheet.execute(new BulkMacroAssign(0, 0, SIZE - 1, SIZE - 1, 3.0));
+    assertTrue(sheet.isDenseRegion(0, 0));
+    for (int i = 1; i < SIZE; i++) {
+      for (int j = 0; j < SIZE; j++) {
+        assertTrue(sheet.clear(i, j));
+      }
+    }
+    assertFalse(sheet.isDenseRegion(0, 0));
+    assertEquals(1, sheet.getSparseRegionCount());
+    for (int j = 0; j < SIZE; j++) {
+      assertEquals(3.0, sheet.get(0, j), 0.001);
+    }
+    assertTrue(sheet.isEmpty(1, 0));
+    assertEquals(1, sheet.getHeight());
+    assertEquals(SIZE, sheet.getWidth());
+  }
+
+  /**
+   * Tests that clearing every cell forgets the region and resets the bounds.
+   */
+  @Test
+  public void testClearLastCell() {
+    sheet.set(3, 4, 1.0);
+    assertFalse(sheet.clear(3, 5));
+    assertTrue(sheet.clear(3, 4));
+    assertTrue(sheet.isEmpty(3, 4));
+    assertEquals(0, sheet.getSparseRegionCount());
+    assertEquals(0, sheet.getWidth());
+    assertEquals(0, sheet.getHeight());
+  }
+
+  /**
+   * Tests that a fill covering whole and partial regions overwrites earlier sparse cells and
+   * matches a cell-by-cell fill.
+   */
+  @Test
+  public void testFillAcrossRegions() {
+    sheet.set(SIZE + 1, SIZE + 1, 9.0);
+    sheet.set(10, 10, 9.0);
+    sheet.fillRange(5, 5, 2 * SIZE + 5, 2 * SIZE + 5, 2.0);
+    assertTrue(sheet.isDenseRegion(SIZE, SIZE));
+    for (int i = 0; i < 3 * SIZE; i++) {
+      for (int j = 0; j < 3 * SIZE; j++) {
+        boolean inside = i >= 5 && j >= 5 && i <= 2 * SIZE + 5 && j <= 2 * SIZE + 5;
+        assertEquals(inside ? 2.0 : 0.0, sheet.get(i, j), 0.001);
+        assertEquals(!inside, sheet.isEmpty(i, j));
+      }
+    }
+    assertEquals(2 * SIZE + 6, sheet.getWidth());
+    assertEquals(2 * SIZE + 6, sheet.getHeight());
+  }
+
+  /**
+   * Tests that range sums and visits cover both sparse and dense regions.
+   */
+  @Test
+  public void testSumAcrossRepresentations() {
+    sheet.fillRange(0, 0, SIZE - 1, SIZE - 1, 1.0);
+    sheet.set(SIZE + 3, 2 * SIZE, 5.0);
+    sheet.set(10, 3 * SIZE, 7.0);
+    assertEquals(SIZE * SIZE + 12.0, sheet.sumRange(0, 0, 100000, 100000), 0.001);
+    assertEquals(5 * (SIZE - 10) + 7.0, sheet.sumRange(10, 10, 14, 3 * SIZE), 0.001);
+    int[] count = {0};
+    sheet.forEachNonEmpty(SIZE - 2, SIZE - 2, SIZE + 3, 2 * SIZE,
+        (row, col, value) -> count[0]++);
+    assertEquals(5, count[0]);
+  }
+
+  /**
+   * Tests that the cells of sparse and dense regions are visited together in row-major
+   * order, as a SparseSpreadSheet visits the same cells.
+   */
+  @Test
+  public void testVisitInRowMajorOrder() {
+    SparseSpreadSheet expected = new SparseSpreadSheet();
+    sheet.fillRange(0, SIZE, SIZE - 1, 2 * SIZE - 1, 1.0);
+    expected.fillRange(0, SIZE, SIZE - 1, 2 * SIZE - 1, 1.0);
+    sheet.fillRange(SIZE + 4, 0, 2 * SIZE - 1, SIZE - 1, 2.0);
+    expected.fillRange(SIZE + 4, 0, 2 * SIZE - 1, SIZE - 1, 2.0);
+    sheet.fillRange(SIZE, 3 * SIZE, 2 * SIZE - 1, 4 * SIZE - 1, 3.0);
+    expected.fillRange(SIZE, 3 * SIZE, 2 * SIZE - 1, 4 * SIZE - 1, 3.0);
+    Random r = new Random(5);
+    for (int i = 0; i < 2000; i++) {
+      int row = r.nextInt(4 * SIZE);
+      int col = r.nextInt(5 * SIZE);
+      if (sheet.isDenseRegion(row, col)) {
+        continue;
+      }
+      sheet.set(row, col, i);
+      expected.set(row, col, i);
+    }
+    assertEquals(3, sheet.getDenseRegionCount());
+    int[][] ranges = {{0, 0, 4 * SIZE, 5 * SIZE}, {3, SIZE - 3, 2 * SIZE + 1, 3 * SIZE + 2},
+        {SIZE + 5, 1, SIZE + 5, 5 * SIZE}};
+    for (int[] range : ranges) {
+      List<String> visited = new ArrayList<String>();
+      List<String> wanted = new ArrayList<String>();
+      sheet.forEachNonEmpty(range[0], range[1], range[2], range[3],
+          (row, col, value) -> visited.add(row + "," + col + "=" + value));
+      expected.forEachNonEmpty(range[0], range[1], range[2], range[3],
+          (row, col, value) -> wanted.add(row + "," + col + "=" + value));
+      assertEquals(wanted, visited);
+    }
+  }
+
+  /**
+   * Tests that a batch applies every command, with later commands seeing earlier writes.
+   */
+  @Test
+  public void testExecuteBatch() {
+    sheet.set(0, 0, 4.0);
+    sheet.executeBatch(Arrays.<MacroCommand>asList(
+        new BulkMacroAssign(1, 0, 1, 1, 2.0),
+        new MacroRangeAssign(2, 0, 2, 1, 1.0, 1.0),
+        new MacroAverage(0, 0, 2, 1, 5, 5)));
+    assertEquals(2.0, sheet.get(1, 1), 0.001);
+    assertEquals(2.0, sheet.get(2, 1), 0.001);
+    assertEquals(11.0 / 6, sheet.get(5, 5), 0.001);
+    assertEquals(6, sheet.getWidth());
+    assertEquals(6, sheet.getHeight());
+  }
+
+  /**
+   * Tests that macros in a batch see overlapping single-cell and range writes of the macros
+   * before them exactly as they would if they ran one by one.
+   */
+  @Test
+  public void testBatchReadsMatchSequentialExecution() {
+    Random random = new Random(17);
+    List<MacroCommand> commands = new ArrayList<MacroCommand>();
+    List<Double> batched = new ArrayList<Double>();
+    List<Double> sequential = new ArrayList<Double>();
+    List<List<Double>> observed = new ArrayList<List<Double>>();
+    observed.add(batched);
+    for (int i = 0; i < 400; i++) {
+      int row = random.nextInt(60);
+      int col = random.nextInt(60);
+      int kind = random.nextInt(3);
+      double value = random.nextInt(100) - 50;
+      int toRow = row + random.nextInt(30);
+      int toCol = col + random.nextInt(30);
+      commands.add(s -> {
+        if (kind == 0) {
+          s.set(row, col, value);
+        } else if (kind == 1) {
+          s.fillRange(row, col, toRow, toCol, value);
+        } else {
+          double[] values = new double[(toRow - row + 1) * (toCol - col + 1)];
+          Arrays.fill(values, value);
+          values[0] = -value;
+          s.setRange(row, col, toRow, toCol, values);
+        }
+        List<Double> out = observed.get(0);
+        out.add(s.sumRange(col, row, col + 40, row + 40));
+        out.add(s.get(toCol, toRow));
+        out.add(s.isEmpty(toRow / 2, toCol / 2) ? 1.0 : 0.0);
+        double[] count = {0};
+        s.forEachNonEmpty(row / 2, col / 2, toRow, toCol, (r, c, v) -> count[0] += v + 1000);
+        out.add(count[0]);
+      });
+    }
+    NewSparseSpreadSheet batch = new NewSparseSpreadSheet(0);
+    batch.executeBatch(commands);
+    observed.set(0, sequential);
+    for (MacroCommand command : commands) {
+      sheet.execute(command);
+    }
+    assertEquals(sequential, batched);
+    assertEquals(sheet.sumRange(0, 0, 100, 100), batch.sumRange(0, 0, 100, 100), 0.0);
+    for (int row = 0; row < 100; row++) {
+      for (int col = 0; col < 100; col++) {
+        assertEquals(sheet.isEmpty(row, col), batch.isEmpty(row, col));
+        assertEquals(sheet.get(row, col), batch.get(row, col), 0.0);
+      }
+    }
+    assertEquals(sheet.getWidth(), batch.getWidth());
+    assertEquals(sheet.getHeight(), batch.getHeight());
+  }
+
+  /**
+   * Tests that a batch whose last command fails leaves the sheet unchanged.
+   */
+  @Test
+  public void testFailedBatchChangesNothing() {
+    sheet.set(0, 0, 4.0);
+    MacroCommand failing = s -> s.set(-1, 0, 1.0);
+    try {
+      sheet.executeBatch(Arrays.asList(
+          new BulkMacroAssign(0, 0, 2 * SIZE, 2 * SIZE, 9.0), failing));
+      fail("Expected the batch to fail");
+    } catch (IllegalArgumentException e) {
+      assertEquals(4.0, sheet.get(0, 0), 0.001);
+      assertTrue(sheet.isEmpty(1, 1));
+      assertEquals(1, sheet.getWidth());
+      assertEquals(1, sheet.getHeight());
+    }
+  }
+
+  /**
+   * Tests that undoing a bulk assign over an empty area empties it again, and that redo
+   * restores it.
+   */
+  @Test
+  public void testUndoRedoBulkAssign() {
+    sheet = new NewSparseSpreadSheet(NewSparseSpreadSheet.DEFAULT_JOURNAL_CAPACITY);
+    sheet.set(0, 0, 4.0);
+    sheet.execute(new BulkMacroAssign(1, 1, 3 * SIZE, 3 * SIZE, 2.0));
+    assertTrue(sheet.isDenseRegion(SIZE, SIZE));
+    assertTrue(sheet.undo());
+    assertTrue(sheet.isEmpty(SIZE, SIZE));
+    assertTrue(sheet.isEmpty(1, 1));
+    assertEquals(4.0, sheet.get(0, 0), 0.001);
+    assertEquals(0, sheet.getDenseRegionCount());
+    assertEquals(1, sheet.getWidth());
+    assertEquals(1, sheet.getHeight());
+    assertFalse(sheet.canUndo());
+    assertTrue(sheet.redo());
+    assertEquals(2.0, sheet.get(3 * SIZE, 3 * SIZE), 0.001);
+    assertEquals(3 * SIZE + 1, sheet.getWidth());
+    assertTrue(sheet.canUndo());
+    assertFalse(sheet.canRedo());
+  }
+
+  /**
+   * Tests that undo restores overwritten values and empty cells, newest macro first.
+   */
+  @Test
+  public void testUndoOverwrite() {
+    sheet = new NewSparseSpreadSheet(NewSparseSpreadSheet.DEFAULT_JOURNAL_CAPACITY);
+    sheet.execute(new BulkMacroAssign(0, 0, 0, 1, 1.0));
+    sheet.execute(new MacroRangeAssign(0, 1, 0, 3, 5.0, 1.0));
+    assertEquals(7.0, sheet.get(0, 3), 0.001);
+    assertTrue(sheet.undo());
+    assertEquals(1.0, sheet.get(0, 0), 0.001);
+    assertEquals(1.0, sheet.get(0, 1), 0.001);
+    assertTrue(sheet.isEmpty(0, 2));
+    assertEquals(2, sheet.getWidth());
+    assertTrue(sheet.undo());
+    assertTrue(sheet.isEmpty(0, 0));
+    assertFalse(sheet.undo());
+  }
+
+  /**
+   * Tests that executing a macro forgets the macros that could have been redone.
+   */
+  @Test
+  public void testExecuteClearsRedo() {
+    sheet = new NewSparseSpreadSheet(NewSparseSpreadSheet.DEFAULT_JOURNAL_CAPACITY);
+    sheet.execute(new BulkMacroAssign(0, 0, 1, 1, 1.0));
+    sheet.undo();
+    assertTrue(sheet.canRedo());
+    sheet.execute(new BulkMacroAssign(2, 2, 2, 2, 3.0));
+    assertFalse(sheet.canRedo());
+    assertFalse(sheet.redo());
+  }
+
+  /**
+   * Tests that a bounded journal forgets its oldest macros first.
+   */
+  @Test
+  public void testJournalEvictsOldest() {
+    NewSparseSpreadSheet bounded = new NewSparseSpreadSheet(4);
+    bounded.execute(new BulkMacroAssign(0, 0, 0, 0, 1.0));
+    bounded.execute(new BulkMacroAssign(0, 0, 0, 0, 2.0));
+    bounded.execute(new BulkMacroAssign(0, 0, 0, 0, 3.0));
+    bounded.execute(new BulkMacroAssign(0, 0, 0, 0, 4.0));
+    bounded.execute(new BulkMacroAssign(0, 0, 0, 0, 5.0));
+    assertTrue(bounded.undo());
+    assertTrue(bounded.undo());
+    assertTrue(bounded.undo());
+    assertTrue(bounded.undo());
+    assertEquals(1.0, bounded.get(0, 0), 0.001);
+    assertFalse(bounded.undo());
+  }
+
+  /**
+   * Tests that a whole batch is undone at once.
+   */
+  @Test
+  public void testUndoBatch() {
+    sheet = new NewSparseSpreadSheet(NewSparseSpreadSheet.DEFAULT_JOURNAL_CAPACITY);
+    sheet.set(0, 0, 4.0);
+    sheet.executeBatch(Arrays.<MacroCommand>asList(
+        new BulkMacroAssign(0, 0, 1, 1, 2.0),
+        new MacroAverage(0, 0, 1, 1, 5, 5)));
+    assertTrue(sheet.undo());
+    assertEquals(4.0, sheet.get(0, 0), 0.001);
+    assertTrue(sheet.isEmpty(1, 1));
+    assertTrue(sheet.isEmpty(5, 5));
+    assertEquals(1, sheet.getWidth());
+  }
+
+  /**
+   * Tests that a sheet created without a journal capacity keeps no history.
+   */
+  @Test
+  public void testNoJournalByDefault() {
+    sheet.execute(new BulkMacroAssign(0, 0, 1, 1, 2.0));
+    assertFalse(sheet.canUndo());
+    assertFalse(sheet.undo());
+    assertEquals(2.0, sheet.get(1, 1), 0.001);
+  }
+
+  /**
+   * Tests that an undo is refused once a cell the macro wrote has been written without a
+   * macro, and that a write elsewhere does not prevent it.
+   */
+  @Test
+  public void testUndoRefusedAfterOverwrite() {
+    sheet = new NewSparseSpreadSheet(NewSparseSpreadSheet.DEFAULT_JOURNAL_CAPACITY);
+    sheet.execute(new BulkMacroAssign(0, 0, 1, 1, 2.0));
+    sheet.set(5, 5, 3.0);
+    assertTrue(sheet.undo());
+    assertTrue(sheet.isEmpty(0, 0));
+    assertEquals(3.0, sheet.get(5, 5), 0.001);
+
+    sheet.execute(new BulkMacroAssign(0, 0, 1, 1, 2.0));
+    sheet.fillRange(1, 1, 4, 4, 7.0);
+    try {
+      sheet.undo();
+      fail("Undoing over a newer value should be refused");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertEquals(7.0, sheet.get(1, 1), 0.001);
+    assertEquals(2.0, sheet.get(0, 0), 0.001);
+    assertFalse(sheet.canUndo());
+  }
+
+  /**
+   * Tests that a macro writing more cells than the journal holds drops the history, and that
+   * the next undo reports it once.
+   */
+  @Test
+  public void testOverflowIsReported() {
+    NewSparseSpreadSheet bounded = new NewSparseSpreadSheet(8);
+    bounded.execute(new BulkMacroAssign(1, 0, 1, 0, 1.0));
+    for (int col = 0; col < 10; col++) {
+      bounded.set(0, col, col);
+    }
+    bounded.execute(new BulkMacroAssign(0, 0, 0, 9, 2.0));
+    assertFalse(bounded.canUndo());
+    try {
+      bounded.undo();
+      fail("The dropped history should be reported");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertFalse(bounded.undo());
+    assertEquals(2.0, bounded.get(0, 9), 0.001);
+  }
+}
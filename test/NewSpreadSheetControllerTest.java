@@ -2,12 +2,16 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.StringReader;
+import java.util.List;
 
+import spreadsheet.MacroCommand;
 import spreadsheet.NewSpreadSheetController;
 import spreadsheet.NewSparseSpreadSheet;
 import spreadsheet.MacroSpreadSheet;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 /**
@@ -84,4 +88,86 @@ public class NewSpreadSheetControllerTest {
     }
   }
 
+  /**
+   * Tests that values are printed in input order while assignments are grouped, and that an
+   * invalid assignment in a group is reported in its place without losing the others.
+   */
+  @Test
+  public void testOutputOrderWithGroupedAssignments() {
+    StringBuilder input = new StringBuilder();
+    for (int i = 1; i <= 5000; i++) {
+      input.append("assign-value A ").append(i).append(' ').append(i).append('\n');
+    }
+    input.append("assign-value B 0 1\nassign-value B 1 7\nprint-value B 1\n");
+    input.append("average A 1 A 5000 C 1\nprint-value C 1\nprint-value A 5000\nq\n");
+    executeControllerWithInput(input.toString());
+    assertEquals(5000 * 5001 / 2.0, spreadSheet.sumRange(0, 0, 0, 4999), 0.0);
+    assertEquals(7.0, spreadSheet.get(1, 0), 0.0);
+    String text = output.toString();
+    int error = text.indexOf("Error: ");
+    int seven = text.indexOf("Value: 7.0");
+    int average = text.indexOf("Value: 2500.5");
+    int last = text.indexOf("Value: 5000.0");
+    assertTrue(error > 0 && error < seven && seven < average && average < last);
+    assertTrue(text.endsWith("Thank you for using this program!"));
+  }
+
+  /**
+   * Tests that assignments queued behind each other reach the sheet in batches of more than
+   * one, with the same output as one at a time. The first assignment is slowed down so that
+   * the parser gets ahead of the executor.
+   */
+  @Test
+  public void testAssignmentsAreBatched() {
+    int[] largest = {0};
+    boolean[] slowed = {false};
+    spreadSheet = new NewSparseSpreadSheet() {
+      @Override
+      public void set(int row, int col, double value) {
+        if (!slowed[0]) {
+          slowed[0] = true;
+          try {
+            Thread.sleep(200);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        super.set(row, col, value);
+      }
+
+      @Override
+      public void executeBatch(List<MacroCommand> commands) {
+        largest[0] = Math.max(largest[0], commands.size());
+        super.executeBatch(commands);
+      }
+    };
+    StringBuilder input = new StringBuilder();
+    for (int i = 1; i <= 500; i++) {
+      input.append("assign-value A ").append(i).append(' ').append(i).append('\n');
+    }
+    input.append("print-value A 500\nq\n");
+    executeControllerWithInput(input.toString());
+    assertTrue(largest[0] > 1);
+    assertEquals(500 * 501 / 2.0, spreadSheet.sumRange(0, 0, 0, 499), 0.0);
+    String text = output.toString();
+    String prompts = text.substring(text.indexOf("Type instruction: "),
+            text.indexOf("Value: 500.0"));
+    assertEquals(501 * "Type instruction: ".length(), prompts.length());
+  }
+
+  /**
+   * Tests that a failing macro stops the controller with its exception, after the commands
+   * before it have run.
+   */
+  @Test
+  public void testFailingMacroStopsController() {
+    try {
+      executeControllerWithInput("assign-value A 1 3\nbulk-assign-value B 2 A 1 1\n"
+              + "assign-value A 2 4\nq\n");
+      fail("Expected the macro to fail");
+    } catch (IllegalArgumentException e) {
+      assertEquals(3.0, spreadSheet.get(0, 0), 0.0);
+      assertTrue(spreadSheet.isEmpty(0, 1));
+    }
+  }
 }
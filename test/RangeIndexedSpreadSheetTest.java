@@ -0,0 +1,156 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import spreadsheet.BulkMacroAssign;
+import spreadsheet.MacroAverage;
+import spreadsheet.MacroRangeAssign;
+import spreadsheet.NewSparseSpreadSheet;
+import spreadsheet.RangeIndexedSpreadSheet;
+import spreadsheet.SpreadSheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests that a RangeIndexedSpreadSheet answers range sums and counts the same
+ * way as visiting every cell.
+ */
+public class RangeIndexedSpreadSheetTest {
+  private NewSparseSpreadSheet plain;
+  private RangeIndexedSpreadSheet indexed;
+
+  /**
+   * Sets up an indexed spreadsheet over a sheet that already holds a few cells.
+   */
+  @Before
+  public void setup() {
+    plain = new NewSparseSpreadSheet();
+    plain.set(0, 0, 4);
+    plain.set(3, 5, -2);
+    indexed = new RangeIndexedSpreadSheet(plain, 40, 30);
+  }
+
+  /**
+   * Sum a range by visiting every cell.
+   */
+  private static double bruteSum(SpreadSheet sheet, int r1, int c1, int r2, int c2) {
+    double sum = 0;
+    for (int i = r1; i <= r2; i++) {
+      for (int j = c1; j <= c2; j++) {
+        sum += sheet.get(i, j);
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * Tests that random writes and macros keep every range sum correct.
+   */
+  @Test
+  public void testSumsMatchAfterWrites() {
+    Random r = new Random(7);
+    for (int i = 0; i < 300; i++) {
+      indexed.set(r.nextInt(50), r.nextInt(35), r.nextInt(100) - 50);
+    }
+    indexed.execute(new BulkMacroAssign(2, 2, 4, 6, 1.5));
+    indexed.execute(new MacroRangeAssign(30, 20, 45, 33, 1, 0.25));
+    indexed.execute(new BulkMacroAssign(0, 0, 39, 29, 2));
+    indexed.execute(new MacroRangeAssign(10, 10, 12, 12, 3, 1));
+    for (int i = 0; i < 200; i++) {
+      int r1 = r.nextInt(45);
+      int c1 = r.nextInt(35);
+      int r2 = r1 + r.nextInt(45 - r1);
+      int c2 = c1 + r.nextInt(35 - c1);
+      assertEquals(bruteSum(plain, r1, c1, r2, c2), indexed.sumRange(r1, c1, r2, c2), 1e-6);
+    }
+  }
+
+  /**
+   * Tests that large numbers written and then removed leave the small ones beside them
+   * exactly as a fresh sum sees them.
+   */
+  @Test
+  public void testMixedMagnitudes() {
+    indexed.set(0, 0, 1e17);
+    indexed.set(0, 1, 1);
+    indexed.set(0, 0, 0);
+    assertEquals(1, indexed.sumRange(0, 0, 0, 1), 0.0);
+    assertEquals(-1, indexed.sumRange(0, 0, 39, 29), 0.0);
+
+    Random r = new Random(3);
+    for (int i = 0; i < 2000; i++) {
+      int row = r.nextInt(40);
+      int col = r.nextInt(30);
+      indexed.set(row, col, r.nextBoolean() ? (r.nextInt(2001) - 1000) * 1e14 : r.nextInt(9));
+    }
+    for (int row = 0; row < 40; row++) {
+      for (int col = 0; col < 30; col++) {
+        if (Math.abs(plain.get(row, col)) >= 1e14) {
+          indexed.set(row, col, row - col);
+        }
+      }
+    }
+    for (int i = 0; i < 200; i++) {
+      int r1 = r.nextInt(40);
+      int c1 = r.nextInt(30);
+      int r2 = r1 + r.nextInt(40 - r1);
+      int c2 = c1 + r.nextInt(30 - c1);
+      assertEquals(bruteSum(plain, r1, c1, r2, c2), indexed.sumRange(r1, c1, r2, c2), 0.0);
+    }
+  }
+
+  /**
+   * Tests the count of non-empty cells in a range.
+   */
+  @Test
+  public void testCountRange() {
+    assertEquals(2, indexed.countRange(0, 0, 39, 29));
+    indexed.set(0, 0, 0);
+    indexed.set(1, 1, 0);
+    indexed.execute(new BulkMacroAssign(5, 5, 6, 6, 1));
+    assertEquals(7, indexed.countRange(0, 0, 39, 29));
+    assertEquals(4, indexed.countRange(5, 5, 10, 10));
+  }
+
+  /**
+   * Tests that an average executed through the indexed sheet is written to the underlying
+   * sheet and counted in the index.
+   */
+  @Test
+  public void testAverage() {
+    indexed.execute(new BulkMacroAssign(0, 0, 1, 1, 3));
+    indexed.execute(new MacroAverage(0, 0, 3, 1, 20, 20));
+    assertEquals(1.5, indexed.get(20, 20), 1e-9);
+    assertEquals(1.5, plain.get(20, 20), 1e-9);
+    assertEquals(11.5, indexed.sumRange(0, 0, 39, 29), 1e-9);
+    assertEquals(6, indexed.countRange(0, 0, 39, 29));
+  }
+
+  /**
+   * Tests that macros reach the underlying sheet, so that a journaling sheet can undo them,
+   * and that the index and the visited cells still match the sheet.
+   */
+  @Test
+  public void testMacrosReachDelegate() {
+    NewSparseSpreadSheet journaled = new NewSparseSpreadSheet(4);
+    RangeIndexedSpreadSheet sheet = new RangeIndexedSpreadSheet(journaled, 10, 10);
+    sheet.set(2, 2, 5);
+    sheet.execute(new MacroRangeAssign(0, 0, 3, 3, 1, 1));
+    assertTrue(journaled.canUndo());
+    assertEquals(bruteSum(journaled, 0, 0, 9, 9), sheet.sumRange(0, 0, 9, 9), 1e-9);
+    assertEquals(16, sheet.countRange(0, 0, 9, 9));
+    int[] visited = {0};
+    sheet.forEachNonEmpty(0, 0, 9, 9, (row, col, value) -> visited[0]++);
+    assertEquals(16, visited[0]);
+  }
+
+  /**
+   * Tests that counting outside the index is rejected.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testCountOutsideIndex() {
+    indexed.countRange(0, 0, 40, 0);
+  }
+}
@@ -0,0 +1,118 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import spreadsheet.BulkMacroAssign;
+import spreadsheet.RunLengthSpreadSheet;
+import spreadsheet.SparseSpreadSheet;
+import spreadsheet.SpreadSheet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the run-length storage of constant rectangles in RunLengthSpreadSheet.
+ */
+public class RunLengthSpreadSheetTest {
+
+  /**
+   * Tests that a large constant fill is stored as a single run.
+   */
+  @Test
+  public void testFillIsOneRun() {
+    RunLengthSpreadSheet sheet = new RunLengthSpreadSheet();
+    new BulkMacroAssign(0, 0, 999, 999, -1).execute(sheet);
+    assertEquals(1, sheet.getRunCount());
+    assertEquals(1000000, sheet.getRunCellCount());
+    assertEquals(1000000.0, sheet.getCompressionRatio(), 0.0);
+    assertEquals(-1.0, sheet.get(999, 999), 0.0);
+    assertEquals(-1000000.0, sheet.sumRange(0, 0, 2000, 2000), 0.0);
+    assertEquals(1000, sheet.getWidth());
+    assertEquals(1000, sheet.getHeight());
+
+    sheet.set(500, 500, -1);
+    assertEquals(1, sheet.getRunCount());
+    sheet.set(500, 500, 3);
+    assertEquals(4, sheet.getRunCount());
+    assertEquals(999999, sheet.getRunCellCount());
+    assertEquals(1, sheet.getSingleCellCount());
+    assertEquals(3.0, sheet.get(500, 500), 0.0);
+    assertEquals(-1.0, sheet.get(500, 501), 0.0);
+  }
+
+  /**
+   * Tests that adjacent fills of the same value merge into one run.
+   */
+  @Test
+  public void testAdjacentFillsMerge() {
+    RunLengthSpreadSheet sheet = new RunLengthSpreadSheet();
+    for (int row = 0; row < 100; row += 10) {
+      sheet.fillRange(row, 0, row + 9, 49, 0);
+    }
+    sheet.fillRange(0, 50, 99, 99, 0);
+    assertEquals(1, sheet.getRunCount());
+    assertEquals(10000, sheet.getRunCellCount());
+  }
+
+  /**
+   * Tests random overlapping writes against a spreadsheet storing every cell.
+   */
+  @Test
+  public void testMatchesSparseSpreadSheet() {
+    RunLengthSpreadSheet sheet = new RunLengthSpreadSheet();
+    SparseSpreadSheet expected = new SparseSpreadSheet();
+    Random random = new Random(7);
+    for (int i = 0; i < 300; i++) {
+      int fromRow = random.nextInt(60);
+      int fromCol = random.nextInt(60);
+      int toRow = fromRow + random.nextInt(20);
+      int toCol = fromCol + random.nextInt(20);
+      double value = random.nextInt(3);
+      for (SpreadSheet s : new SpreadSheet[]{sheet, expected}) {
+        switch (i % 4) {
+          case 0:
+          case 1:
+            s.fillRange(fromRow, fromCol, toRow, toCol, value);
+            break;
+          case 2:
+            s.set(fromRow, fromCol, value + 0.5);
+            break;
+          default:
+            if (s == sheet) {
+              sheet.clear(toRow, toCol);
+            } else {
+              expected.clear(toRow, toCol);
+            }
+        }
+      }
+    }
+    double[] actual = new double[90 * 90];
+    double[] reference = new double[90 * 90];
+    sheet.getRange(0, 0, 89, 89, actual);
+    expected.getRange(0, 0, 89, 89, reference);
+    assertArrayEquals(reference, actual, 0.0);
+    for (int row = 0; row < 90; row++) {
+      for (int col = 0; col < 90; col++) {
+        assertEquals(expected.isEmpty(row, col), sheet.isEmpty(row, col));
+      }
+    }
+    assertEquals(expected.sumRange(5, 5, 70, 70), sheet.sumRange(5, 5, 70, 70), 1e-9);
+    assertEquals(expected.getWidth(), sheet.getWidth());
+    assertEquals(expected.getHeight(), sheet.getHeight());
+
+    List<String> visited = new ArrayList<String>();
+    List<String> visitedExpected = new ArrayList<String>();
+    sheet.forEachNonEmpty(3, 4, 80, 70, (row, col, value) ->
+            visited.add(row + "," + col + "=" + value));
+    expected.forEachNonEmpty(3, 4, 80, 70, (row, col, value) ->
+            visitedExpected.add(row + "," + col + "=" + value));
+    visitedExpected.sort(null);
+    List<String> sorted = new ArrayList<String>(visited);
+    sorted.sort(null);
+    assertEquals(visitedExpected, sorted);
+    assertTrue(sheet.getCompressionRatio() > 1);
+  }
+}
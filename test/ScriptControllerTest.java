@@ -0,0 +1,106 @@
+import org.junit.Test;
+
+import java.io.StringReader;
+
+import spreadsheet.NewSparseSpreadSheet;
+import spreadsheet.ScriptController;
+import spreadsheet.SparseSpreadSheet;
+import spreadsheet.SpreadSheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests running scripts of instructions with the ScriptController.
+ */
+public class ScriptControllerTest {
+
+  private final String nl = System.lineSeparator();
+
+  /**
+   * Runs the given script against the given sheet and returns the output.
+   */
+  private static String run(SpreadSheet sheet, String script) {
+    StringBuilder output = new StringBuilder();
+    new ScriptController(sheet, new StringReader(script), output).control();
+    return output.toString();
+  }
+
+  /**
+   * Tests that values are assigned and printed without any prompts or messages.
+   */
+  @Test
+  public void testAssignAndPrint() {
+    SpreadSheet sheet = new SparseSpreadSheet();
+    String output = run(sheet, "assign-value A 1 2.5\n\n  assign-value  ab 3 -1e3 \r\n"
+            + "print-value A 1\nprint-value AB 3\nmenu\nprint-value B 2");
+    assertEquals("Value: 2.5" + nl + "Value: -1000.0" + nl + "Value: 0.0" + nl, output);
+    assertEquals(-1000.0, sheet.get(27, 2), 0.0);
+  }
+
+  /**
+   * Tests that the macro instructions run on sheets with and without macro support.
+   */
+  @Test
+  public void testMacros() {
+    String script = "bulk-assign-value A 1 B 2 4\nrange-assign C 1 C 3 1 1\n"
+            + "average A 1 C 3 D 1\n";
+    for (SpreadSheet sheet : new SpreadSheet[]{new NewSparseSpreadSheet(),
+        new SparseSpreadSheet()}) {
+      assertEquals("", run(sheet, script));
+      assertEquals(4.0, sheet.get(1, 1), 0.0);
+      assertEquals(3.0, sheet.get(2, 2), 0.0);
+      assertEquals(22.0 / 9, sheet.get(3, 0), 0.001);
+    }
+  }
+
+  /**
+   * Tests that failed instructions are reported with their line and skipped.
+   */
+  @Test
+  public void testErrorsNameTheLine() {
+    SpreadSheet sheet = new SparseSpreadSheet();
+    StringBuilder output = new StringBuilder();
+    long errors = new ScriptController(sheet, new StringReader("assign-value A 1 1\n"
+            + "assign-value A1 1 2\n\nprint-value A\nfoo bar\nassign-value B 1 x\n"
+            + "assign-value A 99999999999 1\nassign-value A 2 3\n"), output).control();
+    assertEquals(5, errors);
+    assertEquals("Error at line 2: Invalid row" + nl
+            + "Error at line 4: Missing argument" + nl
+            + "Error at line 5: Undefined instruction: foo" + nl
+            + "Error at line 6: Invalid number" + nl
+            + "Error at line 7: Number out of range" + nl, output.toString());
+    assertEquals(1.0, sheet.get(0, 0), 0.0);
+    assertEquals(3.0, sheet.get(0, 1), 0.0);
+    assertTrue(sheet.isEmpty(1, 0));
+  }
+
+  /**
+   * Tests that the script stops at the quit instruction.
+   */
+  @Test
+  public void testQuit() {
+    SpreadSheet sheet = new SparseSpreadSheet();
+    run(sheet, "assign-value A 1 1\nquit\nassign-value A 2 2\n");
+    assertTrue(sheet.isEmpty(0, 1));
+  }
+
+  /**
+   * Tests a script longer than the buffers of the tokenizer and the output.
+   */
+  @Test
+  public void testLongScript() {
+    StringBuilder script = new StringBuilder();
+    for (int i = 1; i <= 20000; i++) {
+      script.append("assign-value A ").append(i).append(' ').append(i).append('\n');
+    }
+    for (int i = 1; i <= 20000; i++) {
+      script.append("print-value A ").append(i).append('\n');
+    }
+    SpreadSheet sheet = new SparseSpreadSheet();
+    String output = run(sheet, script.toString());
+    assertEquals(20000 * 20001 / 2.0, sheet.sumRange(0, 0, 0, 19999), 0.0);
+    assertTrue(output.startsWith("Value: 1.0" + nl));
+    assertTrue(output.endsWith("Value: 20000.0" + nl));
+  }
+}
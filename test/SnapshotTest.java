@@ -0,0 +1,147 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import spreadsheet.NewSparseSpreadSheet;
+import spreadsheet.SnapshotReader;
+import spreadsheet.SnapshotWriter;
+import spreadsheet.SparseSpreadSheet;
+import spreadsheet.SpreadSheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * This class tests that a spreadsheet written to a binary snapshot loads back unchanged.
+ */
+public class SnapshotTest {
+  private Path file;
+
+  /**
+   * Sets up the testing environment before each test.
+   */
+  @Before
+  public void setup() throws IOException {
+    file = Files.createTempFile("sheet", ".snapshot");
+  }
+
+  /**
+   * Deletes the snapshot file after each test.
+   */
+  @After
+  public void teardown() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  /**
+   * Tests that dense blocks, scattered cells and explicit zeros all survive a round trip.
+   */
+  @Test
+  public void testRoundTrip() {
+    NewSparseSpreadSheet sheet = new NewSparseSpreadSheet();
+    sheet.fillRange(0, 0, 99, 99, 1.5);
+    sheet.set(5, 200, 0.0);
+    sheet.set(5, 202, -3.0);
+    sheet.set(100000, 7, 42.0);
+    assertEquals(10003, SnapshotWriter.write(sheet, file));
+
+    SparseSpreadSheet loaded = new SparseSpreadSheet();
+    try (SnapshotReader reader = new SnapshotReader(file)) {
+      assertEquals(10003, reader.getCellCount());
+      assertEquals(100001, reader.getHeight());
+      assertEquals(203, reader.getWidth());
+      assertEquals(10003, reader.load(loaded));
+    }
+    assertEquals(1.5, loaded.get(99, 99), 0.001);
+    assertEquals(15000.0, loaded.sumRange(0, 0, 99, 99), 0.001);
+    assertTrue(!loaded.isEmpty(5, 200));
+    assertTrue(loaded.isEmpty(5, 201));
+    assertEquals(-3.0, loaded.get(5, 202), 0.001);
+    assertEquals(42.0, loaded.get(100000, 7), 0.001);
+    assertEquals(100001, loaded.getHeight());
+    assertEquals(203, loaded.getWidth());
+  }
+
+  /**
+   * Tests that a tall, wide and mostly empty spreadsheet is written without walking its empty
+   * rows, and that a block holding more cells than a band is still written whole.
+   */
+  @Test
+  public void testTallSparseSheet() {
+    NewSparseSpreadSheet sheet = new NewSparseSpreadSheet();
+    sheet.set(0, 0, 1.0);
+    sheet.fillRange(10, 0, 309, 299, 2.0);
+    sheet.set(2000000000, 70000, 3.0);
+    assertEquals(90002, SnapshotWriter.write(sheet, file));
+
+    SparseSpreadSheet loaded = new SparseSpreadSheet();
+    try (SnapshotReader reader = new SnapshotReader(file)) {
+      assertEquals(2000000001, reader.getHeight());
+      assertEquals(70001, reader.getWidth());
+      assertEquals(90002, reader.load(loaded));
+    }
+    assertEquals(1.0, loaded.get(0, 0), 0.001);
+    assertEquals(180000.0, loaded.sumRange(10, 0, 309, 299), 0.001);
+    assertEquals(3.0, loaded.get(2000000000, 70000), 0.001);
+  }
+
+  /**
+   * Tests that a range of rows can be loaded on its own.
+   */
+  @Test
+  public void testLoadRows() {
+    SpreadSheet sheet = new SparseSpreadSheet();
+    for (int i = 0; i < 50; i++) {
+      sheet.set(i * 10, i, i);
+    }
+    SnapshotWriter.write(sheet, file);
+
+    SpreadSheet loaded = new SparseSpreadSheet();
+    try (SnapshotReader reader = new SnapshotReader(file)) {
+      assertEquals(3, reader.load(loaded, 95, 120));
+    }
+    assertEquals(10.0, loaded.get(100, 10), 0.001);
+    assertEquals(12.0, loaded.get(120, 12), 0.001);
+    assertEquals(121, loaded.getHeight());
+    assertTrue(loaded.isEmpty(90, 9));
+  }
+
+  /**
+   * Tests that an empty spreadsheet makes a valid empty snapshot.
+   */
+  @Test
+  public void testEmptySheet() {
+    assertEquals(0, SnapshotWriter.write(new SparseSpreadSheet(), file));
+    SpreadSheet loaded = new SparseSpreadSheet();
+    try (SnapshotReader reader = new SnapshotReader(file)) {
+      assertEquals(0, reader.load(loaded));
+    }
+    assertEquals(0, loaded.getHeight());
+  }
+
+  /**
+   * Tests that a damaged snapshot is rejected when it is opened.
+   */
+  @Test
+  public void testDamagedSnapshotIsRejected() throws IOException {
+    SpreadSheet sheet = new SparseSpreadSheet();
+    sheet.set(3, 3, 3.0);
+    SnapshotWriter.write(sheet, file);
+    try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+      raw.seek(44);
+      raw.write(0x7F);
+    }
+    try {
+      new SnapshotReader(file).close();
+      fail("Expected the damaged snapshot to be rejected");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("damaged"));
+    }
+  }
+}
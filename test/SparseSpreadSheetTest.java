@@ -92,5 +92,85 @@ public class SparseSpreadSheetTest {
     sheet.get(0, -1);
   }
 
+  /**
+   * Tests that cells far apart, including ones at the largest indices, are kept distinct
+   * as the spreadsheet grows.
+   */
+  @Test
+  public void testDistantCells() {
+    for (int i = 0; i < 10000; i = i + 1) {
+      sheet.set(i * 7919, i, i);
+      sheet.set(i, i * 7919, -i);
+    }
+    sheet.set(Integer.MAX_VALUE, Integer.MAX_VALUE, 42);
+    for (int i = 1; i < 10000; i = i + 1) {
+      assertEquals(i, sheet.get(i * 7919, i), 0.001);
+      assertEquals(-i, sheet.get(i, i * 7919), 0.001);
+      assertTrue(sheet.isEmpty(i * 7919, i + 1));
+    }
+    assertEquals(42, sheet.get(Integer.MAX_VALUE, Integer.MAX_VALUE), 0.001);
+    assertFalse(sheet.isEmpty(Integer.MAX_VALUE, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Tests that fillRange, setRange and getRange agree with the per-cell operations.
+   */
+  @Test
+  public void testRangeOperations() {
+    sheet.fillRange(2, 3, 4, 5, 1.5);
+    double[] values = new double[9];
+    for (int i = 0; i < values.length; i = i + 1) {
+      values[i] = i;
+    }
+    sheet.setRange(3, 4, 5, 6, values);
+    assertEquals(1.5, sheet.get(2, 3), 0.001);
+    assertEquals(0.0, sheet.get(3, 4), 0.001);
+    assertEquals(5.0, sheet.get(4, 6), 0.001);
+    assertEquals(8.0, sheet.get(5, 6), 0.001);
+    assertTrue(sheet.isEmpty(5, 3));
+    assertEquals(7, sheet.getWidth());
+    assertEquals(6, sheet.getHeight());
 
+    double[] dest = new double[12];
+    sheet.getRange(2, 3, 5, 5, dest);
+    assertEquals(1.5, dest[0], 0.001);
+    assertEquals(0.0, dest[4], 0.001);
+    assertEquals(3.0, dest[7], 0.001);
+    assertEquals(0.0, dest[9], 0.001);
+  }
+
+  /**
+   * Tests that a reversed range is rejected.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testFillReversedRange() {
+    sheet.fillRange(4, 0, 3, 0, 1);
+  }
+
+  /**
+   * Tests that an array too small for the range is rejected.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetRangeShortArray() {
+    sheet.setRange(0, 0, 1, 1, new double[3]);
+  }
+
+  /**
+   * Tests that only the non-empty cells of a range are visited, in row-major order.
+   */
+  @Test
+  public void testForEachNonEmpty() {
+    sheet.set(7, 2, 1);
+    sheet.set(3, 9, 2);
+    sheet.set(3, 4, 3);
+    sheet.set(100000, 18000, 4);
+    sheet.set(5, 50, 5);
+    StringBuilder visited = new StringBuilder();
+    sheet.forEachNonEmpty(0, 0, 99999, 18277,
+        (row, col, value) -> visited.append(row).append(',').append(col).append(' '));
+    assertEquals("3,4 3,9 5,50 7,2 ", visited.toString());
+    assertEquals(11.0, sheet.sumRange(0, 0, 99999, 18277), 0.001);
+    assertEquals(15.0, sheet.sumRange(0, 0, 100000, 18277), 0.001);
+    assertEquals(3.0, sheet.sumRange(3, 0, 3, 8), 0.001);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,112 @@
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import spreadsheet.ConcurrentSparseSpreadSheet;
+import spreadsheet.LatencyHistogram;
+import spreadsheet.LoadClient;
+import spreadsheet.SpreadSheetServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests sessions of SpreadSheetServer sharing one spreadsheet.
+ */
+public class SpreadSheetServerTest {
+
+  /**
+   * Tests that each answer arrives before the next instruction is sent, and that sessions
+   * see each other's writes.
+   */
+  @Test
+  public void testSessionsShareTheSheet() throws Exception {
+    ConcurrentSparseSpreadSheet sheet = new ConcurrentSparseSpreadSheet();
+    try (SpreadSheetServer server = new SpreadSheetServer(sheet, 0);
+         Socket first = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+         Socket second = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+      Writer firstOut = new OutputStreamWriter(first.getOutputStream(), StandardCharsets.UTF_8);
+      BufferedReader firstIn = new BufferedReader(new InputStreamReader(
+              first.getInputStream(), StandardCharsets.UTF_8));
+      Writer secondOut = new OutputStreamWriter(second.getOutputStream(),
+              StandardCharsets.UTF_8);
+      BufferedReader secondIn = new BufferedReader(new InputStreamReader(
+              second.getInputStream(), StandardCharsets.UTF_8));
+
+      firstOut.write("assign-value B 2 4.5\nprint-value B 2\n");
+      firstOut.flush();
+      assertEquals("Value: 4.5", firstIn.readLine());
+      secondOut.write("bulk-assign-value A 1 A 3 1\nprint-value B 2\nnonsense\n");
+      secondOut.flush();
+      assertEquals("Value: 4.5", secondIn.readLine());
+      assertEquals("Error at line 3: Undefined instruction: nonsense", secondIn.readLine());
+      firstOut.write("print-value A 3\nquit\n");
+      firstOut.flush();
+      assertEquals("Value: 1.0", firstIn.readLine());
+      assertEquals(null, firstIn.readLine());
+      assertEquals(2, server.getSessionCount());
+    }
+  }
+
+  /**
+   * Tests many concurrent sessions with the load client.
+   */
+  @Test
+  public void testLoad() {
+    try (SpreadSheetServer server = new SpreadSheetServer(new ConcurrentSparseSpreadSheet(),
+            0)) {
+      LoadClient client = new LoadClient(server.getPort(), 50, 200);
+      LatencyHistogram latency = client.run();
+      assertEquals(10000, latency.getCount());
+      assertEquals(0, client.getFailures());
+      assertTrue(client.getThroughput() > 0);
+      assertTrue(client.report().startsWith("sessions=50 requests=10000 "));
+    }
+  }
+
+  /**
+   * Tests that a session failing with an unexpected exception is closed without affecting
+   * the others, and that closing the server closes the open sessions.
+   */
+  @Test
+  public void testFailedSession() throws Exception {
+    ConcurrentSparseSpreadSheet sheet = new ConcurrentSparseSpreadSheet() {
+      @Override
+      public double sumRange(int fromRow, int fromCol, int toRow, int toCol) {
+        if (toRow == 9) {
+          throw new ArithmeticException("broken range");
+        }
+        return super.sumRange(fromRow, fromCol, toRow, toCol);
+      }
+    };
+    SpreadSheetServer server = new SpreadSheetServer(sheet, 0);
+    try (Socket broken = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+         Socket idle = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+      Writer brokenOut = new OutputStreamWriter(broken.getOutputStream(),
+              StandardCharsets.UTF_8);
+      BufferedReader brokenIn = new BufferedReader(new InputStreamReader(
+              broken.getInputStream(), StandardCharsets.UTF_8));
+      BufferedReader idleIn = new BufferedReader(new InputStreamReader(
+              idle.getInputStream(), StandardCharsets.UTF_8));
+      Writer idleOut = new OutputStreamWriter(idle.getOutputStream(), StandardCharsets.UTF_8);
+
+      brokenOut.write("sum A 1 J 1 A 2\n");
+      brokenOut.flush();
+      assertEquals(null, brokenIn.readLine());
+      assertEquals(1, server.getFailedSessions());
+      idleOut.write("assign-value A 1 3\nprint-value A 1\n");
+      idleOut.flush();
+      assertEquals("Value: 3.0", idleIn.readLine());
+
+      server.close();
+      assertEquals(null, idleIn.readLine());
+      server.awaitClose();
+    }
+  }
+}
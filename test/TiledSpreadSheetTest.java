@@ -0,0 +1,92 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import spreadsheet.TiledSpreadSheet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class is the tester for a tiled spreadsheet.
+ */
+public class TiledSpreadSheetTest {
+  private TiledSpreadSheet sheet;
+
+  /**
+   * Sets up the testing environment before each test.
+   */
+  @Before
+  public void setup() {
+    sheet = new TiledSpreadSheet();
+  }
+
+  /**
+   * Tests the get and set methods across tile boundaries.
+   */
+  @Test
+  public void testGetSet() {
+    Random r = new Random(100);
+    double[][] expectedSet = new double[150][150];
+    for (int i = 0; i < 150; i = i + 1) {
+      for (int j = 0; j < 150; j = j + 1) {
+        double num = r.nextDouble();
+        expectedSet[i][j] = num;
+        assertTrue(sheet.isEmpty(i, j));
+        assertEquals(0.0, sheet.get(i, j), 0.001);
+        sheet.set(i, j, num);
+        assertFalse(sheet.isEmpty(i, j));
+      }
+    }
+
+    for (int i = 0; i < 150; i = i + 1) {
+      for (int j = 0; j < 150; j = j + 1) {
+        assertEquals(expectedSet[i][j], sheet.get(i, j), 0.01);
+      }
+    }
+    assertEquals(9, sheet.getTileCount());
+  }
+
+  /**
+   * Tests that an explicitly stored zero is distinguished from an empty cell.
+   */
+  @Test
+  public void testStoredZeroIsNotEmpty() {
+    sheet.set(5, 5, 0);
+    assertFalse(sheet.isEmpty(5, 5));
+    assertTrue(sheet.isEmpty(5, 6));
+  }
+
+  /**
+   * Tests that tiles are only allocated where cells are set, and that the width and height
+   * follow the furthest cell.
+   */
+  @Test
+  public void testDistantBlocks() {
+    sheet.set(0, 0, 1);
+    sheet.set(100000, 70000, 2);
+    assertEquals(2, sheet.getTileCount());
+    assertEquals(2, sheet.get(100000, 70000), 0.001);
+    assertTrue(sheet.isEmpty(100000, 70001));
+    assertEquals(100001, sheet.getHeight());
+    assertEquals(70001, sheet.getWidth());
+  }
+
+  /**
+   * Tests the get method with a negative row index.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testGetWithNegativeRow() {
+    sheet.get(-1, 0);
+  }
+
+  /**
+   * Tests the set method with a negative column index.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetWithNegativeColumn() {
+    sheet.set(0, -1, 1);
+  }
+}
@@ -0,0 +1,165 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import spreadsheet.BulkMacroAssign;
+import spreadsheet.MacroAverage;
+import spreadsheet.MacroRangeAssign;
+import spreadsheet.SparseSpreadSheet;
+import spreadsheet.SpreadSheet;
+import spreadsheet.VersionedSpreadSheet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * This class tests that VersionedSpreadSheet behaves like any other spreadsheet, and that
+ * its snapshots never change and never show a macro half done.
+ */
+public class VersionedSpreadSheetTest {
+
+  /**
+   * Tests random writes and reads against a sparse spreadsheet, with ranges both smaller and
+   * larger than the number of tiles.
+   */
+  @Test
+  public void testMatchesSparseSpreadSheet() {
+    VersionedSpreadSheet sheet = new VersionedSpreadSheet();
+    SpreadSheet expected = new SparseSpreadSheet();
+    Random random = new Random(11);
+    for (int i = 0; i < 3000; i++) {
+      int row = random.nextInt(200);
+      int col = random.nextInt(100);
+      switch (random.nextInt(5)) {
+        case 0:
+          sheet.set(row, col, i);
+          expected.set(row, col, i);
+          break;
+        case 1:
+          sheet.fillRange(row, col, row + 10, col + 3, i);
+          expected.fillRange(row, col, row + 10, col + 3, i);
+          break;
+        case 2:
+          double[] values = new double[12];
+          Arrays.fill(values, -i);
+          sheet.setRange(row, col, row + 3, col + 2, values);
+          expected.setRange(row, col, row + 3, col + 2, values);
+          break;
+        default:
+          int toRow = row + random.nextInt(random.nextBoolean() ? 20 : 100000);
+          int toCol = col + random.nextInt(20);
+          assertEquals(expected.sumRange(row, col, toRow, toCol),
+                  sheet.sumRange(row, col, toRow, toCol), 0.0);
+          assertEquals(expected.isEmpty(row, col), sheet.isEmpty(row, col));
+          assertEquals(expected.get(row, col), sheet.get(row, col), 0.0);
+      }
+    }
+    assertEquals(expected.getWidth(), sheet.getWidth());
+    assertEquals(expected.getHeight(), sheet.getHeight());
+    double[] actual = new double[300 * 120];
+    double[] wanted = new double[300 * 120];
+    sheet.getRange(0, 0, 299, 119, actual);
+    expected.getRange(0, 0, 299, 119, wanted);
+    assertArrayEquals(wanted, actual, 0.0);
+    long[] cells = new long[2];
+    sheet.forEachNonEmpty(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE, (r, c, v) -> {
+      assertFalse(expected.isEmpty(r, c));
+      assertEquals(expected.get(r, c), v, 0.0);
+      cells[0]++;
+    });
+    expected.forEachNonEmpty(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE,
+            (r, c, v) -> cells[1]++);
+    assertEquals(cells[1], cells[0]);
+  }
+
+  /**
+   * Tests that a snapshot keeps the values it was taken with while the spreadsheet changes,
+   * and that it cannot be written.
+   */
+  @Test
+  public void testSnapshotIsUnchanged() {
+    VersionedSpreadSheet sheet = new VersionedSpreadSheet();
+    sheet.execute(new MacroRangeAssign(0, 0, 99, 0, 1, 1));
+    VersionedSpreadSheet.Snapshot before = sheet.snapshot();
+    sheet.set(5, 0, 1000);
+    sheet.execute(new BulkMacroAssign(0, 1, 99, 9, 2));
+    sheet.execute(new MacroAverage(0, 0, 99, 0, 200, 0));
+
+    assertEquals(6, before.get(5, 0), 0.0);
+    assertEquals(5050, before.sumRange(0, 0, 99, 9), 0.0);
+    assertTrue(before.isEmpty(200, 0));
+    assertEquals(100, before.getHeight());
+    assertEquals(1, before.getWidth());
+    assertEquals(1000, sheet.get(5, 0), 0.0);
+    assertEquals((5050 - 6 + 1000) / 100.0, sheet.get(200, 0), 1e-9);
+    assertEquals(before.getVersion() + 3, sheet.snapshot().getVersion());
+    try {
+      before.set(0, 0, 1);
+      fail("A snapshot should be read-only");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  /**
+   * Tests that a macro failing halfway leaves no trace, and that later writes still work.
+   */
+  @Test
+  public void testFailedMacroIsNotPublished() {
+    VersionedSpreadSheet sheet = new VersionedSpreadSheet();
+    sheet.set(0, 0, 1);
+    long version = sheet.snapshot().getVersion();
+    try {
+      sheet.execute(s -> {
+        s.fillRange(0, 0, 63, 63, 5);
+        s.set(-1, 0, 0);
+      });
+      fail("The macro should fail");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    assertEquals(version, sheet.snapshot().getVersion());
+    assertEquals(1, sheet.sumRange(0, 0, 63, 63), 0.0);
+    assertEquals(1, sheet.getWidth());
+    sheet.set(1, 1, 2);
+    assertEquals(3, sheet.sumRange(0, 0, 63, 63), 0.0);
+  }
+
+  /**
+   * Tests that a reader summing snapshots while macros rewrite the whole range always sees
+   * the range written by one macro and never a mix of two.
+   */
+  @Test
+  public void testReadersNeverSeeHalfAMacro() throws InterruptedException {
+    VersionedSpreadSheet sheet = new VersionedSpreadSheet();
+    sheet.execute(new BulkMacroAssign(0, 0, 299, 299, 0));
+    AtomicBoolean done = new AtomicBoolean();
+    AtomicLong torn = new AtomicLong();
+    AtomicLong reads = new AtomicLong();
+    Thread reader = new Thread(() -> {
+      do {
+        VersionedSpreadSheet.Snapshot snapshot = sheet.snapshot();
+        double sum = snapshot.sumRange(0, 0, 299, 299);
+        if (sum % 90000 != 0 || sum != snapshot.get(150, 150) * 90000) {
+          torn.incrementAndGet();
+        }
+        reads.incrementAndGet();
+      } while (!done.get());
+    });
+    reader.start();
+    for (int i = 1; i <= 40; i++) {
+      sheet.execute(new BulkMacroAssign(0, 0, 299, 299, i));
+    }
+    done.set(true);
+    reader.join();
+    assertEquals(0, torn.get());
+    assertTrue(reads.get() > 0);
+    assertEquals(40 * 90000, sheet.sumRange(0, 0, 299, 299), 0.0);
+  }
+}
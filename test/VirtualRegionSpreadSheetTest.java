@@ -0,0 +1,150 @@
+import org.junit.Test;
+
+import spreadsheet.BulkMacroAssign;
+import spreadsheet.MacroAverage;
+import spreadsheet.MacroCommand;
+import spreadsheet.MacroRangeAssign;
+import spreadsheet.MacroSpreadSheet;
+import spreadsheet.NewSparseSpreadSheet;
+import spreadsheet.SparseSpreadSheet;
+import spreadsheet.SpreadSheet;
+import spreadsheet.TiledSpreadSheet;
+import spreadsheet.VirtualRegionSpreadSheet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests that VirtualRegionSpreadSheet reads exactly like a spreadsheet whose
+ * macros wrote every cell.
+ */
+public class VirtualRegionSpreadSheetTest {
+
+  /**
+   * Tests that large values beneath a region do not cancel out the other cells of a sum, on
+   * a spreadsheet whose covered cells are cleared and on one whose cells are kept.
+   */
+  @Test
+  public void testCoveredCellsDoNotCancel() {
+    for (SpreadSheet delegate : new SpreadSheet[]{new SparseSpreadSheet(),
+        new TiledSpreadSheet()}) {
+      VirtualRegionSpreadSheet sheet = new VirtualRegionSpreadSheet(delegate);
+      sheet.set(0, 0, 1e17);
+      sheet.set(0, 1, 1);
+      sheet.set(1, 0, Double.NaN);
+      sheet.execute(new BulkMacroAssign(0, 0, 1, 0, 0));
+      assertEquals(1.0, sheet.sumRange(0, 0, 1, 1), 0.0);
+      sheet.execute(new MacroAverage(0, 0, 0, 1, 5, 5));
+      assertEquals(0.5, sheet.get(5, 5), 0.0);
+    }
+  }
+
+  /**
+   * Tests that a huge range assignment is kept as one region and reads correctly.
+   */
+  @Test
+  public void testHugeRangeAssign() {
+    VirtualRegionSpreadSheet sheet = new VirtualRegionSpreadSheet(new SparseSpreadSheet());
+    sheet.execute(new MacroRangeAssign(0, 0, 9999, 9999, 1, 0.5));
+    assertEquals(1, sheet.getRegionCount());
+    assertEquals(1.0, sheet.get(0, 0), 0.0);
+    assertEquals(1 + 0.5 * (9999L * 10000 + 9999), sheet.get(9999, 9999), 0.0);
+    assertEquals(1 + 0.5 * 10001, sheet.get(1, 1), 0.0);
+    assertFalse(sheet.isEmpty(5000, 5000));
+    assertTrue(sheet.isEmpty(10000, 0));
+    assertEquals(10000, sheet.getWidth());
+    assertEquals(10000, sheet.getHeight());
+    assertEquals(0.0, sheet.get(10000, 10000), 0.0);
+  }
+
+  /**
+   * Tests overlapping regions, writes inside regions and range reads against a spreadsheet
+   * that stores every cell.
+   */
+  @Test
+  public void testMatchesWrittenCells() {
+    VirtualRegionSpreadSheet sheet = new VirtualRegionSpreadSheet(new SparseSpreadSheet());
+    MacroSpreadSheet expected = new NewSparseSpreadSheet();
+    MacroCommand[] commands = {
+        new BulkMacroAssign(0, 0, 39, 39, 2),
+        new MacroRangeAssign(10, 10, 59, 29, -3, 0.25),
+        new BulkMacroAssign(100, 100, 100, 100, 7),
+        new MacroAverage(0, 0, 19, 19, 50, 50),
+        new MacroRangeAssign(5, 5, 4, 9, 1, 1),
+    };
+    for (MacroCommand command : commands) {
+      sheet.execute(command);
+      expected.execute(command);
+    }
+    for (MacroSpreadSheet s : new MacroSpreadSheet[]{sheet, expected}) {
+      s.set(12, 12, 99);
+      s.set(0, 0, -1);
+      s.fillRange(30, 0, 31, 70, 4);
+      s.setRange(58, 28, 59, 29, new double[]{1, 2, 3, 4});
+    }
+    sheet.execute(new BulkMacroAssign(11, 11, 12, 12, 5));
+    expected.execute(new BulkMacroAssign(11, 11, 12, 12, 5));
+
+    assertEquals(expected.getWidth(), sheet.getWidth());
+    assertEquals(expected.getHeight(), sheet.getHeight());
+    for (int row = 0; row <= 101; row++) {
+      for (int col = 0; col <= 101; col++) {
+        assertEquals(expected.isEmpty(row, col), sheet.isEmpty(row, col));
+        assertEquals(expected.get(row, col), sheet.get(row, col), 0.0);
+      }
+    }
+    double[] actualRange = new double[102 * 102];
+    double[] expectedRange = new double[102 * 102];
+    sheet.getRange(0, 0, 101, 101, actualRange);
+    expected.getRange(0, 0, 101, 101, expectedRange);
+    assertArrayEquals(expectedRange, actualRange, 0.0);
+    assertEquals(expected.sumRange(3, 7, 80, 60), sheet.sumRange(3, 7, 80, 60), 1e-9);
+  }
+
+  /**
+   * Tests that regions covered entirely by later writes are dropped.
+   */
+  @Test
+  public void testCoveredRegionsAreDropped() {
+    VirtualRegionSpreadSheet sheet = new VirtualRegionSpreadSheet(new SparseSpreadSheet());
+    sheet.execute(new BulkMacroAssign(0, 0, 9, 9, 1));
+    sheet.execute(new BulkMacroAssign(20, 20, 20, 21, 1));
+    sheet.execute(new BulkMacroAssign(0, 0, 19, 19, 2));
+    assertEquals(2, sheet.getRegionCount());
+    sheet.fillRange(0, 0, 19, 19, 3);
+    sheet.set(20, 20, 4);
+    sheet.set(20, 21, 4);
+    assertEquals(0, sheet.getRegionCount());
+    assertEquals(3.0, sheet.get(5, 5), 0.0);
+    assertEquals(4.0, sheet.get(20, 21), 0.0);
+  }
+
+  /**
+   * Tests that writing inside a huge region splits it into a few parts that still compute the
+   * original values, and that sums and visits over it do not depend on its area.
+   */
+  @Test
+  public void testWritesCarveRegions() {
+    VirtualRegionSpreadSheet sheet = new VirtualRegionSpreadSheet(new SparseSpreadSheet());
+    sheet.execute(new MacroRangeAssign(0, 0, 99999, 99999, 1, 0.5));
+    sheet.set(50000, 50000, 0);
+    assertEquals(4, sheet.getRegionCount());
+    double cells = 1e10;
+    double series = cells + 0.5 * (cells - 1) * cells / 2;
+    double removed = 1 + 0.5 * (50000L * 100000 + 50000);
+    assertEquals(series - removed, sheet.sumRange(0, 0, 99999, 99999), series * 1e-12);
+    assertEquals(1 + 0.5 * (50000L * 100000 + 50001), sheet.get(50000, 50001), 0.0);
+    assertFalse(sheet.isEmpty(50000, 50000));
+    assertEquals(0.0, sheet.get(50000, 50000), 0.0);
+
+    double[] sum = new double[2];
+    sheet.forEachNonEmpty(49999, 49999, 50001, 50001, (row, col, value) -> {
+      sum[0] += value;
+      sum[1]++;
+    });
+    assertEquals(9, sum[1], 0.0);
+    assertEquals(sheet.sumRange(49999, 49999, 50001, 50001), sum[0], 1e-6);
+  }
+}